@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.benchmarks.crypto;
+
+import bt.metainfo.TorrentId;
+import bt.net.buffer.BufferMutator;
+import bt.net.crypto.CipherBufferMutator;
+import bt.protocol.crypto.MSECipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the in-place RC4-drop1024 implementation ({@link MSECipher#encrypt(ByteBuffer)})
+ * with the JCE "ARCFOUR" cipher, applied to the network buffer via {@link CipherBufferMutator}.
+ *
+ * <p>Run with: {@code java -jar bt-benchmarks/target/benchmarks.jar MSECipherBenchmark}</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MSECipherBenchmark {
+
+    @Param({"1024", "16384", "1048576"})
+    private int size;
+
+    @Param({"true", "false"})
+    private boolean direct;
+
+    private ByteBuffer buffer;
+    private MSECipher cipher;
+    private BufferMutator jceMutator;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("deprecation")
+    public void setUp() {
+        Random random = new Random(42);
+        byte[] S = new byte[96];
+        random.nextBytes(S);
+        byte[] infoHash = new byte[TorrentId.length()];
+        random.nextBytes(infoHash);
+        TorrentId torrentId = TorrentId.fromBytes(infoHash);
+
+        cipher = MSECipher.forInitiator(S, torrentId);
+        jceMutator = new CipherBufferMutator(MSECipher.forInitiator(S, torrentId).getEncryptionCipher());
+
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buffer.put(data);
+        buffer.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer inPlace() {
+        buffer.clear();
+        cipher.encrypt(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer jce() {
+        buffer.clear();
+        jceMutator.mutate(buffer);
+        return buffer;
+    }
+}
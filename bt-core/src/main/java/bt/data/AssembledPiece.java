@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.data;
+
+import bt.net.buffer.ByteBufferView;
+import bt.net.buffer.DelegatingByteBufferView;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * State of a single piece in {@link PieceAssemblyCache}.
+ * The piece is either assembled in memory, or its' data is written directly to storage
+ * (when there was not enough memory for the piece, or it has been spilled to storage).
+ *
+ * @since 1.11
+ */
+class AssembledPiece {
+
+    private final PieceAssemblyCache cache;
+    private final DataRange data;
+    private final int capacity;
+
+    // null, if the piece is not in memory
+    private ByteBuffer buffer;
+    // parts of the piece, that have been written to the buffer
+    private RangeSet<Long> written;
+    // all writes go directly to storage, until the piece is flushed or discarded
+    private boolean spilled;
+    // the torrent has been stopped, all writes go directly to storage
+    private boolean closed;
+
+    AssembledPiece(PieceAssemblyCache cache, DataRange data, int capacity) {
+        this.cache = cache;
+        this.data = data;
+        this.capacity = capacity;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized void write(long offset, ByteBufferView block) {
+        if (tryEnsureBuffer()) {
+            int length = block.remaining();
+            ByteBuffer target = buffer.duplicate();
+            target.limit((int) offset + length);
+            target.position((int) offset);
+            block.transferTo(target);
+            written.add(Range.closedOpen(offset, offset + length));
+            cache.touch(this);
+        } else {
+            data.getSubrange(offset).putBytes(block);
+        }
+    }
+
+    synchronized void write(long offset, byte[] block) {
+        if (tryEnsureBuffer()) {
+            ByteBuffer target = buffer.duplicate();
+            target.position((int) offset);
+            target.put(block);
+            written.add(Range.closedOpen(offset, offset + block.length));
+            cache.touch(this);
+        } else {
+            data.getSubrange(offset).putBytes(block);
+        }
+    }
+
+    private boolean tryEnsureBuffer() {
+        if (buffer == null && !spilled && !closed) {
+            buffer = cache.allocate(this);
+            if (buffer == null) {
+                // not enough memory
+                spilled = true;
+            } else {
+                written = TreeRangeSet.create();
+            }
+        }
+        return buffer != null;
+    }
+
+    synchronized boolean read(long offset, long length, ByteBuffer target) {
+        if (target.remaining() < length) {
+            return false;
+        }
+        if (buffer == null) {
+            return data.getSubrange(offset, length).getBytes(target);
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit((int) (offset + length));
+        source.position((int) offset);
+        target.put(source);
+        return true;
+    }
+
+    /**
+     * Write the data, that has been assembled so far, to storage,
+     * and write all subsequent data directly to storage.
+     *
+     * @return true, if the piece has been in memory
+     */
+    synchronized boolean spill() {
+        spilled = true;
+        return writeAndRelease();
+    }
+
+    /**
+     * Write the assembled piece to storage and release the memory.
+     *
+     * @return true, if the piece has been in memory
+     */
+    synchronized boolean flush() {
+        spilled = false;
+        return writeAndRelease();
+    }
+
+    synchronized void discard() {
+        spilled = false;
+        releaseBuffer();
+    }
+
+    synchronized void close() {
+        closed = true;
+        writeAndRelease();
+    }
+
+    private boolean writeAndRelease() {
+        if (buffer == null) {
+            return false;
+        }
+        try {
+            // normally, this is a single range, which is written with a single write per file
+            for (Range<Long> range : written.asRanges()) {
+                long offset = range.lowerEndpoint();
+                long length = range.upperEndpoint() - offset;
+                ByteBuffer source = buffer.duplicate();
+                source.limit((int) (offset + length));
+                source.position((int) offset);
+                data.getSubrange(offset, length).putBytes(new DelegatingByteBufferView(source));
+            }
+        } finally {
+            releaseBuffer();
+        }
+        return true;
+    }
+
+    private void releaseBuffer() {
+        if (buffer != null) {
+            cache.release(this, buffer);
+            buffer = null;
+            written = null;
+        }
+    }
+
+    /**
+     * Get the storage range of this piece, making sure that the storage is up to date.
+     */
+    synchronized DataRange getStorageData() {
+        if (buffer != null) {
+            spill();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.data;
+
+import bt.net.buffer.ByteBufferView;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Data range of a piece (or a part of a piece), that is being assembled in {@link PieceAssemblyCache}.
+ *
+ * @since 1.11
+ */
+class AssemblingDataRange implements DataRange {
+
+    private final AssembledPiece piece;
+    private final long offset;
+    private final long length;
+
+    AssemblingDataRange(AssembledPiece piece, long offset, long length) {
+        this.piece = piece;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public void visitUnits(DataRangeVisitor visitor) {
+        piece.getStorageData().getSubrange(offset, length).visitUnits(visitor);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public DataRange getSubrange(long offset, long length) {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IllegalArgumentException("Invalid subrange: offset (" + offset + "), length (" + length + ")," +
+                    " range length (" + this.length + ")");
+        }
+        return new AssemblingDataRange(piece, this.offset + offset, length);
+    }
+
+    @Override
+    public DataRange getSubrange(long offset) {
+        return getSubrange(offset, length - offset);
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Range is too big and can't be saved to array: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        getBytes(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    @Override
+    public boolean getBytes(ByteBuffer buffer) {
+        return piece.read(offset, length, buffer);
+    }
+
+    @Override
+    public void putBytes(byte[] block) {
+        checkFits(block.length);
+        piece.write(offset, block);
+    }
+
+    @Override
+    public void putBytes(ByteBufferView buffer) {
+        checkFits(buffer.remaining());
+        piece.write(offset, buffer);
+    }
+
+    private void checkFits(int blockLength) {
+        if (blockLength > length) {
+            throw new IllegalArgumentException(String.format(
+                    "Data does not fit in this range (expected max %d bytes, actual: %d)", length, blockLength));
+        }
+    }
+}
@@ -21,30 +21,41 @@ import bt.protocol.BitOrder;
 import bt.protocol.Protocols;
 
 import java.util.BitSet;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
 
 /**
  * Status of torrent's data.
  * <p>
- * Instances of this class are thread-safe.
+ * Instances of this class are thread-safe. Pieces are stored in an array of 64-bit words,
+ * that are updated atomically, so that marking and checking pieces never blocks.
+ * Bulk operations (like {@link #getBitmask()}) read the words one by one,
+ * hence they may observe some of the concurrently verified pieces, but not the others.
+ * As pieces are never "unverified", the result is always a subset of the current state.
  *
  * @since 1.0
  */
 public abstract class Bitfield {
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final long WORD_MASK = 0xFFFFFFFFFFFFFFFFL;
+
     /**
      * Bitmask indicating availability of pieces.
      * If the n-th bit is set, then the n-th piece is complete and verified.
      */
-    protected final BitSet bitmask;
+    private final AtomicLongArray words;
+
+    /**
+     * Number of bits set in {@link #words}.
+     */
+    private final AtomicInteger piecesComplete;
 
     /**
      * Total number of pieces in torrent.
      */
     protected final int piecesTotal;
 
-    protected final ReadWriteLock lock;
-
     /**
      * Creates empty bitfield.
      * Useful when peer does not communicate its' bitfield (e.g. when he has no data).
@@ -53,7 +64,9 @@ public abstract class Bitfield {
      * @since 1.0
      */
     protected Bitfield(int piecesTotal) {
-        this(piecesTotal, new BitSet(piecesTotal));
+        this.piecesTotal = piecesTotal;
+        this.words = new AtomicLongArray(getWordCount(piecesTotal));
+        this.piecesComplete = new AtomicInteger();
     }
 
     /**
@@ -64,15 +77,48 @@ public abstract class Bitfield {
      */
     protected Bitfield(int piecesTotal, BitSet bitSet) {
         this.piecesTotal = piecesTotal;
-        this.bitmask = bitSet;
-        this.lock = new ReentrantReadWriteLock();
+        long[] initial = bitSet.toLongArray();
+        this.words = new AtomicLongArray(getWordCount(piecesTotal));
+        int cardinality = 0;
+        for (int i = 0; i < Math.min(initial.length, words.length()); i++) {
+            long word = initial[i] & getWordMask(i);
+            words.set(i, word);
+            cardinality += Long.bitCount(word);
+        }
+        this.piecesComplete = new AtomicInteger(cardinality);
     }
 
-
     static int getBitmaskLength(int piecesTotal) {
         return (piecesTotal + 7) / 8;
     }
 
+    private static int getWordCount(int piecesTotal) {
+        return (piecesTotal + 63) >>> ADDRESS_BITS_PER_WORD;
+    }
+
+    private static int wordIndex(int pieceIndex) {
+        return pieceIndex >>> ADDRESS_BITS_PER_WORD;
+    }
+
+    // mask of the bits in the given word, that correspond to existing pieces
+    private long getWordMask(int wordIndex) {
+        if (wordIndex < words.length() - 1) {
+            return WORD_MASK;
+        }
+        return WORD_MASK >>> -piecesTotal;
+    }
+
+    /**
+     * @return Snapshot of the words of this bitfield
+     */
+    private long[] getWords() {
+        long[] snapshot = new long[words.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = words.get(i);
+        }
+        return snapshot;
+    }
+
     /**
      * @return Bitmask that describes status of all pieces.
      * If the n-th bit is set, then the n-th piece
@@ -80,12 +126,7 @@ public abstract class Bitfield {
      * @since 1.7
      */
     public BitSet getBitmask() {
-        lock.readLock().lock();
-        try {
-            return Protocols.copyOf(bitmask);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return BitSet.valueOf(getWords());
     }
 
     /**
@@ -96,16 +137,9 @@ public abstract class Bitfield {
      * @since 1.7
      */
     public byte[] toByteArray(BitOrder bitOrder) {
-        byte[] bytes;
-        boolean truncated = false;
-
-        lock.readLock().lock();
-        try {
-            bytes = bitmask.toByteArray();
-            truncated = (bitmask.length() < piecesTotal);
-        } finally {
-            lock.readLock().unlock();
-        }
+        BitSet bitmask = getBitmask();
+        byte[] bytes = bitmask.toByteArray();
+        boolean truncated = (bitmask.length() < piecesTotal);
 
         if (bitOrder == BitOrder.LITTLE_ENDIAN) {
             bytes = Protocols.reverseBits(bytes);
@@ -132,12 +166,7 @@ public abstract class Bitfield {
      * @since 1.0
      */
     public int getPiecesComplete() {
-        lock.readLock().lock();
-        try {
-            return bitmask.cardinality();
-        } finally {
-            lock.readLock().unlock();
-        }
+        return piecesComplete.get();
     }
 
     /**
@@ -145,25 +174,12 @@ public abstract class Bitfield {
      * @since 1.7
      */
     public int getPiecesIncomplete() {
-        lock.readLock().lock();
-        try {
-            return getPiecesTotal() - bitmask.cardinality();
-        } finally {
-            lock.readLock().unlock();
-        }
+        return getPiecesTotal() - piecesComplete.get();
     }
 
     protected boolean isPieceVerified(int pieceIndex) {
         validatePieceIndex(pieceIndex);
-
-        boolean verified;
-        lock.readLock().lock();
-        try {
-            verified = this.bitmask.get(pieceIndex);
-        } finally {
-            lock.readLock().unlock();
-        }
-        return verified;
+        return (words.get(wordIndex(pieceIndex)) & (1L << pieceIndex)) != 0;
     }
 
     /**
@@ -173,19 +189,20 @@ public abstract class Bitfield {
      * @return true iff the piece was marked verified for the first time
      */
     protected boolean checkAndMarkVerified(int pieceIndex) {
-        // write lock is required because this may modify the bitset and upgrading from read to write lock
-        // is not supported
-        lock.writeLock().lock();
-        try {
-            if (isVerified(pieceIndex)) {
+        validatePieceIndex(pieceIndex);
+
+        int wordIndex = wordIndex(pieceIndex);
+        long bit = 1L << pieceIndex;
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word & bit) != 0) {
                 return false;
-            } else {
-                markVerified(pieceIndex);
-                return true;
             }
-        } finally {
-            lock.writeLock().unlock();
-        }
+        } while (!words.compareAndSet(wordIndex, word, word | bit));
+
+        piecesComplete.incrementAndGet();
+        return true;
     }
 
     /**
@@ -218,13 +235,160 @@ public abstract class Bitfield {
      * @since 1.0
      */
     protected void markVerified(int pieceIndex) {
-        validatePieceIndex(pieceIndex);
+        checkAndMarkVerified(pieceIndex);
+    }
+
+    /**
+     * Returns the index of the first verified piece, that occurs on or after the specified index.
+     * Does not create any copies of the bitmask, so may be used to iterate over the verified pieces:
+     *
+     * <pre>
+     * for (int i = bitfield.nextVerifiedPiece(0); i >= 0; i = bitfield.nextVerifiedPiece(i + 1)) {
+     *     // ...
+     * }
+     * </pre>
+     *
+     * @param fromIndex Piece index to start checking from (inclusive)
+     * @return Index of the next verified piece or -1, if there are no more verified pieces
+     * @since 1.11
+     */
+    public int nextVerifiedPiece(int fromIndex) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+        }
+        if (fromIndex >= piecesTotal) {
+            return -1;
+        }
+        int wordIndex = wordIndex(fromIndex);
+        long word = words.get(wordIndex) & (WORD_MASK << fromIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length()) {
+                return -1;
+            }
+            word = words.get(wordIndex);
+        }
+    }
+
+    /**
+     * Returns the index of the first piece, that has not been verified yet and occurs on or after the specified index.
+     *
+     * @param fromIndex Piece index to start checking from (inclusive)
+     * @return Index of the next piece, that has not been verified, or -1, if all remaining pieces are verified
+     * @since 1.11
+     */
+    public int nextUnverifiedPiece(int fromIndex) {
+        if (fromIndex < 0) {
+            throw new IndexOutOfBoundsException("fromIndex < 0: " + fromIndex);
+        }
+        if (fromIndex >= piecesTotal) {
+            return -1;
+        }
+        int wordIndex = wordIndex(fromIndex);
+        long word = ~words.get(wordIndex) & (WORD_MASK << fromIndex) & getWordMask(wordIndex);
+        while (true) {
+            if (word != 0) {
+                return (wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+            }
+            if (++wordIndex == words.length()) {
+                return -1;
+            }
+            word = ~words.get(wordIndex) & getWordMask(wordIndex);
+        }
+    }
+
+    /**
+     * Invoke the consumer for each verified piece in ascending order, without copying the bitmask.
+     *
+     * @param consumer Consumer of the indices of verified pieces
+     * @since 1.11
+     */
+    public void forEachVerifiedPiece(IntConsumer consumer) {
+        for (int wordIndex = 0; wordIndex < words.length(); wordIndex++) {
+            long word = words.get(wordIndex);
+            while (word != 0) {
+                consumer.accept((wordIndex << ADDRESS_BITS_PER_WORD) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Check if this bitfield has any verified pieces, that are not verified in the other bitfield.
+     * Compares the bitfields word by word, without copying any of them.
+     *
+     * @param other Bitfield of the same torrent
+     * @return true if there's at least one piece, that is verified in this bitfield,
+     * but not in the {@code other} bitfield
+     * @since 1.11
+     */
+    public boolean hasPiecesNotIn(Bitfield other) {
+        checkSameSize(other);
+        for (int i = 0; i < words.length(); i++) {
+            if ((words.get(i) & ~other.words.get(i)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count verified pieces, that are not verified in the other bitfield.
+     * Compares the bitfields word by word, without copying any of them.
+     *
+     * @param other Bitfield of the same torrent
+     * @return Number of pieces, that are verified in this bitfield, but not in the {@code other} bitfield
+     * @since 1.11
+     */
+    public int countPiecesNotIn(Bitfield other) {
+        checkSameSize(other);
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i) & ~other.words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Clear the bits for all verified pieces in the provided bitset.
+     *
+     * @param bitSet Bitset to modify
+     */
+    protected void clearVerifiedPieces(BitSet bitSet) {
+        int wordsToCheck = Math.min(words.length(), (bitSet.length() + 63) >>> ADDRESS_BITS_PER_WORD);
+        for (int wordIndex = 0; wordIndex < wordsToCheck; wordIndex++) {
+            long word = words.get(wordIndex);
+            int offset = wordIndex << ADDRESS_BITS_PER_WORD;
+            if (word == WORD_MASK) {
+                bitSet.clear(offset, offset + Long.SIZE);
+            } else {
+                while (word != 0) {
+                    bitSet.clear(offset + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count pieces, that are set in the provided words, but have not been verified.
+     *
+     * @param otherWords Bitmask in the format of {@link BitSet#toLongArray()}
+     */
+    protected int countUnverifiedPieces(long[] otherWords) {
+        int count = 0;
+        for (int i = 0; i < Math.min(otherWords.length, words.length()); i++) {
+            count += Long.bitCount(otherWords[i] & ~words.get(i) & getWordMask(i));
+        }
+        return count;
+    }
 
-        lock.writeLock().lock();
-        try {
-            bitmask.set(pieceIndex);
-        } finally {
-            lock.writeLock().unlock();
+    private void checkSameSize(Bitfield other) {
+        if (other.piecesTotal != piecesTotal) {
+            throw new IllegalArgumentException("Bitfields have different number of pieces: "
+                    + piecesTotal + " and " + other.piecesTotal);
         }
     }
 
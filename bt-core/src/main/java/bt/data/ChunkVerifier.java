@@ -16,6 +16,9 @@
 
 package bt.data;
 
+import bt.metainfo.TorrentId;
+
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -35,6 +38,39 @@ public interface ChunkVerifier {
      */
     boolean verify(List<ChunkDescriptor> chunks, LocalBitfield bitfield);
 
+    /**
+     * Conducts verification of a subset of the provided list of chunks and updates bitfield with the results.
+     * Chunks, that are not included in the subset, are left intact.
+     *
+     * @param chunks List of chunks
+     * @param bitfield the local bitfield for the torrent
+     * @param chunksToVerify Indices of chunks to verify
+     * @return true if all chunks have been verified successfully (meaning that all data is present and correct)
+     * @since 1.11
+     */
+    default boolean verify(List<ChunkDescriptor> chunks, LocalBitfield bitfield, BitSet chunksToVerify) {
+        chunksToVerify.stream()
+                .filter(i -> verifyIfPresent(chunks.get(i)))
+                .forEach(bitfield::markLocalPieceVerified);
+        return bitfield.getPiecesRemaining() == 0;
+    }
+
+    /**
+     * Conducts verification of a subset of the provided list of torrent's chunks and updates bitfield with the results.
+     * Implementations may use torrent ID to schedule verification of different torrents and to report progress.
+     *
+     * @param torrentId Torrent ID
+     * @param chunks List of chunks
+     * @param bitfield the local bitfield for the torrent
+     * @param chunksToVerify Indices of chunks to verify
+     * @return true if all chunks have been verified successfully (meaning that all data is present and correct)
+     * @since 1.11
+     */
+    default boolean verify(TorrentId torrentId, List<ChunkDescriptor> chunks, LocalBitfield bitfield,
+                           BitSet chunksToVerify) {
+        return verify(chunks, bitfield, chunksToVerify);
+    }
+
     /**
      * Conducts verification of the provided chunk.
      *
@@ -101,4 +101,13 @@ public interface DataDescriptor extends Closeable {
      * @since 1.10
      */
     long getLeft();
+
+    /**
+     * Get storage units of torrent's files.
+     *
+     * @return Storage units in the same order as the corresponding files appear in torrent's metainfo
+     *         (including empty files)
+     * @since 1.11
+     */
+    List<StorageUnit> getStorageUnits();
 }
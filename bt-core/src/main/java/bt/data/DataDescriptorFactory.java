@@ -28,21 +28,39 @@ public class DataDescriptorFactory implements IDataDescriptorFactory {
     private final DataReaderFactory dataReaderFactory;
     private final ChunkVerifier verifier;
     private final int transferBlockSize;
+    private final PieceAssemblyCache assemblyCache;
+    private final ResumeDataStore resumeDataStore;
 
     public DataDescriptorFactory(
             DataReaderFactory dataReaderFactory,
             ChunkVerifier verifier,
             int transferBlockSize) {
+        this(dataReaderFactory, verifier, transferBlockSize, null, null);
+    }
+
+    /**
+     * @param assemblyCache Cache to assemble the downloaded pieces in, or null
+     * @param resumeDataStore Store of resume data, that makes it possible to skip verification of data, or null
+     * @since 1.11
+     */
+    public DataDescriptorFactory(
+            DataReaderFactory dataReaderFactory,
+            ChunkVerifier verifier,
+            int transferBlockSize,
+            /*nullable*/ PieceAssemblyCache assemblyCache,
+            /*nullable*/ ResumeDataStore resumeDataStore) {
 
         this.dataReaderFactory = dataReaderFactory;
         this.verifier = verifier;
         this.transferBlockSize = transferBlockSize;
+        this.assemblyCache = assemblyCache;
+        this.resumeDataStore = resumeDataStore;
     }
 
     @Override
     public DataDescriptor createDescriptor(Torrent torrent, Storage storage,
                                            FileDownloadCompleteCallback fileCompletionCallback) {
         return new DefaultDataDescriptor(storage, torrent, fileCompletionCallback,
-                verifier, dataReaderFactory, transferBlockSize);
+                verifier, dataReaderFactory, transferBlockSize, assemblyCache, resumeDataStore);
     }
 }
@@ -47,9 +47,8 @@ public class DataReaderChannel implements ReadableByteChannel {
     }
 
     public void init() {
-        BitSet bitmask = bitfield.getBitmask();
         int limit = 0;
-        while (skipped.get(limit) || bitmask.get(limit)) {
+        while (limit < bitfield.getPiecesTotal() && (skipped.get(limit) || bitfield.isVerified(limit))) {
             limit++;
         }
         this.limit = new AtomicInteger(limit);
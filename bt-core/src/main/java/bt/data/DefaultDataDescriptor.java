@@ -29,8 +29,10 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -47,6 +49,8 @@ class DefaultDataDescriptor implements DataDescriptor {
     private final Storage storage;
     private final DataReader reader;
     private final ChunkVerifier verifier;
+    private final PieceAssemblyCache assemblyCache;
+    private final ResumeDataStore resumeDataStore;
 
     private final FileDownloadCompleteCallback fileCompletionCallback;
 
@@ -56,17 +60,22 @@ class DefaultDataDescriptor implements DataDescriptor {
 
     private List<List<TorrentFile>> filesForPieces;
     private Collection<StorageUnit> storageUnits;
+    private List<StorageUnit> allStorageUnits;
 
     public DefaultDataDescriptor(Storage storage,
                                  Torrent torrent,
                                  FileDownloadCompleteCallback fileCompletionCallback,
                                  ChunkVerifier verifier,
                                  DataReaderFactory dataReaderFactory,
-                                 int transferBlockSize) {
+                                 int transferBlockSize,
+                                 /*nullable*/ PieceAssemblyCache assemblyCache,
+                                 /*nullable*/ ResumeDataStore resumeDataStore) {
         this.storage = storage;
         this.torrent = torrent;
         this.fileCompletionCallback = fileCompletionCallback;
         this.verifier = verifier;
+        this.assemblyCache = assemblyCache;
+        this.resumeDataStore = resumeDataStore;
 
         init(transferBlockSize);
 
@@ -91,14 +100,15 @@ class DefaultDataDescriptor implements DataDescriptor {
 
         List<ChunkDescriptor> chunks = PieceUtils
                 .buildChunkDescriptors(torrent, transferBlockSize, totalSize, chunkSize, chunksTotal, pieceNumToFile,
-                        storageUnitsToFilesMap, nonEmptyStorageUnits);
+                        storageUnitsToFilesMap, nonEmptyStorageUnits, assemblyCache);
 
         List<List<CompletableTorrentFile>> countdownTorrentFiles =
                 createListOfCountdownFiles(torrent.getFiles(), pieceNumToFile);
 
-        this.bitfield = buildBitfield(chunks, countdownTorrentFiles);
+        this.bitfield = buildBitfield(chunks, countdownTorrentFiles, pieceNumToFile, storageUnitsToFilesMap);
         this.chunkDescriptors = chunks;
         this.storageUnits = nonEmptyStorageUnits;
+        this.allStorageUnits = Collections.unmodifiableList(new ArrayList<>(storageUnitsToFilesMap.keySet()));
         this.filesForPieces = pieceNumToFile;
     }
 
@@ -153,7 +163,9 @@ class DefaultDataDescriptor implements DataDescriptor {
     }
 
     private LocalBitfield buildBitfield(List<ChunkDescriptor> chunks,
-                                        List<List<CompletableTorrentFile>> chunkToCountdownFiles) {
+                                        List<List<CompletableTorrentFile>> chunkToCountdownFiles,
+                                        List<List<TorrentFile>> filesForPieces,
+                                        Map<StorageUnit, TorrentFile> storageUnitsToFilesMap) {
         LocalBitfield bitfield = new LocalBitfield(chunks.size(), chunkToCountdownFiles) {
             @Override
             protected void fileFinishedCallback(TorrentFile tf) {
@@ -163,10 +175,61 @@ class DefaultDataDescriptor implements DataDescriptor {
             }
         };
 
-        this.startedAsSeed = verifier.verify(chunks, bitfield);
+        this.startedAsSeed = verify(chunks, bitfield, filesForPieces, storageUnitsToFilesMap);
         return bitfield;
     }
 
+    /**
+     * Verify torrent's data, trusting the resume data (if present) for the pieces,
+     * which consist of files, that have not been modified since the resume data was saved.
+     */
+    private boolean verify(List<ChunkDescriptor> chunks,
+                           LocalBitfield bitfield,
+                           List<List<TorrentFile>> filesForPieces,
+                           Map<StorageUnit, TorrentFile> storageUnitsToFilesMap) {
+        Optional<ResumeData> resumeData = (resumeDataStore == null) ?
+                Optional.empty() : resumeDataStore.load(torrent.getTorrentId());
+        if (!resumeData.isPresent()) {
+            return verifyAll(chunks, bitfield);
+        }
+        List<ResumeData.FileState> fileStates = resumeData.get().getFiles();
+        if (resumeData.get().getPiecesTotal() != chunks.size() || fileStates.size() != storageUnitsToFilesMap.size()) {
+            LOGGER.warn("Ignoring resume data that does not match the torrent: {}", torrent.getTorrentId());
+            return verifyAll(chunks, bitfield);
+        }
+
+        Set<TorrentFile> modifiedFiles = new HashSet<>();
+        int fileIndex = 0;
+        for (Map.Entry<StorageUnit, TorrentFile> entry : storageUnitsToFilesMap.entrySet()) {
+            if (!fileStates.get(fileIndex++).matches(entry.getKey())) {
+                modifiedFiles.add(entry.getValue());
+            }
+        }
+
+        BitSet verifiedPieces = resumeData.get().getVerifiedPieces();
+        BitSet chunksToVerify = new BitSet(chunks.size());
+        for (int pieceIndex = 0; pieceIndex < chunks.size(); pieceIndex++) {
+            if (filesForPieces.get(pieceIndex).stream().anyMatch(modifiedFiles::contains)) {
+                chunksToVerify.set(pieceIndex);
+            } else if (verifiedPieces.get(pieceIndex)) {
+                bitfield.markLocalPieceVerified(pieceIndex);
+            }
+        }
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Using resume data for torrent {}: {} of {} files modified, {} of {} pieces to verify",
+                    torrent.getTorrentId(), modifiedFiles.size(), fileStates.size(),
+                    chunksToVerify.cardinality(), chunks.size());
+        }
+        return verifier.verify(torrent.getTorrentId(), chunks, bitfield, chunksToVerify);
+    }
+
+    private boolean verifyAll(List<ChunkDescriptor> chunks, LocalBitfield bitfield) {
+        BitSet chunksToVerify = new BitSet(chunks.size());
+        chunksToVerify.set(0, chunks.size());
+        return verifier.verify(torrent.getTorrentId(), chunks, bitfield, chunksToVerify);
+    }
+
     @Override
     public List<ChunkDescriptor> getChunkDescriptors() {
         return chunkDescriptors;
@@ -218,14 +281,16 @@ class DefaultDataDescriptor implements DataDescriptor {
 
     @Override
     public long getLeft() {
-        BitSet chunkStatus = this.bitfield.getBitmask();
+        // read the number of completed pieces first, so that a concurrently verified last piece
+        // can only make the result too large, but never too small
+        int piecesComplete = this.bitfield.getPiecesComplete();
         int lastChunkIdx = chunkDescriptors.size() - 1;
 
         // handle last piece which may be smaller than other pieces
-        final boolean lastBlockDone = chunkStatus.get(lastChunkIdx);
+        final boolean lastBlockDone = this.bitfield.isVerified(lastChunkIdx);
         long dataCompleted = lastBlockDone ? chunkDescriptors.get(lastChunkIdx).length() : 0;
 
-        long numFullCompleteChunks = chunkStatus.cardinality() - (lastBlockDone ? 1 : 0);
+        long numFullCompleteChunks = Math.max(0, piecesComplete - (lastBlockDone ? 1 : 0));
         dataCompleted += torrent.getChunkSize() * numFullCompleteChunks;
         return torrent.getSize() - dataCompleted;
     }
@@ -235,6 +300,11 @@ class DefaultDataDescriptor implements DataDescriptor {
         return this.startedAsSeed;
     }
 
+    @Override
+    public List<StorageUnit> getStorageUnits() {
+        return allStorageUnits;
+    }
+
     @Override
     public void close() {
         storageUnits.forEach(unit -> {
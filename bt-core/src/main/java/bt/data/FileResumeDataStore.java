@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.metainfo.TorrentId;
+import bt.protocol.Protocols;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps resume data of each torrent in a separate file inside a given directory.
+ * Files are named after torrents' info hashes.
+ * Resume data is replaced atomically (if supported by the file system),
+ * so that a crash during saving does not leave a partially written file.
+ *
+ * @since 1.11
+ */
+public class FileResumeDataStore implements ResumeDataStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileResumeDataStore.class);
+
+    private static final int MAGIC = 0x42545244; // "BTRD"
+    private static final int VERSION = 1;
+    private static final String FILE_EXTENSION = ".resume";
+
+    private final Path directory;
+
+    /**
+     * @param directory Directory to keep the resume data in. Will be created, if it does not exist.
+     * @since 1.11
+     */
+    public FileResumeDataStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Optional<ResumeData> load(TorrentId torrentId) {
+        Path file = getFile(torrentId);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOGGER.warn("Ignoring resume data in unsupported format: {}", file);
+                return Optional.empty();
+            }
+            int piecesTotal = in.readInt();
+            byte[] bitmask = new byte[in.readInt()];
+            in.readFully(bitmask);
+            BitSet verifiedPieces = BitSet.valueOf(bitmask);
+
+            int filesCount = in.readInt();
+            List<ResumeData.FileState> files = new ArrayList<>(filesCount);
+            for (int i = 0; i < filesCount; i++) {
+                files.add(new ResumeData.FileState(in.readLong(), in.readLong()));
+            }
+            return Optional.of(new ResumeData(piecesTotal, verifiedPieces, files));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read resume data: " + file, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void save(TorrentId torrentId, ResumeData resumeData) {
+        Path file = getFile(torrentId);
+        try {
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, Protocols.toHex(torrentId.getBytes()), ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(resumeData.getPiecesTotal());
+                    byte[] bitmask = resumeData.getVerifiedPieces().toByteArray();
+                    out.writeInt(bitmask.length);
+                    out.write(bitmask);
+                    out.writeInt(resumeData.getFiles().size());
+                    for (ResumeData.FileState fileState : resumeData.getFiles()) {
+                        out.writeLong(fileState.getSize());
+                        out.writeLong(fileState.getLastModified());
+                    }
+                }
+                try {
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save resume data: " + file, e);
+        }
+    }
+
+    private Path getFile(TorrentId torrentId) {
+        return directory.resolve(Protocols.toHex(torrentId.getBytes()) + FILE_EXTENSION);
+    }
+}
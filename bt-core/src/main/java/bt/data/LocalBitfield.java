@@ -17,13 +17,14 @@
 package bt.data;
 
 import bt.metainfo.TorrentFile;
-import bt.protocol.Protocols;
 
 import java.util.BitSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 
 /**
  * This class represents a bitfield for a local torrent
@@ -33,7 +34,7 @@ public abstract class LocalBitfield extends Bitfield {
      * Bitmask indicating pieces that should be skipped.
      * If the n-th bit is set, then the n-th piece should be skipped.
      */
-    private final AtomicReference<BitSet> skipped = new AtomicReference<>();
+    private final AtomicReference<SkippedPieces> skipped = new AtomicReference<>();
 
     private final CountDownLatch latch;
 
@@ -41,6 +42,8 @@ public abstract class LocalBitfield extends Bitfield {
     // by that piece
     private final Optional<List<List<CompletableTorrentFile>>> countdownFiles;
 
+    private final List<IntConsumer> pieceVerifiedListeners = new CopyOnWriteArrayList<>();
+
     public LocalBitfield(int piecesTotal,
                          List<List<CompletableTorrentFile>> countdownFiles) {
         super(piecesTotal);
@@ -58,10 +61,24 @@ public abstract class LocalBitfield extends Bitfield {
                                 }
                             })
             );
+            pieceVerifiedListeners.forEach(listener -> listener.accept(pieceIndex));
             latch.countDown();
         }
     }
 
+    /**
+     * Register a listener, that will be invoked with the index of each piece,
+     * that is marked as verified after the listener has been added.
+     * Listener is invoked synchronously in the thread, that marks the piece,
+     * and exactly once per piece.
+     *
+     * @param listener Consumer of the indices of verified pieces
+     * @since 1.11
+     */
+    public void addPieceVerifiedListener(IntConsumer listener) {
+        pieceVerifiedListeners.add(listener);
+    }
+
     public void waitForAllPieces() throws InterruptedException {
         latch.await();
     }
@@ -75,12 +92,12 @@ public abstract class LocalBitfield extends Bitfield {
      * @since 1.8
      */
     public BitSet getSkippedBitmask() {
-        final BitSet skippedPieces = skipped.get();
+        final SkippedPieces skippedPieces = skipped.get();
         if (skippedPieces == null) {
             return new BitSet(0);
         }
 
-        return Protocols.copyOf(skippedPieces);
+        return BitSet.valueOf(skippedPieces.words);
     }
 
     /**
@@ -94,7 +111,7 @@ public abstract class LocalBitfield extends Bitfield {
         if (piecesToSkip.isEmpty())
             skipped.set(null);
         else
-            skipped.set(Protocols.copyOf(piecesToSkip));
+            skipped.set(new SkippedPieces(piecesToSkip));
     }
 
     /**
@@ -102,12 +119,12 @@ public abstract class LocalBitfield extends Bitfield {
      * @since 1.7
      */
     public int getPiecesSkipped() {
-        final BitSet skippedPieces = skipped.get();
+        final SkippedPieces skippedPieces = skipped.get();
         if (skippedPieces == null) {
             return 0;
         }
 
-        return skippedPieces.cardinality();
+        return skippedPieces.cardinality;
     }
 
     /**
@@ -115,12 +132,12 @@ public abstract class LocalBitfield extends Bitfield {
      * @since 1.7
      */
     public int getPiecesNotSkipped() {
-        final BitSet skippedPieces = skipped.get();
+        final SkippedPieces skippedPieces = skipped.get();
         if (skippedPieces == null) {
             return piecesTotal;
         }
 
-        return piecesTotal - skippedPieces.cardinality();
+        return piecesTotal - skippedPieces.cardinality;
     }
 
     /**
@@ -128,13 +145,11 @@ public abstract class LocalBitfield extends Bitfield {
      * @since 1.0
      */
     public int getPiecesRemaining() {
-        final BitSet skippedPieces = skipped.get();
+        final SkippedPieces skippedPieces = skipped.get();
         if (skippedPieces == null) {
             return getPiecesTotal() - getPiecesComplete();
         } else {
-            BitSet bitmask = getBitmask();
-            bitmask.or(skippedPieces);
-            return getPiecesTotal() - bitmask.cardinality();
+            return getPiecesTotal() - getPiecesComplete() - countUnverifiedPieces(skippedPieces.words);
         }
     }
 
@@ -149,18 +164,26 @@ public abstract class LocalBitfield extends Bitfield {
         skipped.getAndUpdate(skippedPieces -> {
             if (skippedPieces == null)
                 return null; // piece was already not skipped
-            BitSet copy = Protocols.copyOf(skippedPieces);
+            BitSet copy = BitSet.valueOf(skippedPieces.words);
             copy.clear(pieceIndex);
-            return copy;
+            return copy.isEmpty() ? null : new SkippedPieces(copy);
         });
     }
 
     public void removeVerifiedPiecesFromBitset(BitSet bitSet) {
-        lock.readLock().lock();
-        try {
-            bitSet.andNot(bitmask);
-        } finally {
-            lock.readLock().unlock();
+        clearVerifiedPieces(bitSet);
+    }
+
+    /**
+     * Immutable bitmask of skipped pieces with its' cardinality
+     */
+    private static class SkippedPieces {
+        private final long[] words;
+        private final int cardinality;
+
+        SkippedPieces(BitSet bitSet) {
+            this.words = bitSet.toLongArray();
+            this.cardinality = bitSet.cardinality();
         }
     }
 }
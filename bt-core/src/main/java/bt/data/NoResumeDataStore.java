@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.metainfo.TorrentId;
+
+import java.util.Optional;
+
+/**
+ * Resume data store, that does not keep any data.
+ * Torrent's data is fully verified on each start.
+ *
+ * @since 1.11
+ */
+public class NoResumeDataStore implements ResumeDataStore {
+
+    @Override
+    public Optional<ResumeData> load(TorrentId torrentId) {
+        return Optional.empty();
+    }
+
+    @Override
+    public void save(TorrentId torrentId, ResumeData resumeData) {
+        // do nothing
+    }
+}
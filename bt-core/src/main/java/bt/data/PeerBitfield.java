@@ -20,7 +20,6 @@ import bt.protocol.BitOrder;
 import bt.protocol.Protocols;
 
 import java.util.BitSet;
-import java.util.function.IntConsumer;
 
 public class PeerBitfield extends Bitfield {
     /**
@@ -75,14 +74,4 @@ public class PeerBitfield extends Bitfield {
     public boolean markPeerPieceVerified(int pieceIndex) {
         return checkAndMarkVerified(pieceIndex);
     }
-
-
-    public void forEachVerifiedPiece(IntConsumer consumer) {
-        lock.readLock().lock();
-        try {
-            this.bitmask.stream().forEach(consumer);
-        } finally {
-            lock.readLock().unlock();
-        }
-    }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.data;
+
+import bt.event.EventSource;
+import bt.metainfo.TorrentId;
+import bt.runtime.Config;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-back cache, that assembles the downloaded pieces in off-heap memory,
+ * so that each piece is written to storage at once (with a single write per file),
+ * after it has been verified, instead of a separate random write per received block.
+ *
+ * <p>Total amount of memory is limited by {@link Config#getPieceAssemblyCacheSize()}.
+ * When there is not enough memory for a new piece, the least recently written piece is spilled to storage,
+ * and the remaining blocks of that piece are written directly to storage.</p>
+ *
+ * <p>Pieces, that are cached in memory, are transparently read from memory via their data range.
+ * Accessing the storage units of a cached piece (see {@link DataRange#visitUnits(DataRangeVisitor)})
+ * spills the piece to storage first.</p>
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @since 1.11
+ */
+public class PieceAssemblyCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PieceAssemblyCache.class);
+
+    private final long maxMemory;
+    private final ConcurrentMap<TorrentId, ConcurrentMap<Integer, AssembledPiece>> pieces;
+
+    // guarded by this
+    private long allocatedMemory;
+    private final Map<Integer, Deque<ByteBuffer>> freeBuffers;
+    // pieces, that are currently held in memory, in the order of last write
+    private final LinkedHashMap<AssembledPiece, Boolean> piecesInMemory;
+
+    private final AtomicLong piecesFlushed;
+    private final AtomicLong piecesSpilled;
+
+    @Inject
+    public PieceAssemblyCache(EventSource eventSource, Config config) {
+        this.maxMemory = config.getPieceAssemblyCacheSize();
+        this.pieces = new ConcurrentHashMap<>();
+        this.freeBuffers = new HashMap<>();
+        this.piecesInMemory = new LinkedHashMap<>(16, 0.75f, true);
+        this.piecesFlushed = new AtomicLong();
+        this.piecesSpilled = new AtomicLong();
+
+        eventSource.onTorrentStopped(null, e -> close(e.getTorrentId()));
+    }
+
+    /**
+     * @return true, if the pieces may be cached in memory
+     * @since 1.11
+     */
+    public boolean isEnabled() {
+        return maxMemory > 0;
+    }
+
+    /**
+     * Wrap the piece's data range, so that the written data is assembled in memory.
+     *
+     * @param capacity Size of memory buffer to allocate for the piece (normally, the torrent's chunk size)
+     * @return Data range to use instead of the original range, or the original range, if the cache is disabled
+     */
+    DataRange wrap(TorrentId torrentId, int pieceIndex, DataRange data, int capacity) {
+        if (!isEnabled() || capacity > maxMemory) {
+            return data;
+        }
+        AssembledPiece piece = new AssembledPiece(this, data, capacity);
+        pieces.computeIfAbsent(torrentId, id -> new ConcurrentHashMap<>()).put(pieceIndex, piece);
+        return new AssemblingDataRange(piece, 0, data.length());
+    }
+
+    /**
+     * Write the assembled piece to storage and release memory.
+     * Does nothing, if the piece is not cached in memory.
+     *
+     * @since 1.11
+     */
+    public void flush(TorrentId torrentId, int pieceIndex) {
+        AssembledPiece piece = getPiece(torrentId, pieceIndex);
+        if (piece != null && piece.flush()) {
+            piecesFlushed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Release memory, that is held by the piece, without writing it to storage
+     * (e.g. when the piece has failed verification).
+     *
+     * @since 1.11
+     */
+    public void discard(TorrentId torrentId, int pieceIndex) {
+        AssembledPiece piece = getPiece(torrentId, pieceIndex);
+        if (piece != null) {
+            piece.discard();
+        }
+    }
+
+    private /*nullable*/ AssembledPiece getPiece(TorrentId torrentId, int pieceIndex) {
+        Map<Integer, AssembledPiece> torrentPieces = pieces.get(torrentId);
+        return (torrentPieces == null) ? null : torrentPieces.get(pieceIndex);
+    }
+
+    private void close(TorrentId torrentId) {
+        Map<Integer, AssembledPiece> torrentPieces = pieces.remove(torrentId);
+        if (torrentPieces != null) {
+            // keep the data, that has been received so far
+            torrentPieces.values().forEach(piece -> {
+                try {
+                    piece.close();
+                } catch (Exception e) {
+                    LOGGER.error("Failed to write piece to storage, torrent ID: " + torrentId, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Allocate a buffer for the piece, spilling the least recently written pieces to storage, if needed.
+     * Caller must not hold a buffer.
+     *
+     * @return Buffer of piece's capacity or null, if there is not enough memory
+     */
+    /*nullable*/ ByteBuffer allocate(AssembledPiece piece) {
+        int capacity = piece.capacity();
+        AssembledPiece victim;
+        do {
+            synchronized (this) {
+                ByteBuffer buffer = tryAllocate(capacity);
+                if (buffer != null) {
+                    piecesInMemory.put(piece, Boolean.TRUE);
+                    return buffer;
+                }
+                Iterator<AssembledPiece> iter = piecesInMemory.keySet().iterator();
+                if (!iter.hasNext()) {
+                    return null;
+                }
+                victim = iter.next();
+                iter.remove();
+            }
+            // victim is not waiting for any locks, that the caller may be holding
+            if (victim.spill()) {
+                piecesSpilled.incrementAndGet();
+            }
+        } while (true);
+    }
+
+    // caller must hold the lock on this
+    private ByteBuffer tryAllocate(int capacity) {
+        Deque<ByteBuffer> buffers = freeBuffers.get(capacity);
+        if (buffers != null && !buffers.isEmpty()) {
+            return buffers.pop();
+        }
+        if (allocatedMemory + capacity > maxMemory) {
+            // drop free buffers of other sizes (e.g. of the torrents, that have been stopped)
+            Iterator<Map.Entry<Integer, Deque<ByteBuffer>>> iter = freeBuffers.entrySet().iterator();
+            while (iter.hasNext() && allocatedMemory + capacity > maxMemory) {
+                Map.Entry<Integer, Deque<ByteBuffer>> entry = iter.next();
+                allocatedMemory -= ((long) entry.getKey()) * entry.getValue().size();
+                iter.remove();
+            }
+            if (allocatedMemory + capacity > maxMemory) {
+                return null;
+            }
+        }
+        allocatedMemory += capacity;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Return the buffer to the pool.
+     */
+    synchronized void release(AssembledPiece piece, ByteBuffer buffer) {
+        piecesInMemory.remove(piece);
+        buffer.clear();
+        freeBuffers.computeIfAbsent(buffer.capacity(), c -> new ArrayDeque<>()).push(buffer);
+    }
+
+    /**
+     * Mark the piece as the most recently written.
+     */
+    synchronized void touch(AssembledPiece piece) {
+        piecesInMemory.get(piece);
+    }
+
+    /**
+     * @return Number of pieces, that have been written to storage at once, after being fully assembled in memory
+     * @since 1.11
+     */
+    public long getPiecesFlushed() {
+        return piecesFlushed.get();
+    }
+
+    /**
+     * @return Number of incomplete pieces, that have been spilled to storage to free memory for other pieces
+     * @since 1.11
+     */
+    public long getPiecesSpilled() {
+        return piecesSpilled.get();
+    }
+
+    /**
+     * @return Total size of memory buffers (both used and free), that have been allocated by this cache
+     * @since 1.11
+     */
+    public synchronized long getAllocatedMemory() {
+        return allocatedMemory;
+    }
+}
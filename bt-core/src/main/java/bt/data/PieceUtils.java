@@ -49,7 +49,8 @@ public class PieceUtils {
                                                        long chunkSize,
                                                        int chunksTotal, List<List<TorrentFile>> pieceNumToFile,
                                                        Map<StorageUnit, TorrentFile> storageUnitsToFilesMap,
-                                                       List<StorageUnit> nonEmptyStorageUnits) {
+                                                       List<StorageUnit> nonEmptyStorageUnits,
+                                                       /*nullable*/ PieceAssemblyCache assemblyCache) {
         Iterator<byte[]> chunkHashes = torrent.getChunkHashes().iterator();
         List<ChunkDescriptor> chunks = new ArrayList<>(chunksTotal);
         if (nonEmptyStorageUnits.size() > 0) {
@@ -70,6 +71,9 @@ public class PieceUtils {
                 chunkFiles.trimToSize();
                 pieceNumToFile.add(chunkFiles);
 
+                if (assemblyCache != null) {
+                    subrange = assemblyCache.wrap(torrent.getTorrentId(), chunks.size(), subrange, (int) chunkSize);
+                }
                 chunks.add(buildChunkDescriptor(subrange, transferBlockSize, chunkHashes.next()));
             }
         }
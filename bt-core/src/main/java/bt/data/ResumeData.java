@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of torrent's data state, that makes it possible to skip verification of data on the next start.
+ * Contains the set of verified pieces and the sizes and modification times of torrent's files
+ * (in the same order as the files appear in torrent's metainfo) at the moment, when the snapshot was taken.
+ *
+ * @since 1.11
+ */
+public class ResumeData {
+
+    private final int piecesTotal;
+    private final BitSet verifiedPieces;
+    private final List<FileState> files;
+
+    /**
+     * @param piecesTotal    Total number of pieces in the torrent
+     * @param verifiedPieces Pieces, that have been verified
+     * @param files          State of each torrent's file
+     * @since 1.11
+     */
+    public ResumeData(int piecesTotal, BitSet verifiedPieces, List<FileState> files) {
+        this.piecesTotal = piecesTotal;
+        this.verifiedPieces = (BitSet) verifiedPieces.clone();
+        this.files = Collections.unmodifiableList(new ArrayList<>(files));
+    }
+
+    /**
+     * Take a snapshot of the current state of torrent's data.
+     *
+     * @since 1.11
+     */
+    public static ResumeData capture(DataDescriptor dataDescriptor) {
+        // capture the bitfield first, so that the files are at least as recent as the pieces
+        BitSet verifiedPieces = dataDescriptor.getBitfield().getBitmask();
+        List<FileState> files = new ArrayList<>();
+        for (StorageUnit unit : dataDescriptor.getStorageUnits()) {
+            files.add(new FileState(unit.size(), unit.lastModified()));
+        }
+        return new ResumeData(dataDescriptor.getBitfield().getPiecesTotal(), verifiedPieces, files);
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getPiecesTotal() {
+        return piecesTotal;
+    }
+
+    /**
+     * @return Copy of the set of verified pieces
+     * @since 1.11
+     */
+    public BitSet getVerifiedPieces() {
+        return (BitSet) verifiedPieces.clone();
+    }
+
+    /**
+     * @since 1.11
+     */
+    public List<FileState> getFiles() {
+        return files;
+    }
+
+    /**
+     * Size and modification time of a single torrent's file.
+     *
+     * @since 1.11
+     */
+    public static class FileState {
+        private final long size;
+        private final long lastModified;
+
+        /**
+         * @param size         Size of the file
+         * @param lastModified Modification time of the file, or -1 if unknown (see {@link StorageUnit#lastModified()})
+         * @since 1.11
+         */
+        public FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @since 1.11
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @since 1.11
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return true, if the storage unit has not been modified since this state was captured
+         * @since 1.11
+         */
+        public boolean matches(StorageUnit unit) {
+            return lastModified >= 0 && unit.lastModified() == lastModified && unit.size() == size;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.metainfo.TorrentId;
+
+import java.util.Optional;
+
+/**
+ * Persistent storage of torrents' resume data.
+ * Resume data makes it possible to skip the full verification of torrent's data on start,
+ * provided that torrent's files have not been modified since the resume data was saved.
+ *
+ * @since 1.11
+ */
+public interface ResumeDataStore {
+
+    /**
+     * @return Resume data, that has been saved previously, or empty, if there is no (valid) resume data
+     * @since 1.11
+     */
+    Optional<ResumeData> load(TorrentId torrentId);
+
+    /**
+     * Save resume data, replacing the previously saved data for the same torrent.
+     *
+     * @since 1.11
+     */
+    void save(TorrentId torrentId, ResumeData resumeData);
+}
@@ -173,4 +173,27 @@ public interface StorageUnit extends Closeable {
      * @since 1.1
      */
     long size();
+
+    /**
+     * Notify this storage unit, that a piece, which is (partially) stored in it, has been verified
+     * and is about to be marked as complete. Depending on its' durability policy, the storage unit
+     * may force the piece's data to the storage device before returning.
+     *
+     * @since 1.11
+     */
+    default void pieceVerified() {
+        // do nothing
+    }
+
+    /**
+     * Get the time of the last modification of this storage's data.
+     * Used to detect modifications of data between sessions (see {@link ResumeDataStore}).
+     *
+     * @return Time of the last modification in milliseconds since the epoch,
+     *         or -1, if the time is unknown or the data does not exist
+     * @since 1.11
+     */
+    default long lastModified() {
+        return -1;
+    }
 }
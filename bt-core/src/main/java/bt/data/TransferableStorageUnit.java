@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.data;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Storage unit, that is able to transfer its' data directly to a channel
+ * (e.g. by means of {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}),
+ * without copying it to an intermediate buffer in user space.
+ *
+ * @since 1.11
+ */
+public interface TransferableStorageUnit extends StorageUnit {
+
+    /**
+     * Try to transfer a block of data to the provided channel, starting with a given offset.
+     * If the channel is in non-blocking mode, this method transfers
+     * only as many bytes as the channel accepts without blocking.
+     * <p>Storage must throw an exception if
+     * <blockquote>
+     * <code>offset &gt; {@link #capacity()} - count</code>
+     * </blockquote>
+     * or if there is no data to transfer at {@code offset} (e.g. the file is shorter than its' capacity),
+     * so that the caller does not confuse missing data with a channel, that is not ready for writing.
+     *
+     * @param offset Offset in this storage's data to start transferring from (0-based)
+     * @param count Maximum number of bytes to transfer
+     * @param target Channel to transfer bytes to
+     * @return Actual number of bytes transferred, possibly zero
+     * @throws IOException if an I/O error occurs when writing to the target channel,
+     *                     or if the storage does not contain the requested data
+     * @since 1.11
+     */
+    long transferTo(long offset, long count, WritableByteChannel target) throws IOException;
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.BtException;
+import bt.data.digest.Digester;
+import bt.metainfo.TorrentId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime-wide scheduler for verification of torrents' data.
+ *
+ * <p>Verification requests from all torrents are put into a single queue,
+ * ordered by priority and then by arrival, and are processed by a bounded number of hashing threads.
+ * Pieces of each torrent are split into segments of adjacent pieces,
+ * and each segment is read sequentially in the order of offsets in the torrent's files,
+ * using a large direct buffer per thread. This way the disk sees a few sequential streams
+ * instead of a lot of random reads, even when many torrents are started at once.</p>
+ *
+ * <p>Priority of a torrent may be changed at any time, e.g. to get the data of a torrent,
+ * that the user is actively downloading, verified before the rest of the queue.</p>
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @since 1.11
+ */
+public class VerificationScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VerificationScheduler.class);
+
+    // amount of data, that is read sequentially by a single thread
+    private static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+    // pieces larger than this are read through the digester with its' own (smaller) buffer
+    private static final int MAX_READ_BUFFER_SIZE = 32 * 1024 * 1024;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Verification priority of a torrent.
+     *
+     * @since 1.11
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private final Digester digester;
+    private final int numOfThreads;
+    private final ThreadPoolExecutor executor;
+    private final ThreadLocal<ByteBuffer> readBufferTL;
+
+    private final Object lock;
+    // jobs, that have segments waiting to be picked up by a worker
+    private final PriorityQueue<Job> queue;
+    private final ConcurrentMap<TorrentId, Job> jobs;
+    private final ConcurrentMap<TorrentId, Priority> priorities;
+    private long jobSequence;
+    private int activeWorkers;
+
+    /**
+     * @param digester Digester
+     * @param numOfThreads Maximum number of hashing threads;
+     *                     0 or less means the number of available processors
+     * @param threadFactory Factory of hashing threads; threads are started on demand and terminate, when idle
+     * @since 1.11
+     */
+    public VerificationScheduler(Digester digester, int numOfThreads, ThreadFactory threadFactory) {
+        this.digester = digester;
+        this.numOfThreads = (numOfThreads > 0) ? numOfThreads : Runtime.getRuntime().availableProcessors();
+        this.executor = new ThreadPoolExecutor(this.numOfThreads, this.numOfThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.readBufferTL = new ThreadLocal<>();
+
+        this.lock = new Object();
+        this.queue = new PriorityQueue<>(Comparator
+                .comparing((Job job) -> job.priority)
+                .thenComparingLong(job -> job.sequence));
+        this.jobs = new ConcurrentHashMap<>();
+        this.priorities = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Verify a subset of torrent's chunks and update the bitfield with the results.
+     * Blocks until all of the requested chunks have been checked.
+     *
+     * @param torrentId Torrent ID, used for prioritization and progress reporting, or null
+     * @param chunks List of all torrent's chunks
+     * @param bitfield Torrent's local bitfield
+     * @param chunksToVerify Indices of chunks to verify
+     * @return true if all chunks have been verified successfully (meaning that all data is present and correct)
+     * @throws BtException if verification failed or the calling thread has been interrupted
+     * @since 1.11
+     */
+    public boolean verify(/*nullable*/ TorrentId torrentId,
+                          List<ChunkDescriptor> chunks,
+                          LocalBitfield bitfield,
+                          BitSet chunksToVerify) {
+        int[] pieces = chunksToVerify.stream().toArray();
+        if (pieces.length > 0) {
+            Job job = new Job(torrentId, chunks, bitfield, pieces);
+            submit(job);
+            await(job);
+        }
+        return bitfield.getPiecesRemaining() == 0;
+    }
+
+    /**
+     * Set verification priority of a torrent.
+     * If the torrent is waiting in the queue, it is moved accordingly;
+     * otherwise the priority will be used, when the torrent's data is verified next time.
+     *
+     * @since 1.11
+     */
+    public void setPriority(TorrentId torrentId, Priority priority) {
+        synchronized (lock) {
+            priorities.put(torrentId, priority);
+            Job job = jobs.get(torrentId);
+            if (job != null) {
+                // re-insert to restore the heap order
+                boolean queued = queue.remove(job);
+                job.priority = priority;
+                if (queued) {
+                    queue.add(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Progress of verification of torrent's data,
+     *         or {@link Optional#empty()}, if torrent's data is not being verified at the moment
+     * @since 1.11
+     */
+    public Optional<Progress> getProgress(TorrentId torrentId) {
+        return Optional.ofNullable(jobs.get(torrentId)).map(Job::getProgress);
+    }
+
+    /**
+     * Stop the hashing threads. Pending verification requests will fail.
+     *
+     * @since 1.11
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized (lock) {
+            Job job;
+            while ((job = queue.poll()) != null) {
+                job.future.completeExceptionally(new IllegalStateException("Shutdown"));
+            }
+        }
+    }
+
+    private void submit(Job job) {
+        synchronized (lock) {
+            job.sequence = jobSequence++;
+            if (job.torrentId != null) {
+                job.priority = priorities.getOrDefault(job.torrentId, Priority.NORMAL);
+                jobs.put(job.torrentId, job);
+            }
+            queue.add(job);
+            try {
+                while (activeWorkers < numOfThreads) {
+                    executor.execute(this::processSegments);
+                    activeWorkers++;
+                }
+            } catch (RejectedExecutionException e) {
+                if (activeWorkers == 0) {
+                    queue.remove(job);
+                    job.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void await(Job job) {
+        try {
+            job.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(job, e);
+            throw new BtException("Interrupted while verifying torrent data");
+        } catch (ExecutionException e) {
+            throw new BtException("Failed to verify torrent data", e.getCause());
+        } finally {
+            if (job.torrentId != null) {
+                jobs.remove(job.torrentId, job);
+            }
+        }
+        if (LOGGER.isDebugEnabled()) {
+            Progress progress = job.getProgress();
+            LOGGER.debug("Verified {} of {} pieces of torrent {}", progress.getPiecesVerified(),
+                    progress.getPiecesTotal(), job.torrentId);
+        }
+    }
+
+    private void cancel(Job job, Throwable cause) {
+        synchronized (lock) {
+            queue.remove(job);
+        }
+        job.future.completeExceptionally(cause);
+    }
+
+    private void processSegments() {
+        Job job;
+        int segment;
+        do {
+            synchronized (lock) {
+                job = queue.peek();
+                if (job == null) {
+                    activeWorkers--;
+                    return;
+                }
+                segment = job.nextSegment++;
+                if (job.nextSegment == job.segmentsTotal) {
+                    queue.poll();
+                }
+            }
+            processSegment(job, segment);
+        } while (!Thread.currentThread().isInterrupted());
+
+        synchronized (lock) {
+            activeWorkers--;
+        }
+    }
+
+    private void processSegment(Job job, int segment) {
+        int from = segment * job.piecesPerSegment;
+        int to = Math.min(from + job.piecesPerSegment, job.pieces.length);
+        try {
+            for (int i = from; i < to && !job.future.isDone(); i++) {
+                int pieceIndex = job.pieces[i];
+                if (verifyIfPresent(job.chunks.get(pieceIndex))) {
+                    job.bitfield.markLocalPieceVerified(pieceIndex);
+                    job.piecesVerified.incrementAndGet();
+                }
+                job.piecesChecked.incrementAndGet();
+            }
+            if (job.segmentsDone.incrementAndGet() == job.segmentsTotal) {
+                job.future.complete(null);
+            }
+        } catch (Throwable e) {
+            cancel(job, e);
+        }
+    }
+
+    private boolean verifyIfPresent(ChunkDescriptor chunk) {
+        DataRange data = chunk.getData();
+        long length = data.length();
+        if (length > MAX_READ_BUFFER_SIZE) {
+            return isPresent(data) && Arrays.equals(chunk.getChecksum(), digester.digest(data));
+        }
+
+        ByteBuffer buffer = getReadBuffer((int) length);
+        boolean[] complete = new boolean[] {true};
+        data.visitUnits((unit, off, lim) -> {
+            // limit of 0 means an empty file, and we don't want to account for those;
+            // if any other of this chunk's storage units is empty,
+            // then the chunk is neither complete nor verified
+            if (unit.size() == 0 && lim != 0) {
+                complete[0] = false;
+                return false;
+            }
+            buffer.limit(buffer.position() + (int) (lim - off));
+            unit.readBlockFully(buffer, off);
+            if (buffer.hasRemaining()) {
+                complete[0] = false;
+                return false;
+            }
+            return true;
+        });
+        if (!complete[0]) {
+            return false;
+        }
+        buffer.flip();
+        return Arrays.equals(chunk.getChecksum(), digester.digest(buffer));
+    }
+
+    private static boolean isPresent(DataRange data) {
+        boolean[] present = new boolean[] {true};
+        data.visitUnits((unit, off, lim) -> {
+            if (unit.size() == 0 && lim != 0) {
+                present[0] = false;
+                return false;
+            }
+            return true;
+        });
+        return present[0];
+    }
+
+    private ByteBuffer getReadBuffer(int length) {
+        ByteBuffer buffer = readBufferTL.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length);
+            readBufferTL.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Progress of verification of torrent's data.
+     *
+     * @since 1.11
+     */
+    public static class Progress {
+
+        private final int piecesTotal;
+        private final int piecesChecked;
+        private final int piecesVerified;
+
+        Progress(int piecesTotal, int piecesChecked, int piecesVerified) {
+            this.piecesTotal = piecesTotal;
+            this.piecesChecked = piecesChecked;
+            this.piecesVerified = piecesVerified;
+        }
+
+        /**
+         * @return Number of pieces to check
+         * @since 1.11
+         */
+        public int getPiecesTotal() {
+            return piecesTotal;
+        }
+
+        /**
+         * @return Number of pieces, that have been checked so far
+         * @since 1.11
+         */
+        public int getPiecesChecked() {
+            return piecesChecked;
+        }
+
+        /**
+         * @return Number of checked pieces, that are present and correct
+         * @since 1.11
+         */
+        public int getPiecesVerified() {
+            return piecesVerified;
+        }
+    }
+
+    private static class Job {
+
+        private final TorrentId torrentId;
+        private final List<ChunkDescriptor> chunks;
+        private final LocalBitfield bitfield;
+        private final int[] pieces;
+        private final int piecesPerSegment;
+        private final int segmentsTotal;
+        private final CompletableFuture<Void> future;
+
+        private final AtomicInteger segmentsDone;
+        private final AtomicInteger piecesChecked;
+        private final AtomicInteger piecesVerified;
+
+        // guarded by the scheduler's lock
+        private Priority priority;
+        private long sequence;
+        private int nextSegment;
+
+        Job(TorrentId torrentId, List<ChunkDescriptor> chunks, LocalBitfield bitfield, int[] pieces) {
+            this.torrentId = torrentId;
+            this.chunks = chunks;
+            this.bitfield = bitfield;
+            this.pieces = pieces;
+            long chunkSize = Math.max(1, chunks.get(0).getData().length());
+            this.piecesPerSegment = (int) Math.max(1, Math.min(pieces.length, SEGMENT_SIZE / chunkSize));
+            this.segmentsTotal = (pieces.length + piecesPerSegment - 1) / piecesPerSegment;
+            this.future = new CompletableFuture<>();
+            this.segmentsDone = new AtomicInteger();
+            this.piecesChecked = new AtomicInteger();
+            this.piecesVerified = new AtomicInteger();
+            this.priority = Priority.NORMAL;
+        }
+
+        Progress getProgress() {
+            return new Progress(pieces.length, piecesChecked.get(), piecesVerified.get());
+        }
+    }
+}
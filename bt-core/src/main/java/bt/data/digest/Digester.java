@@ -17,8 +17,11 @@
 package bt.data.digest;
 
 import bt.data.DataRange;
+import bt.data.range.ByteRange;
 import bt.data.range.Range;
 
+import java.nio.ByteBuffer;
+
 /**
  * Calculates hash of some binary data.
  * Implementations may use different hashing algorithms.
@@ -60,6 +63,19 @@ public interface Digester {
      */
     byte[] digest(Range<?> data);
 
+    /**
+     * Calculates digest of the data between buffer's position and limit.
+     * When this method has returned, buffer's position will be equal to its' limit.
+     *
+     * @return Digest (depends on the algorithm being used)
+     * @since 1.11
+     */
+    default byte[] digest(ByteBuffer data) {
+        byte[] digest = digest(new ByteRange(data.duplicate()));
+        data.position(data.limit());
+        return digest;
+    }
+
     /**
      * Return the length of this digest
      *
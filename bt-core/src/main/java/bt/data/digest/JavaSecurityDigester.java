@@ -124,6 +124,13 @@ public class JavaSecurityDigester implements Digester {
         return digest.digest();
     }
 
+    @Override
+    public byte[] digest(ByteBuffer data) {
+        MessageDigest digest = getThreadLocalDigest();
+        digest.update(data);
+        return digest.digest();
+    }
+
     private MessageDigest getThreadLocalDigest() {
         MessageDigest digest = digestTL.get();
         digest.reset();
@@ -19,10 +19,12 @@ package bt.data.file;
 import bt.data.StorageUnit;
 import bt.net.buffer.ByteBufferView;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -33,6 +35,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * A file that is kept open so reads/writes to the file do not incur the costs of opening and closing a file
  */
 class CachedOpenFile implements StorageUnit {
+    private static final byte[] ZEROS = new byte[8192];
+
     /**
      * the channel of the open file
      */
@@ -45,6 +49,14 @@ class CachedOpenFile implements StorageUnit {
      * The capacity of this file when downloaded. Used for more information on exception cases
      */
     private final long capacity;
+    /**
+     * Time of the last access to this file, used to approximate LRU order of eviction
+     */
+    private volatile long lastAccessed;
+    /**
+     * Whether there were writes to this file since the last flush
+     */
+    private volatile boolean dirty;
 
     /**
      * Open the specified cache file
@@ -64,6 +76,7 @@ class CachedOpenFile implements StorageUnit {
             throw new UncheckedIOException("Could not open file " + file.toAbsolutePath(), ex);
         }
         this.capacity = capacity;
+        this.lastAccessed = System.nanoTime();
     }
 
     @Override
@@ -123,6 +136,38 @@ class CachedOpenFile implements StorageUnit {
         }
     }
 
+    /**
+     * Transfer bytes from this file directly to the provided channel.
+     *
+     * @param offset the offset in the file to start transferring from
+     * @param count  the maximum number of bytes to transfer
+     * @param target the channel to transfer bytes to
+     * @return the number of bytes transferred, possibly zero
+     * @throws IOException on failure to write to the target channel, or if the file is shorter than requested
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        ensureOpen();
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        } else if (offset > capacity - count) {
+            throw new IllegalArgumentException("Received a request to transfer past the end of file (offset: " + offset +
+                    ", requested block length: " + count + ", file capacity: " + capacity);
+        }
+
+        long transferred = fc.transferTo(offset, count, target);
+        // transferTo() silently transfers nothing when reading past the end of file,
+        // which would stall the caller forever; the file size is checked only in this (rare) case
+        if (transferred == 0 && count > 0) {
+            long size = fc.size();
+            if (offset >= size) {
+                throw new EOFException("Received a request to transfer past the end of file (offset: " + offset +
+                        ", requested block length: " + count + ", file size: " + size + ")");
+            }
+        }
+        return transferred;
+    }
+
     @Override
     public long capacity() {
         return capacity;
@@ -149,6 +194,31 @@ class CachedOpenFile implements StorageUnit {
             this.fc.force(false);
     }
 
+    /**
+     * Flush changes to the file to disk, if there were any writes since the last flush. Does not flush metadata
+     *
+     * @return true if the file has been flushed
+     * @throws IOException on failure to flush
+     */
+    boolean flushIfDirty() throws IOException {
+        if (dirty && fc.isOpen()) {
+            // reset before forcing: concurrent writes will mark the file as dirty again
+            dirty = false;
+            this.fc.force(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark this file as modified since the last flush
+     */
+    void markDirty() {
+        if (!dirty) {
+            dirty = true;
+        }
+    }
+
     /**
      * Lock this file for an IO Operation. This prevents a potential race condition where the file could be closed
      * while a write operation occurs
@@ -164,6 +234,91 @@ class CachedOpenFile implements StorageUnit {
         this.lock.readLock().unlock();
     }
 
+    /**
+     * Allocate a region of this file on the storage device, by writing it in full.
+     * Data, that is already present in the region, is read and written back unchanged,
+     * the rest of the region (beyond the current end of file) is filled with zeros.
+     * The file is locked exclusively for the duration of this operation, so that concurrent writes are not lost.
+     *
+     * @param offset  the offset of the region
+     * @param length  the length of the region
+     * @param scratch the buffer to use for the operation, at least {@code length} bytes long
+     * @return false if the file has been closed
+     * @throws IOException on failure to read or write the file
+     */
+    boolean allocate(long offset, int length, ByteBuffer scratch) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!fc.isOpen()) {
+                return false;
+            }
+            scratch.clear();
+            scratch.limit(length);
+            if (offset < fc.size()) {
+                int read;
+                do {
+                    read = fc.read(scratch, offset + scratch.position());
+                } while (read >= 0 && scratch.hasRemaining());
+            }
+            while (scratch.hasRemaining()) {
+                scratch.put(ZEROS, 0, Math.min(ZEROS.length, scratch.remaining()));
+            }
+            scratch.flip();
+            while (scratch.hasRemaining()) {
+                fc.write(scratch, offset + scratch.position());
+            }
+            markDirty();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Extend this file to its' full capacity without writing the data (the file may remain sparse).
+     * The file is locked exclusively for the duration of this operation, so that concurrent writes are not lost.
+     *
+     * @return false if the file has been closed
+     * @throws IOException on failure to write the file
+     */
+    boolean extend() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!fc.isOpen()) {
+                return false;
+            }
+            // the last byte has not been written yet, if the file is shorter than its' capacity
+            if (capacity > 0 && fc.size() < capacity) {
+                fc.write(ByteBuffer.allocate(1), capacity - 1);
+                markDirty();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mark this file as recently used
+     */
+    void touch() {
+        this.lastAccessed = System.nanoTime();
+    }
+
+    /**
+     * @return time of the last access to this file, in terms of {@link System#nanoTime()}
+     */
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * @return true if this file has not been closed yet
+     */
+    boolean isOpen() {
+        return fc.isOpen();
+    }
+
     /**
      * Close any allocated resources for this file.
      *
@@ -171,12 +326,28 @@ class CachedOpenFile implements StorageUnit {
      */
     @Override
     public void close() throws IOException {
+        close(false);
+    }
+
+    /**
+     * Close any allocated resources for this file.
+     *
+     * @param flushIfDirty whether to flush changes to the file to disk before closing it
+     * @throws IOException on failure to flush or close the file
+     */
+    void close(boolean flushIfDirty) throws IOException {
         // wait for any reads to finish
         lock.writeLock().lock();
         try {
-            this.fc.close();
+            if (flushIfDirty) {
+                flushIfDirty();
+            }
         } finally {
-            lock.writeLock().unlock();
+            try {
+                this.fc.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
         }
     }
 
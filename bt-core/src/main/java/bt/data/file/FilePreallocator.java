@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.CountingThreadFactory;
+import bt.metainfo.TorrentId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocates files of {@link FileSystemStorage} in background, one file at a time,
+ * so that the files are written sequentially and are laid out in contiguous extents.
+ */
+class FilePreallocator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilePreallocator.class);
+
+    private static final int REGION_SIZE = 1024 * 1024;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final OpenFileCache cache;
+    private final FileSystemStorage.PreallocationMode mode;
+    private final ThreadPoolExecutor executor;
+    private final ThreadLocal<ByteBuffer> scratchTL;
+
+    private final Set<FileCacheKey> requestedFiles;
+    private final ConcurrentMap<TorrentId, Progress> progress;
+
+    FilePreallocator(OpenFileCache cache, FileSystemStorage.PreallocationMode mode) {
+        this.cache = cache;
+        this.mode = mode;
+        // single thread, which terminates, when idle
+        this.executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), CountingThreadFactory.daemonFactory("bt.data.file.preallocator"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.scratchTL = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(REGION_SIZE));
+        this.requestedFiles = ConcurrentHashMap.newKeySet();
+        this.progress = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Schedule preallocation of a file, unless it has already been requested.
+     *
+     * @param torrentId ID of the torrent, that the file belongs to
+     * @param key       the key of the file
+     * @param size      current size of the file; data before this offset is assumed to be allocated already
+     */
+    void preallocate(TorrentId torrentId, FileCacheKey key, long size) {
+        long capacity = key.getCapacity();
+        if (size >= capacity || !requestedFiles.add(key)) {
+            return;
+        }
+        Progress torrentProgress = progress.computeIfAbsent(torrentId, id -> new Progress());
+        torrentProgress.bytesTotal.addAndGet(capacity - size);
+        executor.execute(() -> {
+            try {
+                switch (mode) {
+                    case EXTEND_ONLY: {
+                        cache.extend(key);
+                        torrentProgress.bytesPreallocated.addAndGet(capacity - size);
+                        break;
+                    }
+                    case ZERO_FILL: {
+                        ByteBuffer scratch = scratchTL.get();
+                        for (long offset = size; offset < capacity; offset += REGION_SIZE) {
+                            int length = (int) Math.min(REGION_SIZE, capacity - offset);
+                            cache.allocate(key, offset, length, scratch);
+                            torrentProgress.bytesPreallocated.addAndGet(length);
+                        }
+                        break;
+                    }
+                    default: {
+                        throw new IllegalStateException("Unexpected preallocation mode: " + mode);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Failed to preallocate file: " + key.getFile(), e);
+                torrentProgress.filesFailed.incrementAndGet();
+            }
+        });
+    }
+
+    Optional<FileSystemStorage.PreallocationProgress> getProgress(TorrentId torrentId) {
+        return Optional.ofNullable(progress.get(torrentId))
+                .map(p -> new FileSystemStorage.PreallocationProgress(
+                        p.bytesTotal.get(), p.bytesPreallocated.get(), p.filesFailed.get()));
+    }
+
+    private static class Progress {
+        private final AtomicLong bytesTotal = new AtomicLong();
+        private final AtomicLong bytesPreallocated = new AtomicLong();
+        private final AtomicLong filesFailed = new AtomicLong();
+    }
+}
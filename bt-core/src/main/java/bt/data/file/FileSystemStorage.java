@@ -20,9 +20,11 @@ import bt.data.Storage;
 import bt.data.StorageUnit;
 import bt.metainfo.Torrent;
 import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.Optional;
 
 /**
  * Provides file-system based storage for torrent files.
@@ -65,10 +67,91 @@ import java.nio.file.Path;
  * @since 1.0
  */
 public class FileSystemStorage implements Storage {
+
+    /**
+     * Defines whether and how the files are allocated on the storage device before the data is written to them.
+     *
+     * <p>Pieces are downloaded in arbitrary order, so without preallocation the files are sparse
+     * and may get badly fragmented, which turns later sequential reads (e.g. when seeding) into random I/O.
+     * Preallocation is performed asynchronously, one file at a time, starting with the first write to the file.
+     * Only files, that are shorter than their full size at that moment, are preallocated.
+     *
+     * @since 1.11
+     */
+    public enum PreallocationMode {
+
+        /**
+         * No preallocation: files are created empty and are extended as pieces are written to them.
+         *
+         * @since 1.11
+         */
+        SPARSE,
+
+        /**
+         * Files are extended to their full size, without writing the data.
+         * This is cheap, but on most file systems the file remains sparse.
+         *
+         * @since 1.11
+         */
+        EXTEND_ONLY,
+
+        /**
+         * Files are written in full, sequentially (the missing data is filled with zeros),
+         * so that they are laid out in contiguous extents. Data, that has already been written, is preserved.
+         *
+         * @since 1.11
+         */
+        ZERO_FILL
+    }
+
+    /**
+     * Progress of preallocation of torrent's files.
+     *
+     * @since 1.11
+     */
+    public static class PreallocationProgress {
+
+        private final long bytesTotal;
+        private final long bytesPreallocated;
+        private final long filesFailed;
+
+        PreallocationProgress(long bytesTotal, long bytesPreallocated, long filesFailed) {
+            this.bytesTotal = bytesTotal;
+            this.bytesPreallocated = bytesPreallocated;
+            this.filesFailed = filesFailed;
+        }
+
+        /**
+         * @return Number of bytes to preallocate in the files, that preallocation has been started for
+         * @since 1.11
+         */
+        public long getBytesTotal() {
+            return bytesTotal;
+        }
+
+        /**
+         * @return Number of bytes, that have been preallocated so far
+         * @since 1.11
+         */
+        public long getBytesPreallocated() {
+            return bytesPreallocated;
+        }
+
+        /**
+         * @return Number of files, that could not be preallocated
+         * @since 1.11
+         */
+        public long getFilesFailed() {
+            return filesFailed;
+        }
+    }
+
     private static final int DEFAULT_MAX_OPEN_FILES = 256;
     private final OpenFileCache cache;
     private final Path rootDirectory;
     private final PathNormalizer pathNormalizer;
+    // null, if files are not preallocated
+    private final FilePreallocator preallocator;
 
     /**
      * Create a file-system based storage inside a given directory.
@@ -91,13 +174,76 @@ public class FileSystemStorage implements Storage {
      * @param maxOpenFiles  the max number of open files this storage can use for efficiency
      */
     public FileSystemStorage(Path rootDirectory, int maxOpenFiles) {
-        this.cache = new OpenFileCache(maxOpenFiles);
+        this(rootDirectory, new OpenFileCache(maxOpenFiles));
+    }
+
+    /**
+     * Construct a new FileSystemStorage
+     *
+     * @param rootDirectory the root directory to store files
+     * @param maxOpenFiles  the max number of open files this storage can use for efficiency
+     * @param flushPolicy   defines when the written data is forced to the storage device
+     * @since 1.11
+     */
+    public FileSystemStorage(Path rootDirectory, int maxOpenFiles, FlushPolicy flushPolicy) {
+        this(rootDirectory, new OpenFileCache(maxOpenFiles, flushPolicy));
+    }
+
+    /**
+     * Construct a new FileSystemStorage, that uses a (possibly shared) cache of open files.
+     * Storages for different torrents may share the same cache to keep the total number of open files
+     * within a single limit.
+     *
+     * @param rootDirectory the root directory to store files
+     * @param cache         the cache of open files
+     * @since 1.11
+     */
+    public FileSystemStorage(Path rootDirectory, OpenFileCache cache) {
+        this(rootDirectory, cache, PreallocationMode.SPARSE);
+    }
+
+    /**
+     * Construct a new FileSystemStorage, that uses a (possibly shared) cache of open files
+     * and preallocates the files before writing to them.
+     *
+     * @param rootDirectory     the root directory to store files
+     * @param cache             the cache of open files
+     * @param preallocationMode defines whether and how the files are preallocated
+     * @since 1.11
+     */
+    public FileSystemStorage(Path rootDirectory, OpenFileCache cache, PreallocationMode preallocationMode) {
+        this.cache = cache;
         this.rootDirectory = rootDirectory;
         this.pathNormalizer = new PathNormalizer(rootDirectory.getFileSystem());
+        this.preallocator = (preallocationMode == PreallocationMode.SPARSE) ?
+                null : new FilePreallocator(cache, preallocationMode);
     }
 
     @Override
     public StorageUnit getUnit(Torrent torrent, TorrentFile torrentFile) {
+        Path file = resolveFile(rootDirectory, pathNormalizer, torrent, torrentFile);
+        FileSystemStorageUnit unit = new FileSystemStorageUnit(cache, file, torrentFile.getSize());
+        if (preallocator != null) {
+            TorrentId torrentId = torrent.getTorrentId();
+            unit.setPreallocationRequest((key, size) -> preallocator.preallocate(torrentId, key, size));
+        }
+        return unit;
+    }
+
+    /**
+     * @param torrentId Torrent ID
+     * @return Progress of preallocation of torrent's files,
+     *         or {@link Optional#empty()}, if preallocation is disabled or has not been started yet
+     * @since 1.11
+     */
+    public Optional<PreallocationProgress> getPreallocationProgress(TorrentId torrentId) {
+        return (preallocator == null) ? Optional.empty() : preallocator.getProgress(torrentId);
+    }
+
+    /**
+     * Resolve the location of a torrent file inside the root directory (see the class-level javadoc).
+     */
+    static Path resolveFile(Path rootDirectory, PathNormalizer pathNormalizer, Torrent torrent, TorrentFile torrentFile) {
         Path torrentDirectory;
         if (torrent.getFiles().size() == 1) {
             torrentDirectory = rootDirectory;
@@ -106,7 +252,7 @@ public class FileSystemStorage implements Storage {
             torrentDirectory = rootDirectory.resolve(normalizedName);
         }
         String normalizedPath = pathNormalizer.normalize(torrentFile.getPathElements());
-        return new FileSystemStorageUnit(cache, torrentDirectory, normalizedPath, torrentFile.getSize());
+        return torrentDirectory.resolve(normalizedPath);
     }
 
     @Override
@@ -16,7 +16,7 @@
 
 package bt.data.file;
 
-import bt.data.StorageUnit;
+import bt.data.TransferableStorageUnit;
 import bt.net.buffer.ByteBufferView;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,10 +25,12 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.function.BiConsumer;
 
-public class FileSystemStorageUnit implements StorageUnit {
+public class FileSystemStorageUnit implements TransferableStorageUnit {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemStorageUnit.class);
 
@@ -37,16 +39,14 @@ public class FileSystemStorageUnit implements StorageUnit {
     private final Path file;
     private SeekableByteChannel sbc;
     private final long capacity;
-
-    FileSystemStorageUnit(OpenFileCache cache, Path root, String path, long capacity) {
-        this(cache, root.resolve(path), capacity);
-    }
+    // invoked before the first write to this unit; null, if the file should not be preallocated
+    private volatile BiConsumer<FileCacheKey, Long> preallocationRequest;
 
     public FileSystemStorageUnit(OpenFileCache cache, Path file) {
         this(cache, file, getSize(file));
     }
 
-    private FileSystemStorageUnit(OpenFileCache cache, Path file, long capacity) {
+    FileSystemStorageUnit(OpenFileCache cache, Path file, long capacity) {
         this.cache = cache;
         this.file = file;
         this.key = new FileCacheKey(file, capacity);
@@ -69,24 +69,55 @@ public class FileSystemStorageUnit implements StorageUnit {
 
     @Override
     public int writeBlock(ByteBuffer buffer, long offset) {
+        requestPreallocation();
         return cache.writeBlock(key, buffer, offset);
     }
 
     @Override
     public void writeBlockFully(ByteBuffer buffer, long offset) {
+        requestPreallocation();
         cache.writeBlockFully(key, buffer, offset);
     }
 
     @Override
     public int writeBlock(ByteBufferView buffer, long offset) {
+        requestPreallocation();
         return this.cache.writeBlock(key, buffer, offset);
     }
 
     @Override
     public void writeBlockFully(ByteBufferView buffer, long offset) {
+        requestPreallocation();
         this.cache.writeBlockFully(key, buffer, offset);
     }
 
+    /**
+     * @param preallocationRequest invoked with the key and the current size of the file
+     *                             before the first write to this unit
+     */
+    void setPreallocationRequest(BiConsumer<FileCacheKey, Long> preallocationRequest) {
+        this.preallocationRequest = preallocationRequest;
+    }
+
+    private void requestPreallocation() {
+        BiConsumer<FileCacheKey, Long> request = preallocationRequest;
+        if (request != null) {
+            preallocationRequest = null;
+            // size is read before the write, because the write may extend the file
+            request.accept(key, size());
+        }
+    }
+
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        return cache.transferTo(key, offset, count, target);
+    }
+
+    @Override
+    public void pieceVerified() {
+        cache.pieceVerified(key);
+    }
+
     @Override
     public long capacity() {
         return capacity;
@@ -111,6 +142,15 @@ public class FileSystemStorageUnit implements StorageUnit {
         }
     }
 
+    @Override
+    public long lastModified() {
+        try {
+            return Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unexpected I/O error", e);
+        }
+    }
+
     @Override
     public String toString() {
         return "(" + capacity + " B) " + file;
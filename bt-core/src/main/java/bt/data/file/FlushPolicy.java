@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.data.Storage;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Defines when the data, that has been written to the files in {@link OpenFileCache},
+ * is forced to the storage device (see {@link java.nio.channels.FileChannel#force(boolean)}).
+ * This is a trade-off between durability and throughput.
+ *
+ * <p>Regardless of the policy, all modified files are forced on explicit {@link Storage#flush()}
+ * (e.g. when the download is complete).
+ *
+ * @since 1.11
+ */
+public final class FlushPolicy {
+
+    enum Mode {
+        NONE, PERIODIC, ON_PIECE_VERIFIED
+    }
+
+    private static final FlushPolicy NONE = new FlushPolicy(Mode.NONE, Duration.ZERO, 0);
+    private static final FlushPolicy ON_PIECE_VERIFIED = new FlushPolicy(Mode.ON_PIECE_VERIFIED, Duration.ZERO, 0);
+
+    /**
+     * No explicit forcing of data; the OS writes back the modified pages at its' own discretion.
+     * Provides the best throughput, but the data written shortly before a crash may be lost.
+     *
+     * @since 1.11
+     */
+    public static FlushPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * Periodic group commit: all modified files are forced together, in a background thread,
+     * each time the interval elapses or the given amount of data has been written since the previous flush,
+     * whichever happens first.
+     *
+     * @param interval Interval between flushes; {@link Duration#ZERO} disables time-based flushing
+     * @param maxUnflushedBytes Amount of written data, that triggers a flush; 0 disables size-based flushing
+     * @since 1.11
+     */
+    public static FlushPolicy periodic(Duration interval, long maxUnflushedBytes) {
+        Objects.requireNonNull(interval);
+        if (interval.isNegative() || maxUnflushedBytes < 0) {
+            throw new IllegalArgumentException("Invalid flush policy: interval (" + interval +
+                    "), max unflushed bytes (" + maxUnflushedBytes + ")");
+        }
+        if (interval.isZero() && maxUnflushedBytes == 0) {
+            return NONE;
+        }
+        return new FlushPolicy(Mode.PERIODIC, interval, maxUnflushedBytes);
+    }
+
+    /**
+     * Files, that contain a piece, are forced right after the piece has been verified and before it's
+     * marked as complete. Hence, the pieces that are marked as complete (e.g. in the resume data) are always
+     * present on the storage device. Provides the best durability at the cost of an extra fsync per piece.
+     *
+     * @since 1.11
+     */
+    public static FlushPolicy onPieceVerified() {
+        return ON_PIECE_VERIFIED;
+    }
+
+    private final Mode mode;
+    private final Duration interval;
+    private final long maxUnflushedBytes;
+
+    private FlushPolicy(Mode mode, Duration interval, long maxUnflushedBytes) {
+        this.mode = mode;
+        this.interval = interval;
+        this.maxUnflushedBytes = maxUnflushedBytes;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    Duration getInterval() {
+        return interval;
+    }
+
+    long getMaxUnflushedBytes() {
+        return maxUnflushedBytes;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case PERIODIC: {
+                return "PERIODIC (interval: " + interval + ", max unflushed bytes: " + maxUnflushedBytes + ")";
+            }
+            default: {
+                return mode.name();
+            }
+        }
+    }
+}
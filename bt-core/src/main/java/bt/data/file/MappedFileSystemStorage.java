@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.data.Storage;
+import bt.data.StorageUnit;
+import bt.metainfo.Torrent;
+import bt.metainfo.TorrentFile;
+
+import java.nio.file.Path;
+
+/**
+ * Provides file-system based storage for torrent files, that accesses the files via memory mapping.
+ *
+ * <p>This storage is best suited for read-heavy seeding of data, that fits well in the OS page cache:
+ * reading a block is a plain memory copy (or a single write of the mapped region to a socket),
+ * as opposed to a system call per block in {@link FileSystemStorage}.
+ * Files are mapped in windows of fixed size, so files larger than 2 GiB are supported,
+ * and only a limited number of windows is mapped at the same time (least recently used windows are evicted).
+ *
+ * <p>Note that a file is extended to its' full size, when it's mapped for the first time.
+ *
+ * <p>Paths of torrent files are resolved in the same way as in {@link FileSystemStorage}.
+ *
+ * @since 1.11
+ */
+public class MappedFileSystemStorage implements Storage {
+
+    /**
+     * Defines when the changes in the mapped regions are forced to the storage device.
+     *
+     * @since 1.11
+     */
+    public enum ForcePolicy {
+
+        /**
+         * Changes are forced only when the storage is flushed (see {@link Storage#flush()}).
+         * Until then the OS writes back the modified pages at its' own discretion.
+         *
+         * @since 1.11
+         */
+        ON_FLUSH,
+
+        /**
+         * Changes are forced when the storage is flushed, and also each time a modified window is evicted.
+         *
+         * @since 1.11
+         */
+        ON_FLUSH_AND_UNMAP
+    }
+
+    private static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_MAX_MAPPED_WINDOWS = 256;
+
+    private final MappedRegionCache cache;
+    private final Path rootDirectory;
+    private final PathNormalizer pathNormalizer;
+
+    /**
+     * Create a memory-mapped storage inside a given directory,
+     * with 64 MiB windows, at most 256 windows mapped at the same time
+     * and {@link ForcePolicy#ON_FLUSH} policy.
+     *
+     * @param rootDirectory Root directory for this storage. All torrent files will be stored inside this directory.
+     * @since 1.11
+     */
+    public MappedFileSystemStorage(Path rootDirectory) {
+        this(rootDirectory, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_MAPPED_WINDOWS, ForcePolicy.ON_FLUSH);
+    }
+
+    /**
+     * Create a memory-mapped storage inside a given directory.
+     *
+     * @param rootDirectory    Root directory for this storage. All torrent files will be stored inside this directory.
+     * @param windowSize       Size of a single mapped region of a file, up to 2 GiB
+     * @param maxMappedWindows Max number of regions, that may be mapped at the same time
+     * @param forcePolicy      Defines when the changes are forced to the storage device
+     * @since 1.11
+     */
+    public MappedFileSystemStorage(Path rootDirectory, long windowSize, int maxMappedWindows, ForcePolicy forcePolicy) {
+        this.cache = new MappedRegionCache(windowSize, maxMappedWindows, forcePolicy == ForcePolicy.ON_FLUSH_AND_UNMAP);
+        this.rootDirectory = rootDirectory;
+        this.pathNormalizer = new PathNormalizer(rootDirectory.getFileSystem());
+    }
+
+    @Override
+    public StorageUnit getUnit(Torrent torrent, TorrentFile torrentFile) {
+        Path file = FileSystemStorage.resolveFile(rootDirectory, pathNormalizer, torrent, torrentFile);
+        return new MappedFileSystemStorageUnit(cache, file, torrentFile.getSize());
+    }
+
+    @Override
+    public void flush() {
+        cache.flush();
+    }
+}
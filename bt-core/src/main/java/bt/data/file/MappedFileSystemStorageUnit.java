@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.data.TransferableStorageUnit;
+import bt.net.buffer.ByteBufferView;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Storage unit, that accesses the file via memory-mapped regions.
+ * Reads and writes are plain memory copies and do not incur any system calls,
+ * unless a new region has to be mapped.
+ *
+ * @see MappedFileSystemStorage
+ * @since 1.11
+ */
+public class MappedFileSystemStorageUnit implements TransferableStorageUnit {
+
+    private final MappedRegionCache cache;
+    private final FileCacheKey key;
+    private final Path file;
+    private final long capacity;
+
+    MappedFileSystemStorageUnit(MappedRegionCache cache, Path file, long capacity) {
+        this.cache = cache;
+        this.file = file;
+        this.key = new FileCacheKey(file, capacity);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public int readBlock(ByteBuffer buffer, long offset) {
+        checkBounds("read", offset, buffer.remaining());
+        if (!Files.exists(file)) {
+            return -1;
+        }
+
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            ByteBuffer region = cache.getRegion(key, offset + read);
+            int length = Math.min(region.remaining(), buffer.remaining());
+            region.limit(region.position() + length);
+            buffer.put(region);
+            read += length;
+        }
+        return read;
+    }
+
+    @Override
+    public int writeBlock(ByteBuffer buffer, long offset) {
+        checkBounds("write", offset, buffer.remaining());
+
+        int written = 0;
+        int limit = buffer.limit();
+        try {
+            while (buffer.hasRemaining()) {
+                ByteBuffer region = cache.getRegion(key, offset + written);
+                int length = Math.min(region.remaining(), buffer.remaining());
+                buffer.limit(buffer.position() + length);
+                region.put(buffer);
+                cache.markDirty(key, offset + written);
+                buffer.limit(limit);
+                written += length;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        return written;
+    }
+
+    @Override
+    public int writeBlock(ByteBufferView buffer, long offset) {
+        checkBounds("write", offset, buffer.remaining());
+
+        int written = 0;
+        int limit = buffer.limit();
+        try {
+            while (buffer.hasRemaining()) {
+                ByteBuffer region = cache.getRegion(key, offset + written);
+                int length = Math.min(region.remaining(), buffer.remaining());
+                buffer.limit(buffer.position() + length);
+                buffer.transferTo(region);
+                cache.markDirty(key, offset + written);
+                buffer.limit(limit);
+                written += length;
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+        return written;
+    }
+
+    /**
+     * Writes the mapped region directly to the target channel, without copying it to an intermediate buffer.
+     * At most one region is transferred per invocation.
+     */
+    @Override
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        if (count > Integer.MAX_VALUE) {
+            count = Integer.MAX_VALUE;
+        }
+        checkBounds("transfer", offset, (int) count);
+
+        ByteBuffer region = cache.getRegion(key, offset);
+        region.limit(region.position() + (int) Math.min(region.remaining(), count));
+        return target.write(region);
+    }
+
+    private void checkBounds(String operation, long offset, int length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        } else if (offset > capacity - length) {
+            throw new IllegalArgumentException("Received a request to " + operation + " past the end of file (offset: " +
+                    offset + ", block length: " + length + ", file capacity: " + capacity + ")");
+        }
+    }
+
+    @Override
+    public long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long size() {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unexpected I/O error", e);
+        }
+    }
+
+    @Override
+    public long lastModified() {
+        try {
+            return Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unexpected I/O error", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "(" + capacity + " B, mapped) " + file;
+    }
+
+    @Override
+    public void close() {
+        cache.close(key);
+    }
+}
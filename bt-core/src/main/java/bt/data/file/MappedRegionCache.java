@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * This is an LRU cache for memory-mapped regions of files ("windows").
+ * Each file is mapped in windows of fixed size, which makes it possible to map files larger than 2 GiB
+ * and limits the amount of address space, that is used at any given time.
+ *
+ * <p>Java does not provide a way to unmap a region explicitly, so evicted regions are unmapped by GC,
+ * when there are no more references to them.</p>
+ *
+ * @since 1.11
+ */
+class MappedRegionCache {
+    private static final float LOAD_FACTOR = .75f;
+
+    private final long windowSize;
+    private final boolean forceOnUnmap;
+    // guarded by this
+    private final LinkedHashMap<WindowKey, Window> windows;
+    // files, that have unsaved changes in regions, that have been evicted without forcing
+    // guarded by this
+    private final Set<Path> dirtyFiles;
+
+    /**
+     * @param windowSize     Size of a single mapped region
+     * @param maxWindows     Max number of regions, that are mapped at the same time
+     * @param forceOnUnmap   Force the changes to storage device, when a region is evicted from the cache
+     */
+    MappedRegionCache(long windowSize, int maxWindows, boolean forceOnUnmap) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Illegal window size: " + windowSize);
+        }
+        if (maxWindows <= 0) {
+            throw new IllegalArgumentException("Illegal max number of windows: " + maxWindows);
+        }
+        this.windowSize = windowSize;
+        this.forceOnUnmap = forceOnUnmap;
+        this.windows = new LinkedHashMap<WindowKey, Window>(
+                (int) Math.ceil(maxWindows / LOAD_FACTOR), LOAD_FACTOR, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<WindowKey, Window> eldest) {
+                if (size() > maxWindows) {
+                    unmap(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.dirtyFiles = new HashSet<>();
+    }
+
+    /**
+     * Get a view of the mapped region, which contains the provided offset.
+     * Returned buffer is positioned at the offset, and its' limit is set to the end of the region,
+     * or to the end of the file, whichever comes first.
+     *
+     * <p>Callers, that modify the contents of the buffer, must call {@link #markDirty(FileCacheKey, long)}
+     * after the data has been written.</p>
+     *
+     * @param key      the key of the file
+     * @param offset   the offset in the file
+     * @return Buffer, that is exclusively owned by the caller
+     */
+    ByteBuffer getRegion(FileCacheKey key, long offset) {
+        long index = offset / windowSize;
+        Window window;
+        synchronized (this) {
+            WindowKey windowKey = new WindowKey(key, index);
+            window = windows.get(windowKey);
+            if (window == null) {
+                window = new Window(map(key, index * windowSize));
+                windows.put(windowKey, window);
+            }
+        }
+        ByteBuffer region = window.buffer.duplicate();
+        region.position((int) (offset - index * windowSize));
+        return region;
+    }
+
+    /**
+     * Mark the region, which contains the provided offset, as modified.
+     * Must be called after the data has been written to the region, so that a concurrent flush
+     * does not reset the flag before the data has landed.
+     *
+     * @param key      the key of the file
+     * @param offset   the offset in the file
+     */
+    synchronized void markDirty(FileCacheKey key, long offset) {
+        Window window = windows.get(new WindowKey(key, offset / windowSize));
+        if (window != null) {
+            window.dirty = true;
+        } else {
+            // region has been evicted, while the data was being written
+            dirtyFiles.add(key.getFile());
+        }
+    }
+
+    /**
+     * @return true, if some of the changes have not been forced to storage device yet
+     */
+    synchronized boolean hasUnflushedChanges() {
+        return !dirtyFiles.isEmpty() || windows.values().stream().anyMatch(window -> window.dirty);
+    }
+
+    private MappedByteBuffer map(FileCacheKey key, long position) {
+        Path file = key.getFile();
+        long size = Math.min(windowSize, key.getCapacity() - position);
+        try {
+            Path parent = file.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent); // ensure parent directory exists
+            }
+            // mapping remains valid after the channel is closed
+            try (FileChannel fc = FileChannel.open(file,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                return fc.map(FileChannel.MapMode.READ_WRITE, position, size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map file " + file.toAbsolutePath() +
+                    " (position: " + position + ", size: " + size + ")", e);
+        }
+    }
+
+    // caller must hold the lock on this
+    private void unmap(WindowKey windowKey, Window window) {
+        if (window.dirty) {
+            if (forceOnUnmap) {
+                window.buffer.force();
+            } else {
+                dirtyFiles.add(windowKey.file.getFile());
+            }
+        }
+    }
+
+    /**
+     * Force all changes to storage device.
+     */
+    void flush() {
+        List<Window> dirtyWindows = new ArrayList<>();
+        List<Path> files;
+        synchronized (this) {
+            for (Window window : windows.values()) {
+                if (window.dirty) {
+                    window.dirty = false;
+                    dirtyWindows.add(window);
+                }
+            }
+            files = new ArrayList<>(dirtyFiles);
+            dirtyFiles.clear();
+        }
+
+        for (Window window : dirtyWindows) {
+            window.buffer.force();
+        }
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    fc.force(false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not flush file to disk: " + file.toAbsolutePath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict all regions of the file from the cache.
+     */
+    synchronized void close(FileCacheKey key) {
+        Iterator<Map.Entry<WindowKey, Window>> iter = windows.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<WindowKey, Window> entry = iter.next();
+            if (entry.getKey().file.equals(key)) {
+                unmap(entry.getKey(), entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    private static class WindowKey {
+        private final FileCacheKey file;
+        private final long index;
+
+        WindowKey(FileCacheKey file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            WindowKey that = (WindowKey) o;
+            return index == that.index && file.equals(that.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, index);
+        }
+    }
+
+    private static class Window {
+        private final MappedByteBuffer buffer;
+        // guarded by the cache
+        private boolean dirty;
+
+        Window(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
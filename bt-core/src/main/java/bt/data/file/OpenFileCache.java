@@ -16,36 +16,123 @@
 
 package bt.data.file;
 
+import bt.CountingThreadFactory;
 import bt.net.buffer.ByteBufferView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * This is an LRU cache for open files. It prevents having too many opened files by limiting the total possible opened
  * while minimizing file open/close operation by keeping recently read/written files open.
+ * <p>
+ * The cache is safe for concurrent use and does not serialize I/O operations: files that are already open are looked up
+ * without locking, and operations on different files never block each other. When the limit of open files is reached,
+ * the least recently used file (approximately) is closed to make room for a new one.
+ * <p>
+ * A single instance may be shared by several storages (see {@link FileSystemStorage#FileSystemStorage(java.nio.file.Path,
+ * OpenFileCache)}) to keep all torrents within one budget of open file descriptors.
+ * <p>
+ * Forcing of the written data to the storage device is controlled by {@link FlushPolicy}.
+ * Periodic flushes of all caches are performed by a single shared daemon thread, which exits when it's idle.
+ * A cache takes part in periodic flushing only while it has open files: flushing stops when all files are closed
+ * (e.g. when all torrents, that use the cache, have been stopped), and resumes on the next write.
  */
 public class OpenFileCache {
-    private static final float LOAD_FACTOR = .75f;
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenFileCache.class);
+
+    private static final long FLUSHER_KEEP_ALIVE_SECONDS = 60;
+    // shared by all caches
+    private static final ScheduledThreadPoolExecutor FLUSHER = createFlusher();
+
+    private static ScheduledThreadPoolExecutor createFlusher() {
+        ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1,
+                CountingThreadFactory.daemonFactory("bt.data.file.flusher"));
+        flusher.setKeepAliveTime(FLUSHER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        flusher.allowCoreThreadTimeOut(true);
+        flusher.setRemoveOnCancelPolicy(true);
+        return flusher;
+    }
+
+    private final int maxOpenFiles;
+    private final FlushPolicy flushPolicy;
     // maps normalized file name to a storage unit for the file
-    private final LinkedHashMap<FileCacheKey, CachedOpenFile> cache;
+    private final ConcurrentMap<FileCacheKey, CachedOpenFile> cache;
+    // number of open files plus the number of files being opened at the moment
+    private final AtomicInteger reservedFiles;
+
+    private final AtomicLong opens;
+    private final AtomicLong closes;
+    private final AtomicLong evictions;
+
+    // periodic flushing
+    private final Object periodicFlushLock;
+    // null, if the cache has no open files or if time-based flushing is disabled
+    private volatile ScheduledFuture<?> periodicFlush;
+    private volatile boolean closed;
+    private final AtomicLong unflushedBytes;
+    private final AtomicBoolean flushScheduled;
+
+    private final AtomicLong flushes;
+    private final AtomicLong flushedFiles;
+    private final AtomicLong flushTimeNanos;
+    private final AtomicLong maxFlushTimeNanos;
 
     /**
-     * Construct an LRU cache for managing open files
+     * Construct an LRU cache for managing open files, that does not force the data to the storage device
+     * other than on explicit {@link #flush()}
      *
      * @param maxOpenFiles the max number of permitted open files
      */
     public OpenFileCache(int maxOpenFiles) {
-        cache = new SizeLimitedFileCache(maxOpenFiles);
+        this(maxOpenFiles, FlushPolicy.none());
+    }
+
+    /**
+     * Construct an LRU cache for managing open files
+     *
+     * @param maxOpenFiles the max number of permitted open files
+     * @param flushPolicy  defines when the written data is forced to the storage device
+     * @since 1.11
+     */
+    public OpenFileCache(int maxOpenFiles, FlushPolicy flushPolicy) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("Invalid max number of open files: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+        this.flushPolicy = flushPolicy;
+        this.cache = new ConcurrentHashMap<>();
+        this.reservedFiles = new AtomicInteger();
+        this.opens = new AtomicLong();
+        this.closes = new AtomicLong();
+        this.evictions = new AtomicLong();
+
+        this.periodicFlushLock = new Object();
+        this.unflushedBytes = new AtomicLong();
+        this.flushScheduled = new AtomicBoolean();
+        this.flushes = new AtomicLong();
+        this.flushedFiles = new AtomicLong();
+        this.flushTimeNanos = new AtomicLong();
+        this.maxFlushTimeNanos = new AtomicLong();
     }
 
     /**
@@ -80,7 +167,7 @@ public class OpenFileCache {
      * @return the number of bytes writen.
      */
     public int writeBlock(FileCacheKey key, ByteBuffer buffer, long offset) {
-        return runOperationOnOpenFile(key, cof -> cof.writeBlock(buffer, offset));
+        return runWriteOperation(key, cof -> cof.writeBlock(buffer, offset));
     }
 
     /**
@@ -91,7 +178,11 @@ public class OpenFileCache {
      * @param offset the offset of the block
      */
     public void writeBlockFully(FileCacheKey key, ByteBuffer buffer, long offset) {
-        runOperationOnOpenFileConsumer(key, cof -> cof.writeBlockFully(buffer, offset));
+        int length = buffer.remaining();
+        runWriteOperation(key, cof -> {
+            cof.writeBlockFully(buffer, offset);
+            return length;
+        });
     }
 
     /**
@@ -103,7 +194,7 @@ public class OpenFileCache {
      * @return the number of bytes writen.
      */
     public int writeBlock(FileCacheKey key, ByteBufferView buffer, long offset) {
-        return runOperationOnOpenFile(key, cof -> cof.writeBlock(buffer, offset));
+        return runWriteOperation(key, cof -> cof.writeBlock(buffer, offset));
     }
 
     /**
@@ -114,7 +205,35 @@ public class OpenFileCache {
      * @param offset the offset of the block
      */
     public void writeBlockFully(FileCacheKey key, ByteBufferView buffer, long offset) {
-        runOperationOnOpenFileConsumer(key, cof -> cof.writeBlockFully(buffer, offset));
+        int length = buffer.remaining();
+        runWriteOperation(key, cof -> {
+            cof.writeBlockFully(buffer, offset);
+            return length;
+        });
+    }
+
+    /**
+     * Transfer a block from the provided file cache key directly to a channel
+     *
+     * @param key    the key that references the file to transfer the block from
+     * @param offset the offset of the block
+     * @param count  the maximum number of bytes to transfer
+     * @param target the channel to transfer the block to
+     * @return the number of bytes transferred.
+     * @throws IOException on failure to write to the target channel
+     */
+    public long transferTo(FileCacheKey key, long offset, long count, WritableByteChannel target) throws IOException {
+        try {
+            return runOperationOnOpenFile(key, cof -> {
+                try {
+                    return cof.transferTo(offset, count, target);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     /**
@@ -127,21 +246,49 @@ public class OpenFileCache {
     }
 
     /**
-     * Flush all buffered data to the file system
+     * Flush all buffered data to the file system. All modified files are flushed together, as a group.
      */
     public void flush() {
-        List<CachedOpenFile> openedFiles = null;
-        // So we don't globally block writes while flushing, we copy the currently open files and flush them.
-        synchronized (this) {
-            openedFiles = new ArrayList<>(cache.values());
+        long started = System.nanoTime();
+        int flushed = 0;
+        // iteration does not block concurrent writes
+        for (CachedOpenFile openFile : cache.values()) {
+            openFile.lockForIoOperation();
+            try {
+                // this file may have been closed between when we got it from the cache and when we call flush.
+                // That's OK - flush handles this.
+                if (openFile.flushIfDirty()) {
+                    flushed++;
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Could not flush file to disk.", ex);
+            } finally {
+                openFile.unlockForIoOperation();
+            }
         }
+        recordFlush(flushed, System.nanoTime() - started);
+    }
 
-        for (CachedOpenFile openFile : openedFiles) {
+    /**
+     * Notify the cache, that a piece, that is (partially) stored in the file, has been verified.
+     * Depending on the flush policy, the file may be flushed to the file system.
+     *
+     * @param key the key of the file
+     * @since 1.11
+     */
+    public void pieceVerified(FileCacheKey key) {
+        if (flushPolicy.getMode() != FlushPolicy.Mode.ON_PIECE_VERIFIED) {
+            return;
+        }
+        // if the file is not open, then it has been flushed on close
+        CachedOpenFile openFile = cache.get(key);
+        if (openFile != null) {
+            long started = System.nanoTime();
             openFile.lockForIoOperation();
             try {
-                // this file may have been closed between when we copied the cache values and when we call flush.
-                // That's OK - flush handles this.
-                openFile.flush();
+                if (openFile.flushIfDirty()) {
+                    recordFlush(1, System.nanoTime() - started);
+                }
             } catch (IOException ex) {
                 throw new UncheckedIOException("Could not flush file to disk.", ex);
             } finally {
@@ -150,6 +297,105 @@ public class OpenFileCache {
         }
     }
 
+    /**
+     * Allocate a region of the file on the storage device, preserving the data, that is already written
+     * (see {@link FileSystemStorage.PreallocationMode#ZERO_FILL}).
+     *
+     * @param key     the key of the file
+     * @param offset  the offset of the region
+     * @param length  the length of the region
+     * @param scratch the buffer to use for the operation, at least {@code length} bytes long
+     */
+    void allocate(FileCacheKey key, long offset, int length, ByteBuffer scratch) {
+        runExclusiveOperationOnOpenFile(key, cof -> cof.allocate(offset, length, scratch));
+    }
+
+    /**
+     * Extend the file to its' full capacity (see {@link FileSystemStorage.PreallocationMode#EXTEND_ONLY}).
+     *
+     * @param key the key of the file
+     */
+    void extend(FileCacheKey key) {
+        runExclusiveOperationOnOpenFile(key, CachedOpenFile::extend);
+    }
+
+    private void runExclusiveOperationOnOpenFile(FileCacheKey key, ExclusiveOperation operation) {
+        while (true) {
+            CachedOpenFile operationFile = cache.get(key);
+            if (operationFile == null) {
+                operationFile = open(key);
+            }
+            try {
+                // the file may have been evicted and closed after we got it from the cache; then just try again
+                if (operation.apply(operationFile)) {
+                    operationFile.touch();
+                    return;
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to allocate file: " + key.getFile(), ex);
+            }
+        }
+    }
+
+    private interface ExclusiveOperation {
+        /**
+         * @return false if the file has been closed
+         */
+        boolean apply(CachedOpenFile file) throws IOException;
+    }
+
+    private void groupCommit() {
+        flushScheduled.set(false);
+        unflushedBytes.set(0);
+        try {
+            flush();
+        } catch (Exception e) {
+            LOGGER.error("Failed to flush files to disk", e);
+        }
+        if (cache.isEmpty()) {
+            cancelPeriodicFlushIfIdle();
+        }
+    }
+
+    private void schedulePeriodicFlush() {
+        long intervalMillis = flushPolicy.getInterval().toMillis();
+        if (intervalMillis <= 0 || periodicFlush != null) {
+            return;
+        }
+        synchronized (periodicFlushLock) {
+            if (periodicFlush == null && !closed) {
+                periodicFlush = FLUSHER.scheduleWithFixedDelay(
+                        this::groupCommit, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void cancelPeriodicFlushIfIdle() {
+        synchronized (periodicFlushLock) {
+            // files, that are opened concurrently, will re-schedule flushing on write
+            if (periodicFlush != null && (closed || cache.isEmpty())) {
+                periodicFlush.cancel(false);
+                periodicFlush = null;
+            }
+        }
+    }
+
+    /**
+     * @return true, if time-based flushing is currently scheduled for this cache
+     */
+    boolean isPeriodicFlushScheduled() {
+        return periodicFlush != null;
+    }
+
+    private void recordFlush(int flushed, long nanos) {
+        if (flushed > 0) {
+            flushes.incrementAndGet();
+            flushedFiles.addAndGet(flushed);
+            flushTimeNanos.addAndGet(nanos);
+            maxFlushTimeNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
     /**
      * Check if the the File exists on the file system. First checks if the file system exists in the cache. If yes,
      * the file definitely exists and returns true. If not, it checks the filesystem if the file exists.
@@ -158,10 +404,8 @@ public class OpenFileCache {
      * @return true if it exists on the filesystem, false otherwise
      */
     public boolean existsOnFileSystem(FileCacheKey key) {
-        synchronized (this) {
-            if (cache.containsKey(key))
-                return true;
-        }
+        if (cache.containsKey(key))
+            return true;
         return Files.exists(key.getFile());
     }
 
@@ -178,6 +422,40 @@ public class OpenFileCache {
         });
     }
 
+    /**
+     * Run a write operation on a file, marking the file as modified and accounting for the written data
+     *
+     * @param key       the key of the file to run the operation on
+     * @param operation the write operation, that returns the number of bytes written
+     * @return the number of bytes written
+     */
+    private int runWriteOperation(FileCacheKey key, Function<CachedOpenFile, Integer> operation) {
+        int written = runOperationOnOpenFile(key, cof -> {
+            try {
+                return operation.apply(cof);
+            } finally {
+                // mark only after the data has been written: a flush, that runs concurrently with the write,
+                // could otherwise reset the flag before the data lands, and the data would never be forced
+                cof.markDirty();
+            }
+        });
+        if (flushPolicy.getMode() != FlushPolicy.Mode.PERIODIC || closed) {
+            return written;
+        }
+        schedulePeriodicFlush();
+        long maxUnflushedBytes = flushPolicy.getMaxUnflushedBytes();
+        if (maxUnflushedBytes > 0 && unflushedBytes.addAndGet(written) >= maxUnflushedBytes
+                && flushScheduled.compareAndSet(false, true)) {
+            try {
+                FLUSHER.execute(this::groupCommit);
+            } catch (RejectedExecutionException e) {
+                // closed
+                flushScheduled.set(false);
+            }
+        }
+        return written;
+    }
+
     /**
      * Run an consumer operation on a file. This function handles locking to ensure that the operation is safely run
      *
@@ -186,19 +464,102 @@ public class OpenFileCache {
      * @return the result of the operation
      */
     private <T> T runOperationOnOpenFile(FileCacheKey key, Function<CachedOpenFile, T> operation) {
-        CachedOpenFile operationFile = null;
-        boolean gotLock = false;
+        while (true) {
+            CachedOpenFile operationFile = cache.get(key);
+            if (operationFile == null) {
+                operationFile = open(key);
+            }
+            operationFile.lockForIoOperation();
+            try {
+                // the file may have been evicted and closed after we got it from the cache; then just try again
+                if (operationFile.isOpen()) {
+                    operationFile.touch();
+                    return operation.apply(operationFile);
+                }
+            } finally {
+                operationFile.unlockForIoOperation();
+            }
+        }
+    }
+
+    /**
+     * Open the file, unless it's being opened by another thread, evicting other files if needed
+     *
+     * @param key the key of the file to open
+     * @return the open file
+     */
+    private CachedOpenFile open(FileCacheKey key) {
+        reserveFile();
+        boolean[] opened = new boolean[1];
+        CachedOpenFile file;
         try {
-            synchronized (this) {
-                operationFile = cache.computeIfAbsent(key, k -> new CachedOpenFile(k.getFile(), k.getCapacity()));
-                // get lock in synchronized block to ensure closed cannot be called by another thread before we get the read lock
-                operationFile.lockForIoOperation();
-                gotLock = true;
+            file = cache.computeIfAbsent(key, k -> {
+                CachedOpenFile newFile = new CachedOpenFile(k.getFile(), k.getCapacity());
+                opened[0] = true;
+                return newFile;
+            });
+        } finally {
+            if (opened[0]) {
+                opens.incrementAndGet();
+            } else {
+                // opened concurrently by another thread, or failed to open
+                reservedFiles.decrementAndGet();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reserve a slot for a new file, evicting the least recently used files until there is enough room
+     */
+    private void reserveFile() {
+        while (true) {
+            int reserved = reservedFiles.get();
+            if (reserved < maxOpenFiles) {
+                if (reservedFiles.compareAndSet(reserved, reserved + 1)) {
+                    return;
+                }
+            } else if (!evictLeastRecentlyUsed()) {
+                // all slots are taken by files, that are being opened right now
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return true if a file has been evicted by this thread
+     */
+    private boolean evictLeastRecentlyUsed() {
+        Map.Entry<FileCacheKey, CachedOpenFile> eldest = null;
+        for (Map.Entry<FileCacheKey, CachedOpenFile> entry : cache.entrySet()) {
+            if (eldest == null || entry.getValue().getLastAccessed() < eldest.getValue().getLastAccessed()) {
+                eldest = entry;
             }
-            return operation.apply(operationFile);
+        }
+        // another thread may be evicting the same file, only one of them will succeed in removing it
+        if (eldest != null && cache.remove(eldest.getKey(), eldest.getValue())) {
+            evictions.incrementAndGet();
+            try {
+                closeFile(eldest.getValue());
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to close file", ex);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close a file, that has been removed from the cache, and release its' slot
+     */
+    private void closeFile(CachedOpenFile file) throws IOException {
+        try {
+            // waits for the pending I/O operations;
+            // unless flushing is completely up to the OS, modified files must not be closed without a flush
+            file.close(flushPolicy.getMode() != FlushPolicy.Mode.NONE);
         } finally {
-            if (gotLock)
-                operationFile.unlockForIoOperation();
+            closes.incrementAndGet();
+            reservedFiles.decrementAndGet();
         }
     }
 
@@ -209,28 +570,36 @@ public class OpenFileCache {
      * @throws IOException on failure to close
      */
     public void close(FileCacheKey key) throws IOException {
-        CachedOpenFile closed;
-        synchronized (this) {
-            closed = cache.remove(key);
-            // This is in the synchronized block on purpose to avoid closing while another thread tries to get a readlock
-            if (closed != null)
-                closed.close();
+        CachedOpenFile closed = cache.remove(key);
+        if (closed != null) {
+            try {
+                closeFile(closed);
+            } finally {
+                if (cache.isEmpty()) {
+                    cancelPeriodicFlushIfIdle();
+                }
+            }
         }
     }
 
     /**
-     * Close all open files in this storage system.
+     * Close all open files in this storage system and stop periodic flushing.
      *
      * @throws IOException on failure to close file
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
+        closed = true;
+        cancelPeriodicFlushIfIdle();
         Iterator<Map.Entry<FileCacheKey, CachedOpenFile>> it = this.cache.entrySet().iterator();
         IOException toThrow = null;
         while (it.hasNext()) {
-            CachedOpenFile openFileCache = it.next().getValue();
-            it.remove();
+            Map.Entry<FileCacheKey, CachedOpenFile> entry = it.next();
+            if (!cache.remove(entry.getKey(), entry.getValue())) {
+                // closed concurrently
+                continue;
+            }
             try {
-                openFileCache.close();
+                closeFile(entry.getValue());
             } catch (IOException ex) {
                 if (toThrow != null)
                     ex.printStackTrace();
@@ -242,27 +611,74 @@ public class OpenFileCache {
     }
 
     /**
-     * A size limited cache for open files to avoid excessive open/close calls.
+     * @return the max number of permitted open files
+     * @since 1.11
      */
-    static class SizeLimitedFileCache extends LinkedHashMap<FileCacheKey, CachedOpenFile> {
-        private final int maxOpenFiles;
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
 
-        public SizeLimitedFileCache(int maxOpenFiles) {
-            super((int) Math.ceil(maxOpenFiles / LOAD_FACTOR), LOAD_FACTOR, true);
-            this.maxOpenFiles = maxOpenFiles;
-        }
+    /**
+     * @return the number of currently open files
+     * @since 1.11
+     */
+    public int getOpenFiles() {
+        return cache.size();
+    }
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<FileCacheKey, CachedOpenFile> eldest) {
-            if (size() >= maxOpenFiles) {
-                try {
-                    eldest.getValue().close();
-                } catch (IOException ex) {
-                    throw new UncheckedIOException("Failed to close file", ex);
-                }
-                return true;
-            }
-            return false;
-        }
+    /**
+     * @return total number of times a file has been opened
+     * @since 1.11
+     */
+    public long getOpens() {
+        return opens.get();
+    }
+
+    /**
+     * @return total number of times a file has been closed (including evictions)
+     * @since 1.11
+     */
+    public long getCloses() {
+        return closes.get();
+    }
+
+    /**
+     * @return total number of times a file has been closed to make room for another file
+     * @since 1.11
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of flushes, that have forced at least one file to the storage device
+     * @since 1.11
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    /**
+     * @return total number of times a file has been forced to the storage device as part of a flush
+     * @since 1.11
+     */
+    public long getFlushedFiles() {
+        return flushedFiles.get();
+    }
+
+    /**
+     * @return total time spent in flushes (divide by {@link #getFlushes()} to get the average latency)
+     * @since 1.11
+     */
+    public Duration getFlushTime() {
+        return Duration.ofNanos(flushTimeNanos.get());
+    }
+
+    /**
+     * @return the longest time spent in a single flush
+     * @since 1.11
+     */
+    public Duration getMaxFlushTime() {
+        return Duration.ofNanos(maxFlushTimeNanos.get());
     }
 }
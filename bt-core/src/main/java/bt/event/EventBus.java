@@ -89,6 +89,15 @@ public class EventBus implements EventSink, EventSource {
         }
     }
 
+    @Override
+    public void fireTorrentRegistered(TorrentId torrentId) {
+        long timestamp = System.currentTimeMillis();
+        if (hasListeners(TorrentRegisteredEvent.class, torrentId)) {
+            long id = nextId();
+            fireEvent(new TorrentRegisteredEvent(id, timestamp, torrentId), torrentId);
+        }
+    }
+
     @Override
     public void fireTorrentStarted(TorrentId torrentId) {
         long timestamp = System.currentTimeMillis();
@@ -206,6 +215,12 @@ public class EventBus implements EventSink, EventSource {
         return this;
     }
 
+    @Override
+    public EventSource onTorrentRegistered(TorrentId torrentId, Consumer<TorrentRegisteredEvent> listener) {
+        addListener(TorrentRegisteredEvent.class, torrentId, listener);
+        return this;
+    }
+
     @Override
     public EventSource onTorrentStarted(TorrentId torrentId, Consumer<TorrentStartedEvent> listener) {
         addListener(TorrentStartedEvent.class, torrentId, listener);
@@ -57,6 +57,17 @@ public interface EventSink {
      */
     void firePeerBitfieldUpdated(TorrentId torrentId, ConnectionKey connectionKey, Bitfield bitfield);
 
+    /**
+     * Generate event, that some torrent has been added to the torrent registry.
+     *
+     * <p>Default implementation does nothing.</p>
+     *
+     * @since 1.11
+     */
+    default void fireTorrentRegistered(TorrentId torrentId) {
+        // do nothing
+    }
+
     /**
      * Generate event, that processing of some torrent has begun.
      *
@@ -55,6 +55,17 @@ public interface EventSource {
      */
     EventSource onPeerBitfieldUpdated(TorrentId torrentId, Consumer<PeerBitfieldUpdatedEvent> listener);
 
+    /**
+     * Fired, when some torrent has been added to the torrent registry.
+     *
+     * <p>Default implementation does not register the listener, so it will never be invoked.</p>
+     *
+     * @since 1.11
+     */
+    default EventSource onTorrentRegistered(TorrentId torrentId, Consumer<TorrentRegisteredEvent> listener) {
+        return this;
+    }
+
     /**
      * Fired, when processing of some torrent has begun.
      *
@@ -16,11 +16,17 @@
 
 package bt.module;
 
+import bt.CountingThreadFactory;
 import bt.data.ChunkVerifier;
 import bt.data.DataDescriptorFactory;
 import bt.data.DataReaderFactory;
 import bt.data.DefaultChunkVerifier;
+import bt.data.FileResumeDataStore;
 import bt.data.IDataDescriptorFactory;
+import bt.data.NoResumeDataStore;
+import bt.data.PieceAssemblyCache;
+import bt.data.ResumeDataStore;
+import bt.data.VerificationScheduler;
 import bt.data.digest.Digester;
 import bt.data.digest.SHA1Digester;
 import bt.event.EventBus;
@@ -30,7 +36,7 @@ import bt.metainfo.IMetadataService;
 import bt.metainfo.MetadataService;
 import bt.net.ConnectionSource;
 import bt.net.DataReceiver;
-import bt.net.DataReceivingLoop;
+import bt.net.DataReceivingLoopGroup;
 import bt.net.IConnectionHandlerFactory;
 import bt.net.IConnectionSource;
 import bt.net.IMessageDispatcher;
@@ -41,8 +47,10 @@ import bt.net.PeerConnectionFactory;
 import bt.net.PeerConnectionPool;
 import bt.net.PeerRegistrationEvent;
 import bt.net.SocketChannelConnectionAcceptor;
+import bt.net.SocketChannelConnector;
 import bt.net.buffer.BufferManager;
 import bt.net.buffer.IBufferManager;
+import bt.net.crypto.MSEKeyPairPool;
 import bt.net.pipeline.BufferedPieceRegistry;
 import bt.net.pipeline.ChannelPipelineFactory;
 import bt.net.pipeline.IBufferedPieceRegistry;
@@ -71,6 +79,8 @@ import bt.torrent.data.BlockCache;
 import bt.torrent.data.DataWorker;
 import bt.torrent.data.DefaultDataWorker;
 import bt.torrent.data.NoCache;
+import bt.torrent.data.ResumeDataSaver;
+import bt.torrent.data.ShardedBlockCache;
 import bt.tracker.ITrackerService;
 import bt.tracker.TrackerFactory;
 import bt.tracker.TrackerService;
@@ -162,12 +172,19 @@ public class ServiceModule implements Module {
                 .addConnectionAcceptor(SocketChannelConnectionAcceptor.class);
 
         // core services that contribute startup lifecycle bindings and should be instantiated eagerly
-        binder.bind(BlockCache.class).to(NoCache.class).asEagerSingleton();
+        if (config.getBlockCacheSize() > 0) {
+            binder.bind(BlockCache.class).to(ShardedBlockCache.class).asEagerSingleton();
+        } else {
+            binder.bind(BlockCache.class).to(NoCache.class).asEagerSingleton();
+        }
         binder.bind(IMessageDispatcher.class).to(MessageDispatcher.class).asEagerSingleton();
         binder.bind(IConnectionSource.class).to(ConnectionSource.class).asEagerSingleton();
         binder.bind(IPeerConnectionPool.class).to(PeerConnectionPool.class).asEagerSingleton();
         binder.bind(IPeerRegistry.class).to(PeerRegistry.class).asEagerSingleton();
-        binder.bind(DataReceiver.class).to(DataReceivingLoop.class).asEagerSingleton();
+        binder.bind(DataReceiver.class).to(DataReceivingLoopGroup.class).asEagerSingleton();
+        binder.bind(SocketChannelConnector.class).asEagerSingleton();
+        binder.bind(MSEKeyPairPool.class).asEagerSingleton();
+        binder.bind(ResumeDataSaver.class).asEagerSingleton();
 
         // other services
         binder.bind(IMetadataService.class).to(MetadataService.class).in(Singleton.class);
@@ -181,6 +198,7 @@ public class ServiceModule implements Module {
         binder.bind(IBufferManager.class).to(BufferManager.class).in(Singleton.class);
         binder.bind(IChannelPipelineFactory.class).to(ChannelPipelineFactory.class).in(Singleton.class);
         binder.bind(IBufferedPieceRegistry.class).to(BufferedPieceRegistry.class).in(Singleton.class);
+        binder.bind(PieceAssemblyCache.class).in(Singleton.class);
 
         // single instance of event bus provides two different injectable services
         binder.bind(EventSink.class).to(EventBus.class).in(Singleton.class);
@@ -200,15 +218,35 @@ public class ServiceModule implements Module {
 
     @Provides
     @Singleton
-    public ChunkVerifier provideVerifier(Config config, Digester digester) {
-        return new DefaultChunkVerifier(digester, config.getNumOfHashingThreads());
+    public VerificationScheduler provideVerificationScheduler(Config config, Digester digester,
+                                                              IRuntimeLifecycleBinder lifecycleBinder) {
+        VerificationScheduler scheduler = new VerificationScheduler(digester, config.getNumOfHashingThreads(),
+                CountingThreadFactory.daemonFactory(String.format("%d.bt.data.verifier", config.getAcceptorPort())));
+        lifecycleBinder.onShutdown("Shutdown verification scheduler", scheduler::shutdown);
+        return scheduler;
+    }
+
+    @Provides
+    @Singleton
+    public ChunkVerifier provideVerifier(Digester digester, VerificationScheduler scheduler) {
+        return new DefaultChunkVerifier(digester, scheduler);
     }
 
     @Provides
     @Singleton
-    public IDataDescriptorFactory provideDataDescriptorFactory(Config config, EventSource eventSource, ChunkVerifier verifier) {
+    public IDataDescriptorFactory provideDataDescriptorFactory(Config config, EventSource eventSource, ChunkVerifier verifier,
+                                                               PieceAssemblyCache assemblyCache,
+                                                               ResumeDataStore resumeDataStore) {
         DataReaderFactory dataReaderFactory = new DataReaderFactory(eventSource);
-        return new DataDescriptorFactory(dataReaderFactory, verifier, config.getTransferBlockSize());
+        return new DataDescriptorFactory(dataReaderFactory, verifier, config.getTransferBlockSize(),
+                assemblyCache, resumeDataStore);
+    }
+
+    @Provides
+    @Singleton
+    public ResumeDataStore provideResumeDataStore(Config config) {
+        return (config.getResumeDataDirectory() == null) ?
+                new NoResumeDataStore() : new FileResumeDataStore(config.getResumeDataDirectory());
     }
 
     @Provides
@@ -218,8 +256,11 @@ public class ServiceModule implements Module {
             TorrentRegistry torrentRegistry,
             ChunkVerifier verifier,
             BlockCache blockCache,
+            PieceAssemblyCache assemblyCache,
+            EventSource eventSource,
             Config config) {
-        return new DefaultDataWorker(lifecycleBinder, torrentRegistry, verifier, blockCache, config);
+        return new DefaultDataWorker(lifecycleBinder, torrentRegistry, verifier, blockCache, assemblyCache,
+                eventSource, config);
     }
 
     @Provides
@@ -263,6 +304,8 @@ public class ServiceModule implements Module {
     @Singleton
     public IPeerConnectionFactory providePeerConnectionFactory(
             @PeerConnectionSelector Selector selector,
+            SocketChannelConnector connector,
+            MSEKeyPairPool keyPairPool,
             IConnectionHandlerFactory connectionHandlerFactory,
             @BitTorrentProtocol MessageHandler<Message> bittorrentProtocol,
             TorrentRegistry torrentRegistry,
@@ -271,7 +314,7 @@ public class ServiceModule implements Module {
             DataReceiver dataReceiver,
             EventSource eventSource,
             Config config) {
-        return new PeerConnectionFactory(selector, connectionHandlerFactory, channelPipelineFactory,
+        return new PeerConnectionFactory(selector, connector, keyPairPool, connectionHandlerFactory, channelPipelineFactory,
                 bittorrentProtocol, torrentRegistry, bufferManager, dataReceiver, eventSource, config);
     }
 
@@ -17,6 +17,8 @@
 package bt.net;
 
 import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Encapsulates a procedure for establishing the connection.
@@ -37,6 +39,15 @@ public interface ConnectionRoutine {
      */
     ConnectionResult establish();
 
+    /**
+     * Try to establish the connection without blocking the calling thread.
+     *
+     * @param executor Executor to perform the blocking parts of the procedure in (if any)
+     * @return Future, that will be completed with the result of the connection attempt
+     * @since 1.11
+     */
+    CompletableFuture<ConnectionResult> establishAsync(Executor executor);
+
     /**
      * Cancel connection establishing and release related resources.
      *
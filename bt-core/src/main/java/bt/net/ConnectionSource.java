@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -56,6 +57,8 @@ public class ConnectionSource implements IConnectionSource {
         this.connectionPool = connectionPool;
         this.config = config;
 
+        // outgoing connections are established without blocking (see SocketChannelConnector),
+        // so these threads are occupied only while performing the handshake
         String outgoingThreadName = String.format("%d.bt.net.pool.outgoing-connection-worker", config.getAcceptorPort());
         this.outgoingConnectionExecutor = Executors.newFixedThreadPool(
                 config.getMaxPendingConnectionRequests(),
@@ -135,10 +138,14 @@ public class ConnectionSource implements IConnectionSource {
     private CompletableFuture<ConnectionResult> createPendingConnFuture(Peer peer, TorrentId torrentId,
                                                                         ConnectionKey key,
                                                                         CompletableFuture<Void> addedToPendingConnections) {
-        return CompletableFuture.supplyAsync(() -> {
+        // connection is established asynchronously, without occupying any threads;
+        // the pool is used only for performing the handshake and for the continuation below
+        return connectionFactory.createOutgoingConnectionAsync(peer, torrentId, outgoingConnectionExecutor)
+                .handleAsync((connectionResult, error) -> {
             try {
-                ConnectionResult connectionResult =
-                        connectionFactory.createOutgoingConnection(peer, torrentId);
+                if (error != null) {
+                    throw new CompletionException(error);
+                }
                 if (connectionResult.isSuccess()) {
                     PeerConnection established = connectionResult.getConnection();
                     PeerConnection added = connectionPool.addConnectionIfAbsent(established);
@@ -48,8 +48,18 @@ public interface DataReceiver {
 
     /**
      * De-activate selection for the provided channel.
+     * Pending write requests (see {@link #requestChannelWrite(SelectableChannel)}) are not affected.
      *
      * @since 1.6
      */
     void deactivateChannel(SelectableChannel channel);
+
+    /**
+     * Request to write pending outgoing data, when the provided channel becomes ready for writing.
+     * The channel's context will be repeatedly notified (see {@link ChannelHandlerContext#writeToChannel()}),
+     * until all pending data has been written.
+     *
+     * @since 1.11
+     */
+    void requestChannelWrite(SelectableChannel channel);
 }
@@ -16,12 +16,7 @@
 
 package bt.net;
 
-import bt.module.PeerConnectionSelector;
-import bt.module.PeerRegistrationQueue;
 import bt.net.pipeline.ChannelHandlerContext;
-import bt.runtime.Config;
-import bt.service.IRuntimeLifecycleBinder;
-import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,12 +30,17 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+/**
+ * Single selector loop, that reads data from the registered peer connections
+ * and writes pending outgoing data, that could not be written immediately.
+ * Runtime-wide receiving is done by a group of such loops, see {@link DataReceivingLoopGroup}.
+ *
+ * @since 1.6
+ */
 public class DataReceivingLoop implements Runnable, DataReceiver {
     private static final Logger LOGGER = LoggerFactory.getLogger(DataReceivingLoop.class);
 
@@ -49,32 +49,20 @@ public class DataReceivingLoop implements Runnable, DataReceiver {
     private final Selector selector;
     private final Queue<PeerRegistrationEvent> registrationQueue;
     private final ConcurrentMap<SelectableChannel, Integer> interestOpsUpdates;
+    private final Set<SelectableChannel> writeRequests;
 
     private volatile boolean shutdown;
 
-    @Inject
-    public DataReceivingLoop(@PeerConnectionSelector Selector selector,
-                             @PeerRegistrationQueue ConcurrentLinkedQueue<PeerRegistrationEvent> registrationQueue,
-                             IRuntimeLifecycleBinder lifecycleBinder,
-                             Config config) {
+    /**
+     * @param selector Selector, that is exclusively owned by this loop
+     * @param registrationQueue Queue of pending channel registrations for this loop
+     * @since 1.11
+     */
+    public DataReceivingLoop(Selector selector, Queue<PeerRegistrationEvent> registrationQueue) {
         this.selector = selector;
         this.registrationQueue = registrationQueue;
         this.interestOpsUpdates = new ConcurrentHashMap<>();
-
-        schedule(lifecycleBinder, config);
-    }
-
-    private void schedule(IRuntimeLifecycleBinder lifecycleBinder, Config config) {
-        String threadName = String.format("%d.bt.net.data-receiver", config.getAcceptorPort());
-        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
-        lifecycleBinder.onStartup("Initialize message receiver", () -> executor.execute(this));
-        lifecycleBinder.onShutdown("Shutdown message receiver", () -> {
-            try {
-                shutdown();
-            } finally {
-                executor.shutdownNow();
-            }
-        });
+        this.writeRequests = ConcurrentHashMap.newKeySet();
     }
 
     @Override
@@ -119,6 +107,13 @@ public class DataReceivingLoop implements Runnable, DataReceiver {
         updateInterestOps(channel, NO_OPS);
     }
 
+    @Override
+    public void requestChannelWrite(SelectableChannel channel) {
+        writeRequests.add(channel);
+        // unlike read interest updates, write requests should be processed ASAP
+        selector.wakeup();
+    }
+
     private void updateInterestOps(SelectableChannel channel, int interestOps) {
         interestOpsUpdates.put(channel, interestOps);
     }
@@ -186,8 +181,9 @@ public class DataReceivingLoop implements Runnable, DataReceiver {
             SelectableChannel channel = entry.getKey();
             int interestOps = entry.getValue();
             try {
+                // preserve write interest, it's managed separately
                 Optional.ofNullable(entry.getKey().keyFor(selector))
-                        .ifPresent(key -> key.interestOps(interestOps));
+                        .ifPresent(key -> key.interestOps((key.interestOps() & SelectionKey.OP_WRITE) | interestOps));
             } catch (Exception e) {
                 LOGGER.error("Failed to set interest ops for channel " + channel + " to " + interestOps, e);
             } finally {
@@ -195,6 +191,19 @@ public class DataReceivingLoop implements Runnable, DataReceiver {
             }
         }
 
+        Iterator<SelectableChannel> writeIter = writeRequests.iterator();
+        while (writeIter.hasNext()) {
+            SelectableChannel channel = writeIter.next();
+            writeIter.remove();
+            try {
+                Optional.ofNullable(channel.keyFor(selector))
+                        .filter(SelectionKey::isValid)
+                        .ifPresent(key -> key.interestOps(key.interestOps() | SelectionKey.OP_WRITE));
+            } catch (Exception e) {
+                LOGGER.error("Failed to request write for channel " + channel, e);
+            }
+        }
+
         PeerRegistrationEvent peerRegistrationEvent;
         while ((peerRegistrationEvent = this.registrationQueue.poll()) != null) {
             peerRegistrationEvent.register(selector);
@@ -206,7 +215,19 @@ public class DataReceivingLoop implements Runnable, DataReceiver {
      */
     private boolean processKey(final SelectionKey key) throws IOException {
         ChannelHandlerContext handler = getHandlerContext(key);
-        if (!key.isValid() || !key.isReadable()) {
+        if (!key.isValid()) {
+            return true;
+        }
+        if (key.isWritable()) {
+            if (handler.writeToChannel() && key.isValid()) {
+                // all pending data has been written, no need to select for writing anymore
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (!key.isValid()) {
+                return true;
+            }
+        }
+        if (!key.isReadable()) {
             return true;
         }
         return handler.readFromChannel();
@@ -220,6 +241,13 @@ public class DataReceivingLoop implements Runnable, DataReceiver {
         return (ChannelHandlerContext) obj;
     }
 
+    /**
+     * @return Selector, that is exclusively owned by this loop
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
     public void shutdown() {
         shutdown = true;
     }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net;
+
+import bt.CountingThreadFactory;
+import bt.module.PeerConnectionSelector;
+import bt.module.PeerRegistrationQueue;
+import bt.net.pipeline.ChannelHandlerContext;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Distributes peer connections among a fixed number of data receiving loops,
+ * each of which runs its' own selector in a dedicated thread.
+ * A channel is always routed to the same loop, so that registration and interest ops updates
+ * for this channel are processed by the selector that owns it.
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @see Config#setNumOfDataReceivingThreads(int)
+ * @since 1.11
+ */
+public class DataReceivingLoopGroup implements DataReceiver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataReceivingLoopGroup.class);
+
+    private final DataReceivingLoop[] loops;
+    // selectors that were opened by this group (i.e. all except the shared peer connection selector)
+    private final List<Selector> ownSelectors;
+
+    @Inject
+    public DataReceivingLoopGroup(@PeerConnectionSelector Selector selector,
+                                  @PeerRegistrationQueue ConcurrentLinkedQueue<PeerRegistrationEvent> registrationQueue,
+                                  IRuntimeLifecycleBinder lifecycleBinder,
+                                  Config config) {
+        int numOfLoops = config.getNumOfDataReceivingThreads();
+        if (numOfLoops < 1) {
+            throw new IllegalArgumentException("Invalid number of data receiving threads: " + numOfLoops);
+        }
+
+        this.loops = new DataReceivingLoop[numOfLoops];
+        this.ownSelectors = new ArrayList<>(numOfLoops - 1);
+
+        // the first loop uses the shared selector, which is closed by its' provider on shutdown
+        loops[0] = new DataReceivingLoop(selector, registrationQueue);
+        for (int i = 1; i < numOfLoops; i++) {
+            Selector loopSelector = openSelector(selector);
+            ownSelectors.add(loopSelector);
+            loops[i] = new DataReceivingLoop(loopSelector, new ConcurrentLinkedQueue<>());
+        }
+
+        schedule(lifecycleBinder, config);
+    }
+
+    private Selector openSelector(Selector sharedSelector) {
+        try {
+            return sharedSelector.provider().openSelector();
+        } catch (IOException e) {
+            ownSelectors.forEach(this::closeSelector);
+            throw new RuntimeException("Failed to get I/O selector", e);
+        }
+    }
+
+    private void schedule(IRuntimeLifecycleBinder lifecycleBinder, Config config) {
+        String threadName = String.format("%d.bt.net.data-receiver", config.getAcceptorPort());
+        ExecutorService executor;
+        if (loops.length == 1) {
+            executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+        } else {
+            executor = Executors.newFixedThreadPool(loops.length, CountingThreadFactory.factory(threadName));
+        }
+
+        lifecycleBinder.onStartup("Initialize message receiver", () -> {
+            for (DataReceivingLoop loop : loops) {
+                executor.execute(loop);
+            }
+        });
+        lifecycleBinder.onShutdown("Shutdown message receiver", () -> {
+            try {
+                for (DataReceivingLoop loop : loops) {
+                    loop.shutdown();
+                }
+            } finally {
+                executor.shutdownNow();
+                ownSelectors.forEach(this::closeSelector);
+            }
+        });
+    }
+
+    private void closeSelector(Selector selector) {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close selector", e);
+        }
+    }
+
+    /**
+     * @return Loop, that owns the given channel
+     */
+    DataReceivingLoop getLoop(SelectableChannel channel) {
+        if (loops.length == 1) {
+            return loops[0];
+        }
+        // identity hash is stable for the whole lifetime of the channel,
+        // so all subsequent operations on the channel are routed to the loop that has registered it
+        return loops[Math.floorMod(System.identityHashCode(channel), loops.length)];
+    }
+
+    @Override
+    public void registerChannel(SelectableChannel channel, ChannelHandlerContext context) {
+        getLoop(channel).registerChannel(channel, context);
+    }
+
+    @Override
+    public void unregisterChannel(SelectableChannel channel) {
+        getLoop(channel).unregisterChannel(channel);
+    }
+
+    @Override
+    public void activateChannel(SelectableChannel channel) {
+        getLoop(channel).activateChannel(channel);
+    }
+
+    @Override
+    public void deactivateChannel(SelectableChannel channel) {
+        getLoop(channel).deactivateChannel(channel);
+    }
+
+    @Override
+    public void requestChannelWrite(SelectableChannel channel) {
+        getLoop(channel).requestChannelWrite(channel);
+    }
+}
@@ -18,6 +18,7 @@ package bt.net;
 
 import bt.protocol.Message;
 
+import java.time.Duration;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -34,4 +35,23 @@ public interface IMessageDispatcher {
      */
     void setConnectionMessageConsumerAndSupplier(ConnectionKey connectionKey, Consumer<Message> messageConsumer,
             Supplier<Message> messageSupplier);
+
+    /**
+     * Notify the dispatcher, that the message supplier for a given connection might have
+     * new outgoing messages (e.g. when some asynchronous operation has completed).
+     *
+     * @since 1.11
+     */
+    void notifySupplierReady(ConnectionKey connectionKey);
+
+    /**
+     * Notify the dispatcher, that the message supplier for a given connection might have
+     * new outgoing messages after the specified delay (e.g. when some timeout expires).
+     * Connections are processed only when signalled, so suppliers, that generate messages based on time,
+     * must request such notifications for themselves.
+     * If several notifications are requested for the same connection, only the earliest one is retained.
+     *
+     * @since 1.11
+     */
+    void notifySupplierReady(ConnectionKey connectionKey, Duration delay);
 }
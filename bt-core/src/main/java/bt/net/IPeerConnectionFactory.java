@@ -19,6 +19,8 @@ package bt.net;
 import bt.metainfo.TorrentId;
 
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Used for creating peer connections, both incoming and outgoing.
@@ -32,8 +34,30 @@ public interface IPeerConnectionFactory {
      */
     ConnectionResult createOutgoingConnection(Peer peer, TorrentId torrentId);
 
+    /**
+     * Create an outgoing connection without blocking the calling thread.
+     * No threads are occupied while the connection is being established and the encryption is being negotiated;
+     * once the negotiation has been completed, the rest of the handshake is performed in the provided executor.
+     *
+     * @param executor Executor to perform the handshake in
+     * @return Future, that will be completed with the result of the connection attempt
+     * @since 1.11
+     */
+    CompletableFuture<ConnectionResult> createOutgoingConnectionAsync(Peer peer, TorrentId torrentId, Executor executor);
+
     /**
      * @since 1.6
      */
     ConnectionResult createIncomingConnection(Peer peer, SocketChannel channel);
+
+    /**
+     * Create an incoming connection without blocking the calling thread.
+     * No threads are occupied while the encryption is being negotiated;
+     * once the negotiation has been completed, the rest of the handshake is performed in the provided executor.
+     *
+     * @param executor Executor to perform the handshake in
+     * @return Future, that will be completed with the result of the connection attempt
+     * @since 1.11
+     */
+    CompletableFuture<ConnectionResult> createIncomingConnectionAsync(Peer peer, SocketChannel channel, Executor executor);
 }
@@ -77,19 +77,26 @@ public class IncomingConnectionListener {
     }
 
     private void establishConnection(ConnectionRoutine connectionRoutine) {
-        connectionExecutor.submit(() -> {
+        if (shutdown) {
+            connectionRoutine.cancel();
+            return;
+        }
+        // encryption negotiation does not occupy any threads,
+        // so the executor is used only for the rest of the handshake
+        connectionRoutine.establishAsync(connectionExecutor).whenComplete((connectionResult, error) -> {
             boolean added = false;
-            if (!shutdown) {
-                ConnectionResult connectionResult = connectionRoutine.establish();
-                if (connectionResult.isSuccess()) {
-                    if (!shutdown && mightAddConnection()) {
-                        PeerConnection established = connectionResult.getConnection();
-                        PeerConnection existing = connectionPool.addConnectionIfAbsent(established);
-                        added = (established == existing);
-                    }
+            if (error == null && !shutdown && connectionResult.isSuccess()) {
+                if (mightAddConnection()) {
+                    PeerConnection established = connectionResult.getConnection();
+                    PeerConnection existing = connectionPool.addConnectionIfAbsent(established);
+                    added = (established == existing);
                 }
             }
             if (!added) {
+                if (error != null) {
+                    LOGGER.error("Failed to establish incoming connection from peer: "
+                            + connectionRoutine.getRemoteAddress(), error);
+                }
                 connectionRoutine.cancel();
             }
         });
@@ -16,6 +16,7 @@
 
 package bt.net;
 
+import bt.CountingThreadFactory;
 import bt.metainfo.TorrentId;
 import bt.protocol.Message;
 import bt.runtime.Config;
@@ -25,16 +26,40 @@ import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Iterator;
-import java.util.Map;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
- * Default single-threaded message dispatcher implementation.
+ * Default message dispatcher implementation.
+ *
+ * <p>Messages are processed by one or more dispatching loops, each running in a dedicated thread
+ * (see {@link Config#setNumOfMessageDispatchingThreads(int)}). All connections of a torrent are always
+ * processed by the same loop, so that torrent processing sessions remain single-threaded,
+ * while different torrents may be processed in parallel.</p>
+ *
+ * <p>Dispatching is signal-driven: a connection is processed only when it has been put into the ready queue,
+ * which happens when new data has been received from the peer, when the connection's message supplier is
+ * explicitly notified about pending work (see {@link #notifySupplierReady(ConnectionKey)}), when a delayed
+ * notification, requested by a time-based supplier, expires (see {@link #notifySupplierReady(ConnectionKey, Duration)}),
+ * when the connection has become writable again after rejecting an outgoing message, or when some message
+ * has been processed during the previous pass over the connection (i.e. there might be more work to do).
+ * Connections are never polled, so idle connections do not consume CPU; the only exception are connections
+ * of torrents, that have not been started yet (e.g. while the torrent's data is being verified),
+ * which are re-checked periodically until the torrent becomes active.
+ * Sending never blocks the loop: a message, that the connection can't accept at the moment, is kept
+ * by the connection's worker and re-sent, when all pending outgoing data has been written.</p>
  *
  *<p><b>Note that this class implements a service.
  * Hence, is not a part of the public API and is a subject to change.</b></p>
@@ -42,11 +67,13 @@ import java.util.function.Supplier;
 public class MessageDispatcher implements IMessageDispatcher {
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageDispatcher.class);
 
-    private final Map<TorrentId, Map<ConnectionKey, Consumer<Message>>> consumers;
-    private final Map<TorrentId, Map<ConnectionKey, Supplier<Message>>> suppliers;
+    // how often the connections of a torrent, that is not active yet, are checked again
+    private static final long INACTIVE_TORRENT_RECHECK_INTERVAL_MILLIS = 100;
+
+    private final MessageDispatchingLoop[] loops;
 
+    private final IPeerConnectionPool pool;
     private final TorrentRegistry torrentRegistry;
-    private final Object modificationLock;
 
     @Inject
     public MessageDispatcher(IRuntimeLifecycleBinder lifecycleBinder,
@@ -54,168 +81,249 @@ public class MessageDispatcher implements IMessageDispatcher {
                              TorrentRegistry torrentRegistry,
                              Config config) {
 
-        this.consumers = new ConcurrentHashMap<>();
-        this.suppliers = new ConcurrentHashMap<>();
+        int numOfLoops = config.getNumOfMessageDispatchingThreads();
+        if (numOfLoops < 1) {
+            throw new IllegalArgumentException("Invalid number of message dispatching threads: " + numOfLoops);
+        }
+
+        this.loops = new MessageDispatchingLoop[numOfLoops];
+        for (int i = 0; i < numOfLoops; i++) {
+            loops[i] = new MessageDispatchingLoop();
+        }
+        this.pool = pool;
         this.torrentRegistry = torrentRegistry;
-        this.modificationLock = new Object();
 
-        initializeMessageLoop(lifecycleBinder, pool, config);
+        initializeMessageLoops(lifecycleBinder, config);
     }
 
-    private void initializeMessageLoop(IRuntimeLifecycleBinder lifecycleBinder,
-                                       IPeerConnectionPool pool,
-                                       Config config) {
+    private void initializeMessageLoops(IRuntimeLifecycleBinder lifecycleBinder, Config config) {
         String threadName = String.format("%d.bt.net.message-dispatcher", config.getAcceptorPort());
-        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
-        LoopControl loopControl = new LoopControl(config.getMaxMessageProcessingInterval().toMillis());
-        MessageDispatchingLoop loop = new MessageDispatchingLoop(pool, loopControl);
-        lifecycleBinder.onStartup("Initialize message dispatcher", () -> executor.execute(loop));
+        ExecutorService executor;
+        if (loops.length == 1) {
+            executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+        } else {
+            executor = Executors.newFixedThreadPool(loops.length, CountingThreadFactory.factory(threadName));
+        }
+
+        lifecycleBinder.onStartup("Initialize message dispatcher", () -> {
+            for (MessageDispatchingLoop loop : loops) {
+                executor.execute(loop);
+            }
+        });
         lifecycleBinder.onShutdown("Shutdown message dispatcher", () -> {
             try {
-                loop.shutdown();
+                for (MessageDispatchingLoop loop : loops) {
+                    loop.shutdown();
+                }
             } finally {
                 executor.shutdownNow();
             }
         });
     }
 
+    private MessageDispatchingLoop getLoop(TorrentId torrentId) {
+        if (loops.length == 1) {
+            return loops[0];
+        }
+        return loops[Math.floorMod(torrentId.hashCode(), loops.length)];
+    }
+
     private class MessageDispatchingLoop implements Runnable {
-        private final IPeerConnectionPool pool;
-        private final LoopControl loopControl;
+        private final ConcurrentMap<ConnectionKey, ConnectionWorker> workers;
+        private final BlockingQueue<ConnectionWorker> readyQueue;
+        // delayed notifications, ordered by deadline; guarded by itself
+        private final PriorityQueue<DelayedSignal> delayedSignals;
+        // put into the ready queue to wake up the loop, when an earlier delayed notification has been requested
+        private final ConnectionWorker wakeupMarker;
 
         private volatile boolean shutdown;
 
-        MessageDispatchingLoop(IPeerConnectionPool pool, LoopControl loopControl) {
-            this.pool = pool;
-            this.loopControl = loopControl;
+        MessageDispatchingLoop() {
+            this.workers = new ConcurrentHashMap<>();
+            this.readyQueue = new LinkedBlockingQueue<>();
+            this.delayedSignals = new PriorityQueue<>();
+            this.wakeupMarker = new ConnectionWorker(this, null, null, null);
         }
 
-        @Override
-        public void run() {
-            while (!shutdown) {
-                Iterator<Map.Entry<TorrentId, Map<ConnectionKey, Consumer<Message>>>> consumerIter = consumers.entrySet().iterator();
-                while (consumerIter.hasNext()) {
-                    Map.Entry<TorrentId, Map<ConnectionKey, Consumer<Message>>> consumerMapByTorrent = consumerIter.next();
-                    Map<ConnectionKey, Consumer<Message>> consumerMapByPeer = consumerMapByTorrent.getValue();
-                    // remove inactive torrents with no peers
-                    if (consumerMapByPeer.isEmpty()) {
-                        synchronized (modificationLock) {
-                            if (consumerMapByPeer.isEmpty()) {
-                                consumerIter.remove();
-                                continue;
-                            }
-                        }
-                    }
-                    TorrentId torrentId = consumerMapByTorrent.getKey();
-                    if (torrentRegistry.isSupportedAndActive(torrentId)) {
-                        processConsumerMap(consumerMapByPeer);
-                    }
+        void addWorker(ConnectionWorker worker) {
+            workers.put(worker.getConnectionKey(), worker);
+            // process immediately, there might be some messages received already
+            schedule(worker);
+        }
+
+        ConnectionWorker getWorker(ConnectionKey connectionKey) {
+            return workers.get(connectionKey);
+        }
+
+        void schedule(ConnectionWorker worker) {
+            if (worker.trySchedule()) {
+                readyQueue.add(worker);
+            }
+        }
+
+        void scheduleAfter(ConnectionWorker worker, long delayMillis) {
+            if (delayMillis <= 0) {
+                schedule(worker);
+                return;
+            }
+            long deadline = System.currentTimeMillis() + delayMillis;
+            boolean earliest;
+            synchronized (delayedSignals) {
+                long existingDeadline = worker.getWakeupDeadline();
+                if (existingDeadline != 0 && existingDeadline <= deadline) {
+                    return;
                 }
+                // previous signal for this worker (if any) becomes stale and will be ignored
+                worker.setWakeupDeadline(deadline);
+                DelayedSignal signal = new DelayedSignal(worker, deadline);
+                delayedSignals.add(signal);
+                earliest = (delayedSignals.peek() == signal);
+            }
+            if (earliest) {
+                // the loop might be waiting for a later deadline
+                readyQueue.add(wakeupMarker);
+            }
+        }
 
-                Iterator<Map.Entry<TorrentId, Map<ConnectionKey, Supplier<Message>>>> supplierIter = suppliers.entrySet().iterator();
-                while (supplierIter.hasNext()) {
-                    Map.Entry<TorrentId, Map<ConnectionKey, Supplier<Message>>> supplierMapByTorrent = supplierIter.next();
-                    Map<ConnectionKey, Supplier<Message>> supplierMapByPeer = supplierMapByTorrent.getValue();
-                    if (supplierMapByPeer.isEmpty()) {
-                        synchronized (modificationLock) {
-                            // remove inactive torrents with no peers
-                            if (supplierMapByPeer.isEmpty()) {
-                                supplierIter.remove();
-                                continue;
-                            }
-                        }
+        /**
+         * Schedule the workers, whose delayed notifications have expired.
+         *
+         * @return Time until the next delayed notification, in millis, or -1 if there are none
+         */
+        private long scheduleExpired() {
+            List<ConnectionWorker> expired = null;
+            long timeToWait = -1;
+            synchronized (delayedSignals) {
+                long now = System.currentTimeMillis();
+                DelayedSignal signal;
+                while ((signal = delayedSignals.peek()) != null) {
+                    if (signal.deadline > now) {
+                        timeToWait = signal.deadline - now;
+                        break;
                     }
-                    TorrentId torrentId = supplierMapByTorrent.getKey();
-                    if (torrentRegistry.isSupportedAndActive(torrentId)) {
-                        processSupplierMap(supplierMapByPeer);
+                    delayedSignals.poll();
+                    ConnectionWorker worker = signal.worker;
+                    if (worker.getWakeupDeadline() == signal.deadline) {
+                        worker.setWakeupDeadline(0);
+                        if (expired == null) {
+                            expired = new ArrayList<>();
+                        }
+                        expired.add(worker);
                     }
                 }
+            }
+            if (expired != null) {
+                expired.forEach(this::schedule);
+            }
+            return timeToWait;
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                long timeToWait = scheduleExpired();
 
+                ConnectionWorker worker;
                 try {
-                    loopControl.iterationFinished();
+                    worker = (timeToWait < 0) ? readyQueue.take() : readyQueue.poll(timeToWait, TimeUnit.MILLISECONDS);
                 } catch (InterruptedException e) {
                     LOGGER.info("Wait interrupted, shutting down...");
                     return;
                 }
+
+                if (worker != null && worker != wakeupMarker) {
+                    processWorker(worker);
+                }
             }
         }
 
-        private void processConsumerMap(Map<ConnectionKey, Consumer<Message>> consumerMap) {
-            Iterator<Map.Entry<ConnectionKey, Consumer<Message>>> iter = consumerMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<ConnectionKey, Consumer<Message>> e = iter.next();
-                ConnectionKey connectionKey = e.getKey();
-                Consumer<Message> peerConsumer = e.getValue();
-                PeerConnection connection = pool.getConnection(connectionKey);
-                if (isActive(connection)) {
-                    Message message;
-                    for (;;) {
-                        try {
-                            message = connection.readMessageNow();
-                        } catch (Exception ex) {
-                            LOGGER.error("Error when reading message from peer connection: " + connectionKey.getPeer(),
-                                    ex);
-                            break;
-                        }
+        private void processWorker(ConnectionWorker worker) {
+            // reset the flag before processing, so that notifications, that arrive in the meantime, are not lost
+            worker.setScheduled(false);
 
-                        if (message == null) {
-                            break;
-                        }
+            ConnectionKey connectionKey = worker.getConnectionKey();
+            if (workers.get(connectionKey) != worker) {
+                // worker has been replaced or removed
+                return;
+            }
 
-                        loopControl.incrementProcessed();
-                        try {
-                            peerConsumer.accept(message);
-                        } catch (Exception ex) {
-                            LOGGER.warn("Error in message consumer", ex);
-                        }
-                    }
-                } else {
-                    removeInactiveConnection(connectionKey, iter);
-                }
+            PeerConnection connection = pool.getConnection(connectionKey);
+            if (!isActive(connection)) {
+                workers.remove(connectionKey, worker);
+                return;
+            }
+
+            // listen to the connection regardless of the torrent's state, so that no signals are missed
+            worker.bindConnection(connection);
+
+            if (!torrentRegistry.isSupportedAndActive(connectionKey.getTorrentId())) {
+                // e.g. torrent's data is being verified; nothing else will wake up the worker, when the torrent starts
+                scheduleAfter(worker, INACTIVE_TORRENT_RECHECK_INTERVAL_MILLIS);
+                return;
+            }
+
+            boolean processed = consumeMessages(worker, connection);
+            processed |= supplyMessage(worker, connection);
+            if (processed) {
+                // there might be more messages to process, so put the worker back to the end of the queue
+                schedule(worker);
             }
         }
 
-        private void removeInactiveConnection(ConnectionKey connectionKey, Iterator<?> iter) {
-            // Synchronized check to ensure that the connection is not reestablished and added before it is removed.
-            synchronized (modificationLock) {
-                PeerConnection connection = pool.getConnection(connectionKey);
-                if (!isActive(connection)) {
-                    iter.remove();
+        private boolean consumeMessages(ConnectionWorker worker, PeerConnection connection) {
+            boolean consumed = false;
+            Message message;
+            for (;;) {
+                try {
+                    message = connection.readMessageNow();
+                } catch (Exception ex) {
+                    LOGGER.error("Error when reading message from peer connection: "
+                            + worker.getConnectionKey().getPeer(), ex);
+                    break;
+                }
+
+                if (message == null) {
+                    break;
+                }
+
+                consumed = true;
+                try {
+                    worker.getConsumer().accept(message);
+                } catch (Exception ex) {
+                    LOGGER.warn("Error in message consumer", ex);
                 }
             }
+            return consumed;
         }
 
-        private void processSupplierMap(Map<ConnectionKey, Supplier<Message>> supplierMap) {
-            Iterator<Map.Entry<ConnectionKey, Supplier<Message>>> iter = supplierMap.entrySet().iterator();
-            while (iter.hasNext())
-            {
-                Map.Entry<ConnectionKey, Supplier<Message>> e = iter.next();
-                ConnectionKey connectionKey = e.getKey();
-                Supplier<Message> peerSupplier = e.getValue();
-                PeerConnection connection = pool.getConnection(connectionKey);
-                if (isActive(connection)) {
-                    Message message;
-                    try {
-                        message = peerSupplier.get();
-                    } catch (Exception ex) {
-                        LOGGER.warn("Error in message supplier", ex);
-                        continue;
-                    }
+        private boolean supplyMessage(ConnectionWorker worker, PeerConnection connection) {
+            // message, that has been rejected by the connection during one of the previous passes
+            Message message = worker.getPendingMessage();
+            if (message == null) {
+                try {
+                    message = worker.getSupplier().get();
+                } catch (Exception ex) {
+                    LOGGER.warn("Error in message supplier", ex);
+                    return false;
+                }
 
-                    if (message == null) {
-                        continue;
-                    }
+                if (message == null) {
+                    return false;
+                }
+            }
 
-                    loopControl.incrementProcessed();
-                    try {
-                        connection.postMessage(message);
-                    } catch (Exception ex) {
-                        LOGGER.error("Error when writing message", ex);
-                    }
-                } else {
-                    removeInactiveConnection(connectionKey, iter);
+            try {
+                if (!connection.tryPostMessage(message)) {
+                    // outbound buffer is full; keep the message until the connection becomes writable again,
+                    // the worker will be re-scheduled by the writable listener
+                    worker.setPendingMessage(message);
+                    return false;
                 }
+            } catch (Exception ex) {
+                LOGGER.error("Error when writing message", ex);
             }
+            worker.setPendingMessage(null);
+            return true;
         }
 
         private boolean isActive(PeerConnection connection) {
@@ -227,43 +335,95 @@ public class MessageDispatcher implements IMessageDispatcher {
         }
     }
 
-    /**
-     * Controls the amount of time to sleep after each iteration of the main message processing loop.
-     * It implements an adaptive strategy and increases the amount of time for the dispatcher to sleep
-     * after each iteration during which no messages were either received or sent.
-     * This strategy greatly reduces CPU load when there is little network activity.
-     */
-    private static class LoopControl {
-
-        private final long maxTimeToSleep;
-        private int messagesProcessed;
-        private long timeToSleep;
-
-        LoopControl(long maxTimeToSleep) {
-            this.maxTimeToSleep = maxTimeToSleep;
-            reset();
+    private static class DelayedSignal implements Comparable<DelayedSignal> {
+        private final ConnectionWorker worker;
+        private final long deadline;
+
+        DelayedSignal(ConnectionWorker worker, long deadline) {
+            this.worker = worker;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(DelayedSignal that) {
+            return Long.compare(this.deadline, that.deadline);
+        }
+    }
+
+    private class ConnectionWorker {
+        private final MessageDispatchingLoop loop;
+        private final ConnectionKey connectionKey;
+        private final Consumer<Message> consumer;
+        private final Supplier<Message> supplier;
+        private final AtomicBoolean scheduled;
+
+        // connection, that this worker is listening to; accessed only from the dispatcher thread
+        private PeerConnection connection;
+        // message, that has been produced, but not accepted by the connection yet;
+        // accessed only from the dispatcher thread
+        private Message pendingMessage;
+        // deadline of the earliest delayed notification or 0, if there is none;
+        // accessed only when holding the loop's delayed signals lock
+        private long wakeupDeadline;
+
+        ConnectionWorker(MessageDispatchingLoop loop,
+                         ConnectionKey connectionKey,
+                         Consumer<Message> consumer,
+                         Supplier<Message> supplier) {
+            this.loop = loop;
+            this.connectionKey = connectionKey;
+            this.consumer = consumer;
+            this.supplier = supplier;
+            this.scheduled = new AtomicBoolean(false);
         }
 
-        private void reset() {
-            messagesProcessed = 0;
-            timeToSleep = 1;
+        ConnectionKey getConnectionKey() {
+            return connectionKey;
         }
 
-        void incrementProcessed() {
-            messagesProcessed++;
+        Consumer<Message> getConsumer() {
+            return consumer;
         }
 
-        synchronized void iterationFinished() throws InterruptedException {
-            if (messagesProcessed > 0) {
-                reset();
-            } else {
-                wait(timeToSleep);
+        Supplier<Message> getSupplier() {
+            return supplier;
+        }
 
-                if (timeToSleep < maxTimeToSleep) {
-                    timeToSleep = Math.min(timeToSleep << 1, maxTimeToSleep);
-                } else {
-                    timeToSleep = maxTimeToSleep;
-                }
+        long getWakeupDeadline() {
+            return wakeupDeadline;
+        }
+
+        void setWakeupDeadline(long wakeupDeadline) {
+            this.wakeupDeadline = wakeupDeadline;
+        }
+
+        Message getPendingMessage() {
+            return pendingMessage;
+        }
+
+        void setPendingMessage(Message pendingMessage) {
+            this.pendingMessage = pendingMessage;
+        }
+
+        /**
+         * @return true, if the worker has not been scheduled yet and should be put into the ready queue
+         */
+        boolean trySchedule() {
+            return scheduled.compareAndSet(false, true);
+        }
+
+        void setScheduled(boolean scheduled) {
+            this.scheduled.set(scheduled);
+        }
+
+        void bindConnection(PeerConnection connection) {
+            // connection might have been re-established since the last time
+            if (this.connection != connection) {
+                this.connection = connection;
+                // message, that has been rejected by the previous connection, is discarded along with it
+                this.pendingMessage = null;
+                connection.setMessageAvailableListener(() -> loop.schedule(this));
+                connection.setWritableListener(() -> loop.schedule(this));
             }
         }
     }
@@ -272,15 +432,25 @@ public class MessageDispatcher implements IMessageDispatcher {
     public void setConnectionMessageConsumerAndSupplier(ConnectionKey connectionKey, Consumer<Message> messageConsumer,
             Supplier<Message> messageSupplier)
     {
-        synchronized (modificationLock)
-        {
-            Map<ConnectionKey, Consumer<Message>> consumerMapByPeer = consumers.computeIfAbsent(
-                    connectionKey.getTorrentId(), t -> new ConcurrentHashMap<>());
-            consumerMapByPeer.put(connectionKey, messageConsumer);
-
-            Map<ConnectionKey, Supplier<Message>> supplierMapByPeer = suppliers.computeIfAbsent(
-                    connectionKey.getTorrentId(), t -> new ConcurrentHashMap<>());
-            supplierMapByPeer.put(connectionKey, messageSupplier);
+        MessageDispatchingLoop loop = getLoop(connectionKey.getTorrentId());
+        loop.addWorker(new ConnectionWorker(loop, connectionKey, messageConsumer, messageSupplier));
+    }
+
+    @Override
+    public void notifySupplierReady(ConnectionKey connectionKey) {
+        MessageDispatchingLoop loop = getLoop(connectionKey.getTorrentId());
+        ConnectionWorker worker = loop.getWorker(connectionKey);
+        if (worker != null) {
+            loop.schedule(worker);
+        }
+    }
+
+    @Override
+    public void notifySupplierReady(ConnectionKey connectionKey, Duration delay) {
+        MessageDispatchingLoop loop = getLoop(connectionKey.getTorrentId());
+        ConnectionWorker worker = loop.getWorker(connectionKey);
+        if (worker != null) {
+            loop.scheduleAfter(worker, delay.toMillis());
         }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net;
+
+import java.io.IOException;
+
+/**
+ * Handshake procedure, that is performed incrementally over a non-blocking channel,
+ * each time the channel becomes ready for reading or writing.
+ *
+ * @see SocketChannelConnector#handshake(java.nio.channels.SocketChannel, NonBlockingHandshake)
+ * @since 1.11
+ */
+public interface NonBlockingHandshake {
+
+    /**
+     * Read the data, that is currently available in the channel, process it
+     * and write as much of the pending outgoing data, as the channel accepts.
+     * Must not block.
+     *
+     * @return true, if the handshake has been completed, and all outgoing data has been written
+     * @throws IOException if an I/O error occurred or if the remote side has closed the channel
+     * @since 1.11
+     */
+    boolean process() throws IOException;
+
+    /**
+     * @return true, if there is outgoing data, that could not be written to the channel yet
+     * @since 1.11
+     */
+    boolean hasPendingData();
+
+    /**
+     * Set the listener, that should be notified, when the handshake can make progress
+     * regardless of the channel's readiness (e.g. when a computation, that has been performed
+     * in background, has been completed). The listener may be invoked from any thread.
+     *
+     * <p>Default implementation does nothing.</p>
+     *
+     * @since 1.11
+     */
+    default void setResumeListener(Runnable listener) {
+        // do nothing
+    }
+}
@@ -81,6 +81,15 @@ public interface PeerConnection extends Closeable {
      */
     Message readMessage(long timeout) throws IOException;
 
+    /**
+     * Set a listener, that will be notified each time when new incoming messages
+     * might have become available for reading via {@link #readMessageNow()}.
+     * Notification is done in the network thread, so the listener should return quickly.
+     *
+     * @since 1.11
+     */
+    void setMessageAvailableListener(Runnable listener);
+
     /**
      * Send a message to remote peer.
      *
@@ -88,6 +97,30 @@ public interface PeerConnection extends Closeable {
      */
     void postMessage(Message message) throws IOException;
 
+    /**
+     * Send a message to remote peer, if the connection is able to accept it without blocking.
+     * If the message is rejected, the caller should retry after being notified via the listener,
+     * that has been set with {@link #setWritableListener(Runnable)}.
+     *
+     * @return true, if the message has been accepted; false, if it has been rejected
+     * @since 1.11
+     */
+    default boolean tryPostMessage(Message message) throws IOException {
+        postMessage(message);
+        return true;
+    }
+
+    /**
+     * Set a listener, that will be notified when the connection becomes able to accept outgoing messages
+     * after some message had been rejected by {@link #tryPostMessage(Message)}.
+     * Notification is done in the network thread, so the listener should return quickly.
+     *
+     * @since 1.11
+     */
+    default void setWritableListener(Runnable listener) {
+        // connections, that never reject messages, do not need to notify anyone
+    }
+
     /**
      * @return Last time a message was received or sent via this connection
      * @since 1.0
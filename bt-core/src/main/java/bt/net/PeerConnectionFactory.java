@@ -20,8 +20,8 @@ import bt.event.EventSource;
 import bt.metainfo.TorrentId;
 import bt.net.buffer.BorrowedBuffer;
 import bt.net.buffer.IBufferManager;
-import bt.net.crypto.CipherBufferMutator;
 import bt.net.crypto.MSEHandshakeProcessor;
+import bt.net.crypto.MSEKeyPairPool;
 import bt.net.pipeline.ChannelHandler;
 import bt.net.pipeline.ChannelPipeline;
 import bt.net.pipeline.ChannelPipelineBuilder;
@@ -36,24 +36,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.time.Duration;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 public class PeerConnectionFactory implements IPeerConnectionFactory {
     private static final Logger LOGGER = LoggerFactory.getLogger(PeerConnectionFactory.class);
 
-    private static final Duration socketTimeout = Duration.ofSeconds(30);
-
     private MessageHandler<Message> protocol;
 
     private Selector selector;
+    private SocketChannelConnector connector;
     private IConnectionHandlerFactory connectionHandlerFactory;
     private IChannelPipelineFactory channelPipelineFactory;
     private IBufferManager bufferManager;
@@ -64,6 +65,8 @@ public class PeerConnectionFactory implements IPeerConnectionFactory {
     private InetSocketAddress localOutgoingSocketAddress;
 
     public PeerConnectionFactory(Selector selector,
+                                 SocketChannelConnector connector,
+                                 MSEKeyPairPool keyPairPool,
                                  IConnectionHandlerFactory connectionHandlerFactory,
                                  IChannelPipelineFactory channelPipelineFactory,
                                  MessageHandler<Message> protocol,
@@ -75,10 +78,12 @@ public class PeerConnectionFactory implements IPeerConnectionFactory {
 
         this.protocol = protocol;
         this.selector = selector;
+        this.connector = connector;
         this.connectionHandlerFactory = connectionHandlerFactory;
         this.channelPipelineFactory = channelPipelineFactory;
         this.bufferManager = bufferManager;
-        this.cryptoHandshakeProcessor = new MSEHandshakeProcessor(torrentRegistry, protocol, config);
+        this.cryptoHandshakeProcessor = new MSEHandshakeProcessor(torrentRegistry, protocol, connector,
+                keyPairPool, eventSource, config);
         this.dataReceiver = dataReceiver;
         this.eventSource = eventSource;
         this.localOutgoingSocketAddress = new InetSocketAddress(config.getAcceptorAddress(), 0);
@@ -89,31 +94,52 @@ public class PeerConnectionFactory implements IPeerConnectionFactory {
         Objects.requireNonNull(peer);
         Objects.requireNonNull(torrentId);
 
-        InetAddress inetAddress = peer.getInetAddress();
-        int port = peer.getPort();
-
         SocketChannel channel;
         try {
-            channel = getChannel(inetAddress, port);
-        } catch (IOException e) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Failed to establish connection with peer: {}. Reason: {} ({})",
-                        peer, e.getClass().getName(), e.getMessage());
-            }
-            return ConnectionResult.failure("I/O error", e);
+            channel = connect(peer).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ConnectionResult.failure("Interrupted while connecting", e);
+        } catch (ExecutionException e) {
+            return connectionFailure(peer, e.getCause());
         }
 
         return createConnection(peer, torrentId, channel, false);
     }
 
-    private SocketChannel getChannel(InetAddress inetAddress, int port) throws IOException {
-        InetSocketAddress remoteAddress = new InetSocketAddress(inetAddress, port);
-        SocketChannel outgoingChannel = selector.provider().openSocketChannel();
-        outgoingChannel.socket().bind(localOutgoingSocketAddress);
-        outgoingChannel.socket().setSoTimeout((int) socketTimeout.toMillis());
-        outgoingChannel.socket().setSoLinger(false, 0);
-        outgoingChannel.connect(remoteAddress);
-        return outgoingChannel;
+    @Override
+    public CompletableFuture<ConnectionResult> createOutgoingConnectionAsync(Peer peer,
+                                                                             TorrentId torrentId,
+                                                                             Executor executor) {
+        Objects.requireNonNull(peer);
+        Objects.requireNonNull(torrentId);
+
+        return connect(peer).thenCompose(channel -> createConnectionAsync(peer, torrentId, channel, false, executor))
+                .exceptionally(error -> connectionFailure(peer, unwrap(error)));
+    }
+
+    private CompletableFuture<SocketChannel> connect(Peer peer) {
+        InetSocketAddress remoteAddress = new InetSocketAddress(peer.getInetAddress(), peer.getPort());
+        SocketChannel channel = null;
+        try {
+            channel = selector.provider().openSocketChannel();
+            channel.socket().bind(localOutgoingSocketAddress);
+            channel.socket().setSoLinger(false, 0);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        return connector.connect(channel, remoteAddress);
+    }
+
+    private ConnectionResult connectionFailure(Peer peer, Throwable e) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Failed to establish connection with peer: {}. Reason: {} ({})",
+                    peer, e.getClass().getName(), e.getMessage());
+        }
+        return ConnectionResult.failure("I/O error", e);
     }
 
     @Override
@@ -121,55 +147,119 @@ public class PeerConnectionFactory implements IPeerConnectionFactory {
         return createConnection(peer, null, channel, true);
     }
 
+    @Override
+    public CompletableFuture<ConnectionResult> createIncomingConnectionAsync(Peer peer,
+                                                                             SocketChannel channel,
+                                                                             Executor executor) {
+        return createConnectionAsync(peer, null, channel, true, executor);
+    }
+
     private ConnectionResult createConnection(Peer peer, TorrentId torrentId, SocketChannel channel, boolean incoming) {
         BorrowedBuffer<ByteBuffer> in = bufferManager.borrowByteBuffer();
         BorrowedBuffer<ByteBuffer> out = bufferManager.borrowByteBuffer();
+        Optional<MSECipher> cipherOptional;
         try {
-            return _createConnection(peer, torrentId, channel, incoming, in, out);
-        } catch (Exception e) {
-            if (LOGGER.isDebugEnabled()) {
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("Failed to establish connection with peer {}", peer, e);
-                } else {
-                    LOGGER.debug("Failed to establish connection with peer: {}. Reason: {} ({})",
-                            peer, e.getClass().getName(), e.getMessage());
-                }
-            }
-            closeQuietly(channel);
-            releaseBuffer(in);
-            releaseBuffer(out);
-            return ConnectionResult.failure("Unexpected error", e);
+            cipherOptional = negotiateEncryption(peer, torrentId, channel, incoming, in, out).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return connectionFailure(peer, channel, in, out, e);
+        } catch (ExecutionException e) {
+            return connectionFailure(peer, channel, in, out, e.getCause());
         }
+        return establishConnection(peer, torrentId, channel, incoming, in, out, cipherOptional);
     }
 
-    private ConnectionResult _createConnection(
+    private CompletableFuture<ConnectionResult> createConnectionAsync(Peer peer,
+                                                                      TorrentId torrentId,
+                                                                      SocketChannel channel,
+                                                                      boolean incoming,
+                                                                      Executor executor) {
+        BorrowedBuffer<ByteBuffer> in = bufferManager.borrowByteBuffer();
+        BorrowedBuffer<ByteBuffer> out = bufferManager.borrowByteBuffer();
+        // encryption is negotiated without occupying any threads,
+        // the rest of the handshake is blocking and is performed in the provided executor
+        return negotiateEncryption(peer, torrentId, channel, incoming, in, out).handleAsync((cipherOptional, error) -> {
+            if (error != null) {
+                return connectionFailure(peer, channel, in, out, unwrap(error));
+            }
+            return establishConnection(peer, torrentId, channel, incoming, in, out, cipherOptional);
+        }, executor);
+    }
+
+    private CompletableFuture<Optional<MSECipher>> negotiateEncryption(
             Peer peer,
             TorrentId torrentId,
             SocketChannel channel,
             boolean incoming,
             BorrowedBuffer<ByteBuffer> in,
-            BorrowedBuffer<ByteBuffer> out) throws IOException {
+            BorrowedBuffer<ByteBuffer> out) {
 
-        // sanity check
-        if (!incoming && torrentId == null) {
-            throw new IllegalStateException("Requested outgoing connection without torrent ID. Peer: " + peer);
+        try {
+            // sanity check
+            if (!incoming && torrentId == null) {
+                throw new IllegalStateException("Requested outgoing connection without torrent ID. Peer: " + peer);
+            }
+            if (incoming) {
+                return cryptoHandshakeProcessor.negotiateIncoming(peer, channel, in, out);
+            } else {
+                return cryptoHandshakeProcessor.negotiateOutgoing(peer, channel, torrentId, in, out);
+            }
+        } catch (Exception e) {
+            CompletableFuture<Optional<MSECipher>> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
         }
+    }
 
-        channel.configureBlocking(false);
-
-        ByteBuffer inBuffer = in.lockAndGet();
-        ByteBuffer outBuffer = out.lockAndGet();
-        Optional<MSECipher> cipherOptional;
+    private ConnectionResult establishConnection(
+            Peer peer,
+            TorrentId torrentId,
+            SocketChannel channel,
+            boolean incoming,
+            BorrowedBuffer<ByteBuffer> in,
+            BorrowedBuffer<ByteBuffer> out,
+            Optional<MSECipher> cipherOptional) {
         try {
-            if (incoming) {
-                cipherOptional = cryptoHandshakeProcessor.negotiateIncoming(peer, channel, inBuffer, outBuffer);
+            return _createConnection(peer, torrentId, channel, incoming, in, out, cipherOptional);
+        } catch (Exception e) {
+            return connectionFailure(peer, channel, in, out, e);
+        }
+    }
+
+    private ConnectionResult connectionFailure(Peer peer,
+                                               SocketChannel channel,
+                                               BorrowedBuffer<ByteBuffer> in,
+                                               BorrowedBuffer<ByteBuffer> out,
+                                               Throwable e) {
+        if (LOGGER.isDebugEnabled()) {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Failed to establish connection with peer {}", peer, e);
             } else {
-                cipherOptional = cryptoHandshakeProcessor.negotiateOutgoing(peer, channel, torrentId, inBuffer, outBuffer);
+                LOGGER.debug("Failed to establish connection with peer: {}. Reason: {} ({})",
+                        peer, e.getClass().getName(), e.getMessage());
             }
-        } finally {
-            in.unlock();
-            out.unlock();
         }
+        closeQuietly(channel);
+        releaseBuffer(in);
+        releaseBuffer(out);
+        return ConnectionResult.failure("Unexpected error", e);
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+    }
+
+    private ConnectionResult _createConnection(
+            Peer peer,
+            TorrentId torrentId,
+            SocketChannel channel,
+            boolean incoming,
+            BorrowedBuffer<ByteBuffer> in,
+            BorrowedBuffer<ByteBuffer> out,
+            Optional<MSECipher> cipherOptional) throws IOException {
+
+        // might still be in blocking mode, if encryption negotiation has been skipped
+        channel.configureBlocking(false);
 
         ChannelPipeline pipeline = createPipeline(peer, channel, in, out, cipherOptional);
         ChannelHandler channelHandler = new SocketChannelHandler(channel, in, out, pipeline::bindHandler, dataReceiver);
@@ -212,8 +302,8 @@ public class PeerConnectionFactory implements IPeerConnectionFactory {
         builder.outboundBuffer(out);
 
         cipherOptional.ifPresent(cipher -> {
-            builder.decoders(new CipherBufferMutator(cipher.getDecryptionCipher()));
-            builder.encoders(new CipherBufferMutator(cipher.getEncryptionCipher()));
+            builder.decoders(cipher::decrypt);
+            builder.encoders(cipher::encrypt);
         });
 
         return builder.build();
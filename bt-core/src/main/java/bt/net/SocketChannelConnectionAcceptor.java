@@ -29,6 +29,8 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * @since 1.6
@@ -135,6 +137,11 @@ public class SocketChannelConnectionAcceptor implements PeerConnectionAcceptor {
                 return createConnection(incomingChannel, remoteAddress);
             }
 
+            @Override
+            public CompletableFuture<ConnectionResult> establishAsync(Executor executor) {
+                return createConnectionAsync(incomingChannel, remoteAddress, executor);
+            }
+
             @Override
             public void cancel() {
                 try {
@@ -152,13 +159,29 @@ public class SocketChannelConnectionAcceptor implements PeerConnectionAcceptor {
             Peer peer = InetPeer.builder(address).build();
             return connectionFactory.createIncomingConnection(peer, incomingChannel);
         } catch (Exception e) {
-            LOGGER.error("Failed to establish incoming connection from peer: " + remoteAddress, e);
-            try {
-                incomingChannel.close();
-            } catch (IOException e1) {
-                LOGGER.error("Failed to");
-            }
-            return ConnectionResult.failure("Unexpected error", e);
+            return connectionFailure(incomingChannel, remoteAddress, e);
+        }
+    }
+
+    private CompletableFuture<ConnectionResult> createConnectionAsync(SocketChannel incomingChannel,
+                                                                      SocketAddress remoteAddress,
+                                                                      Executor executor) {
+        try {
+            InetAddress address = ((InetSocketAddress)remoteAddress).getAddress();
+            Peer peer = InetPeer.builder(address).build();
+            return connectionFactory.createIncomingConnectionAsync(peer, incomingChannel, executor);
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(connectionFailure(incomingChannel, remoteAddress, e));
+        }
+    }
+
+    private ConnectionResult connectionFailure(SocketChannel incomingChannel, SocketAddress remoteAddress, Exception e) {
+        LOGGER.error("Failed to establish incoming connection from peer: " + remoteAddress, e);
+        try {
+            incomingChannel.close();
+        } catch (IOException e1) {
+            LOGGER.error("Failed to");
         }
+        return ConnectionResult.failure("Unexpected error", e);
     }
 }
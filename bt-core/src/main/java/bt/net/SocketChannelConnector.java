@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net;
+
+import bt.module.PeerConnectionSelector;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Establishes socket connections without blocking,
+ * by selecting the channels, that are in the process of connecting, for {@link SelectionKey#OP_CONNECT}
+ * in a dedicated thread. Thus, pending connection attempts do not occupy any threads,
+ * regardless of how long it takes for the remote side to respond.
+ *
+ * <p>The same thread also drives the non-blocking handshakes (see {@link NonBlockingHandshake}),
+ * that should be performed on a connected channel before it can be used for messaging,
+ * e.g. Message Stream Encryption negotiation.</p>
+ *
+ * <p>Each connection attempt is limited by {@link Config#getPeerConnectionTimeout()},
+ * and each handshake is limited by {@link Config#getPeerHandshakeTimeout()}.
+ * If the operation has not been completed by then, the channel is closed,
+ * and the operation is failed with a {@link SocketTimeoutException}.</p>
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @since 1.11
+ */
+public class SocketChannelConnector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SocketChannelConnector.class);
+
+    private final Selector selector;
+    private final Queue<PendingOperation> registrationQueue;
+    private final Queue<PendingOperation> resumeQueue;
+    private final ScheduledExecutorService timer;
+    private final Duration connectTimeout;
+    private final Duration handshakeTimeout;
+
+    private volatile boolean shutdown;
+
+    @Inject
+    public SocketChannelConnector(@PeerConnectionSelector Selector selector,
+                                  IRuntimeLifecycleBinder lifecycleBinder,
+                                  Config config) {
+        try {
+            this.selector = selector.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to get I/O selector", e);
+        }
+        this.registrationQueue = new ConcurrentLinkedQueue<>();
+        this.resumeQueue = new ConcurrentLinkedQueue<>();
+        this.connectTimeout = config.getPeerConnectionTimeout();
+        this.handshakeTimeout = config.getPeerHandshakeTimeout();
+
+        String timerThreadName = String.format("%d.bt.net.connector-timer", config.getAcceptorPort());
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, timerThreadName));
+
+        schedule(lifecycleBinder, config);
+    }
+
+    private void schedule(IRuntimeLifecycleBinder lifecycleBinder, Config config) {
+        String threadName = String.format("%d.bt.net.connector", config.getAcceptorPort());
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+        lifecycleBinder.onStartup("Initialize connector", () -> executor.execute(this::run));
+        lifecycleBinder.onShutdown("Shutdown connector", () -> {
+            shutdown = true;
+            try {
+                selector.wakeup();
+                executor.shutdownNow();
+            } finally {
+                timer.shutdownNow();
+            }
+        });
+    }
+
+    /**
+     * Initiate connection to the remote address.
+     *
+     * @param channel Unconnected channel; it will be put into non-blocking mode
+     * @param remoteAddress Address to connect to
+     * @return Future, that will be completed with the same channel, when it has been connected,
+     *         or failed, if the connection could not be established. In the latter case the channel is closed.
+     * @since 1.11
+     */
+    public CompletableFuture<SocketChannel> connect(SocketChannel channel, SocketAddress remoteAddress) {
+        PendingOperation connection = new PendingOperation(channel, null);
+        try {
+            channel.configureBlocking(false);
+            if (channel.connect(remoteAddress)) {
+                // connected immediately (e.g. local connection)
+                connection.complete();
+                return connection.future;
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.fail(e);
+            return connection.future;
+        }
+
+        submit(connection, connectTimeout, "Connection timed out: " + remoteAddress);
+        return connection.future;
+    }
+
+    /**
+     * Perform the handshake on a connected channel.
+     * All invocations of {@link NonBlockingHandshake#process()} are done in the connector's thread,
+     * each time the channel becomes ready or the handshake's resume listener is invoked.
+     *
+     * @param channel Connected channel; it will be put into non-blocking mode
+     * @param handshake Handshake procedure
+     * @return Future, that will be completed with the same channel, when the handshake has been completed,
+     *         or failed, if the handshake could not be completed. In the latter case the channel is closed.
+     * @since 1.11
+     */
+    public CompletableFuture<SocketChannel> handshake(SocketChannel channel, NonBlockingHandshake handshake) {
+        PendingOperation operation = new PendingOperation(channel, handshake);
+        try {
+            channel.configureBlocking(false);
+        } catch (IOException | RuntimeException e) {
+            operation.fail(e);
+            return operation.future;
+        }
+        handshake.setResumeListener(() -> {
+            resumeQueue.add(operation);
+            selector.wakeup();
+        });
+
+        submit(operation, handshakeTimeout, "Handshake timed out");
+        return operation.future;
+    }
+
+    private void submit(PendingOperation operation, Duration timeout, String timeoutMessage) {
+        if (shutdown) {
+            operation.fail(new IOException("Connector has been shut down"));
+            return;
+        }
+
+        ScheduledFuture<?> timeoutFuture = timer.schedule(
+                () -> operation.fail(new SocketTimeoutException(timeoutMessage)),
+                timeout.toMillis(), TimeUnit.MILLISECONDS);
+        operation.future.whenComplete((result, error) -> timeoutFuture.cancel(false));
+
+        registrationQueue.add(operation);
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!shutdown) {
+                processRegistrations();
+                processResumed();
+                selector.select(1000);
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    processKey(key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            LOGGER.info("Selector has been closed, will stop establishing connections...");
+        } catch (Exception e) {
+            LOGGER.error("Unexpected error when establishing connections", e);
+        } finally {
+            failPendingOperations();
+            closeSelector();
+        }
+    }
+
+    private void processRegistrations() {
+        PendingOperation operation;
+        while ((operation = registrationQueue.poll()) != null) {
+            if (operation.future.isDone()) {
+                // timed out before being registered
+                continue;
+            }
+            SelectionKey key;
+            try {
+                SelectionKey previousKey = operation.channel.keyFor(selector);
+                if (previousKey != null && !previousKey.isValid()) {
+                    // the channel has just been connected by this connector, and its' connect key is cancelled
+                    // but not yet deregistered; the channel can't be registered again until the next selection
+                    selector.selectNow();
+                }
+                int ops = (operation.handshake == null) ? SelectionKey.OP_CONNECT : 0;
+                key = operation.channel.register(selector, ops, operation);
+            } catch (Exception e) {
+                operation.fail(e);
+                continue;
+            }
+            operation.key = key;
+            if (operation.handshake != null) {
+                // let the handshake make the first move (e.g. send the initial message)
+                processHandshake(key, operation);
+            }
+        }
+    }
+
+    private void processResumed() {
+        PendingOperation operation;
+        while ((operation = resumeQueue.poll()) != null) {
+            SelectionKey key = operation.key;
+            // operations, that have not been registered yet, will be processed upon registration
+            if (key != null && key.isValid()) {
+                processHandshake(key, operation);
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        PendingOperation operation = (PendingOperation) key.attachment();
+        if (!key.isValid()) {
+            return;
+        }
+        if (operation.handshake == null) {
+            processConnect(key, operation);
+        } else {
+            processHandshake(key, operation);
+        }
+    }
+
+    private void processConnect(SelectionKey key, PendingOperation connection) {
+        try {
+            if (key.isConnectable() && connection.channel.finishConnect()) {
+                // the channel will be registered with one of the data receiving loops later
+                key.cancel();
+                connection.complete();
+            }
+        } catch (IOException | RuntimeException e) {
+            key.cancel();
+            connection.fail(e);
+        }
+    }
+
+    private void processHandshake(SelectionKey key, PendingOperation operation) {
+        if (operation.future.isDone()) {
+            // timed out
+            key.cancel();
+            return;
+        }
+        try {
+            if (operation.handshake.process()) {
+                key.cancel();
+                operation.complete();
+            } else {
+                int ops = SelectionKey.OP_READ;
+                if (operation.handshake.hasPendingData()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+        } catch (IOException | RuntimeException e) {
+            key.cancel();
+            operation.fail(e);
+        }
+    }
+
+    private void failPendingOperations() {
+        IOException e = new IOException("Connector has been shut down");
+        try {
+            selector.keys().forEach(key -> ((PendingOperation) key.attachment()).fail(e));
+        } catch (ClosedSelectorException ignored) {
+            // nothing to do
+        }
+        PendingOperation operation;
+        while ((operation = registrationQueue.poll()) != null) {
+            operation.fail(e);
+        }
+        resumeQueue.clear();
+    }
+
+    private void closeSelector() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.error("Failed to close selector", e);
+        }
+    }
+
+    private static class PendingOperation {
+        private final SocketChannel channel;
+        // null for connection attempts
+        private final NonBlockingHandshake handshake;
+        private final CompletableFuture<SocketChannel> future;
+        // accessed only by the connector's thread
+        private SelectionKey key;
+
+        PendingOperation(SocketChannel channel, NonBlockingHandshake handshake) {
+            this.channel = channel;
+            this.handshake = handshake;
+            this.future = new CompletableFuture<>();
+        }
+
+        void complete() {
+            if (!future.complete(channel)) {
+                // has already been failed (e.g. timed out) concurrently
+                closeQuietly();
+            }
+        }
+
+        void fail(Throwable e) {
+            if (future.completeExceptionally(e)) {
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close channel", e);
+            }
+        }
+    }
+}
@@ -125,6 +125,16 @@ public class SocketPeerConnection implements PeerConnection {
         return message;
     }
 
+    @Override
+    public void setMessageAvailableListener(Runnable listener) {
+        handler.setDataReceivedListener(listener);
+    }
+
+    @Override
+    public void setWritableListener(Runnable listener) {
+        handler.setWritableListener(listener);
+    }
+
     @Override
     public synchronized void postMessage(Message message) {
         updateLastActive();
@@ -134,6 +144,18 @@ public class SocketPeerConnection implements PeerConnection {
         handler.send(message);
     }
 
+    @Override
+    public synchronized boolean tryPostMessage(Message message) {
+        boolean sent = handler.trySend(message);
+        if (sent) {
+            updateLastActive();
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Sending message to peer: " + getPeerString() + " -- " + message);
+            }
+        }
+        return sent;
+    }
+
     private void updateLastActive() {
         lastActive.set(System.currentTimeMillis());
     }
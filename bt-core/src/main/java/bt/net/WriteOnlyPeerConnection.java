@@ -59,11 +59,26 @@ class WriteOnlyPeerConnection implements PeerConnection {
         throw new UnsupportedOperationException("Connection is write-only");
     }
 
+    @Override
+    public void setMessageAvailableListener(Runnable listener) {
+        // no messages are ever read from this connection, so there's nothing to notify about
+    }
+
     @Override
     public void postMessage(Message message) throws IOException {
         delegate.postMessage(message);
     }
 
+    @Override
+    public boolean tryPostMessage(Message message) throws IOException {
+        return delegate.tryPostMessage(message);
+    }
+
+    @Override
+    public void setWritableListener(Runnable listener) {
+        delegate.setWritableListener(listener);
+    }
+
     @Override
     public long getLastActive() {
         return delegate.getLastActive();
@@ -90,7 +90,7 @@ public class DelegatingByteBufferView implements ByteBufferView {
 
     @Override
     public void transferTo(ByteBuffer buffer) {
-        delegate.put(buffer);
+        buffer.put(delegate);
     }
 
     @Override
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.metainfo.TorrentId;
+import bt.net.BigIntegers;
+import bt.net.Peer;
+import bt.net.buffer.BorrowedBuffer;
+import bt.net.buffer.DelegatingByteBufferView;
+import bt.protocol.DecodingContext;
+import bt.protocol.Handshake;
+import bt.protocol.Message;
+import bt.protocol.crypto.EncryptionPolicy;
+import bt.protocol.crypto.MSECipher;
+import bt.protocol.handler.MessageHandler;
+import bt.torrent.TorrentDescriptor;
+import bt.torrent.TorrentRegistry;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Message Stream Encryption negotiation on the receiving side (B).
+ * If the peer turns out to be using the plaintext BitTorrent handshake, the negotiation is skipped.
+ *
+ * <pre>
+ * 1. A->B: Diffie Hellman Ya, PadA
+ * 2. B->A: Diffie Hellman Yb, PadB
+ * 3. A->B:
+ *  - HASH('req1', S),
+ *  - HASH('req2', SKEY) xor HASH('req3', S),
+ *  - ENCRYPT(VC, crypto_provide, len(PadC), PadC, len(IA)),
+ *  - ENCRYPT(IA)
+ * 4. B->A:
+ *  - ENCRYPT(VC, crypto_select, len(padD), padD),
+ *  - ENCRYPT2(Payload Stream)
+ * 5. A->B: ENCRYPT2(Payload Stream)
+ * </pre>
+ *
+ * @since 1.11
+ */
+class IncomingMSEHandshake extends MSEHandshake {
+
+    // lower threshold on the amount of bytes to receive before trying to decode a plaintext handshake
+    private static final int PLAINTEXT_HANDSHAKE_MIN_LENGTH = 20;
+
+    private enum State {
+        RECEIVE_PUBLIC_KEY,
+        CALCULATE_SHARED_SECRET,
+        SYNC_REQ1,
+        RECEIVE_TORRENT_HASH,
+        RECEIVE_CRYPTO_PROVIDE,
+        RECEIVE_PADDING,
+        RECEIVE_INITIAL_PAYLOAD,
+        DONE
+    }
+
+    private final TorrentRegistry torrentRegistry;
+    private final MSETorrentIndex torrentIndex;
+    private final MessageHandler<Message> protocol;
+
+    private State state;
+    private CompletableFuture<BigInteger> sharedSecret;
+    private byte[] Sbytes;
+    private byte[] req1hash;
+    private int theirPadding;
+    private int initialPayloadLength;
+
+    IncomingMSEHandshake(Peer peer,
+                         ByteChannel channel,
+                         BorrowedBuffer<ByteBuffer> in,
+                         BorrowedBuffer<ByteBuffer> out,
+                         MSEKeyPairPool keyPool,
+                         EncryptionPolicy localEncryptionPolicy,
+                         TorrentRegistry torrentRegistry,
+                         MSETorrentIndex torrentIndex,
+                         MessageHandler<Message> protocol) {
+        super(peer, channel, in, out, keyPool, localEncryptionPolicy);
+        this.torrentRegistry = torrentRegistry;
+        this.torrentIndex = torrentIndex;
+        this.protocol = protocol;
+        this.state = State.RECEIVE_PUBLIC_KEY;
+    }
+
+    @Override
+    protected boolean processData(ByteBuffer in, ByteBuffer out) {
+        for (;;) {
+            switch (state) {
+                case RECEIVE_PUBLIC_KEY: {
+                    // 1. A->B: Diffie Hellman Ya, PadA
+                    // try to determine the protocol from the first received bytes
+                    if (in.position() >= PLAINTEXT_HANDSHAKE_MIN_LENGTH && isPlaintextHandshake(in)) {
+                        // decoding was successful, can use plaintext (if supported);
+                        // keep the received data for the upper layer
+                        assertPolicyIsCompatible(EncryptionPolicy.REQUIRE_PLAINTEXT);
+                        state = State.DONE;
+                        break;
+                    }
+                    int publicKeySize = keyGenerator.getPublicKeySize();
+                    if (in.position() < publicKeySize) {
+                        return false;
+                    }
+                    // receive initiator's public key
+                    byte[] peerPublicKeyBytes = receive(in, publicKeySize);
+                    BigInteger peerPublicKey = BigIntegers.decodeUnsigned(ByteBuffer.wrap(peerPublicKeyBytes), publicKeySize);
+
+                    // 2. B->A: Diffie Hellman Yb, PadB
+                    // send our public key
+                    KeyPair keys = keyPool.getKeyPair();
+                    out.put(keys.getPublic().getEncoded());
+                    out.put(getPadding(PADDING_MAX_LENGTH));
+
+                    // calculate shared secret S
+                    sharedSecret = calculateSharedSecret(peerPublicKey, keys.getPrivate());
+                    state = State.CALCULATE_SHARED_SECRET;
+                    break;
+                }
+                case CALCULATE_SHARED_SECRET: {
+                    if (!sharedSecret.isDone()) {
+                        return false;
+                    }
+                    Sbytes = BigIntegers.encodeUnsigned(sharedSecret.join(), MSEKeyPairGenerator.PUBLIC_KEY_BYTES);
+
+                    MessageDigest digest = getDigest("SHA-1");
+                    digest.update("req1".getBytes(StandardCharsets.US_ASCII));
+                    digest.update(Sbytes);
+                    req1hash = digest.digest();
+                    state = State.SYNC_REQ1;
+                    break;
+                }
+                case SYNC_REQ1: {
+                    // 3. A->B:
+                    // - HASH('req1', S)
+                    // padding from phase 1 may be arriving later than expected, so we need to synchronize
+                    // on the incoming stream of data, looking for a correct S hash;
+                    // syncing will also ensure that the peer knows S (otherwise synchronization will fail due to not finding the pattern)
+                    if (!sync(in, req1hash, PADDING_MAX_LENGTH)) {
+                        return false;
+                    }
+                    state = State.RECEIVE_TORRENT_HASH;
+                    break;
+                }
+                case RECEIVE_TORRENT_HASH: {
+                    // - HASH('req2', SKEY) xor HASH('req3', S)
+                    if (in.position() < 20) {
+                        return false;
+                    }
+                    TorrentId requestedTorrent = resolveTorrent(receive(in, 20));
+                    setCipher(MSECipher.forReceiver(Sbytes, requestedTorrent));
+                    state = State.RECEIVE_CRYPTO_PROVIDE;
+                    break;
+                }
+                case RECEIVE_CRYPTO_PROVIDE: {
+                    // - ENCRYPT(VC, crypto_provide, len(PadC), PadC, len(IA))
+                    if (in.position() < VC_RAW_BYTES.length + 4/*crypto_provide*/ + 2/*padding_len*/) {
+                        return false;
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(receiveEncrypted(in, VC_RAW_BYTES.length + 4 + 2));
+                    byte[] theirVC = new byte[8];
+                    data.get(theirVC);
+                    if (!Arrays.equals(VC_RAW_BYTES, theirVC)) {
+                        throw new IllegalStateException("Invalid VC: " + Arrays.toString(theirVC));
+                    }
+                    byte[] crypto_provide = new byte[4];
+                    data.get(crypto_provide);
+                    setNegotiatedEncryptionPolicy(selectPolicy(crypto_provide, localEncryptionPolicy));
+                    theirPadding = data.getShort() & 0xFFFF;
+                    checkPaddingLength(theirPadding);
+                    state = State.RECEIVE_PADDING;
+                    break;
+                }
+                case RECEIVE_PADDING: {
+                    if (in.position() < theirPadding + 2/*IA length*/) {
+                        return false;
+                    }
+                    // discard padding
+                    ByteBuffer data = ByteBuffer.wrap(receiveEncrypted(in, theirPadding + 2));
+                    data.position(theirPadding);
+                    // Initial Payload length (0..65535 bytes)
+                    initialPayloadLength = data.getShort() & 0xFFFF;
+                    state = State.RECEIVE_INITIAL_PAYLOAD;
+                    break;
+                }
+                case RECEIVE_INITIAL_PAYLOAD: {
+                    // - ENCRYPT(IA)
+                    // IA is processed by the upper layer, so it's left in the buffer
+                    if (in.position() < initialPayloadLength) {
+                        return false;
+                    }
+                    switch (getNegotiatedEncryptionPolicy()) {
+                        case REQUIRE_PLAINTEXT:
+                        case PREFER_PLAINTEXT: {
+                            // IA is always encrypted, but the rest of the payload stream will not be
+                            decryptInPlace(in, initialPayloadLength);
+                            break;
+                        }
+                        default: {
+                            // IA will be decrypted along with the rest of the payload stream
+                        }
+                    }
+
+                    // 4. B->A:
+                    // - ENCRYPT(VC, crypto_select, len(padD), padD)
+                    byte[] padding = getZeroPadding(PADDING_MAX_LENGTH);
+                    ByteBuffer data = ByteBuffer.allocate(VC_RAW_BYTES.length + 4 + 2 + padding.length);
+                    data.put(VC_RAW_BYTES);
+                    data.put(getCryptoProvideBitfield(getNegotiatedEncryptionPolicy()));
+                    data.putShort((short) padding.length);
+                    data.put(padding);
+                    putEncrypted(out, data.array());
+                    state = State.DONE;
+                    break;
+                }
+                case DONE: {
+                    return true;
+                }
+                default: {
+                    throw new IllegalStateException("Unknown state: " + state);
+                }
+            }
+        }
+    }
+
+    private boolean isPlaintextHandshake(ByteBuffer in) {
+        int position = in.position();
+        in.flip();
+        DecodingContext context = new DecodingContext(peer);
+        int consumed = 0;
+        try {
+            consumed = protocol.decode(context, new DelegatingByteBufferView(in));
+        } catch (Exception e) {
+            // ignore
+        } finally {
+            in.limit(in.capacity());
+            in.position(position);
+        }
+        // TODO: can this be done without knowing the protocol specifics? (KeepAlive can be especially misleading: 0x00 0x00 0x00 0x00)
+        return consumed > 0 && context.getMessage() instanceof Handshake;
+    }
+
+    private TorrentId resolveTorrent(byte[] bytes) {
+        MessageDigest digest = getDigest("SHA-1");
+        digest.update("req3".getBytes(StandardCharsets.US_ASCII));
+        digest.update(Sbytes);
+        // HASH('req2', SKEY) = received bytes xor HASH('req3', S)
+        byte[] req2hash = xor(bytes, digest.digest());
+        TorrentId requestedTorrent = torrentIndex.getTorrentId(req2hash).orElse(null);
+        // check that torrent is supported and active
+        if (requestedTorrent == null) {
+            throw new IllegalStateException("Unsupported torrent requested");
+        } else {
+            Optional<TorrentDescriptor> descriptor = torrentRegistry.getDescriptor(requestedTorrent);
+            if (descriptor.isPresent() && !descriptor.get().isActive()) {
+                // don't throw an exception if descriptor is not present -- torrent might be being fetched at the time
+                throw new IllegalStateException("Inactive torrent requested: " + requestedTorrent);
+            }
+        }
+        return requestedTorrent;
+    }
+
+    private void assertPolicyIsCompatible(EncryptionPolicy peerEncryptionPolicy) {
+        if (!localEncryptionPolicy.isCompatible(peerEncryptionPolicy)) {
+            throw new RuntimeException("Encryption policies are incompatible: peer's (" + peerEncryptionPolicy.name()
+                    + "), local (" + localEncryptionPolicy.name() + ")");
+        }
+    }
+}
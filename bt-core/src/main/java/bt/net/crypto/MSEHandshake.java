@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.net.NonBlockingHandshake;
+import bt.net.Peer;
+import bt.net.buffer.BorrowedBuffer;
+import bt.protocol.crypto.EncryptionPolicy;
+import bt.protocol.crypto.MSECipher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Base class for the incremental Message Stream Encryption negotiation procedure.
+ *
+ * <p>Each invocation of {@link #process()} reads all data, that is currently available in the channel,
+ * advances the negotiation as far as possible and writes the produced data to the channel.
+ * Incoming data is accumulated in the inbound buffer, which is kept in write mode:
+ * the data, that has not been consumed yet, occupies the range [0, position).
+ * When the negotiation is complete, the inbound buffer contains only the data,
+ * that has been received from the peer after the handshake (i.e. payload stream),
+ * and the outbound buffer is empty.</p>
+ *
+ * <p>Shared secret is calculated in background (see {@link MSEKeyPairPool#calculateSharedSecret(BigInteger, PrivateKey)}),
+ * and the resume listener is notified, when it's ready.</p>
+ *
+ * <p>Instances are not thread-safe and should be driven by a single thread.</p>
+ *
+ * @since 1.11
+ */
+abstract class MSEHandshake implements NonBlockingHandshake {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MSEHandshake.class);
+
+    static final int PADDING_MAX_LENGTH = 512;
+    static final byte[] VC_RAW_BYTES = new byte[8];
+
+    protected final Peer peer;
+    protected final MSEKeyPairPool keyPool;
+    protected final MSEKeyPairGenerator keyGenerator;
+    protected final EncryptionPolicy localEncryptionPolicy;
+
+    private final ByteChannel channel;
+    private final BorrowedBuffer<ByteBuffer> inBuffer;
+    private final BorrowedBuffer<ByteBuffer> outBuffer;
+
+    private MSECipher cipher;
+    // null, if the negotiation has been skipped (i.e. plaintext peer)
+    private EncryptionPolicy negotiatedEncryptionPolicy;
+
+    private volatile Runnable resumeListener;
+
+    private boolean completed;
+    private boolean pendingData;
+
+    MSEHandshake(Peer peer,
+                 ByteChannel channel,
+                 BorrowedBuffer<ByteBuffer> in,
+                 BorrowedBuffer<ByteBuffer> out,
+                 MSEKeyPairPool keyPool,
+                 EncryptionPolicy localEncryptionPolicy) {
+        this.peer = peer;
+        this.channel = channel;
+        this.inBuffer = in;
+        this.outBuffer = out;
+        this.keyPool = keyPool;
+        this.keyGenerator = keyPool.getKeyGenerator();
+        this.localEncryptionPolicy = localEncryptionPolicy;
+    }
+
+    @Override
+    public boolean process() throws IOException {
+        ByteBuffer in = inBuffer.lockAndGet();
+        try {
+            ByteBuffer out = outBuffer.lockAndGet();
+            try {
+                if (in == null || out == null) {
+                    throw new IOException("Buffers have been released");
+                }
+                if (!completed) {
+                    readAvailableData(in);
+                    completed = processData(in, out);
+                }
+                writePendingData(out);
+                return completed && !pendingData;
+            } finally {
+                outBuffer.unlock();
+            }
+        } finally {
+            inBuffer.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasPendingData() {
+        return pendingData;
+    }
+
+    @Override
+    public void setResumeListener(Runnable listener) {
+        this.resumeListener = listener;
+    }
+
+    /**
+     * Process the accumulated incoming data and put the outgoing data into the outbound buffer.
+     *
+     * @return true, if the negotiation has been completed
+     */
+    protected abstract boolean processData(ByteBuffer in, ByteBuffer out);
+
+    /**
+     * @return Cipher to use for the payload stream or {@link Optional#empty()} for plaintext
+     */
+    Optional<MSECipher> getNegotiatedCipher() {
+        if (!completed) {
+            throw new IllegalStateException("Negotiation has not been completed yet");
+        }
+        if (negotiatedEncryptionPolicy == null) {
+            return Optional.empty();
+        }
+        switch (negotiatedEncryptionPolicy) {
+            case REQUIRE_PLAINTEXT:
+            case PREFER_PLAINTEXT: {
+                return Optional.empty();
+            }
+            case PREFER_ENCRYPTED:
+            case REQUIRE_ENCRYPTED: {
+                return Optional.of(cipher);
+            }
+            default: {
+                throw new IllegalStateException("Unknown encryption policy: " + negotiatedEncryptionPolicy.name());
+            }
+        }
+    }
+
+    private void readAvailableData(ByteBuffer in) throws IOException {
+        int read = 0;
+        while (in.hasRemaining() && (read = channel.read(in)) > 0)
+            ;
+        if (read < 0) {
+            throw new EOFException("Peer closed the connection during encryption negotiation: " + peer);
+        }
+    }
+
+    private void writePendingData(ByteBuffer out) throws IOException {
+        out.flip();
+        try {
+            while (out.hasRemaining() && channel.write(out) > 0)
+                ;
+        } finally {
+            out.compact();
+        }
+        pendingData = out.position() > 0;
+    }
+
+    /**
+     * Start calculating the shared secret S in background.
+     * The resume listener will be notified, when the returned future is completed.
+     */
+    protected CompletableFuture<BigInteger> calculateSharedSecret(BigInteger peerPublicKey, PrivateKey privateKey) {
+        CompletableFuture<BigInteger> future = keyPool.calculateSharedSecret(peerPublicKey, privateKey);
+        future.whenComplete((result, error) -> {
+            Runnable listener = resumeListener;
+            if (listener != null) {
+                listener.run();
+            }
+        });
+        return future;
+    }
+
+    protected void setCipher(MSECipher cipher) {
+        this.cipher = cipher;
+    }
+
+    protected void setNegotiatedEncryptionPolicy(EncryptionPolicy negotiatedEncryptionPolicy) {
+        this.negotiatedEncryptionPolicy = negotiatedEncryptionPolicy;
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Negotiated encryption policy: {}, peer: {}", negotiatedEncryptionPolicy, peer);
+        }
+    }
+
+    protected EncryptionPolicy getNegotiatedEncryptionPolicy() {
+        return negotiatedEncryptionPolicy;
+    }
+
+    /**
+     * Get and discard the first {@code length} bytes of the accumulated incoming data.
+     */
+    protected static byte[] receive(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.flip();
+        in.get(bytes);
+        in.compact();
+        return bytes;
+    }
+
+    /**
+     * Get, decrypt and discard the first {@code length} bytes of the accumulated incoming data.
+     */
+    protected byte[] receiveEncrypted(ByteBuffer in, int length) {
+        byte[] bytes = receive(in, length);
+        return decrypt(bytes);
+    }
+
+    /**
+     * Decrypt the first {@code length} bytes of the accumulated incoming data in place.
+     */
+    protected void decryptInPlace(ByteBuffer in, int length) {
+        ByteBuffer data = in.duplicate();
+        data.position(0);
+        data.limit(length);
+        cipher.decrypt(data);
+    }
+
+    /**
+     * Decrypt the bytes in place.
+     *
+     * @return The same array
+     */
+    protected byte[] decrypt(byte[] bytes) {
+        cipher.decrypt(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Put the bytes into the outbound buffer and encrypt them there.
+     */
+    protected void putEncrypted(ByteBuffer out, byte[] bytes) {
+        ByteBuffer data = out.duplicate();
+        out.put(bytes);
+        data.limit(out.position());
+        cipher.encrypt(data);
+    }
+
+    /**
+     * Discard the accumulated incoming data up to and including the first occurrence of the pattern.
+     *
+     * @param maxOffset Max number of bytes, that may precede the pattern (e.g. padding from the previous phase)
+     * @return true, if the pattern has been found
+     * @throws IllegalStateException if the pattern has not been found within the allowed range
+     */
+    protected static boolean sync(ByteBuffer in, byte[] pattern, int maxOffset) {
+        int available = in.position();
+        int lastOffset = Math.min(available - pattern.length, maxOffset);
+        for (int offset = 0; offset <= lastOffset; offset++) {
+            if (matches(in, offset, pattern)) {
+                receive(in, offset + pattern.length);
+                return true;
+            }
+        }
+        if (available - pattern.length >= maxOffset) {
+            throw new IllegalStateException("Failed to synchronize: pattern not found in the first "
+                    + (maxOffset + pattern.length) + " bytes");
+        }
+        return false;
+    }
+
+    private static boolean matches(ByteBuffer in, int offset, byte[] pattern) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (in.get(offset + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static void checkPaddingLength(int paddingLength) {
+        if (paddingLength > PADDING_MAX_LENGTH) {
+            // sanity check
+            throw new IllegalStateException("Padding is too long: " + paddingLength);
+        }
+    }
+
+    protected static byte[] getPadding(int length) {
+        Random r = new Random();
+        byte[] padding = new byte[r.nextInt(length + 1)];
+        for (int i = 0; i < padding.length; i++) {
+            padding[i] = (byte) r.nextInt(256);
+        }
+        return padding;
+    }
+
+    protected static byte[] getZeroPadding(int length) {
+        Random r = new Random();
+        return new byte[r.nextInt(length + 1)];
+    }
+
+    protected static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static byte[] xor(byte[] b1, byte[] b2) {
+        if (b1.length != b2.length) {
+            throw new IllegalStateException("Lengths do not match: " + b1.length + ", " + b2.length);
+        }
+        byte[] result = new byte[b1.length];
+        for (int i = 0; i < b1.length; i++) {
+            result[i] = (byte) (b1[i] ^ b2[i]);
+        }
+        return result;
+    }
+
+    protected static byte[] getCryptoProvideBitfield(EncryptionPolicy encryptionPolicy) {
+        byte[] crypto_provide = new byte[4];
+        switch (encryptionPolicy) {
+            case REQUIRE_PLAINTEXT: {
+                crypto_provide[3] = 1; // only 0x01
+                break;
+            }
+            case PREFER_PLAINTEXT:
+            case PREFER_ENCRYPTED: {
+                crypto_provide[3] = 3; // both 0x01 and 0x02
+                break;
+            }
+            case REQUIRE_ENCRYPTED: {
+                crypto_provide[3] = 2; // only 0x02
+                break;
+            }
+            default: {
+                // do nothing, bitfield is all zeros
+            }
+        }
+        return crypto_provide;
+    }
+
+    protected static EncryptionPolicy selectPolicy(byte[] crypto_provide, EncryptionPolicy localEncryptionPolicy) {
+        boolean plaintextProvided = (crypto_provide[3] & 0x01) == 0x01;
+        boolean encryptionProvided = (crypto_provide[3] & 0x02) == 0x02;
+
+        EncryptionPolicy selected = null;
+        if (plaintextProvided || encryptionProvided) {
+            switch (localEncryptionPolicy) {
+                case REQUIRE_PLAINTEXT: {
+                    if (plaintextProvided) {
+                        selected = EncryptionPolicy.REQUIRE_PLAINTEXT;
+                    }
+                    break;
+                }
+                case PREFER_PLAINTEXT: {
+                    selected = plaintextProvided ? EncryptionPolicy.REQUIRE_PLAINTEXT : EncryptionPolicy.REQUIRE_ENCRYPTED;
+                    break;
+                }
+                case PREFER_ENCRYPTED: {
+                    selected = encryptionProvided ? EncryptionPolicy.REQUIRE_ENCRYPTED : EncryptionPolicy.REQUIRE_PLAINTEXT;
+                    break;
+                }
+                case REQUIRE_ENCRYPTED: {
+                    if (encryptionProvided) {
+                        selected = EncryptionPolicy.REQUIRE_ENCRYPTED;
+                    }
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException("Unknown encryption policy: " + localEncryptionPolicy.name());
+                }
+            }
+        }
+
+        if (selected == null) {
+            throw new IllegalStateException("Failed to negotiate the encryption policy: local policy (" +
+                    localEncryptionPolicy.name() + "), peer's policy (" + Arrays.toString(crypto_provide) + ")");
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.CountingThreadFactory;
+import bt.protocol.crypto.MSECipher;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded pool of pre-generated Diffie-Hellman key pairs for MSE negotiation,
+ * so that the expensive modular exponentiation is not performed while the peer is waiting for our public key.
+ * The pool is refilled in a dedicated background thread.
+ * If the pool is drained (e.g. during a burst of new connections), key pairs are generated inline.
+ *
+ * <p>Shared secrets are also calculated in background threads (see {@link #calculateSharedSecret(BigInteger, PrivateKey)}),
+ * so that the connector's thread, which drives MSE negotiations, is never busy with modular exponentiation.</p>
+ *
+ * <p>Size of the pool is configured via {@link Config#getMseKeyPairPoolSize()}.</p>
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @since 1.11
+ */
+public class MSEKeyPairPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MSEKeyPairPool.class);
+
+    private static final int MAX_SECRET_THREADS = 4;
+
+    private final MSEKeyPairGenerator keyGenerator;
+    // null, if the pool is disabled
+    private final BlockingQueue<KeyPair> keyPairs;
+    private final ExecutorService executor;
+    // null, if MSE is disabled
+    private final ExecutorService secretExecutor;
+    private final AtomicBoolean refillScheduled;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    private volatile boolean shutdown;
+
+    @Inject
+    public MSEKeyPairPool(IRuntimeLifecycleBinder lifecycleBinder, Config config) {
+        this.keyGenerator = new MSEKeyPairGenerator(config.getMsePrivateKeySize());
+        this.refillScheduled = new AtomicBoolean(false);
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+
+        int poolSize = config.getMseKeyPairPoolSize();
+        boolean mseDisabled = config.isMseDisabled() || !MSECipher.isKeySizeSupported(config.getMsePrivateKeySize());
+        if (!mseDisabled) {
+            String threadName = String.format("%d.bt.net.crypto.shared-secret", config.getAcceptorPort());
+            int numOfThreads = Math.max(1, Math.min(MAX_SECRET_THREADS, Runtime.getRuntime().availableProcessors()));
+            this.secretExecutor = Executors.newFixedThreadPool(numOfThreads, CountingThreadFactory.daemonFactory(threadName));
+            lifecycleBinder.onShutdown("Shutdown MSE shared secret calculation", secretExecutor::shutdownNow);
+        } else {
+            this.secretExecutor = null;
+        }
+        if (poolSize > 0 && !mseDisabled) {
+            this.keyPairs = new ArrayBlockingQueue<>(poolSize);
+            String threadName = String.format("%d.bt.net.crypto.key-pair-pool", config.getAcceptorPort());
+            this.executor = Executors.newSingleThreadExecutor(CountingThreadFactory.daemonFactory(threadName));
+            lifecycleBinder.onStartup("Pre-generate MSE key pairs", this::scheduleRefill);
+            lifecycleBinder.onShutdown("Shutdown MSE key pair pool", () -> {
+                shutdown = true;
+                executor.shutdownNow();
+            });
+        } else {
+            this.keyPairs = null;
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Get a pre-generated key pair or generate a new one, if the pool is empty.
+     * Each key pair is returned only once.
+     */
+    KeyPair getKeyPair() {
+        if (keyPairs == null) {
+            return keyGenerator.generateKeyPair();
+        }
+        KeyPair keyPair = keyPairs.poll();
+        if (keyPair == null) {
+            misses.incrementAndGet();
+            keyPair = keyGenerator.generateKeyPair();
+        } else {
+            hits.incrementAndGet();
+        }
+        scheduleRefill();
+        return keyPair;
+    }
+
+    /**
+     * Calculate the shared secret S in a background thread.
+     *
+     * @return Future, that will be completed with S
+     * @since 1.11
+     */
+    CompletableFuture<BigInteger> calculateSharedSecret(BigInteger peerPublicKey, PrivateKey privateKey) {
+        if (secretExecutor == null) {
+            return CompletableFuture.completedFuture(keyGenerator.calculateSharedSecret(peerPublicKey, privateKey));
+        }
+        try {
+            return CompletableFuture.supplyAsync(
+                    () -> keyGenerator.calculateSharedSecret(peerPublicKey, privateKey), secretExecutor);
+        } catch (Exception e) {
+            // shutting down
+            CompletableFuture<BigInteger> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    MSEKeyPairGenerator getKeyGenerator() {
+        return keyGenerator;
+    }
+
+    private void scheduleRefill() {
+        if (!shutdown && refillScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::refill);
+            } catch (Exception e) {
+                // shutting down
+                refillScheduled.set(false);
+            }
+        }
+    }
+
+    private void refill() {
+        try {
+            while (!shutdown && keyPairs.remainingCapacity() > 0) {
+                keyPairs.offer(keyGenerator.generateKeyPair());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Failed to generate MSE key pair", e);
+        } finally {
+            refillScheduled.set(false);
+        }
+    }
+
+    /**
+     * @return Number of key pairs, that have been taken from the pool
+     * @since 1.11
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of key pairs, that had to be generated inline, because the pool was empty
+     * @since 1.11
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of key pairs, that are currently available in the pool
+     * @since 1.11
+     */
+    public int getAvailableKeyPairs() {
+        return (keyPairs == null) ? 0 : keyPairs.size();
+    }
+}
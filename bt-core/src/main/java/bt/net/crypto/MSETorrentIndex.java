@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.event.EventSource;
+import bt.metainfo.TorrentId;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps HASH('req2', SKEY) to the corresponding torrent,
+ * so that the receiving side of MSE negotiation can resolve the requested torrent
+ * without computing the hash for each of the registered torrents.
+ *
+ * <p>The index is updated, when torrents are registered, started and stopped.
+ * Torrents are indexed upon registration, so that the ones, which have not been started yet
+ * (e.g. magnet links, which metadata is being fetched), can be resolved as well.
+ * Whether the torrent is active is checked by the caller.</p>
+ *
+ * @since 1.11
+ */
+class MSETorrentIndex {
+
+    private final ConcurrentMap<ByteBuffer, TorrentId> torrentsByHash;
+    private final ConcurrentMap<TorrentId, ByteBuffer> hashesByTorrent;
+
+    MSETorrentIndex(EventSource eventSource) {
+        this.torrentsByHash = new ConcurrentHashMap<>();
+        this.hashesByTorrent = new ConcurrentHashMap<>();
+
+        eventSource.onTorrentRegistered(null, e -> add(e.getTorrentId()));
+        eventSource.onTorrentStarted(null, e -> add(e.getTorrentId()));
+        eventSource.onTorrentStopped(null, e -> remove(e.getTorrentId()));
+    }
+
+    /**
+     * @param req2hash HASH('req2', SKEY), where SKEY is the torrent's info hash
+     * @return Registered torrent with the given hash or {@link Optional#empty()}, if there's no such torrent
+     */
+    Optional<TorrentId> getTorrentId(byte[] req2hash) {
+        return Optional.ofNullable(torrentsByHash.get(ByteBuffer.wrap(req2hash)));
+    }
+
+    private void add(TorrentId torrentId) {
+        if (hashesByTorrent.containsKey(torrentId)) {
+            return;
+        }
+        ByteBuffer key = ByteBuffer.wrap(req2hash(torrentId));
+        hashesByTorrent.put(torrentId, key);
+        torrentsByHash.put(key, torrentId);
+    }
+
+    private void remove(TorrentId torrentId) {
+        ByteBuffer key = hashesByTorrent.remove(torrentId);
+        if (key != null) {
+            torrentsByHash.remove(key, torrentId);
+        }
+    }
+
+    private static byte[] req2hash(TorrentId torrentId) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update("req2".getBytes(StandardCharsets.US_ASCII));
+        digest.update(torrentId.getBytes());
+        return digest.digest();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.metainfo.TorrentId;
+import bt.net.BigIntegers;
+import bt.net.Peer;
+import bt.net.buffer.BorrowedBuffer;
+import bt.protocol.Protocols;
+import bt.protocol.crypto.EncryptionPolicy;
+import bt.protocol.crypto.MSECipher;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Message Stream Encryption negotiation on the initiating side (A).
+ *
+ * <pre>
+ * 1. A->B: Diffie Hellman Ya, PadA
+ * 2. B->A: Diffie Hellman Yb, PadB
+ * 3. A->B:
+ *  - HASH('req1', S),
+ *  - HASH('req2', SKEY) xor HASH('req3', S),
+ *  - ENCRYPT(VC, crypto_provide, len(PadC), PadC, len(IA)),
+ *  - ENCRYPT(IA)
+ * 4. B->A:
+ *  - ENCRYPT(VC, crypto_select, len(padD), padD),
+ *  - ENCRYPT2(Payload Stream)
+ * 5. A->B: ENCRYPT2(Payload Stream)
+ * </pre>
+ *
+ * @since 1.11
+ */
+class OutgoingMSEHandshake extends MSEHandshake {
+
+    private enum State {
+        SEND_PUBLIC_KEY,
+        RECEIVE_PUBLIC_KEY,
+        CALCULATE_SHARED_SECRET,
+        SYNC_VC,
+        RECEIVE_CRYPTO_SELECT,
+        RECEIVE_PADDING,
+        DONE
+    }
+
+    private final TorrentId torrentId;
+
+    private State state;
+    private KeyPair keys;
+    private CompletableFuture<BigInteger> sharedSecret;
+    private byte[] encryptedVC;
+    private int theirPadding;
+
+    OutgoingMSEHandshake(Peer peer,
+                         ByteChannel channel,
+                         TorrentId torrentId,
+                         BorrowedBuffer<ByteBuffer> in,
+                         BorrowedBuffer<ByteBuffer> out,
+                         MSEKeyPairPool keyPool,
+                         EncryptionPolicy localEncryptionPolicy) {
+        super(peer, channel, in, out, keyPool, localEncryptionPolicy);
+        this.torrentId = torrentId;
+        this.state = State.SEND_PUBLIC_KEY;
+    }
+
+    @Override
+    protected boolean processData(ByteBuffer in, ByteBuffer out) {
+        for (;;) {
+            switch (state) {
+                case SEND_PUBLIC_KEY: {
+                    // 1. A->B: Diffie Hellman Ya, PadA
+                    // send our public key
+                    keys = keyPool.getKeyPair();
+                    out.put(keys.getPublic().getEncoded());
+                    out.put(getPadding(PADDING_MAX_LENGTH));
+                    state = State.RECEIVE_PUBLIC_KEY;
+                    break;
+                }
+                case RECEIVE_PUBLIC_KEY: {
+                    // 2. B->A: Diffie Hellman Yb, PadB
+                    // receive peer's public key
+                    int publicKeySize = keyGenerator.getPublicKeySize();
+                    if (in.position() < publicKeySize) {
+                        return false;
+                    }
+                    byte[] peerPublicKeyBytes = receive(in, publicKeySize);
+                    BigInteger peerPublicKey = BigIntegers.decodeUnsigned(ByteBuffer.wrap(peerPublicKeyBytes), publicKeySize);
+                    // calculate shared secret S
+                    sharedSecret = calculateSharedSecret(peerPublicKey, keys.getPrivate());
+                    state = State.CALCULATE_SHARED_SECRET;
+                    break;
+                }
+                case CALCULATE_SHARED_SECRET: {
+                    if (!sharedSecret.isDone()) {
+                        return false;
+                    }
+                    sendCryptoProvide(out, sharedSecret.join());
+                    // PadB will be discarded when synchronizing on VC
+                    state = State.SYNC_VC;
+                    break;
+                }
+                case SYNC_VC: {
+                    // 4. B->A:
+                    // - ENCRYPT(VC, crypto_select, len(padD), padD)
+                    // padding from phase 2 may be arriving later than expected,
+                    // so we need to synchronize on the incoming stream of data, looking for encrypted VC
+                    if (!sync(in, encryptedVC, PADDING_MAX_LENGTH)) {
+                        return false;
+                    }
+                    // align the incoming (decrypting) cipher
+                    decrypt(new byte[VC_RAW_BYTES.length]);
+                    state = State.RECEIVE_CRYPTO_SELECT;
+                    break;
+                }
+                case RECEIVE_CRYPTO_SELECT: {
+                    if (in.position() < 4/*crypto_select*/ + 2/*padding_len*/) {
+                        return false;
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(receiveEncrypted(in, 6));
+                    byte[] crypto_select = new byte[4];
+                    data.get(crypto_select);
+                    setNegotiatedEncryptionPolicy(selectPolicy(crypto_select, localEncryptionPolicy));
+                    theirPadding = data.getShort() & 0xFFFF;
+                    checkPaddingLength(theirPadding);
+                    state = State.RECEIVE_PADDING;
+                    break;
+                }
+                case RECEIVE_PADDING: {
+                    if (in.position() < theirPadding) {
+                        return false;
+                    }
+                    // discard padding; the rest of the data (if any) is the payload stream
+                    receiveEncrypted(in, theirPadding);
+                    state = State.DONE;
+                    break;
+                }
+                case DONE: {
+                    return true;
+                }
+                default: {
+                    throw new IllegalStateException("Unknown state: " + state);
+                }
+            }
+        }
+    }
+
+    private void sendCryptoProvide(ByteBuffer out, BigInteger S) {
+        // 3. A->B:
+        byte[] Sbytes = BigIntegers.encodeUnsigned(S, MSEKeyPairGenerator.PUBLIC_KEY_BYTES);
+        MessageDigest digest = getDigest("SHA-1");
+        // - HASH('req1', S)
+        digest.update("req1".getBytes(StandardCharsets.US_ASCII));
+        digest.update(Sbytes);
+        out.put(digest.digest());
+        // - HASH('req2', SKEY) xor HASH('req3', S)
+        digest.update("req2".getBytes(StandardCharsets.US_ASCII));
+        digest.update(torrentId.getBytes());
+        byte[] b1 = digest.digest();
+        digest.update("req3".getBytes(StandardCharsets.US_ASCII));
+        digest.update(Sbytes);
+        byte[] b2 = digest.digest();
+        out.put(xor(b1, b2));
+
+        MSECipher cipher = MSECipher.forInitiator(Sbytes, torrentId);
+        setCipher(cipher);
+        // - ENCRYPT(VC, crypto_provide, len(PadC), PadC, len(IA))
+        byte[] padding = getZeroPadding(PADDING_MAX_LENGTH);
+        ByteBuffer data = ByteBuffer.allocate(VC_RAW_BYTES.length + 4 + 2 + padding.length + 2);
+        data.put(VC_RAW_BYTES);
+        data.put(getCryptoProvideBitfield(localEncryptionPolicy));
+        data.put(Protocols.getShortBytes(padding.length));
+        data.put(padding);
+        // - ENCRYPT(IA)
+        // do not write IA (initial payload data) for now, wait for encryption negotiation
+        data.putShort((short) 0); // IA length = 0
+        putEncrypted(out, data.array());
+
+        // calculate the expected encrypted VC from the peer
+        MSECipher throwawayCipher = MSECipher.forInitiator(Sbytes, torrentId);
+        encryptedVC = VC_RAW_BYTES.clone();
+        throwawayCipher.decrypt(ByteBuffer.wrap(encryptedVC));
+    }
+}
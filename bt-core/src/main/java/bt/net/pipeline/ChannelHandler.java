@@ -28,10 +28,27 @@ import java.io.IOException;
 public interface ChannelHandler {
 
     /**
+     * Encode the message and write it to the underlying channel.
+     * If the outgoing data can't be written immediately, it will be written asynchronously,
+     * when the channel becomes ready for writing.
+     *
+     * @throws IllegalStateException if there is not enough space to encode the message
+     * @see #trySend(Message)
      * @since 1.6
      */
     void send(Message message);
 
+    /**
+     * Encode the message and write it to the underlying channel, if there is enough space in the outbound buffer.
+     * Never blocks: if the pending outgoing data must be written before the message can be encoded,
+     * the message is rejected, and the writable listener (see {@link #setWritableListener(Runnable)})
+     * will be notified, when all pending data has been written and the caller may retry.
+     *
+     * @return true, if the message has been encoded; false, if it has been rejected
+     * @since 1.11
+     */
+    boolean trySend(Message message);
+
     /**
      * @return Message or null, if there are no incoming messages
      * @since 1.6
@@ -46,6 +63,33 @@ public interface ChannelHandler {
      */
     boolean read() throws IOException;
 
+    /**
+     * Request to write pending outgoing data to the underlying channel.
+     * Unlike {@link #flush()}, this method is intended to be called by the network thread,
+     * when the channel becomes ready for writing.
+     *
+     * @return true, if all pending data has been written
+     * @since 1.11
+     */
+    boolean write() throws IOException;
+
+    /**
+     * Set a listener, that will be notified each time new data has been read from the underlying channel.
+     * Notification is done in the network thread, so the listener should return quickly.
+     *
+     * @since 1.11
+     */
+    void setDataReceivedListener(Runnable listener);
+
+    /**
+     * Set a listener, that will be notified when all pending outgoing data has been written
+     * after some message had been rejected by {@link #trySend(Message)}.
+     * Notification is done in the network thread, so the listener should return quickly.
+     *
+     * @since 1.11
+     */
+    void setWritableListener(Runnable listener);
+
     /**
      * @since 1.6
      */
@@ -68,6 +112,8 @@ public interface ChannelHandler {
 
     /**
      * Request to write pending outgoing data to the underlying channel.
+     * Does not block, if the channel is not ready to accept all data;
+     * the remaining data will be written asynchronously.
      *
      * @since 1.6
      */
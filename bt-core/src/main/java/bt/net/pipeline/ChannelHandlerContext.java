@@ -38,6 +38,14 @@ public interface ChannelHandlerContext {
      */
     boolean readFromChannel() throws IOException;
 
+    /**
+     * Request writing pending outgoing data to the channel
+     *
+     * @return true, if all pending data has been written
+     * @since 1.11
+     */
+    boolean writeToChannel() throws IOException;
+
     /**
      * @since 1.6
      */
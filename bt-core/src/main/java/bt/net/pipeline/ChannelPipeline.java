@@ -38,6 +38,14 @@ public interface ChannelPipeline {
      */
     boolean encode(Message message);
 
+    /**
+     * @return true, if encoded data is further transformed before being written to the channel (e.g. encrypted).
+     *         If there are no encoders, then parts of outgoing messages may be written
+     *         to the channel directly, bypassing this pipeline.
+     * @since 1.11
+     */
+    boolean hasEncoders();
+
     /**
      * Attach channel handler to this pipeline
      *
@@ -118,6 +118,11 @@ public class DefaultChannelPipeline implements ChannelPipeline {
         return written;
     }
 
+    @Override
+    public boolean hasEncoders() {
+        return !encoders.isEmpty();
+    }
+
     private void checkHandlerIsBound() {
         if (context == null) {
             throw new IllegalStateException("Channel handler is not bound");
@@ -162,6 +167,11 @@ public class DefaultChannelPipeline implements ChannelPipeline {
             return handler.read();
         }
 
+        @Override
+        public boolean writeToChannel() throws IOException {
+            return handler.write();
+        }
+
         @Override
         public void fireChannelRegistered() {
             // TODO
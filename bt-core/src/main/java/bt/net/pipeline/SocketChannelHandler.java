@@ -19,6 +19,9 @@ package bt.net.pipeline;
 import bt.net.DataReceiver;
 import bt.net.buffer.BorrowedBuffer;
 import bt.protocol.Message;
+import bt.protocol.Piece;
+import bt.protocol.handler.PieceHandler;
+import bt.torrent.data.TransferableBlockReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,12 +29,18 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 public class SocketChannelHandler implements ChannelHandler {
     private static final Logger LOGGER = LoggerFactory.getLogger(SocketChannelHandler.class);
 
+    // max number of messages, that may be queued behind a pending block transfer
+    private static final int MAX_DEFERRED_MESSAGES = 64;
+
     private final SocketChannel channel;
     private final BorrowedBuffer<ByteBuffer> inboundBuffer;
     private final BorrowedBuffer<ByteBuffer> outboundBuffer;
@@ -43,6 +52,19 @@ public class SocketChannelHandler implements ChannelHandler {
     private final AtomicBoolean shutdown;
 
     private volatile boolean closing = false;
+    // accessed only when holding the outbound buffer lock
+    private boolean writeRequested;
+    // whether some message has been rejected since the last time all pending data has been written;
+    // accessed only when holding the outbound buffer lock
+    private boolean sendRejected;
+    // block, that should be transferred directly from storage after all data in the outbound buffer has been written;
+    // accessed only when holding the outbound buffer lock
+    private TransferableBlockReader pendingTransfer;
+    // messages, that have been sent while the outbound buffer could not be appended to (see #pendingTransfer);
+    // accessed only when holding the outbound buffer lock
+    private final Queue<Message> deferredMessages;
+    private volatile Runnable dataReceivedListener;
+    private volatile Runnable writableListener;
 
     public SocketChannelHandler(
             SocketChannel channel,
@@ -60,17 +82,87 @@ public class SocketChannelHandler implements ChannelHandler {
         this.inboundBufferLock = new Object();
         this.outboundBufferLock = new Object();
         this.shutdown = new AtomicBoolean(false);
+        this.deferredMessages = new ArrayDeque<>();
     }
 
     @Override
     public void send(Message message) {
-        if (!context.pipeline().encode(message)) {
+        if (!trySend(message)) {
+            throw new IllegalStateException("Failed to send message, not enough space in the outbound buffer: "
+                    + message);
+        }
+    }
+
+    @Override
+    public boolean trySend(Message message) {
+        synchronized (outboundBufferLock) {
+            if (closing || isClosed()) {
+                throw new IllegalStateException("Failed to send message, channel is closed: " + message);
+            }
+            if (!encode(message)) {
+                // try to make some space without blocking
+                boolean allWritten = writePendingData();
+                if (!encode(message)) {
+                    if (allWritten) {
+                        throw new IllegalStateException("Failed to send message: " + message);
+                    }
+                    // the rest of pending data will be written by the network thread,
+                    // which will notify the writable listener afterwards (see #write())
+                    sendRejected = true;
+                    requestWrite();
+                    return false;
+                }
+            }
             flush();
-            if (!context.pipeline().encode(message)) {
-                throw new IllegalStateException("Failed to send message: " + message);
+            return true;
+        }
+    }
+
+    /**
+     * Caller must hold the outbound buffer lock.
+     *
+     * @return true, if the message has been encoded
+     */
+    private boolean encode(Message message) {
+        if (pendingTransfer != null || !deferredMessages.isEmpty()) {
+            // nothing can be appended to the outbound buffer until the pending block has been transferred,
+            // so control messages (have, choke, keep-alive, etc.) are queued behind it;
+            // blocks are left to the sender to avoid buffering them
+            if (!(message instanceof Piece) && deferredMessages.size() < MAX_DEFERRED_MESSAGES) {
+                deferredMessages.add(message);
+                return true;
             }
+            return false;
+        }
+        return encodeNow(message);
+    }
+
+    /**
+     * Caller must hold the outbound buffer lock.
+     *
+     * @return true, if the message has been encoded
+     */
+    private boolean encodeNow(Message message) {
+        if (message instanceof Piece && !context.pipeline().hasEncoders()) {
+            Optional<TransferableBlockReader> reader = ((Piece) message).getTransferableReader();
+            if (reader.isPresent()) {
+                return encodePieceHeader((Piece) message, reader.get());
+            }
+        }
+        return context.pipeline().encode(message);
+    }
+
+    private boolean encodePieceHeader(Piece piece, TransferableBlockReader reader) {
+        ByteBuffer buffer = outboundBuffer.lockAndGet();
+        try {
+            if (buffer == null || !PieceHandler.writePieceHeader(piece, buffer)) {
+                return false;
+            }
+            pendingTransfer = reader;
+            return true;
+        } finally {
+            outboundBuffer.unlock();
         }
-        flush();
     }
 
     @Override
@@ -88,6 +180,41 @@ public class SocketChannelHandler implements ChannelHandler {
         }
     }
 
+    @Override
+    public boolean write() throws IOException {
+        boolean notifyWritable = false;
+        try {
+            synchronized (outboundBufferLock) {
+                try {
+                    boolean allWritten = closing || writeOutboundData(true);
+                    if (allWritten) {
+                        writeRequested = false;
+                        notifyWritable = sendRejected && !closing;
+                        sendRejected = false;
+                    }
+                    return allWritten;
+                } catch (RuntimeException | IOException e) {
+                    shutdown();
+                    throw e;
+                }
+            }
+        } finally {
+            if (notifyWritable) {
+                notifyListener(writableListener, "writable");
+            }
+        }
+    }
+
+    @Override
+    public void setDataReceivedListener(Runnable listener) {
+        this.dataReceivedListener = listener;
+    }
+
+    @Override
+    public void setWritableListener(Runnable listener) {
+        this.writableListener = listener;
+    }
+
     @Override
     public void register() {
         dataReceiver.registerChannel(channel, context);
@@ -122,6 +249,7 @@ public class SocketChannelHandler implements ChannelHandler {
                         ;
                     boolean insufficientSpace = !buffer.hasRemaining();
                     context.fireDataReceived();
+                    notifyListener(dataReceivedListener, "data received");
                     if (readLast == -1) {
                         throw new EOFException();
                     } else if (!insufficientSpace) {
@@ -135,27 +263,123 @@ public class SocketChannelHandler implements ChannelHandler {
         }
     }
 
+    private void notifyListener(Runnable listener, String listenerName) {
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                LOGGER.error("Unexpected error in " + listenerName + " listener", e);
+            }
+        }
+    }
+
     @Override
     public void flush() {
         synchronized (outboundBufferLock) {
-            ByteBuffer buffer = outboundBuffer.lockAndGet();
-            try {
-                if (buffer == null) {
-                    // buffer has been released
-                    outboundBuffer.unlock();
-                    return;
+            if (closing) {
+                return;
+            }
+            if (!writePendingData()) {
+                // the channel is not ready to accept all data, the rest will be written by the network thread
+                requestWrite();
+            }
+        }
+    }
+
+    /**
+     * Caller must hold the outbound buffer lock.
+     */
+    private void requestWrite() {
+        if (!writeRequested) {
+            writeRequested = true;
+            dataReceiver.requestChannelWrite(channel);
+        }
+    }
+
+    /**
+     * Write as much pending data as the channel accepts without blocking.
+     * Pending block transfer is left to the network thread (see {@link #write()}),
+     * so that the callers are never stalled by storage reads.
+     * Caller must hold the outbound buffer lock.
+     *
+     * @return true, if all pending data has been written
+     */
+    private boolean writePendingData() {
+        try {
+            return writeOutboundData(false);
+        } catch (IOException e) {
+            shutdown();
+            throw new RuntimeException("Unexpected I/O error", e);
+        }
+    }
+
+    /**
+     * Write as much pending data as the channel accepts without blocking.
+     * At most one block is transferred from storage per invocation,
+     * because a new block transfer may only be started by {@link #trySend(Message)}.
+     * Caller must hold the outbound buffer lock.
+     *
+     * @param transfer Whether the pending block should be transferred
+     * @return true, if all pending data has been written
+     */
+    private boolean writeOutboundData(boolean transfer) throws IOException {
+        ByteBuffer buffer = outboundBuffer.lockAndGet();
+        try {
+            if (buffer == null) {
+                // buffer has been released
+                return true;
+            }
+            for (;;) {
+                if (!writeBuffer(buffer)) {
+                    return false;
                 }
-                buffer.flip();
-                while (buffer.hasRemaining() && !closing) {
-                    channel.write(buffer);
+                if (pendingTransfer != null) {
+                    if (!transfer || !pendingTransfer.transferTo(channel)) {
+                        return false;
+                    }
+                    pendingTransfer = null;
                 }
-                buffer.compact();
-                outboundBuffer.unlock();
-            } catch (IOException e) {
-                outboundBuffer.unlock(); // can't use finally block due to possibility of double-unlock
-                shutdown();
-                throw new RuntimeException("Unexpected I/O error", e);
+                if (deferredMessages.isEmpty()) {
+                    return true;
+                }
+                encodeDeferredMessages();
             }
+        } finally {
+            outboundBuffer.unlock();
+        }
+    }
+
+    /**
+     * Caller must hold the outbound buffer lock.
+     *
+     * @return true, if all data in the buffer has been written
+     */
+    private boolean writeBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining() && channel.write(buffer) > 0)
+                ;
+            return !buffer.hasRemaining();
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Encode as many deferred messages, as there is space for in the (empty) outbound buffer.
+     * Caller must hold the outbound buffer lock.
+     */
+    private void encodeDeferredMessages() {
+        Message message;
+        boolean encoded = false;
+        while ((message = deferredMessages.peek()) != null && encodeNow(message)) {
+            deferredMessages.poll();
+            encoded = true;
+        }
+        if (!encoded) {
+            // message does not fit even into the empty buffer
+            deferredMessages.clear();
+            throw new IllegalStateException("Failed to send message: " + message);
         }
     }
 
@@ -165,6 +389,7 @@ public class SocketChannelHandler implements ChannelHandler {
         synchronized (inboundBufferLock) {
             synchronized (outboundBufferLock) {
                 shutdown();
+                deferredMessages.clear();
             }
         }
     }
@@ -20,6 +20,7 @@ import bt.data.PeerBitfield;
 import bt.event.EventSink;
 import bt.metainfo.TorrentId;
 import bt.net.ConnectionKey;
+import bt.net.IMessageDispatcher;
 import bt.net.IPeerConnectionPool;
 import bt.net.pipeline.IBufferedPieceRegistry;
 import bt.processor.ProcessingStage;
@@ -46,9 +47,10 @@ public class InitializeMagnetTorrentProcessingStage extends InitializeTorrentPro
                                                   TorrentRegistry torrentRegistry,
                                                   DataWorker dataWorker,
                                                   IBufferedPieceRegistry bufferedPieceRegistry,
+                                                  IMessageDispatcher messageDispatcher,
                                                   EventSink eventSink,
                                                   Config config) {
-        super(next, connectionPool, torrentRegistry, dataWorker, bufferedPieceRegistry, eventSink, config);
+        super(next, connectionPool, torrentRegistry, dataWorker, bufferedPieceRegistry, messageDispatcher, eventSink, config);
         this.eventSink = eventSink;
     }
 
@@ -21,6 +21,7 @@ import bt.data.LocalBitfield;
 import bt.event.EventSink;
 import bt.metainfo.Torrent;
 import bt.metainfo.TorrentId;
+import bt.net.IMessageDispatcher;
 import bt.net.IPeerConnectionPool;
 import bt.net.extended.ExtendedHandshakeConsumer;
 import bt.net.pipeline.IBufferedPieceRegistry;
@@ -45,6 +46,7 @@ public class InitializeTorrentProcessingStage<C extends TorrentContext> extends
     private final TorrentRegistry torrentRegistry;
     private final DataWorker dataWorker;
     private final IBufferedPieceRegistry bufferedPieceRegistry;
+    private final IMessageDispatcher messageDispatcher;
     private final EventSink eventSink;
     private final Config config;
 
@@ -53,6 +55,7 @@ public class InitializeTorrentProcessingStage<C extends TorrentContext> extends
                                             TorrentRegistry torrentRegistry,
                                             DataWorker dataWorker,
                                             IBufferedPieceRegistry bufferedPieceRegistry,
+                                            IMessageDispatcher messageDispatcher,
                                             EventSink eventSink,
                                             Config config) {
         super(next);
@@ -60,6 +63,7 @@ public class InitializeTorrentProcessingStage<C extends TorrentContext> extends
         this.torrentRegistry = torrentRegistry;
         this.dataWorker = dataWorker;
         this.bufferedPieceRegistry = bufferedPieceRegistry;
+        this.messageDispatcher = messageDispatcher;
         this.eventSink = eventSink;
         this.config = config;
     }
@@ -78,8 +82,9 @@ public class InitializeTorrentProcessingStage<C extends TorrentContext> extends
         context.getRouter().registerMessagingAgent(new BitfieldConsumer(bitfield, pieceStatistics, eventSink));
         context.getRouter().registerMessagingAgent(new ExtendedHandshakeConsumer(connectionPool));
         context.getRouter().registerMessagingAgent(new PieceConsumer(torrentId, bitfield, dataWorker, bufferedPieceRegistry, eventSink));
-        context.getRouter().registerMessagingAgent(new PeerRequestConsumer(torrentId, dataWorker));
-        context.getRouter().registerMessagingAgent(new RequestProducer(descriptor.getDataDescriptor(), config.getMaxOutstandingRequests()));
+        context.getRouter().registerMessagingAgent(new PeerRequestConsumer(torrentId, dataWorker, messageDispatcher));
+        context.getRouter().registerMessagingAgent(new RequestProducer(descriptor.getDataDescriptor(),
+                config.getMinOutstandingRequests(), config.getMaxOutstandingRequests()));
         context.getRouter().registerMessagingAgent(new MetadataProducer(() -> context.getTorrent().orElse(null), config));
 
         context.setBitfield(bitfield);
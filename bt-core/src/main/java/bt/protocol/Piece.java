@@ -17,10 +17,12 @@
 package bt.protocol;
 
 import bt.torrent.data.BlockReader;
+import bt.torrent.data.TransferableBlockReader;
 import com.google.common.base.MoreObjects;
 
 import java.nio.ByteBuffer;
 import java.util.Objects;
+import java.util.Optional;
 
 /**
  * @since 1.0
@@ -82,6 +84,16 @@ public final class Piece implements Message {
         return reader.readTo(buffer);
     }
 
+    /**
+     * @return Reader, that is able to transfer the block directly to a channel,
+     *         or {@link Optional#empty()}, if the block can only be read into a buffer
+     * @since 1.11
+     */
+    public Optional<TransferableBlockReader> getTransferableReader() {
+        return (reader instanceof TransferableBlockReader) ?
+                Optional.of((TransferableBlockReader) reader) : Optional.empty();
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
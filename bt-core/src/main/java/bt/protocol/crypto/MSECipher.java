@@ -21,6 +21,7 @@ import bt.metainfo.TorrentId;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.Key;
 import java.security.MessageDigest;
@@ -29,8 +30,11 @@ import java.security.NoSuchAlgorithmException;
 /**
  * RC4-drop1024 stream cipher, used in Message Stream Encryption protocol.
  *
- * Ciphers that are returned by {@link #getEncryptionCipher()} and {@link #getDecryptionCipher()}
- * will be different, depending on which of the factory methods was used to build an instance of this class:
+ * Data is encrypted and decrypted in place by {@link #encrypt(ByteBuffer)} and {@link #decrypt(ByteBuffer)},
+ * both for heap and direct buffers, without intermediate copying.
+ *
+ * Keys, that are used for encryption and decryption, will be different,
+ * depending on which of the factory methods was used to build an instance of this class:
  * - connection initiating side should use {@link #forInitiator(byte[], TorrentId)} factory method
  * - receiver of connection request should use {@link #forReceiver(byte[], TorrentId)} factory method
  *
@@ -39,9 +43,16 @@ import java.security.NoSuchAlgorithmException;
 public class MSECipher {
 
     private static final String transformation = "ARCFOUR/ECB/NoPadding";
+    // RC4-drop1024
+    private static final int KEYSTREAM_DROP_BYTES = 1024;
+
+    private final Key incomingKey;
+    private final Key outgoingKey;
+    private final RC4 incomingRC4;
+    private final RC4 outgoingRC4;
 
-    private final Cipher incomingCipher;
-    private final Cipher outgoingCipher;
+    private volatile Cipher incomingCipher;
+    private volatile Cipher outgoingCipher;
 
     /**
      * @throws BtException if the check can't be performed,
@@ -90,25 +101,65 @@ public class MSECipher {
     private MSECipher(byte[] S, TorrentId torrentId, boolean initiator) {
         Key initiatorKey = getInitiatorEncryptionKey(S, torrentId.getBytes());
         Key receiverKey = getReceiverEncryptionKey(S, torrentId.getBytes());
-        Key outgoingKey = initiator ? initiatorKey : receiverKey;
-        Key incomingKey = initiator ? receiverKey : initiatorKey;
-        this.incomingCipher = createCipher(Cipher.DECRYPT_MODE, transformation, incomingKey);
-        this.outgoingCipher = createCipher(Cipher.ENCRYPT_MODE, transformation, outgoingKey);
+        this.outgoingKey = initiator ? initiatorKey : receiverKey;
+        this.incomingKey = initiator ? receiverKey : initiatorKey;
+        this.outgoingRC4 = new RC4(outgoingKey.getEncoded(), KEYSTREAM_DROP_BYTES);
+        this.incomingRC4 = new RC4(incomingKey.getEncoded(), KEYSTREAM_DROP_BYTES);
+    }
+
+    /**
+     * Encrypt outgoing data between buffer's position and limit in place.
+     * When this method has returned, buffer's position will be equal to its' limit.
+     *
+     * @since 1.11
+     */
+    public void encrypt(ByteBuffer buffer) {
+        outgoingRC4.update(buffer);
+    }
+
+    /**
+     * Decrypt incoming data between buffer's position and limit in place.
+     * When this method has returned, buffer's position will be equal to its' limit.
+     *
+     * @since 1.11
+     */
+    public void decrypt(ByteBuffer buffer) {
+        incomingRC4.update(buffer);
     }
 
     /**
      * @return Cipher for encrypting outgoing data
      * @since 1.2
+     * @deprecated since 1.11 in favor of {@link #encrypt(ByteBuffer)}, which does not require copying the data.
+     *             Note that the returned cipher has its' own keystream, independent of {@link #encrypt(ByteBuffer)}
      */
+    @Deprecated
     public Cipher getEncryptionCipher() {
+        if (outgoingCipher == null) {
+            synchronized (this) {
+                if (outgoingCipher == null) {
+                    outgoingCipher = createCipher(Cipher.ENCRYPT_MODE, transformation, outgoingKey);
+                }
+            }
+        }
         return outgoingCipher;
     }
 
     /**
      * @return Cipher for decrypting incoming data
      * @since 1.2
+     * @deprecated since 1.11 in favor of {@link #decrypt(ByteBuffer)}, which does not require copying the data.
+     *             Note that the returned cipher has its' own keystream, independent of {@link #decrypt(ByteBuffer)}
      */
+    @Deprecated
     public Cipher getDecryptionCipher() {
+        if (incomingCipher == null) {
+            synchronized (this) {
+                if (incomingCipher == null) {
+                    incomingCipher = createCipher(Cipher.DECRYPT_MODE, transformation, incomingKey);
+                }
+            }
+        }
         return incomingCipher;
     }
 
@@ -141,7 +192,7 @@ public class MSECipher {
         try {
             cipher = Cipher.getInstance(transformation);
             cipher.init(mode, key);
-            cipher.update(new byte[1024]); // discard first 1024 bytes
+            cipher.update(new byte[KEYSTREAM_DROP_BYTES]); // discard first 1024 bytes
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
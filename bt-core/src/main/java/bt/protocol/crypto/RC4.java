@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.protocol.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * RC4 stream cipher, that transforms the data in place.
+ * Works with both heap and direct buffers without copying the data to intermediate arrays.
+ * Encryption and decryption are the same operation.
+ *
+ * <p>Instances are not thread-safe.</p>
+ *
+ * @since 1.11
+ */
+class RC4 {
+
+    private final int[] S;
+    private int i;
+    private int j;
+
+    /**
+     * @param key Key, 1..256 bytes
+     * @param drop Number of initial bytes of the keystream to discard (e.g. 1024 for RC4-drop1024)
+     */
+    RC4(byte[] key, int drop) {
+        if (key.length == 0 || key.length > 256) {
+            throw new IllegalArgumentException("Illegal key length: " + key.length);
+        }
+        int[] S = new int[256];
+        for (int k = 0; k < 256; k++) {
+            S[k] = k;
+        }
+        int j = 0;
+        for (int k = 0; k < 256; k++) {
+            int t = S[k];
+            j = (j + t + (key[k % key.length] & 0xFF)) & 0xFF;
+            S[k] = S[j];
+            S[j] = t;
+        }
+        this.S = S;
+
+        for (int k = 0; k < drop; k++) {
+            nextByte();
+        }
+    }
+
+    private int nextByte() {
+        int[] S = this.S;
+        int i = (this.i + 1) & 0xFF;
+        int si = S[i];
+        int j = (this.j + si) & 0xFF;
+        int sj = S[j];
+        S[i] = sj;
+        S[j] = si;
+        this.i = i;
+        this.j = j;
+        return S[(si + sj) & 0xFF];
+    }
+
+    /**
+     * Transform the data between buffer's position and limit in place.
+     * When this method has returned, buffer's position will be equal to its' limit.
+     */
+    void update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        if (buffer.hasArray()) {
+            int offset = buffer.arrayOffset();
+            update(buffer.array(), offset + position, offset + limit);
+        } else {
+            updateDirect(buffer, position, limit);
+        }
+        buffer.position(limit);
+    }
+
+    private void update(byte[] bytes, int from, int to) {
+        int[] S = this.S;
+        int i = this.i, j = this.j;
+        for (int k = from; k < to; k++) {
+            i = (i + 1) & 0xFF;
+            int si = S[i];
+            j = (j + si) & 0xFF;
+            int sj = S[j];
+            S[i] = sj;
+            S[j] = si;
+            bytes[k] ^= S[(si + sj) & 0xFF];
+        }
+        this.i = i;
+        this.j = j;
+    }
+
+    private void updateDirect(ByteBuffer buffer, int from, int to) {
+        int[] S = this.S;
+        int i = this.i, j = this.j;
+        boolean bigEndian = (buffer.order() == ByteOrder.BIG_ENDIAN);
+
+        // process the data in 8-byte words to reduce the number of (relatively expensive) off-heap accesses
+        int k = from;
+        for (; k + Long.BYTES <= to; k += Long.BYTES) {
+            long keystream = 0;
+            for (int b = 0; b < Long.BYTES; b++) {
+                i = (i + 1) & 0xFF;
+                int si = S[i];
+                j = (j + si) & 0xFF;
+                int sj = S[j];
+                S[i] = sj;
+                S[j] = si;
+                long ks = S[(si + sj) & 0xFF];
+                keystream |= bigEndian ? (ks << ((Long.BYTES - 1 - b) << 3)) : (ks << (b << 3));
+            }
+            buffer.putLong(k, buffer.getLong(k) ^ keystream);
+        }
+        for (; k < to; k++) {
+            i = (i + 1) & 0xFF;
+            int si = S[i];
+            j = (j + si) & 0xFF;
+            int sj = S[j];
+            S[i] = sj;
+            S[j] = si;
+            buffer.put(k, (byte) (buffer.get(k) ^ S[(si + sj) & 0xFF]));
+        }
+        this.i = i;
+        this.j = j;
+    }
+}
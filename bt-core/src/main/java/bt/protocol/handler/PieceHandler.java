@@ -20,6 +20,7 @@ import bt.net.buffer.ByteBufferView;
 import bt.protocol.DecodingContext;
 import bt.protocol.EncodingContext;
 import bt.protocol.Piece;
+import bt.protocol.StandardBittorrentProtocol;
 
 import java.nio.ByteBuffer;
 
@@ -27,6 +28,8 @@ import static bt.protocol.Protocols.readInt;
 
 public final class PieceHandler extends UniqueMessageHandler<Piece> {
 
+    private static final int PIECE_HEADER_SIZE = Integer.BYTES + Byte.BYTES + Integer.BYTES * 2;
+
     public PieceHandler() {
         super(Piece.class);
     }
@@ -56,6 +59,27 @@ public final class PieceHandler extends UniqueMessageHandler<Piece> {
         return message.writeBlockTo(buffer);
     }
 
+    /**
+     * Write the piece message, except for the block of data itself,
+     * which is then expected to be transferred to the channel directly.
+     *
+     * @return true, if there is sufficient space to write the header
+     * @since 1.11
+     */
+    public static boolean writePieceHeader(Piece message, ByteBuffer buffer) {
+        if (buffer.remaining() < PIECE_HEADER_SIZE) {
+            return false;
+        }
+
+        // <len=0009+X><id=7><index><begin>
+        buffer.putInt(Byte.BYTES + Integer.BYTES * 2 + message.getLength());
+        buffer.put((byte) StandardBittorrentProtocol.PIECE_ID);
+        buffer.putInt(message.getPieceIndex());
+        buffer.putInt(message.getOffset());
+
+        return true;
+    }
+
     private static int decodePiece(DecodingContext context, ByteBufferView buffer, int length) {
 
         int consumed = 0;
@@ -22,6 +22,7 @@ import bt.protocol.crypto.EncryptionPolicy;
 import bt.service.NetworkUtil;
 
 import java.net.InetAddress;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Optional;
 
@@ -67,6 +68,18 @@ public class Config {
     private int maxOutstandingRequests;
     private int networkBufferSize;
     private int hashingBufferSize;
+    private int numOfDataReceivingThreads;
+    private int numOfMessageDispatchingThreads;
+    private int mseKeyPairPoolSize;
+    private boolean zeroCopySeedingEnabled;
+    private int numOfDataWorkerThreads;
+    private boolean incrementalHashingEnabled;
+    private int incrementalHashingBufferSize;
+    private long pieceAssemblyCacheSize;
+    private long blockCacheSize;
+    private Path resumeDataDirectory;
+    private int maxEndgameDuplicates;
+    private int minOutstandingRequests;
 
     /**
      * Create a config with default parameters.
@@ -109,6 +122,17 @@ public class Config {
         this.maxOutstandingRequests = 250;
         this.networkBufferSize = 1 * 1024 * 1024; // 1 MB
         this.hashingBufferSize = SHA1Digester.DEFAULT_BUFFER_SIZE;
+        this.numOfDataReceivingThreads = 1;
+        this.numOfMessageDispatchingThreads = 1;
+        this.mseKeyPairPoolSize = 16;
+        this.zeroCopySeedingEnabled = true;
+        this.numOfDataWorkerThreads = 4;
+        this.incrementalHashingEnabled = true;
+        this.incrementalHashingBufferSize = 16 * 1024 * 1024;
+        this.pieceAssemblyCacheSize = 64L * 1024 * 1024;
+        this.blockCacheSize = 0;
+        this.maxEndgameDuplicates = 3;
+        this.minOutstandingRequests = 4;
     }
 
     /**
@@ -153,6 +177,18 @@ public class Config {
         this.maxOutstandingRequests = config.getMaxOutstandingRequests();
         this.networkBufferSize = config.getNetworkBufferSize();
         this.hashingBufferSize = config.getHashingBufferSize();
+        this.numOfDataReceivingThreads = config.getNumOfDataReceivingThreads();
+        this.numOfMessageDispatchingThreads = config.getNumOfMessageDispatchingThreads();
+        this.mseKeyPairPoolSize = config.getMseKeyPairPoolSize();
+        this.zeroCopySeedingEnabled = config.isZeroCopySeedingEnabled();
+        this.numOfDataWorkerThreads = config.getNumOfDataWorkerThreads();
+        this.incrementalHashingEnabled = config.isIncrementalHashingEnabled();
+        this.incrementalHashingBufferSize = config.getIncrementalHashingBufferSize();
+        this.pieceAssemblyCacheSize = config.getPieceAssemblyCacheSize();
+        this.blockCacheSize = config.getBlockCacheSize();
+        this.resumeDataDirectory = config.getResumeDataDirectory();
+        this.maxEndgameDuplicates = config.getMaxEndgameDuplicates();
+        this.minOutstandingRequests = config.getMinOutstandingRequests();
     }
 
     /**
@@ -432,7 +468,11 @@ public class Config {
 
     /**
      * @param numOfHashingThreads Set this value to 2 or greater,
-     *                            if verification of the torrent data should be parallelized
+     *                            if verification of the torrent data should be parallelized.
+     *                            Since 1.11 this is the number of threads, that verify data of all torrents
+     *                            in the runtime (queued by priority, see {@link bt.data.VerificationScheduler}),
+     *                            and also the size of the pool, that verifies the downloaded pieces.
+     *                            For the initial verification 0 or less means the number of available processors.
      * @since 1.1
      */
     public void setNumOfHashingThreads(int numOfHashingThreads) {
@@ -515,20 +555,23 @@ public class Config {
     /**
      * This option is related to the adaptive message processing interval feature in the message dispatcher.
      * The lower this value the higher the ingoing/outgoing message processing rate but also higher the CPU load.
-     * Reasonable value (in 100..1000 ms range) greatly reduces the CPU load when there is little network activity
-     * without compromising the overall message exchange rates.
      *
      * @param maxMessageProcessingInterval Maximum time to sleep between message processing loop iterations, in millis.
      * @see bt.net.MessageDispatcher
      * @since 1.1
+     * @deprecated since 1.11: message dispatcher does not poll connections anymore, but processes them
+     *             as soon as they are signalled (see {@link bt.net.IMessageDispatcher}); this value is ignored
      */
+    @Deprecated
     public void setMaxMessageProcessingInterval(Duration maxMessageProcessingInterval) {
         this.maxMessageProcessingInterval = maxMessageProcessingInterval;
     }
 
     /**
      * @since 1.1
+     * @deprecated since 1.11: this value is ignored
      */
+    @Deprecated
     public Duration getMaxMessageProcessingInterval() {
         return maxMessageProcessingInterval;
     }
@@ -554,6 +597,8 @@ public class Config {
      * @param maxPendingConnectionRequests Maximum allowed number of simultaneous connection requests
      *                                     (both inbound and outbound). All subsequent requests will be queued
      *                                     until some of the currently pending/processed requests is completed.
+     *                                     Outgoing connections are established without blocking,
+     *                                     so this limit applies only to performing the handshake.
      * @since 1.1
      */
     public void setMaxPendingConnectionRequests(int maxPendingConnectionRequests) {
@@ -665,14 +710,19 @@ public class Config {
      * @param mseWaitBetweenReads Read timeout when doing mse handshake.
      *                            In good network environment, turning down this value may decrease mse handshake time cost.
      * @since 1.10
+     * @deprecated since 1.11: MSE handshake is driven by the socket readiness and does not wait between reads anymore;
+     *             this value is ignored
      */
+    @Deprecated
     public void setMseWaitBetweenReads(Duration mseWaitBetweenReads) {
         this.mseWaitBetweenReads = mseWaitBetweenReads;
     }
 
     /**
      * @since 1.10
+     * @deprecated since 1.11: this value is ignored
      */
+    @Deprecated
     public Duration getMseWaitBetweenReads() {
         return mseWaitBetweenReads;
     }
@@ -693,7 +743,8 @@ public class Config {
     }
 
     /**
-     * @param maxOutstandingRequests Limit on the number of outstanding requests to a peer
+     * @param maxOutstandingRequests Limit on the number of outstanding requests to a peer.
+     *                               Slow peers are given fewer requests, see {@link #setMinOutstandingRequests(int)}.
      * @since 1.9
      */
     public void setMaxOutstandingRequests(int maxOutstandingRequests) {
@@ -741,4 +792,221 @@ public class Config {
     public void setHashingBufferSize(int hashingBufferSize) {
         this.hashingBufferSize = hashingBufferSize;
     }
+
+    /**
+     * @param numOfDataReceivingThreads Number of threads (each with its' own selector), that read data
+     *                                  from peer connections. Set this value to 2 or greater,
+     *                                  if receiving of data should be parallelized.
+     * @since 1.11
+     */
+    public void setNumOfDataReceivingThreads(int numOfDataReceivingThreads) {
+        this.numOfDataReceivingThreads = numOfDataReceivingThreads;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getNumOfDataReceivingThreads() {
+        return numOfDataReceivingThreads;
+    }
+
+    /**
+     * @param numOfMessageDispatchingThreads Number of threads, that dispatch messages between peer connections and torrent processing sessions.
+     *                                       All connections of a torrent are always processed by the same thread,
+     *                                       so this only allows to process different torrents in parallel.
+     *                                       The effective parallelism is thus limited by the number of active torrents.
+     * @since 1.11
+     */
+    public void setNumOfMessageDispatchingThreads(int numOfMessageDispatchingThreads) {
+        this.numOfMessageDispatchingThreads = numOfMessageDispatchingThreads;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getNumOfMessageDispatchingThreads() {
+        return numOfMessageDispatchingThreads;
+    }
+
+    /**
+     * @param mseKeyPairPoolSize Number of MSE key pairs to pre-generate in the background,
+     *                           so that the expensive key generation is not performed during encryption negotiation.
+     *                           If the pool is drained, key pairs are generated inline. Set to 0 to disable the pool.
+     *                           Default is 16.
+     * @since 1.11
+     */
+    public void setMseKeyPairPoolSize(int mseKeyPairPoolSize) {
+        this.mseKeyPairPoolSize = mseKeyPairPoolSize;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getMseKeyPairPoolSize() {
+        return mseKeyPairPoolSize;
+    }
+
+    /**
+     * @param zeroCopySeedingEnabled Indicates, that blocks requested by peers over unencrypted connections
+     *                               should be transferred directly from files to sockets ("sendfile"),
+     *                               bypassing the block cache and the outbound buffers.
+     *                               Encrypted connections always read blocks via the block cache.
+     * @since 1.11
+     */
+    public void setZeroCopySeedingEnabled(boolean zeroCopySeedingEnabled) {
+        this.zeroCopySeedingEnabled = zeroCopySeedingEnabled;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public boolean isZeroCopySeedingEnabled() {
+        return zeroCopySeedingEnabled;
+    }
+
+    /**
+     * @param numOfDataWorkerThreads Number of threads, that read and write blocks of torrent data.
+     *                               Blocks are distributed among threads by torrent and file, so that independent files
+     *                               are processed in parallel, while operations on the same file are performed in order.
+     * @since 1.11
+     */
+    public void setNumOfDataWorkerThreads(int numOfDataWorkerThreads) {
+        this.numOfDataWorkerThreads = numOfDataWorkerThreads;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getNumOfDataWorkerThreads() {
+        return numOfDataWorkerThreads;
+    }
+
+    /**
+     * @param incrementalHashingEnabled Indicates, that downloaded pieces should be hashed on the fly, as the blocks are written,
+     *                                  so that a completed piece can be verified without reading it back from disk.
+     * @since 1.11
+     */
+    public void setIncrementalHashingEnabled(boolean incrementalHashingEnabled) {
+        this.incrementalHashingEnabled = incrementalHashingEnabled;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public boolean isIncrementalHashingEnabled() {
+        return incrementalHashingEnabled;
+    }
+
+    /**
+     * @param incrementalHashingBufferSize Maximum total amount of memory (in bytes), that may be used to hold blocks,
+     *                                     that have been received out of order, until the preceding blocks of the piece arrive.
+     *                                     Blocks, that do not fit into this budget, are read back from disk, when the piece is verified.
+     * @since 1.11
+     */
+    public void setIncrementalHashingBufferSize(int incrementalHashingBufferSize) {
+        this.incrementalHashingBufferSize = incrementalHashingBufferSize;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getIncrementalHashingBufferSize() {
+        return incrementalHashingBufferSize;
+    }
+
+    /**
+     * @param pieceAssemblyCacheSize Maximum amount of off-heap memory (in bytes),
+     *                               that may be used to assemble the pieces being downloaded.
+     *                               Blocks are kept in memory until the piece is complete,
+     *                               then the piece is verified from memory and written to the storage in one pass.
+     *                               When the budget is exhausted, the least recently used pieces
+     *                               are written to the storage as is (spilled).
+     *                               Zero disables the assembly cache.
+     * @since 1.11
+     */
+    public void setPieceAssemblyCacheSize(long pieceAssemblyCacheSize) {
+        this.pieceAssemblyCacheSize = pieceAssemblyCacheSize;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public long getPieceAssemblyCacheSize() {
+        return pieceAssemblyCacheSize;
+    }
+
+    /**
+     * @param blockCacheSize Maximum amount of off-heap memory (in bytes), that may be used to cache the pieces,
+     *                       which are read from storage to be sent to other peers. The budget is shared by all torrents.
+     *                       Zero disables the cache, and each requested block is read directly from storage.
+     * @since 1.11
+     */
+    public void setBlockCacheSize(long blockCacheSize) {
+        this.blockCacheSize = blockCacheSize;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    /**
+     * @param resumeDataDirectory Directory to keep torrents' resume data in, or null to disable resume data.
+     *                            Resume data contains the set of verified pieces and the sizes and
+     *                            modification times of torrent's files, and is used on the next start
+     *                            to verify only the pieces, which belong to the files, that have been modified.
+     * @since 1.11
+     */
+    public void setResumeDataDirectory(Path resumeDataDirectory) {
+        this.resumeDataDirectory = resumeDataDirectory;
+    }
+
+    /**
+     * @return Directory to keep torrents' resume data in, or null, if resume data is disabled
+     * @since 1.11
+     */
+    public Path getResumeDataDirectory() {
+        return resumeDataDirectory;
+    }
+
+    /**
+     * @param maxEndgameDuplicates Maximum number of peers, that the same piece may be requested from at the same time,
+     *                             when the torrent processing session is in the endgame mode
+     *                             (i.e. when all of the remaining pieces have already been assigned to peers).
+     *                             As soon as a block is received from one of the peers, requests for this block
+     *                             are cancelled for all other peers. Value of 1 disables duplicate requests.
+     * @since 1.11
+     */
+    public void setMaxEndgameDuplicates(int maxEndgameDuplicates) {
+        this.maxEndgameDuplicates = maxEndgameDuplicates;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getMaxEndgameDuplicates() {
+        return maxEndgameDuplicates;
+    }
+
+    /**
+     * @param minOutstandingRequests Lower limit on the number of outstanding requests to a peer.
+     *                               The actual limit is adjusted individually for each peer between this value
+     *                               and {@link #getMaxOutstandingRequests()}, based on the peer's download rate
+     *                               and the observed latency of its' responses to block requests.
+     *                               Peers, whose download rate has not been measured yet,
+     *                               are given {@link #getMaxOutstandingRequests()}.
+     * @since 1.11
+     */
+    public void setMinOutstandingRequests(int minOutstandingRequests) {
+        this.minOutstandingRequests = minOutstandingRequests;
+    }
+
+    /**
+     * @since 1.11
+     */
+    public int getMinOutstandingRequests() {
+        return minOutstandingRequests;
+    }
 }
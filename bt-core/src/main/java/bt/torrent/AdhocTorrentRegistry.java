@@ -18,6 +18,7 @@ package bt.torrent;
 
 import bt.data.IDataDescriptorFactory;
 import bt.data.Storage;
+import bt.event.EventSink;
 import bt.event.EventSource;
 import bt.metainfo.Torrent;
 import bt.metainfo.TorrentId;
@@ -46,6 +47,7 @@ public class AdhocTorrentRegistry implements TorrentRegistry {
     private static final Logger LOGGER = LoggerFactory.getLogger(AdhocTorrentRegistry.class);
 
     private IDataDescriptorFactory dataDescriptorFactory;
+    private EventSink eventSink;
 
     private Set<TorrentId> torrentIds;
     private ConcurrentMap<TorrentId, Torrent> torrents;
@@ -53,9 +55,11 @@ public class AdhocTorrentRegistry implements TorrentRegistry {
 
     @Inject
     public AdhocTorrentRegistry(IDataDescriptorFactory dataDescriptorFactory,
-                                EventSource eventSource) {
+                                EventSource eventSource,
+                                EventSink eventSink) {
 
         this.dataDescriptorFactory = dataDescriptorFactory;
+        this.eventSink = eventSink;
 
         this.torrentIds = ConcurrentHashMap.newKeySet();
         this.torrents = new ConcurrentHashMap<>();
@@ -108,8 +112,10 @@ public class AdhocTorrentRegistry implements TorrentRegistry {
         }
         descriptor.setDataDescriptor(dataDescriptorFactory.createDescriptor(torrent, storage, completedFileCallbacks));
 
-        torrentIds.add(torrentId);
         torrents.putIfAbsent(torrentId, torrent);
+        if (torrentIds.add(torrentId)) {
+            eventSink.fireTorrentRegistered(torrentId);
+        }
 
         return descriptor;
     }
@@ -122,8 +128,8 @@ public class AdhocTorrentRegistry implements TorrentRegistry {
             DefaultTorrentDescriptor existing = descriptors.putIfAbsent(torrentId, descriptor);
             if (existing != null) {
                 descriptor = existing;
-            } else {
-                torrentIds.add(torrentId);
+            } else if (torrentIds.add(torrentId)) {
+                eventSink.fireTorrentRegistered(torrentId);
             }
 
             return descriptor;
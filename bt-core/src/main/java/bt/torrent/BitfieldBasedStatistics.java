@@ -17,17 +17,27 @@
 package bt.torrent;
 
 import bt.data.Bitfield;
+import bt.data.LocalBitfield;
 import bt.data.PeerBitfield;
 import bt.net.ConnectionKey;
 
+import java.util.BitSet;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * Acts as a storage for peers' bitfields and provides aggregate piece statistics.
  * This class is thread-safe.
+ * <p>
+ * If the local bitfield is a {@link LocalBitfield}, then for each peer
+ * the number of pieces, that the peer has and the local client does not, is maintained incrementally:
+ * it is increased, when the peer announces a new piece, and decreased, when the piece is verified locally.
+ * <p>
+ * Availability of pieces is additionally kept in a {@link PieceAvailabilityIndex},
+ * which is used by rarest-first selectors.
  *
  * @since 1.0
  */
@@ -36,6 +46,14 @@ public class BitfieldBasedStatistics implements PieceStatistics {
     private final Bitfield localBitfield;
     private final ConcurrentMap<ConnectionKey, PeerBitfield> peerBitfields;
     private final AtomicIntegerArray pieceTotals;
+    private final PieceAvailabilityIndex availabilityIndex;
+
+    // null, if interesting pieces are not tracked
+    private final ConcurrentMap<ConnectionKey, AtomicInteger> interestingPieces;
+    // local pieces, that have already been accounted for in the interesting pieces counts;
+    // all updates of counts are performed while holding the lock
+    private final BitSet localPieces;
+    private final Object lock;
 
     /**
      * Create statistics, based on the local peer's bitfield.
@@ -46,6 +64,38 @@ public class BitfieldBasedStatistics implements PieceStatistics {
         this.localBitfield = localBitfield;
         this.peerBitfields = new ConcurrentHashMap<>();
         this.pieceTotals = new AtomicIntegerArray(localBitfield.getPiecesTotal());
+        this.availabilityIndex = new PieceAvailabilityIndex(localBitfield.getPiecesTotal());
+        this.lock = new Object();
+
+        if (localBitfield instanceof LocalBitfield) {
+            this.interestingPieces = new ConcurrentHashMap<>();
+            this.localPieces = new BitSet(localBitfield.getPiecesTotal());
+            // register first, so that no piece is missed; pieces are accounted for only once
+            ((LocalBitfield) localBitfield).addPieceVerifiedListener(this::onLocalPieceVerified);
+            synchronized (lock) {
+                localBitfield.forEachVerifiedPiece(this::onLocalPieceVerified);
+            }
+        } else {
+            this.interestingPieces = null;
+            this.localPieces = null;
+        }
+    }
+
+    private void onLocalPieceVerified(int pieceIndex) {
+        synchronized (lock) {
+            if (localPieces.get(pieceIndex)) {
+                return;
+            }
+            localPieces.set(pieceIndex);
+            peerBitfields.forEach((connectionKey, bitfield) -> {
+                if (bitfield.isVerified(pieceIndex)) {
+                    AtomicInteger count = interestingPieces.get(connectionKey);
+                    if (count != null) {
+                        count.decrementAndGet();
+                    }
+                }
+            });
+        }
     }
 
     /**
@@ -56,8 +106,22 @@ public class BitfieldBasedStatistics implements PieceStatistics {
      */
     public void addBitfield(ConnectionKey connectionKey, PeerBitfield bitfield) {
         validateBitfieldLength(bitfield);
-        peerBitfields.put(connectionKey, bitfield);
+        if (interestingPieces == null) {
+            peerBitfields.put(connectionKey, bitfield);
+        } else {
+            synchronized (lock) {
+                peerBitfields.put(connectionKey, bitfield);
+                AtomicInteger count = new AtomicInteger();
+                bitfield.forEachVerifiedPiece(pieceIndex -> {
+                    if (!localPieces.get(pieceIndex)) {
+                        count.incrementAndGet();
+                    }
+                });
+                interestingPieces.put(connectionKey, count);
+            }
+        }
         bitfield.forEachVerifiedPiece(pieceTotals::incrementAndGet);
+        availabilityIndex.incrementAll(bitfield);
     }
 
     /**
@@ -67,12 +131,21 @@ public class BitfieldBasedStatistics implements PieceStatistics {
      * @since 1.0
      */
     public void removeBitfield(ConnectionKey connectionKey) {
-        PeerBitfield bitfield = peerBitfields.remove(connectionKey);
+        PeerBitfield bitfield;
+        if (interestingPieces == null) {
+            bitfield = peerBitfields.remove(connectionKey);
+        } else {
+            synchronized (lock) {
+                bitfield = peerBitfields.remove(connectionKey);
+                interestingPieces.remove(connectionKey);
+            }
+        }
         if (bitfield == null) {
             return;
         }
 
         bitfield.forEachVerifiedPiece(pieceTotals::decrementAndGet);
+        availabilityIndex.decrementAll(bitfield);
     }
 
     private void validateBitfieldLength(Bitfield bitfield) {
@@ -89,14 +162,27 @@ public class BitfieldBasedStatistics implements PieceStatistics {
      * @since 1.0
      */
     public void addPiece(ConnectionKey connectionKey, Integer pieceIndex) {
-        PeerBitfield bitfield = peerBitfields.computeIfAbsent(connectionKey, key -> new PeerBitfield(localBitfield.getPiecesTotal()));
-        markPieceVerified(bitfield, pieceIndex);
+        if (interestingPieces == null) {
+            PeerBitfield bitfield = peerBitfields.computeIfAbsent(connectionKey, key -> new PeerBitfield(localBitfield.getPiecesTotal()));
+            markPieceVerified(bitfield, pieceIndex);
+        } else {
+            synchronized (lock) {
+                PeerBitfield bitfield = peerBitfields.computeIfAbsent(connectionKey, key -> new PeerBitfield(localBitfield.getPiecesTotal()));
+                AtomicInteger count = interestingPieces.computeIfAbsent(connectionKey, key -> new AtomicInteger());
+                if (markPieceVerified(bitfield, pieceIndex) && !localPieces.get(pieceIndex)) {
+                    count.incrementAndGet();
+                }
+            }
+        }
     }
 
-    private void markPieceVerified(PeerBitfield bitfield, Integer pieceIndex) {
+    private boolean markPieceVerified(PeerBitfield bitfield, Integer pieceIndex) {
         if (bitfield.markPeerPieceVerified(pieceIndex)) {
             pieceTotals.getAndIncrement(pieceIndex);
+            availabilityIndex.increment(pieceIndex);
+            return true;
         }
+        return false;
     }
 
     /**
@@ -108,6 +194,24 @@ public class BitfieldBasedStatistics implements PieceStatistics {
         return Optional.ofNullable(peerBitfields.get(connectionKey));
     }
 
+    /**
+     * Get the number of pieces, that the peer has and the local client does not have.
+     * If the local bitfield is a {@link LocalBitfield}, then this is a constant-time operation,
+     * otherwise peer's bitfield is compared with the local bitfield.
+     *
+     * @return Number of pieces, that are verified in the peer's bitfield, but not in the local bitfield,
+     * or 0, if the peer's bitfield is not present
+     * @since 1.11
+     */
+    public int getInterestingPieces(ConnectionKey connectionKey) {
+        if (interestingPieces == null) {
+            PeerBitfield bitfield = peerBitfields.get(connectionKey);
+            return (bitfield == null) ? 0 : bitfield.countPiecesNotIn(localBitfield);
+        }
+        AtomicInteger count = interestingPieces.get(connectionKey);
+        return (count == null) ? 0 : count.get();
+    }
+
     @Override
     public int getCount(int pieceIndex) {
         // in Java 9+, this can be changed to getOpaque()
@@ -118,4 +222,9 @@ public class BitfieldBasedStatistics implements PieceStatistics {
     public int getPiecesTotal() {
         return pieceTotals.length();
     }
+
+    @Override
+    public Optional<PieceAvailabilityIndex> getAvailabilityIndex() {
+        return Optional.of(availabilityIndex);
+    }
 }
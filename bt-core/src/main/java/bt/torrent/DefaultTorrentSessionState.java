@@ -26,6 +26,7 @@ import bt.torrent.messaging.ConnectionState;
 import bt.torrent.messaging.TorrentWorker;
 import bt.torrent.selector.PrioritizedPieceSelector;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -46,6 +47,9 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
     private static final AtomicLongFieldUpdater<DefaultTorrentSessionState> UPLOADED_FILED_UPDATER
             = AtomicLongFieldUpdater.newUpdater(DefaultTorrentSessionState.class, "uploadedToDisconnected");
 
+    private static final AtomicLongFieldUpdater<DefaultTorrentSessionState> WASTED_FILED_UPDATER
+            = AtomicLongFieldUpdater.newUpdater(DefaultTorrentSessionState.class, "wastedFromDisconnected");
+
     /**
      * Recently calculated amounts of downloaded and uploaded data
      */
@@ -65,6 +69,11 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
      */
     private volatile long uploadedToDisconnected;
 
+    /**
+     * Historical data (amount of data downloaded from disconnected peers and discarded)
+     */
+    private volatile long wastedFromDisconnected;
+
     public DefaultTorrentSessionState(Supplier<DataDescriptor> descriptor, TorrentWorker worker,
                                       PrioritizedPieceSelector pieceSelector) {
         this.recentAmountsForConnectedPeers = new HashMap<>();
@@ -141,6 +150,18 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
         return uploaded;
     }
 
+    @Override
+    public synchronized long getWasted() {
+        long wasted = getCurrentAmounts().values().stream().collect(summingLong(TransferAmounts::getWasted));
+        wasted += WASTED_FILED_UPDATER.get(this);
+        return wasted;
+    }
+
+    @Override
+    public Duration getEndgameDuration() {
+        return worker.getEndgameDuration();
+    }
+
     @Override
     public long getLeft() {
         if (descriptor.get() != null) {
@@ -162,6 +183,7 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
             if (!connectedPeers.containsKey(peer)) {
                 DOWNLOADED_FILED_UPDATER.addAndGet(this, amounts.getDownloaded());
                 UPLOADED_FILED_UPDATER.addAndGet(this, amounts.getUploaded());
+                WASTED_FILED_UPDATER.addAndGet(this, amounts.getWasted());
                 disconnectedPeers.add(peer);
             }
         });
@@ -180,7 +202,8 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
                             ConnectionState connectionState = worker.getConnectionState(peer);
                             acc.put(
                                     peer,
-                                    new TransferAmounts(connectionState.getDownloaded(), connectionState.getUploaded())
+                                    new TransferAmounts(connectionState.getDownloaded(), connectionState.getUploaded(),
+                                            connectionState.getWasted())
                             );
                         },
                         HashMap::putAll);
@@ -206,10 +229,12 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
     private static class TransferAmounts {
         private final long downloaded;
         private final long uploaded;
+        private final long wasted;
 
-        public TransferAmounts(long downloaded, long uploaded) {
+        public TransferAmounts(long downloaded, long uploaded, long wasted) {
             this.downloaded = downloaded;
             this.uploaded = uploaded;
+            this.wasted = wasted;
         }
 
         public long getDownloaded() {
@@ -219,5 +244,9 @@ public class DefaultTorrentSessionState implements TorrentSessionState {
         public long getUploaded() {
             return uploaded;
         }
+
+        public long getWasted() {
+            return wasted;
+        }
     }
 }
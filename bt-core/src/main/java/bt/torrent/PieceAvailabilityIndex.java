@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent;
+
+import bt.data.Bitfield;
+import bt.torrent.selector.ShuffleUtils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Index of pieces by their availability in the swarm,
+ * that is updated incrementally when peers announce their pieces or disconnect.
+ * <p>
+ * Pieces with the same availability are kept in a doubly-linked list (bucket);
+ * moving a piece to a neighbouring bucket, when its' availability changes, takes constant time.
+ * Hence, the first k rarest pieces can be found in O(k) (not counting irrelevant pieces, that are skipped),
+ * without sorting all pieces on each selection.
+ * <p>
+ * This class is thread-safe. Streams, that are returned by {@link #getRarestPieces(BitSet)}
+ * and {@link #getRarestPieces(BitSet, Random)}, are lazy and are not a consistent snapshot of the index:
+ * a piece, whose availability has changed during the iteration, may be returned out of order or skipped,
+ * but any piece is returned at most once.
+ *
+ * @since 1.11
+ */
+public class PieceAvailabilityIndex {
+
+    private static final int NONE = -1;
+
+    private final int[] counts;
+    private final int[] next;
+    private final int[] prev;
+    // heads[c] is the first piece in the bucket of pieces, that are available from c peers
+    private int[] heads;
+    private int maxCount;
+
+    private final Object lock;
+
+    PieceAvailabilityIndex(int piecesTotal) {
+        this.counts = new int[piecesTotal];
+        this.next = new int[piecesTotal];
+        this.prev = new int[piecesTotal];
+        this.heads = new int[8];
+        Arrays.fill(heads, NONE);
+        this.lock = new Object();
+    }
+
+    void increment(int pieceIndex) {
+        synchronized (lock) {
+            move(pieceIndex, counts[pieceIndex] + 1);
+        }
+    }
+
+    void decrement(int pieceIndex) {
+        synchronized (lock) {
+            if (counts[pieceIndex] > 0) {
+                move(pieceIndex, counts[pieceIndex] - 1);
+            }
+        }
+    }
+
+    void incrementAll(Bitfield bitfield) {
+        synchronized (lock) {
+            bitfield.forEachVerifiedPiece(this::increment);
+        }
+    }
+
+    void decrementAll(Bitfield bitfield) {
+        synchronized (lock) {
+            bitfield.forEachVerifiedPiece(this::decrement);
+        }
+    }
+
+    private void move(int pieceIndex, int newCount) {
+        int oldCount = counts[pieceIndex];
+        if (oldCount > 0) {
+            int prevPiece = prev[pieceIndex], nextPiece = next[pieceIndex];
+            if (prevPiece == NONE) {
+                heads[oldCount] = nextPiece;
+            } else {
+                next[prevPiece] = nextPiece;
+            }
+            if (nextPiece != NONE) {
+                prev[nextPiece] = prevPiece;
+            }
+        }
+
+        counts[pieceIndex] = newCount;
+
+        if (newCount > 0) {
+            if (newCount >= heads.length) {
+                int oldLength = heads.length;
+                heads = Arrays.copyOf(heads, oldLength * 2);
+                Arrays.fill(heads, oldLength, heads.length, NONE);
+            }
+            int head = heads[newCount];
+            prev[pieceIndex] = NONE;
+            next[pieceIndex] = head;
+            if (head != NONE) {
+                prev[head] = pieceIndex;
+            }
+            heads[newCount] = pieceIndex;
+            if (newCount > maxCount) {
+                maxCount = newCount;
+            }
+        }
+    }
+
+    /**
+     * @return Total number of peers that have a given piece.
+     * @since 1.11
+     */
+    public int getCount(int pieceIndex) {
+        synchronized (lock) {
+            return counts[pieceIndex];
+        }
+    }
+
+    /**
+     * Get relevant pieces in the order of increasing availability.
+     * Pieces with the same availability are returned in no particular order.
+     * The stream is lazy, i.e. pieces are looked up in the index only as they are consumed.
+     * Pieces, that no peer has, are not returned.
+     *
+     * @param relevantPieces Pieces to choose from
+     * @return Stream of relevant pieces, the least available first
+     * @since 1.11
+     */
+    public IntStream getRarestPieces(BitSet relevantPieces) {
+        return toStream(new RarestPiecesIterator(relevantPieces));
+    }
+
+    /**
+     * Get relevant pieces in the order of increasing availability.
+     * Pieces with the same availability are returned in random order.
+     * Relevant pieces of each availability are looked up only when the stream reaches them.
+     * Pieces, that no peer has, are not returned.
+     *
+     * @param relevantPieces Pieces to choose from
+     * @param random         Source of randomness for ordering pieces with the same availability
+     * @return Stream of relevant pieces, the least available first
+     * @since 1.11
+     */
+    public IntStream getRarestPieces(BitSet relevantPieces, Random random) {
+        return toStream(new RandomizedRarestPiecesIterator(relevantPieces, random));
+    }
+
+    private static IntStream toStream(PrimitiveIterator.OfInt iterator) {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    private abstract class PieceIterator implements PrimitiveIterator.OfInt {
+        private int nextPiece = NONE;
+
+        @Override
+        public boolean hasNext() {
+            if (nextPiece == NONE) {
+                nextPiece = advance();
+            }
+            return nextPiece != NONE;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int piece = nextPiece;
+            nextPiece = NONE;
+            return piece;
+        }
+
+        /**
+         * @return Next piece or {@link #NONE}, if there are no more pieces
+         */
+        protected abstract int advance();
+    }
+
+    private class RarestPiecesIterator extends PieceIterator {
+        private final BitSet relevantPieces;
+        private final BitSet returnedPieces;
+        private int bucket;
+        private int cursor;
+
+        RarestPiecesIterator(BitSet relevantPieces) {
+            this.relevantPieces = relevantPieces;
+            this.returnedPieces = new BitSet();
+            this.bucket = 1;
+            this.cursor = NONE;
+        }
+
+        @Override
+        protected int advance() {
+            synchronized (lock) {
+                while (bucket <= maxCount) {
+                    int candidate;
+                    if (cursor == NONE) {
+                        candidate = heads[bucket];
+                    } else if (counts[cursor] == bucket) {
+                        candidate = next[cursor];
+                    } else {
+                        // availability of the current piece has changed since the last call;
+                        // start over from the beginning of the current bucket
+                        cursor = NONE;
+                        continue;
+                    }
+
+                    if (candidate == NONE) {
+                        bucket++;
+                        cursor = NONE;
+                        continue;
+                    }
+
+                    cursor = candidate;
+                    if (relevantPieces.get(candidate) && !returnedPieces.get(candidate)) {
+                        returnedPieces.set(candidate);
+                        return candidate;
+                    }
+                }
+                return NONE;
+            }
+        }
+    }
+
+    private class RandomizedRarestPiecesIterator extends PieceIterator {
+        private final BitSet relevantPieces;
+        private final BitSet returnedPieces;
+        private final Random random;
+        private int bucket;
+        private int[] bucketPieces;
+        private int bucketSize;
+        private int position;
+
+        RandomizedRarestPiecesIterator(BitSet relevantPieces, Random random) {
+            this.relevantPieces = relevantPieces;
+            this.returnedPieces = new BitSet();
+            this.random = random;
+            this.bucket = 0;
+            this.bucketPieces = new int[16];
+        }
+
+        @Override
+        protected int advance() {
+            while (true) {
+                while (position < bucketSize) {
+                    int piece = bucketPieces[position++];
+                    if (!returnedPieces.get(piece)) {
+                        returnedPieces.set(piece);
+                        return piece;
+                    }
+                }
+                if (!nextBucket()) {
+                    return NONE;
+                }
+            }
+        }
+
+        private boolean nextBucket() {
+            position = 0;
+            bucketSize = 0;
+            synchronized (lock) {
+                // skip empty buckets and buckets without relevant pieces
+                while (bucketSize == 0) {
+                    if (++bucket > maxCount) {
+                        return false;
+                    }
+                    for (int piece = heads[bucket]; piece != NONE; piece = next[piece]) {
+                        if (relevantPieces.get(piece)) {
+                            if (bucketSize == bucketPieces.length) {
+                                bucketPieces = Arrays.copyOf(bucketPieces, bucketSize * 2);
+                            }
+                            bucketPieces[bucketSize++] = piece;
+                        }
+                    }
+                }
+            }
+            ShuffleUtils.shuffle(bucketPieces, bucketSize, random);
+            return true;
+        }
+    }
+}
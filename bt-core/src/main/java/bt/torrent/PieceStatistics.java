@@ -16,6 +16,8 @@
 
 package bt.torrent;
 
+import java.util.Optional;
+
 /**
  * Provides basic information about
  * the availability of different pieces in the swarm.
@@ -35,4 +37,13 @@ public interface PieceStatistics {
      * @since 1.0
      */
     int getPiecesTotal();
+
+    /**
+     * @return Index of pieces by availability, if it's maintained by this statistics.
+     * Piece selectors may use it to find the rarest pieces without sorting all pieces.
+     * @since 1.11
+     */
+    default Optional<PieceAvailabilityIndex> getAvailabilityIndex() {
+        return Optional.empty();
+    }
 }
@@ -20,6 +20,7 @@ import bt.net.ConnectionKey;
 import bt.processor.ProcessingContext;
 import bt.torrent.fileselector.FilePrioritySelector;
 
+import java.time.Duration;
 import java.util.Set;
 
 /**
@@ -81,6 +82,24 @@ public interface TorrentSessionState {
      */
     long getUploaded();
 
+    /**
+     * @return Amount of data downloaded via this session and then discarded (in bytes),
+     * e.g. blocks, that were requested from several peers in the endgame mode and received more than once
+     * @since 1.11
+     */
+    default long getWasted() {
+        return 0;
+    }
+
+    /**
+     * @return Time spent in the endgame mode, i.e. while the remaining pieces were being requested
+     * from several peers at once; {@link Duration#ZERO}, if the endgame mode has not started yet
+     * @since 1.11
+     */
+    default Duration getEndgameDuration() {
+        return Duration.ZERO;
+    }
+
     /**
      * Get the number of bytes left to verify, or {@link #UNKNOWN} if unknown (torrent not yet fetched)
      *
@@ -16,19 +16,29 @@
 
 package bt.torrent.data;
 
+import bt.CountingThreadFactory;
 import bt.data.ChunkDescriptor;
 import bt.data.ChunkVerifier;
 import bt.data.DataDescriptor;
+import bt.data.DataRange;
+import bt.data.PieceAssemblyCache;
+import bt.event.EventSource;
+import bt.metainfo.TorrentFile;
 import bt.metainfo.TorrentId;
 import bt.net.Peer;
 import bt.net.buffer.BufferedData;
+import bt.net.buffer.ByteBufferView;
 import bt.runtime.Config;
 import bt.service.IRuntimeLifecycleBinder;
 import bt.torrent.TorrentRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -43,8 +53,16 @@ public class DefaultDataWorker implements DataWorker {
     private final TorrentRegistry torrentRegistry;
     private final ChunkVerifier verifier;
     private final BlockCache blockCache;
+    private final boolean zeroCopySeedingEnabled;
+    private final PieceAssemblyCache assemblyCache;
+    // null, if neither incremental hashing nor piece assembly cache are enabled
+    private final IncrementalChunkHasher incrementalHasher;
+    private final boolean incrementalHashingEnabled;
 
-    private final ExecutorService executor;
+    private final ExecutorService[] executors;
+    private final ExecutorService hashingExecutor;
+    // prevents verifying the same chunk twice, when its' last blocks are written concurrently by different workers
+    private final Set<ChunkDescriptor> chunksBeingVerified;
     private final int maxPendingTasks;
     private final AtomicInteger pendingTasksCount;
 
@@ -52,25 +70,48 @@ public class DefaultDataWorker implements DataWorker {
                              TorrentRegistry torrentRegistry,
                              ChunkVerifier verifier,
                              BlockCache blockCache,
+                             PieceAssemblyCache assemblyCache,
+                             EventSource eventSource,
                              Config config) {
 
         this.torrentRegistry = torrentRegistry;
         this.verifier = verifier;
         this.blockCache = blockCache;
+        this.zeroCopySeedingEnabled = config.isZeroCopySeedingEnabled();
+        this.assemblyCache = assemblyCache;
+        this.incrementalHashingEnabled = config.isIncrementalHashingEnabled();
+        if (incrementalHashingEnabled || assemblyCache.isEnabled()) {
+            // assembled pieces are read from memory, while the regular verifier would force them to storage first
+            int maxHeldBytes = incrementalHashingEnabled ? config.getIncrementalHashingBufferSize() : 0;
+            this.incrementalHasher = new IncrementalChunkHasher(maxHeldBytes);
+            eventSource.onTorrentStopped(null, e -> incrementalHasher.release(e.getTorrentId()));
+        } else {
+            this.incrementalHasher = null;
+        }
 
-        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-
-            private AtomicInteger i = new AtomicInteger();
-
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, String.format("%d.bt.torrent.data.worker-%d", config.getAcceptorPort(), i.incrementAndGet()));
-            }
-        });
+        int numOfWorkers = config.getNumOfDataWorkerThreads();
+        if (numOfWorkers < 1) {
+            throw new IllegalArgumentException("Invalid number of data worker threads: " + numOfWorkers);
+        }
+        // each file is served by a single thread, so that operations on the same region of data stay ordered
+        ThreadFactory workerThreadFactory = CountingThreadFactory.factory(
+                String.format("%d.bt.torrent.data.worker", config.getAcceptorPort()));
+        this.executors = new ExecutorService[numOfWorkers];
+        for (int i = 0; i < numOfWorkers; i++) {
+            executors[i] = Executors.newSingleThreadExecutor(workerThreadFactory);
+        }
+        this.hashingExecutor = Executors.newFixedThreadPool(Math.max(1, config.getNumOfHashingThreads()),
+                CountingThreadFactory.factory(String.format("%d.bt.torrent.data.hasher", config.getAcceptorPort())));
+        this.chunksBeingVerified = ConcurrentHashMap.newKeySet();
         this.maxPendingTasks = config.getMaxIOQueueSize();
         this.pendingTasksCount = new AtomicInteger();
 
-        lifecycleBinder.onShutdown("Shutdown data worker", this.executor::shutdownNow);
+        lifecycleBinder.onShutdown("Shutdown data worker", () -> {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+            hashingExecutor.shutdownNow();
+        });
     }
 
     @Override
@@ -89,9 +130,17 @@ public class DefaultDataWorker implements DataWorker {
                     QUEUE_FULL_EXCEPTION, pieceIndex, offset, length));
         }
 
+        ExecutorService executor;
+        try {
+            executor = getExecutor(torrentId, data, pieceIndex);
+        } catch (Throwable e) {
+            pendingTasksCount.decrementAndGet();
+            return CompletableFuture.completedFuture(BlockRead.exceptional(peer, e, pieceIndex, offset, length));
+        }
+
         return CompletableFuture.supplyAsync(() -> {
             try {
-                BlockReader blockReader = blockCache.get(torrentId, pieceIndex, offset, length);
+                BlockReader blockReader = getBlockReader(data, torrentId, pieceIndex, offset, length);
                 return BlockRead.ready(peer, pieceIndex, offset, length, blockReader);
             } catch (Throwable e) {
                 LOGGER.error("Failed to perform request to read block:" +
@@ -112,11 +161,21 @@ public class DefaultDataWorker implements DataWorker {
                     QUEUE_FULL_EXCEPTION, pieceIndex, offset, buffer.length()));
         }
 
+        DataDescriptor data;
+        ChunkDescriptor chunk;
+        ExecutorService executor;
+        try {
+            data = getDataDescriptor(torrentId);
+            chunk = data.getChunkDescriptors().get(pieceIndex);
+            executor = getExecutor(torrentId, data, pieceIndex);
+        } catch (Throwable e) {
+            pendingTasksCount.decrementAndGet();
+            buffer.dispose();
+            return CompletableFuture.completedFuture(BlockWrite.exceptional(peer, e, pieceIndex, offset, buffer.length()));
+        }
+
         return CompletableFuture.supplyAsync(() -> {
             try {
-                DataDescriptor data = getDataDescriptor(torrentId);
-                ChunkDescriptor chunk = data.getChunkDescriptors().get(pieceIndex);
-
                 if (chunk.isComplete()) {
                     if (LOGGER.isDebugEnabled()) {
                         LOGGER.debug("Rejecting request to write block because" +
@@ -124,26 +183,59 @@ public class DefaultDataWorker implements DataWorker {
                                 "piece index {" + pieceIndex + "}, offset {" + offset + "}, length {" + buffer.length() + "}");
                     }
                     return BlockWrite.rejected(peer, pieceIndex, offset, buffer.length());
+                } else if (chunk.isPresent((int) (offset / chunk.blockSize()))) {
+                    // duplicate block (e.g. received from several peers in the endgame);
+                    // it has already been hashed, so overwriting the stored data might make it differ
+                    // from the data, that the piece will be verified against
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Rejecting request to write block because the block is already present: " +
+                                "piece index {" + pieceIndex + "}, offset {" + offset + "}, length {" + buffer.length() + "}");
+                    }
+                    return BlockWrite.rejected(peer, pieceIndex, offset, buffer.length());
                 }
 
+                ByteBufferView block = buffer.buffer().duplicate();
                 chunk.getData().getSubrange(offset).putBytes(buffer.buffer());
+                if (incrementalHashingEnabled) {
+                    incrementalHasher.blockWritten(torrentId, pieceIndex, chunk, offset, block);
+                }
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("Successfully processed block: " +
                             "piece index {" + pieceIndex + "}, offset {" + offset + "}, length {" + buffer.length() + "}");
                 }
 
                 CompletableFuture<Boolean> verificationFuture = null;
-                if (chunk.isComplete()) {
+                if (chunk.isComplete() && chunksBeingVerified.add(chunk)) {
                     verificationFuture = CompletableFuture.supplyAsync(() -> {
-                        boolean verified = verifier.verify(chunk);
-                        if (verified) {
-                            data.getBitfield().markLocalPieceVerified(pieceIndex);
-                        } else {
-                            // reset data
-                            chunk.clear();
+                        try {
+                            boolean verified = (incrementalHasher != null) ?
+                                    incrementalHasher.verify(torrentId, pieceIndex, chunk) : verifier.verify(chunk);
+                            if (verified) {
+                                try {
+                                    // the piece must be in storage, before it's announced to other peers
+                                    assemblyCache.flush(torrentId, pieceIndex);
+                                    // let the storage force the piece to disk, depending on its' flush policy
+                                    chunk.getData().visitUnits((unit, off, lim) -> {
+                                        unit.pieceVerified();
+                                        return true;
+                                    });
+                                } catch (Exception e) {
+                                    LOGGER.error("Failed to write piece to storage: piece index {" + pieceIndex + "}", e);
+                                    verified = false;
+                                }
+                            }
+                            if (verified) {
+                                data.getBitfield().markLocalPieceVerified(pieceIndex);
+                            } else {
+                                // reset data
+                                chunk.clear();
+                                assemblyCache.discard(torrentId, pieceIndex);
+                            }
+                            return verified;
+                        } finally {
+                            chunksBeingVerified.remove(chunk);
                         }
-                        return verified;
-                    }, executor);
+                    }, hashingExecutor);
                 }
 
                 return BlockWrite.complete(peer, pieceIndex, offset, buffer.length(), verificationFuture);
@@ -156,6 +248,34 @@ public class DefaultDataWorker implements DataWorker {
         }, executor);
     }
 
+    /**
+     * @return Executor, that is responsible for the file, which contains the beginning of the piece
+     */
+    private ExecutorService getExecutor(TorrentId torrentId, DataDescriptor data, int pieceIndex) {
+        if (executors.length == 1) {
+            return executors[0];
+        }
+        // files are looked up via the descriptor rather than by visiting the piece's storage units,
+        // so that the pieces, which are being assembled in memory, are not forced to storage
+        List<TorrentFile> files = data.getFilesForPiece(pieceIndex);
+        int hash = 31 * torrentId.hashCode() + (files.isEmpty() ? 0 : Objects.hashCode(files.get(0)));
+        return executors[Math.floorMod(hash, executors.length)];
+    }
+
+    private BlockReader getBlockReader(DataDescriptor data, TorrentId torrentId, int pieceIndex, int offset, int length) {
+        if (zeroCopySeedingEnabled) {
+            // the choice between a direct transfer and reading via the block cache
+            // is made later by the connection, depending on whether the outgoing data is encrypted
+            DataRange block = data.getChunkDescriptors().get(pieceIndex).getData().getSubrange(offset, length);
+            BlockReader reader = FileRegionBlockReader.create(block,
+                    () -> blockCache.get(torrentId, pieceIndex, offset, length));
+            if (reader != null) {
+                return reader;
+            }
+        }
+        return blockCache.get(torrentId, pieceIndex, offset, length);
+    }
+
     private boolean tryIncrementTaskCount() {
         int newCount = pendingTasksCount.updateAndGet(oldCount -> {
             if (oldCount == maxPendingTasks) {
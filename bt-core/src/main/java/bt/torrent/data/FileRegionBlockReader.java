@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.data;
+
+import bt.data.DataRange;
+import bt.data.TransferableStorageUnit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Transfers a block directly from the files, that it spans, to a channel.
+ * Reading the block to a buffer (e.g. for encrypted connections) is delegated to the block cache.
+ *
+ * @since 1.11
+ */
+class FileRegionBlockReader implements TransferableBlockReader {
+
+    /**
+     * @return Reader or null, if some of the storage units, that the block spans,
+     *         do not support direct transfers
+     */
+    static /*nullable*/ FileRegionBlockReader create(DataRange block, Supplier<BlockReader> cachedReader) {
+        List<Region> regions = new ArrayList<>();
+        boolean[] transferable = new boolean[] {true};
+        block.visitUnits((unit, off, lim) -> {
+            if (!(unit instanceof TransferableStorageUnit)) {
+                transferable[0] = false;
+                return false;
+            }
+            if (lim > off) {
+                regions.add(new Region((TransferableStorageUnit) unit, off, lim));
+            }
+            return true;
+        });
+        return transferable[0] ? new FileRegionBlockReader(regions, cachedReader) : null;
+    }
+
+    private final List<Region> regions;
+    private final Supplier<BlockReader> cachedReader;
+    private BlockReader delegate;
+    private int currentRegion;
+
+    private FileRegionBlockReader(List<Region> regions, Supplier<BlockReader> cachedReader) {
+        this.regions = regions;
+        this.cachedReader = cachedReader;
+    }
+
+    @Override
+    public boolean readTo(ByteBuffer buffer) {
+        if (delegate == null) {
+            delegate = cachedReader.get();
+        }
+        return delegate.readTo(buffer);
+    }
+
+    @Override
+    public boolean transferTo(WritableByteChannel channel) throws IOException {
+        while (currentRegion < regions.size()) {
+            Region region = regions.get(currentRegion);
+            while (region.position < region.limit) {
+                long transferred = region.unit.transferTo(region.position, region.limit - region.position, channel);
+                if (transferred <= 0) {
+                    // channel is not ready to accept more data
+                    return false;
+                }
+                region.position += transferred;
+            }
+            currentRegion++;
+        }
+        return true;
+    }
+
+    private static class Region {
+        private final TransferableStorageUnit unit;
+        private final long limit;
+        private long position;
+
+        Region(TransferableStorageUnit unit, long offset, long limit) {
+            this.unit = unit;
+            this.position = offset;
+            this.limit = limit;
+        }
+    }
+}
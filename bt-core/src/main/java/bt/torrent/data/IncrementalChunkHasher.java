@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.data;
+
+import bt.data.ChunkDescriptor;
+import bt.data.DataRange;
+import bt.metainfo.TorrentId;
+import bt.net.buffer.ByteBufferView;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calculates piece hashes on the fly, as the blocks are being written,
+ * so that a completed piece can be verified without reading it back from storage.
+ *
+ * <p>Blocks are fed to the digest in order. A block, that has been received ahead of the preceding blocks,
+ * is held in memory until the gap closes, provided that there is enough space in the shared budget.
+ * Otherwise, the block is read back from storage, when the piece is verified.</p>
+ *
+ * @since 1.11
+ */
+class IncrementalChunkHasher {
+
+    private static final String ALGORITHM = "SHA-1";
+    private static final int READ_STEP = 64 * 1024;
+
+    private final ConcurrentMap<TorrentId, ConcurrentMap<Integer, ChunkHashState>> states;
+    private final long maxHeldBytes;
+    private final AtomicLong heldBytes;
+    // blocks are copied here to avoid allocations, when they are fed to the digest immediately
+    private final ThreadLocal<byte[]> scratchBuffer;
+
+    /**
+     * @param maxHeldBytes Maximum total size of out-of-order blocks, that may be held in memory
+     */
+    IncrementalChunkHasher(long maxHeldBytes) {
+        try {
+            // verify that implementation for the algorithm exists
+            MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No such algorithm: " + ALGORITHM, e);
+        }
+        this.states = new ConcurrentHashMap<>();
+        this.maxHeldBytes = maxHeldBytes;
+        this.heldBytes = new AtomicLong();
+        this.scratchBuffer = ThreadLocal.withInitial(() -> new byte[0]);
+    }
+
+    /**
+     * Feed the block, that has just been written to the chunk.
+     *
+     * @param block Block data; position of the view is not changed
+     */
+    void blockWritten(TorrentId torrentId, int pieceIndex, ChunkDescriptor chunk, int offset, ByteBufferView block) {
+        ConcurrentMap<Integer, ChunkHashState> torrentStates =
+                states.computeIfAbsent(torrentId, id -> new ConcurrentHashMap<>());
+        ChunkHashState state;
+        if (chunk.isComplete()) {
+            // either this is the last block of the piece, or a late duplicate of a block of the piece,
+            // that is being verified or has been verified already; the latter must not create a new state,
+            // which would never be discarded
+            state = torrentStates.get(pieceIndex);
+            if (state == null) {
+                return;
+            }
+        } else {
+            state = torrentStates.computeIfAbsent(pieceIndex, i -> new ChunkHashState());
+        }
+
+        int length = block.remaining();
+        synchronized (state) {
+            if (state.closed) {
+                // the piece is being verified or has been verified already (see #verify())
+                return;
+            }
+            if (offset > state.position) {
+                byte[] bytes = new byte[length];
+                block.duplicate().get(bytes);
+                hold(state, offset, bytes);
+            } else {
+                byte[] bytes = getScratchBuffer(length);
+                block.duplicate().get(bytes);
+                state.update(offset, bytes, length);
+                drainHeldBlocks(state);
+            }
+        }
+    }
+
+    private byte[] getScratchBuffer(int length) {
+        byte[] bytes = scratchBuffer.get();
+        if (bytes.length != length) {
+            bytes = new byte[length];
+            scratchBuffer.set(bytes);
+        }
+        return bytes;
+    }
+
+    private void hold(ChunkHashState state, int offset, byte[] bytes) {
+        if (heldBytes.addAndGet(bytes.length) > maxHeldBytes) {
+            // will be read from storage later
+            heldBytes.addAndGet(-bytes.length);
+            return;
+        }
+        byte[] replaced = state.heldBlocks.put(offset, bytes);
+        if (replaced != null) {
+            heldBytes.addAndGet(-replaced.length);
+        }
+    }
+
+    private void drainHeldBlocks(ChunkHashState state) {
+        Map.Entry<Integer, byte[]> heldBlock;
+        while ((heldBlock = state.heldBlocks.firstEntry()) != null && heldBlock.getKey() <= state.position) {
+            state.heldBlocks.pollFirstEntry();
+            heldBytes.addAndGet(-heldBlock.getValue().length);
+            state.update(heldBlock.getKey(), heldBlock.getValue(), heldBlock.getValue().length);
+        }
+    }
+
+    /**
+     * Verify the completed chunk. The parts of the chunk, that have not been hashed yet,
+     * are read from storage. Hash state of the chunk is discarded in any case.
+     *
+     * @return true, if the chunk's data matches its' checksum
+     */
+    boolean verify(TorrentId torrentId, int pieceIndex, ChunkDescriptor chunk) {
+        ChunkHashState state = remove(torrentId, pieceIndex);
+        if (state == null) {
+            // none of the blocks have been written in this session
+            state = new ChunkHashState();
+        }
+
+        synchronized (state) {
+            // blocks, that are written from now on, are ignored
+            state.closed = true;
+            try {
+                DataRange data = chunk.getData();
+                long length = chunk.length();
+                ByteBuffer buffer = null;
+                while (state.position < length) {
+                    Integer nextHeldOffset = state.heldBlocks.isEmpty() ? null : state.heldBlocks.firstKey();
+                    long gapEnd = (nextHeldOffset == null) ? length : nextHeldOffset;
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate(READ_STEP);
+                    }
+                    while (state.position < gapEnd) {
+                        int step = (int) Math.min(READ_STEP, gapEnd - state.position);
+                        buffer.clear().limit(step);
+                        if (!data.getSubrange(state.position, step).getBytes(buffer)) {
+                            throw new IllegalStateException("Failed to read data from storage: offset {"
+                                    + state.position + "}, length {" + step + "}");
+                        }
+                        state.digest.update(buffer.array(), 0, step);
+                        state.position += step;
+                    }
+                    drainHeldBlocks(state);
+                }
+                return Arrays.equals(chunk.getChecksum(), state.digest.digest());
+            } finally {
+                releaseHeldBlocks(state);
+            }
+        }
+    }
+
+    /**
+     * Discard hash states of all chunks of a given torrent.
+     */
+    void release(TorrentId torrentId) {
+        Map<Integer, ChunkHashState> torrentStates = states.remove(torrentId);
+        if (torrentStates != null) {
+            torrentStates.values().forEach(state -> {
+                synchronized (state) {
+                    state.closed = true;
+                    releaseHeldBlocks(state);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Total size of out-of-order blocks, that are currently held in memory
+     */
+    long getHeldBytes() {
+        return heldBytes.get();
+    }
+
+    /**
+     * @return true, if the chunk is being hashed incrementally
+     */
+    boolean isHashing(TorrentId torrentId, int pieceIndex) {
+        Map<Integer, ChunkHashState> torrentStates = states.get(torrentId);
+        return torrentStates != null && torrentStates.containsKey(pieceIndex);
+    }
+
+    private ChunkHashState remove(TorrentId torrentId, int pieceIndex) {
+        Map<Integer, ChunkHashState> torrentStates = states.get(torrentId);
+        return (torrentStates == null) ? null : torrentStates.remove(pieceIndex);
+    }
+
+    private void releaseHeldBlocks(ChunkHashState state) {
+        state.heldBlocks.values().forEach(bytes -> heldBytes.addAndGet(-bytes.length));
+        state.heldBlocks.clear();
+    }
+
+    private static class ChunkHashState {
+        private final MessageDigest digest;
+        // blocks, that have been received ahead of the current position, by offset
+        private final TreeMap<Integer, byte[]> heldBlocks;
+        // all data before this offset has been fed to the digest
+        private long position;
+        // true, if the state has been discarded, and no more blocks should be fed to it
+        private boolean closed;
+
+        ChunkHashState() {
+            try {
+                this.digest = MessageDigest.getInstance(ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                // should not happen, the algorithm has been checked on startup
+                throw new IllegalStateException(e);
+            }
+            this.heldBlocks = new TreeMap<>();
+        }
+
+        /**
+         * Feed the part of the block, that has not been hashed yet.
+         * Caller must ensure that the block begins at or before the current position.
+         */
+        void update(int offset, byte[] bytes, int length) {
+            long end = offset + length;
+            if (end > position) {
+                int skip = (int) (position - offset);
+                digest.update(bytes, skip, length - skip);
+                position = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.torrent.data;
+
+import bt.CountingThreadFactory;
+import bt.data.DataDescriptor;
+import bt.data.ResumeData;
+import bt.data.ResumeDataStore;
+import bt.event.EventSource;
+import bt.metainfo.TorrentId;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import bt.torrent.TorrentDescriptor;
+import bt.torrent.TorrentRegistry;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves resume data of active torrents to {@link ResumeDataStore}:
+ * when the torrent is started (i.e. right after the initial verification of data),
+ * shortly after new pieces have been verified, when the torrent is stopped and on runtime shutdown.
+ * Saving after verification of pieces is delayed, so that a single save covers a batch of pieces.
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @since 1.11
+ */
+public class ResumeDataSaver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumeDataSaver.class);
+
+    private static final long SAVE_DELAY_MILLIS = 5000;
+
+    private final ResumeDataStore resumeDataStore;
+    private final TorrentRegistry torrentRegistry;
+    private final ConcurrentMap<TorrentId, DataDescriptor> torrents;
+    // torrents with a pending save
+    private final Set<TorrentId> dirtyTorrents;
+    private final ScheduledExecutorService executor;
+
+    @Inject
+    public ResumeDataSaver(ResumeDataStore resumeDataStore,
+                           TorrentRegistry torrentRegistry,
+                           EventSource eventSource,
+                           IRuntimeLifecycleBinder lifecycleBinder,
+                           Config config) {
+        this.resumeDataStore = resumeDataStore;
+        this.torrentRegistry = torrentRegistry;
+        this.torrents = new ConcurrentHashMap<>();
+        this.dirtyTorrents = ConcurrentHashMap.newKeySet();
+        this.executor = Executors.newSingleThreadScheduledExecutor(CountingThreadFactory.daemonFactory(
+                String.format("%d.bt.torrent.data.resume-data-saver", config.getAcceptorPort())));
+
+        eventSource.onTorrentStarted(null, e -> onTorrentStarted(e.getTorrentId()));
+        eventSource.onPieceVerified(null, e -> scheduleSave(e.getTorrentId(), SAVE_DELAY_MILLIS));
+        eventSource.onTorrentStopped(null, e -> onTorrentStopped(e.getTorrentId()));
+
+        lifecycleBinder.onShutdown("Save resume data", () -> {
+            executor.shutdownNow();
+            torrents.forEach(this::save);
+        });
+    }
+
+    private void onTorrentStarted(TorrentId torrentId) {
+        torrentRegistry.getDescriptor(torrentId)
+                .map(TorrentDescriptor::getDataDescriptor)
+                .ifPresent(dataDescriptor -> {
+                    // descriptor is kept, because it may be unregistered, before the torrent stop is processed here
+                    torrents.put(torrentId, dataDescriptor);
+                    scheduleSave(torrentId, 0);
+                });
+    }
+
+    private void onTorrentStopped(TorrentId torrentId) {
+        dirtyTorrents.remove(torrentId);
+        DataDescriptor dataDescriptor = torrents.remove(torrentId);
+        if (dataDescriptor != null) {
+            save(torrentId, dataDescriptor);
+        }
+    }
+
+    private void scheduleSave(TorrentId torrentId, long delayMillis) {
+        if (torrents.containsKey(torrentId) && dirtyTorrents.add(torrentId)) {
+            try {
+                executor.schedule(() -> {
+                    dirtyTorrents.remove(torrentId);
+                    DataDescriptor dataDescriptor = torrents.get(torrentId);
+                    if (dataDescriptor != null) {
+                        save(torrentId, dataDescriptor);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                dirtyTorrents.remove(torrentId);
+            }
+        }
+    }
+
+    private void save(TorrentId torrentId, DataDescriptor dataDescriptor) {
+        try {
+            resumeDataStore.save(torrentId, ResumeData.capture(dataDescriptor));
+        } catch (Exception e) {
+            LOGGER.error("Failed to save resume data for torrent: " + torrentId, e);
+        }
+    }
+}
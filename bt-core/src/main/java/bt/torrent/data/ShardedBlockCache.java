@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.torrent.data;
+
+import bt.data.DataRange;
+import bt.event.EventSource;
+import bt.metainfo.TorrentId;
+import bt.runtime.Config;
+import bt.torrent.TorrentRegistry;
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Block cache, that keeps whole pieces in off-heap memory, and is shared by all torrents.
+ *
+ * <p>Total size of cached pieces is limited by {@link Config#getBlockCacheSize()}.
+ * Memory for a piece is allocated lazily, when a block of this piece is requested for the first time.
+ * Cached pieces are distributed among several independently locked shards, so that concurrent reads
+ * of different pieces do not contend with each other.</p>
+ *
+ * <p>Eviction is performed with a variant of the CLOCK algorithm with usage counters (GCLOCK).
+ * The counter of a piece is incremented only when some block of this piece is read more than once,
+ * so the pieces, that are read just once (e.g. when a single peer downloads the whole torrent sequentially),
+ * are evicted first and do not flush out the pieces, that are being requested by many peers.</p>
+ *
+ * <p>If memory for a piece can't be reserved (e.g. the piece is larger than the whole cache),
+ * blocks are read directly from storage.</p>
+ *
+ *<p><b>Note that this class implements a service.
+ * Hence, is not a part of the public API and is a subject to change.</b></p>
+ *
+ * @since 1.11
+ */
+public class ShardedBlockCache implements BlockCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedBlockCache.class);
+
+    private static final int SHARDS_COUNT = 16;
+    private static final int MAX_USAGE_COUNT = 3;
+    // granularity of tracking the blocks, that have been read
+    private static final int BLOCK_GRANULARITY = 16 * 1024;
+
+    private final TorrentRegistry torrentRegistry;
+    private final long maxSize;
+    private final Shard[] shards;
+    private final AtomicLong usedSize;
+    private final AtomicInteger nextEvictionShard;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    @Inject
+    public ShardedBlockCache(TorrentRegistry torrentRegistry, EventSource eventSource, Config config) {
+        this(torrentRegistry, eventSource, config.getBlockCacheSize());
+    }
+
+    ShardedBlockCache(TorrentRegistry torrentRegistry, EventSource eventSource, long maxSize) {
+        this.torrentRegistry = torrentRegistry;
+        this.maxSize = maxSize;
+        this.shards = new Shard[SHARDS_COUNT];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        this.usedSize = new AtomicLong();
+        this.nextEvictionShard = new AtomicInteger();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+
+        eventSource.onTorrentStopped(null, e -> releaseTorrent(e.getTorrentId()));
+    }
+
+    @Override
+    public BlockReader get(TorrentId torrentId, int pieceIndex, int offset, int length) {
+        DataRange data = torrentRegistry.getDescriptor(torrentId).get()
+                .getDataDescriptor()
+                .getChunkDescriptors().get(pieceIndex)
+                .getData();
+
+        PieceKey key = new PieceKey(torrentId, pieceIndex);
+        Shard shard = getShard(key);
+
+        Entry entry = shard.get(key, offset);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            entry = tryCreateEntry(key, shard, data, offset);
+            if (entry == null && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Cache is overloaded, will read from storage:" +
+                        " torrent ID {" + torrentId + "}, piece index {" + pieceIndex + "}," +
+                        " offset {" + offset + "}, length {" + length + "}");
+            }
+        }
+
+        Entry cached = entry;
+        return buffer -> {
+            if (buffer.remaining() < length) {
+                return false;
+            }
+            if (cached == null || !cached.readTo(buffer, offset, length)) {
+                readFromStorage(data, buffer, pieceIndex, offset, length);
+            }
+            return true;
+        };
+    }
+
+    private static void readFromStorage(DataRange data, ByteBuffer buffer, int pieceIndex, int offset, int length) {
+        int bufferRemaining = buffer.remaining();
+        if (!data.getSubrange(offset, length).getBytes(buffer)) {
+            throw new IllegalStateException("Failed to read data to buffer:" +
+                    " piece index {" + pieceIndex + "}," +
+                    " offset {" + offset + "}," +
+                    " length: {" + length + "}," +
+                    " buffer space {" + bufferRemaining + "}");
+        }
+    }
+
+    private Shard getShard(PieceKey key) {
+        return shards[Math.floorMod(key.hashCode(), shards.length)];
+    }
+
+    private /*nullable*/ Entry tryCreateEntry(PieceKey key, Shard shard, DataRange data, int offset) {
+        int size = (int) data.length();
+        if (size > maxSize) {
+            return null;
+        }
+        ByteBuffer buffer = reserve(size);
+        if (buffer == null) {
+            return null;
+        }
+
+        Entry entry = new Entry(key, data, buffer);
+        Entry existing = shard.putIfAbsent(key, entry, offset);
+        if (existing != null) {
+            // another thread has been quicker
+            usedSize.addAndGet(-size);
+            return existing;
+        }
+        return entry;
+    }
+
+    /**
+     * Reserve memory for a new piece, evicting other pieces, if needed.
+     *
+     * @return Buffer for the new piece, or null, if no memory could be freed
+     */
+    private /*nullable*/ ByteBuffer reserve(int size) {
+        // each entry may survive at most MAX_USAGE_COUNT turns of the clock hand
+        int maxFailedTurns = shards.length * (MAX_USAGE_COUNT + 1);
+        int failedTurns = 0;
+        while (failedTurns < maxFailedTurns) {
+            long used = usedSize.get();
+            if (used + size <= maxSize) {
+                if (usedSize.compareAndSet(used, used + size)) {
+                    return ByteBuffer.allocateDirect(size);
+                }
+                continue;
+            }
+
+            Shard shard = shards[Math.floorMod(nextEvictionShard.getAndIncrement(), shards.length)];
+            Entry victim = shard.evict();
+            if (victim == null) {
+                failedTurns++;
+                continue;
+            }
+            failedTurns = 0;
+            evictions.incrementAndGet();
+
+            ByteBuffer buffer = victim.release();
+            if (buffer != null && buffer.capacity() == size) {
+                // memory is passed directly to the new piece
+                return buffer;
+            }
+            usedSize.addAndGet(-victim.size);
+        }
+        return null;
+    }
+
+    private void releaseTorrent(TorrentId torrentId) {
+        for (Shard shard : shards) {
+            for (Entry entry : shard.removeAll(torrentId)) {
+                entry.release();
+                usedSize.addAndGet(-entry.size);
+            }
+        }
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Released cached pieces for torrent ID: {}.", torrentId);
+        }
+    }
+
+    /**
+     * @return Number of block reads, that have been served from memory
+     * @since 1.11
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of block reads, that required loading the piece from storage
+     * @since 1.11
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of pieces, that have been evicted to free memory for other pieces
+     * @since 1.11
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Total size of pieces, that are currently cached
+     * @since 1.11
+     */
+    public long getUsedSize() {
+        return usedSize.get();
+    }
+
+    private static class Shard {
+        private final Map<PieceKey, Entry> entries;
+        // entries in the order of the clock
+        private final List<Entry> clock;
+        private int hand;
+
+        Shard() {
+            this.entries = new HashMap<>();
+            this.clock = new ArrayList<>();
+        }
+
+        synchronized /*nullable*/ Entry get(PieceKey key, int offset) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.recordAccess(offset);
+            }
+            return entry;
+        }
+
+        synchronized /*nullable*/ Entry putIfAbsent(PieceKey key, Entry entry, int offset) {
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                existing.recordAccess(offset);
+                return existing;
+            }
+            entries.put(key, entry);
+            clock.add(entry);
+            entry.recordAccess(offset);
+            return null;
+        }
+
+        /**
+         * Make a single turn of the clock hand.
+         *
+         * @return Evicted entry or null, if all entries have been used since the last turn
+         */
+        synchronized /*nullable*/ Entry evict() {
+            for (int i = 0, steps = clock.size(); i < steps; i++) {
+                if (hand >= clock.size()) {
+                    hand = 0;
+                }
+                Entry entry = clock.get(hand);
+                if (entry.usageCount > 0) {
+                    entry.usageCount--;
+                    hand++;
+                } else {
+                    removeFromClock(hand);
+                    entries.remove(entry.key);
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        synchronized List<Entry> removeAll(TorrentId torrentId) {
+            List<Entry> removed = new ArrayList<>();
+            Iterator<Entry> iter = entries.values().iterator();
+            while (iter.hasNext()) {
+                Entry entry = iter.next();
+                if (entry.key.torrentId.equals(torrentId)) {
+                    iter.remove();
+                    removed.add(entry);
+                }
+            }
+            clock.removeAll(removed);
+            hand = 0;
+            return removed;
+        }
+
+        private void removeFromClock(int index) {
+            // order of the entries does not matter much, so just put the last entry in place of the removed one
+            int last = clock.size() - 1;
+            clock.set(index, clock.get(last));
+            clock.remove(last);
+        }
+    }
+
+    private static class Entry {
+        private final PieceKey key;
+        private final DataRange data;
+        private final int size;
+        // guarded by the shard
+        private final BitSet readBlocks;
+        private int usageCount;
+
+        // guarded by this; null, if the entry has been evicted
+        private ByteBuffer buffer;
+        private boolean loaded;
+
+        Entry(PieceKey key, DataRange data, ByteBuffer buffer) {
+            this.key = key;
+            this.data = data;
+            this.size = buffer.capacity();
+            this.readBlocks = new BitSet();
+            this.buffer = buffer;
+        }
+
+        void recordAccess(int offset) {
+            int block = offset / BLOCK_GRANULARITY;
+            if (readBlocks.get(block)) {
+                // the same data is requested again
+                if (usageCount < MAX_USAGE_COUNT) {
+                    usageCount++;
+                }
+            } else {
+                readBlocks.set(block);
+            }
+        }
+
+        /**
+         * @return false, if the entry has been evicted, and the data should be read from storage
+         */
+        synchronized boolean readTo(ByteBuffer target, int offset, int length) {
+            if (buffer == null) {
+                return false;
+            }
+            if (!loaded) {
+                buffer.clear();
+                if (!data.getBytes(buffer)) {
+                    throw new IllegalStateException("Failed to load data into cache:" +
+                            " torrent ID {" + key.torrentId + "}, piece index {" + key.pieceIndex + "}");
+                }
+                loaded = true;
+            }
+            ByteBuffer block = buffer.duplicate();
+            block.limit(offset + length);
+            block.position(offset);
+            target.put(block);
+            return true;
+        }
+
+        synchronized /*nullable*/ ByteBuffer release() {
+            ByteBuffer buffer = this.buffer;
+            this.buffer = null;
+            return buffer;
+        }
+    }
+
+    private static class PieceKey {
+        private final TorrentId torrentId;
+        private final int pieceIndex;
+
+        PieceKey(TorrentId torrentId, int pieceIndex) {
+            this.torrentId = torrentId;
+            this.pieceIndex = pieceIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PieceKey that = (PieceKey) o;
+            return pieceIndex == that.pieceIndex && torrentId.equals(that.torrentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(torrentId, pieceIndex);
+        }
+    }
+}
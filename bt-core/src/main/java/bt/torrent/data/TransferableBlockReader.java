@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.data;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Block reader, that is able to transfer the block directly from storage to a channel,
+ * bypassing the intermediate copies in user space.
+ *
+ * @since 1.11
+ */
+public interface TransferableBlockReader extends BlockReader {
+
+    /**
+     * Transfer as much of the remaining block data, as the channel accepts without blocking.
+     * May be invoked multiple times, until the whole block has been transferred.
+     *
+     * @return true, if the whole block has been transferred
+     * @since 1.11
+     */
+    boolean transferTo(WritableByteChannel channel) throws IOException;
+}
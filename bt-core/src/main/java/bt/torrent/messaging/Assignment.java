@@ -26,7 +26,6 @@ import com.google.common.base.MoreObjects;
 
 import java.time.Duration;
 import java.util.ArrayDeque;
-import java.util.BitSet;
 import java.util.Queue;
 
 class Assignment {
@@ -81,8 +80,6 @@ class Assignment {
             final int numPiecesToAdd = maxSimultaneouslyAssignedPieces - pieces.size();
             PeerBitfield peerBitfield = pieceStatistics.getPeerBitfield(connectionKey).get();
             if (!assignments.isEndgame()) {
-                BitSet relevantPieces = peerBitfield.getBitmask(); //returns a copy
-                localBitfield.removeVerifiedPiecesFromBitset(relevantPieces);
                 selector.getNextPieces(peerBitfield, pieceStatistics)
                         .filter(pieceIndex -> assignments.claim(pieceIndex))
                         .limit(numPiecesToAdd)
@@ -95,7 +92,8 @@ class Assignment {
 
                 for (int i = 0; i < Math.min(numPiecesToAdd, requiredPieces.length); i++) {
                     int pieceIndex = requiredPieces[i];
-                    if (peerBitfield.isVerified(pieceIndex) && assignments.claim(pieceIndex)) {
+                    if (peerBitfield.isVerified(pieceIndex) && !pieces.contains(pieceIndex)
+                            && assignments.claim(pieceIndex)) {
                         pieces.add(pieceIndex);
                     }
                 }
@@ -103,6 +101,10 @@ class Assignment {
         }
     }
 
+    boolean isEndgame() {
+        return assignments.isEndgame();
+    }
+
     boolean isAssigned(int pieceIndex) {
         return pieces.contains(pieceIndex);
     }
@@ -17,14 +17,12 @@
 package bt.torrent.messaging;
 
 import bt.data.LocalBitfield;
-import bt.data.PeerBitfield;
 import bt.net.ConnectionKey;
 import bt.runtime.Config;
 import bt.torrent.BitfieldBasedStatistics;
 import bt.torrent.selector.ValidatingSelector;
 
 import java.time.Duration;
-import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -35,14 +33,19 @@ public class Assignments {
 
     private final int maxSimultaneouslyAssignedPieces;
     private final Duration maxPieceReceivingTime;
+    private final int maxEndgameDuplicates;
 
     private final LocalBitfield bitfield;
     private final ValidatingSelector selector;
     private final BitfieldBasedStatistics pieceStatistics;
 
-    private Set<Integer> assignedPieces;
+    // number of assignments, that each assigned piece belongs to (may be greater than 1 only in the endgame)
+    private Map<Integer, Integer> assignedPieces;
     private Map<ConnectionKey, Assignment> assignments;
 
+    private volatile long endgameStarted;
+    private volatile long endgameFinished;
+
     public Assignments(LocalBitfield bitfield, ValidatingSelector selector,
                        BitfieldBasedStatistics pieceStatistics, Config config) {
         this.bitfield = bitfield;
@@ -50,9 +53,16 @@ public class Assignments {
         this.pieceStatistics = pieceStatistics;
         this.maxPieceReceivingTime = config.getMaxPieceReceivingTime();
         this.maxSimultaneouslyAssignedPieces = config.getMaxSimultaneouslyAssignedPieces();
+        this.maxEndgameDuplicates = Math.max(1, config.getMaxEndgameDuplicates());
 
-        this.assignedPieces = new HashSet<>();
+        this.assignedPieces = new HashMap<>();
         this.assignments = new HashMap<>();
+
+        bitfield.addPieceVerifiedListener(pieceIndex -> {
+            if (endgameStarted > 0 && endgameFinished == 0 && bitfield.getPiecesRemaining() == 0) {
+                endgameFinished = System.currentTimeMillis();
+            }
+        });
     }
 
     public Assignment get(ConnectionKey connectionKey) {
@@ -62,8 +72,7 @@ public class Assignments {
     public void remove(Assignment assignment) {
         assignment.abort();
         assignments.remove(assignment.getConnectionKey());
-        // TODO: investigate on how this might affect endgame?
-        assignedPieces.removeAll(assignment.getPieces());
+        assignment.getPieces().forEach(this::release);
     }
 
     public int count() {
@@ -82,21 +91,68 @@ public class Assignments {
     }
 
     public boolean claim(int pieceIndex) {
-        boolean claimed = !bitfield.isComplete(pieceIndex) && (isEndgame() ||  !assignedPieces.contains(pieceIndex));
+        if (bitfield.isComplete(pieceIndex)) {
+            return false;
+        }
+        // in the endgame the same piece may be assigned to several peers
+        int assignees = assignedPieces.getOrDefault(pieceIndex, 0);
+        boolean endgame = isEndgame();
+        boolean claimed = (assignees == 0) || (endgame && assignees < maxEndgameDuplicates);
         if (claimed) {
-            assignedPieces.add(pieceIndex);
+            assignedPieces.put(pieceIndex, assignees + 1);
+            // claiming the last unassigned piece starts the endgame
+            endgame = endgame || isEndgame();
+        }
+        if (endgame && endgameStarted == 0) {
+            endgameStarted = System.currentTimeMillis();
         }
         return claimed;
     }
 
     public void finish(Integer pieceIndex) {
-        assignedPieces.remove(pieceIndex);
+        release(pieceIndex);
+    }
+
+    private void release(Integer pieceIndex) {
+        assignedPieces.computeIfPresent(pieceIndex, (piece, assignees) -> (assignees > 1) ? assignees - 1 : null);
     }
 
     public boolean isEndgame() {
         // if all remaining pieces are requested,
         // that would mean that we have entered the "endgame" mode
-        return bitfield.getPiecesRemaining() <= assignedPieces.size();
+        int piecesRemaining = bitfield.getPiecesRemaining();
+        return piecesRemaining > 0 && piecesRemaining <= assignedPieces.size();
+    }
+
+    /**
+     * @return Peers, that the piece is currently assigned to (there may be several of them only in the endgame)
+     * @since 1.11
+     */
+    public Set<ConnectionKey> getAssignees(int pieceIndex) {
+        Set<ConnectionKey> assignees = new HashSet<>();
+        if (assignedPieces.containsKey(pieceIndex)) {
+            assignments.forEach((connectionKey, assignment) -> {
+                if (assignment.isAssigned(pieceIndex)) {
+                    assignees.add(connectionKey);
+                }
+            });
+        }
+        return assignees;
+    }
+
+    /**
+     * @return Time spent in the endgame mode: from the moment when all remaining pieces were claimed
+     * till the last piece has been verified (or till now, if the download is still in progress).
+     * Zero, if the endgame mode has not started yet.
+     * @since 1.11
+     */
+    public Duration getEndgameDuration() {
+        long started = endgameStarted;
+        if (started == 0) {
+            return Duration.ZERO;
+        }
+        long finished = endgameFinished;
+        return Duration.ofMillis(((finished == 0) ? System.currentTimeMillis() : finished) - started);
     }
 
     /**
@@ -119,13 +175,6 @@ public class Assignments {
     }
 
     private boolean hasInterestingPieces(ConnectionKey connectionKey) {
-        Optional<PeerBitfield> peerBitfieldOptional = pieceStatistics.getPeerBitfield(connectionKey);
-        if (!peerBitfieldOptional.isPresent()) {
-            return false;
-        }
-        BitSet peerBitfield = peerBitfieldOptional.get().getBitmask();
-        BitSet localBitfield = bitfield.getBitmask();
-        peerBitfield.andNot(localBitfield);
-        return peerBitfield.cardinality() > 0;
+        return pieceStatistics.getInterestingPieces(connectionKey) > 0;
     }
 }
@@ -20,6 +20,7 @@ import bt.protocol.Cancel;
 import bt.protocol.Request;
 import bt.torrent.data.BlockWrite;
 
+import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,6 +44,11 @@ public class ConnectionState {
     private static final AtomicLongFieldUpdater<ConnectionState> UPLOADED_FILED_UPDATER
             = AtomicLongFieldUpdater.newUpdater(ConnectionState.class, "uploaded");
 
+    private static final AtomicLongFieldUpdater<ConnectionState> WASTED_FILED_UPDATER
+            = AtomicLongFieldUpdater.newUpdater(ConnectionState.class, "wasted");
+
+    private static final long DOWNLOAD_RATE_SAMPLE_INTERVAL_NANOS = Duration.ofSeconds(1).toNanos();
+
     private volatile boolean interested;
     private volatile boolean peerInterested;
     private volatile boolean choking;
@@ -50,6 +56,14 @@ public class ConnectionState {
 
     private volatile long downloaded;
     private volatile long uploaded;
+    private volatile long wasted;
+
+    // bytes per second, averaged over the recent sample intervals
+    private volatile long downloadRate;
+    // the lowest observed time between sending a request and receiving the block; 0 if unknown
+    private volatile long minRequestLatencyNanos;
+    private long rateSampleStarted;
+    private long rateSampleBytes;
 
     private Optional<Boolean> shouldChoke;
     private long lastChoked;
@@ -57,6 +71,7 @@ public class ConnectionState {
     private Set<Object> cancelledPeerRequests;
     private Set<Object> pendingRequests;
     private Map<Object, CompletableFuture<BlockWrite>> pendingWrites;
+    private Map<Object, Long> requestTimes;
 
     private Set<Integer> enqueuedPieces;
     private Queue<Request> requestQueue;
@@ -69,6 +84,7 @@ public class ConnectionState {
         this.cancelledPeerRequests = new HashSet<>();
         this.pendingRequests = new HashSet<>();
         this.pendingWrites = new HashMap<>();
+        this.requestTimes = new HashMap<>();
 
         this.enqueuedPieces = new HashSet<>();
         this.requestQueue = new ArrayDeque<>();
@@ -207,6 +223,23 @@ public class ConnectionState {
         UPLOADED_FILED_UPDATER.getAndAdd(this, uploaded);
     }
 
+    /**
+     * @return Amount of data downloaded from remote peer via this connection, that has been discarded
+     * (e.g. blocks, that had already been received from other peers in the endgame mode)
+     * @since 1.11
+     */
+    public long getWasted() {
+        return WASTED_FILED_UPDATER.get(this);
+    }
+
+    /**
+     * @see #getWasted()
+     * @since 1.11
+     */
+    public void incrementWasted(long wasted) {
+        WASTED_FILED_UPDATER.getAndAdd(this, wasted);
+    }
+
     /**
      * Get keys of block requests, that have been cancelled by remote peer.
      *
@@ -250,6 +283,23 @@ public class ConnectionState {
         return pendingWrites;
     }
 
+    /**
+     * @return Recent rate of receiving blocks from remote peer (in bytes per second), or 0 if unknown
+     * @since 1.11
+     */
+    public long getDownloadRate() {
+        return downloadRate;
+    }
+
+    /**
+     * @return The lowest observed time between sending a block request to remote peer and receiving the block,
+     * or {@link Duration#ZERO} if unknown
+     * @since 1.11
+     */
+    public Duration getRequestLatency() {
+        return Duration.ofNanos(minRequestLatencyNanos);
+    }
+
     /**************************************************/
     // Methods below are not a part of the public API //
     /**************************************************/
@@ -273,4 +323,38 @@ public class ConnectionState {
     void removeAssignment() {
         this.assignment = Optional.empty();
     }
+
+    void onRequestSent(Object key, long timeNanos) {
+        requestTimes.put(key, timeNanos);
+    }
+
+    void onRequestCancelled(Object key) {
+        requestTimes.remove(key);
+    }
+
+    void onAllRequestsCancelled() {
+        requestTimes.clear();
+    }
+
+    void onBlockReceived(Object key, int length, long timeNanos) {
+        Long sent = requestTimes.remove(key);
+        if (sent != null) {
+            long latency = timeNanos - sent;
+            if (minRequestLatencyNanos == 0 || latency < minRequestLatencyNanos) {
+                minRequestLatencyNanos = Math.max(1, latency);
+            }
+        }
+
+        if (rateSampleStarted == 0) {
+            rateSampleStarted = timeNanos;
+        }
+        rateSampleBytes += length;
+        long elapsed = timeNanos - rateSampleStarted;
+        if (elapsed >= DOWNLOAD_RATE_SAMPLE_INTERVAL_NANOS) {
+            long sample = (long) (rateSampleBytes * (1_000_000_000d / elapsed));
+            downloadRate = (downloadRate == 0) ? sample : (downloadRate + sample) / 2;
+            rateSampleStarted = timeNanos;
+            rateSampleBytes = 0;
+        }
+    }
 }
@@ -18,6 +18,7 @@ package bt.torrent.messaging;
 
 import bt.BtException;
 import bt.metainfo.TorrentId;
+import bt.net.IMessageDispatcher;
 import bt.net.Peer;
 import bt.protocol.InvalidMessageException;
 import bt.protocol.Message;
@@ -47,11 +48,16 @@ public class PeerRequestConsumer {
 
     private final TorrentId torrentId;
     private final DataWorker dataWorker;
+    private final IMessageDispatcher messageDispatcher;
     private final Map<Peer, Queue<BlockRead>> completedRequests;
 
-    public PeerRequestConsumer(TorrentId torrentId, DataWorker dataWorker) {
+    /**
+     * @since 1.11
+     */
+    public PeerRequestConsumer(TorrentId torrentId, DataWorker dataWorker, IMessageDispatcher messageDispatcher) {
         this.torrentId = torrentId;
         this.dataWorker = dataWorker;
+        this.messageDispatcher = messageDispatcher;
         this.completedRequests = new ConcurrentHashMap<>();
     }
 
@@ -68,6 +74,7 @@ public class PeerRequestConsumer {
                     LOGGER.warn("Failed to perform request to read block: rejected by I/O worker");
                 } else {
                     getCompletedRequestsForPeer(context.getPeer()).add(block);
+                    messageDispatcher.notifySupplierReady(context.getConnectionKey());
                 }
             });
         }
@@ -77,12 +77,14 @@ public class PieceConsumer {
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Discarding unexpected block {} from peer: {}", piece, peer);
             }
+            connectionState.incrementWasted(piece.getLength());
             disposeOfBlock(piece);
             return;
         }
 
         // discard blocks for pieces that have already been verified
         if (bitfield.isComplete(piece.getPieceIndex())) {
+            connectionState.incrementWasted(piece.getLength());
             disposeOfBlock(piece);
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace(
@@ -138,7 +140,11 @@ public class PieceConsumer {
 
     private boolean checkBlockIsExpected(ConnectionState connectionState, Piece piece) {
         Object key = Mapper.mapper().buildKey(piece.getPieceIndex(), piece.getOffset(), piece.getLength());
-        return connectionState.getPendingRequests().remove(key);
+        if (connectionState.getPendingRequests().remove(key)) {
+            connectionState.onBlockReceived(key, piece.getLength(), System.nanoTime());
+            return true;
+        }
+        return false;
     }
 
     private /*nullable*/CompletableFuture<BlockWrite> addBlock(Peer peer, ConnectionState connectionState, Piece piece) {
@@ -156,6 +162,7 @@ public class PieceConsumer {
 
         BufferedData buffer = bufferedPieceRegistry.getBufferedPiece(pieceIndex, offset);
         if (buffer == null) {
+            connectionState.incrementWasted(blockLength);
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Buffered block has already been processed:" +
                         " piece index (" + piece + "), offset (" + offset + ")");
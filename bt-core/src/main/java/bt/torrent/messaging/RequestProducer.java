@@ -30,9 +30,12 @@ import bt.torrent.data.BlockWrite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
@@ -40,6 +43,12 @@ import java.util.stream.Collectors;
 
 /**
  * Produces block requests to the remote peer.
+ * <p>
+ * The number of outstanding requests is adjusted for each peer
+ * to approximately match the amount of data, that the peer is able to deliver
+ * during the request's round trip time plus {@link #REQUEST_QUEUE_TIME},
+ * so that fast peers on high-latency links are kept busy, and slow peers do not hold too many blocks.
+ * Until the peer's rate has been measured, the number of requests is not limited by it.
  *
  * @since 1.0
  */
@@ -47,13 +56,32 @@ public class RequestProducer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RequestProducer.class);
 
+    /**
+     * Amount of time, for which the peer should have enough requests to keep sending data
+     * after the round trip time has elapsed.
+     */
+    private static final Duration REQUEST_QUEUE_TIME = Duration.ofSeconds(1);
+
     private Bitfield bitfield;
     private List<ChunkDescriptor> chunks;
+    private final int minOutstandingRequests;
     private final int maxOutstandingRequests;
 
     public RequestProducer(DataDescriptor dataDescriptor, int maxOutstandingRequests) {
+        this(dataDescriptor, maxOutstandingRequests, maxOutstandingRequests);
+    }
+
+    /**
+     * @param minOutstandingRequests Number of outstanding requests for peers, whose download rate
+     *                               is too low to justify a higher number of requests
+     * @param maxOutstandingRequests Limit on the number of outstanding requests to a single peer;
+     *                               also used for peers, whose download rate has not been measured yet
+     * @since 1.11
+     */
+    public RequestProducer(DataDescriptor dataDescriptor, int minOutstandingRequests, int maxOutstandingRequests) {
         this.bitfield = dataDescriptor.getBitfield();
         this.chunks = dataDescriptor.getChunkDescriptors();
+        this.minOutstandingRequests = Math.max(1, Math.min(minOutstandingRequests, maxOutstandingRequests));
         this.maxOutstandingRequests = maxOutstandingRequests;
     }
 
@@ -101,13 +129,64 @@ public class RequestProducer {
             }
         }
 
+        boolean endgame = assignment.isEndgame();
+        if (endgame) {
+            cancelReceivedBlocks(connectionState, messageConsumer);
+        }
+
+        int outstandingRequests = getOutstandingRequestsLimit(connectionState);
         Queue<Request> requestQueue = connectionState.getRequestQueue();
-        while (!requestQueue.isEmpty() && connectionState.getPendingRequests().size() <= maxOutstandingRequests) {
+        while (!requestQueue.isEmpty() && connectionState.getPendingRequests().size() <= outstandingRequests) {
             Request request = requestQueue.poll();
+            if (endgame && isBlockReceived(request.getPieceIndex(), request.getOffset())) {
+                // the same block has been requested from another peer, and it has already arrived
+                continue;
+            }
             Object key = Mapper.mapper().buildKey(request.getPieceIndex(), request.getOffset(), request.getLength());
             messageConsumer.accept(request);
             connectionState.getPendingRequests().add(key);
+            connectionState.onRequestSent(key, System.nanoTime());
+        }
+    }
+
+    private int getOutstandingRequestsLimit(ConnectionState connectionState) {
+        if (minOutstandingRequests == maxOutstandingRequests) {
+            return maxOutstandingRequests;
         }
+        long downloadRate = connectionState.getDownloadRate();
+        Duration latency = connectionState.getRequestLatency();
+        if (downloadRate == 0 || latency.isZero() || chunks.isEmpty()) {
+            // not measured yet; start with the full window, so that new peers are not throttled
+            return maxOutstandingRequests;
+        }
+        // bandwidth-delay product, expressed in blocks
+        double seconds = latency.plus(REQUEST_QUEUE_TIME).toNanos() / 1_000_000_000d;
+        double blocks = Math.ceil(downloadRate * seconds / chunks.get(0).blockSize());
+        return (int) Math.max(minOutstandingRequests, Math.min(maxOutstandingRequests, blocks));
+    }
+
+    /**
+     * In the endgame the same blocks are requested from several peers;
+     * as soon as a block has been received from one of them, cancel the requests sent to the others.
+     */
+    private void cancelReceivedBlocks(ConnectionState connectionState, Consumer<Message> messageConsumer) {
+        Iterator<Object> iter = connectionState.getPendingRequests().iterator();
+        while (iter.hasNext()) {
+            Optional<Mapper.Key> key = Mapper.decodeKey(iter.next());
+            if (key.isPresent() && isBlockReceived(key.get().getPieceIndex(), key.get().getOffset())) {
+                messageConsumer.accept(new Cancel(key.get().getPieceIndex(), key.get().getOffset(), key.get().getLength()));
+                iter.remove();
+                connectionState.onRequestCancelled(key.get());
+            }
+        }
+    }
+
+    private boolean isBlockReceived(int pieceIndex, int offset) {
+        if (bitfield.isComplete(pieceIndex)) {
+            return true;
+        }
+        ChunkDescriptor chunk = chunks.get(pieceIndex);
+        return chunk.isPresent((int) (offset / chunk.blockSize()));
     }
 
     private void resetConnection(ConnectionState connectionState, Consumer<Message> messageConsumer) {
@@ -121,6 +200,7 @@ public class RequestProducer {
             });
         }
         connectionState.getPendingRequests().clear();
+        connectionState.onAllRequestsCancelled();
         connectionState.getPendingWrites().clear();
     }
 
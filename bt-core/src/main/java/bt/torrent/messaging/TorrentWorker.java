@@ -27,8 +27,10 @@ import bt.protocol.Have;
 import bt.protocol.Interested;
 import bt.protocol.Message;
 import bt.protocol.NotInterested;
+import bt.protocol.Piece;
 import bt.runtime.Config;
 import bt.torrent.BitfieldBasedStatistics;
+import bt.torrent.data.BlockWrite;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +41,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
@@ -57,6 +60,7 @@ public class TorrentWorker {
 
     private static final Duration UPDATE_ASSIGNMENTS_OPTIONAL_INTERVAL = Duration.ofSeconds(1);
     private static final Duration UPDATE_ASSIGNMENTS_MANDATORY_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration TIME_BASED_WORK_INTERVAL = Duration.ofSeconds(1);
 
     private TorrentId torrentId;
     private IMessageDispatcher dispatcher;
@@ -114,6 +118,8 @@ public class TorrentWorker {
         eventSource.onPeerConnected(torrentId, e -> onPeerConnected(e.getConnectionKey()));
 
         eventSource.onPeerDisconnected(torrentId, e -> onPeerDisconnected(e.getConnectionKey()));
+
+        eventSource.onPieceVerified(torrentId, e -> onPieceVerified());
     }
 
     private LocalBitfield getBitfield() {
@@ -168,6 +174,31 @@ public class TorrentWorker {
         PieceAnnouncingPeerWorker worker = getWorker(connectionKey);
         if (worker != null) {
             worker.accept(message);
+            if (message instanceof Piece) {
+                notifyEndgameAssignees(connectionKey, worker, (Piece) message);
+            }
+        }
+    }
+
+    /**
+     * In the endgame the same block may be requested from several peers.
+     * When it has been received from one of them and written, the others are woken up
+     * to cancel their requests, even if they have stalled and do not send anything.
+     */
+    private void notifyEndgameAssignees(ConnectionKey connectionKey, PeerWorker worker, Piece piece) {
+        Assignments assignments = getAssignments();
+        if (assignments == null || !assignments.isEndgame()) {
+            return;
+        }
+        Set<ConnectionKey> assignees = assignments.getAssignees(piece.getPieceIndex());
+        assignees.remove(connectionKey);
+        if (assignees.isEmpty()) {
+            return;
+        }
+        Object key = Mapper.mapper().buildKey(piece.getPieceIndex(), piece.getOffset(), piece.getLength());
+        CompletableFuture<BlockWrite> write = worker.getConnectionState().getPendingWrites().get(key);
+        if (write != null) {
+            write.whenComplete((block, error) -> assignees.forEach(dispatcher::notifySupplierReady));
         }
     }
 
@@ -191,11 +222,39 @@ public class TorrentWorker {
             } else {
                 message = worker.get();
             }
+            scheduleTimeBasedWork(connectionKey, worker, bitfield, assignments);
         }
 
         return message;
     }
 
+    /**
+     * Connections are processed by the dispatcher only when signalled, so the producers, that depend on time
+     * (choking, assignment and request timeouts, metadata re-requests), need to be woken up explicitly.
+     * Idle connections (no interest on either side and nothing to fetch) do not need this.
+     */
+    private void scheduleTimeBasedWork(ConnectionKey connectionKey,
+                                       PeerWorker worker,
+                                       LocalBitfield bitfield,
+                                       Assignments assignments) {
+        ConnectionState connectionState = worker.getConnectionState();
+        if (bitfield == null // metadata is being fetched
+                || connectionState.isInterested()
+                || connectionState.isPeerInterested()
+                || (assignments != null && assignments.get(connectionKey) != null)) {
+            dispatcher.notifySupplierReady(connectionKey, TIME_BASED_WORK_INTERVAL);
+        } else {
+            Long timeouted = timeoutedPeers.get(connectionKey);
+            if (timeouted != null) {
+                // peer will become eligible for assignments again after the ban expires
+                long banRemaining = timeouted + config.getTimeoutedAssignmentPeerBanDuration().toMillis()
+                        - System.currentTimeMillis();
+                dispatcher.notifySupplierReady(connectionKey,
+                        (banRemaining > 0) ? Duration.ofMillis(banRemaining) : TIME_BASED_WORK_INTERVAL);
+            }
+        }
+    }
+
     private PieceAnnouncingPeerWorker getWorker(ConnectionKey connectionKey) {
         return peerMap.get(connectionKey);
     }
@@ -322,6 +381,8 @@ public class TorrentWorker {
 
         lastUpdatedAssignments = System.currentTimeMillis();
         lastNumInterestingPeers = interesting.size();
+
+        interestUpdates.keySet().forEach(dispatcher::notifySupplierReady);
     }
 
     private PieceAnnouncingPeerWorker createPeerWorker(ConnectionKey connectionKey) {
@@ -350,6 +411,17 @@ public class TorrentWorker {
         return Collections.unmodifiableSet(peerMap.keySet());
     }
 
+    /**
+     * Get time spent in the endgame mode.
+     *
+     * @return Duration of the endgame mode or {@link Duration#ZERO}, if it has not started yet
+     * @since 1.11
+     */
+    public Duration getEndgameDuration() {
+        Assignments assignments = getAssignments();
+        return (assignments == null) ? Duration.ZERO : assignments.getEndgameDuration();
+    }
+
     /**
      * Get the current state of a connection with a particular peer.
      *
@@ -392,9 +464,10 @@ public class TorrentWorker {
             message = delegate.get();
             if (message != null && Have.class.equals(message.getClass())) {
                 Have have = (Have) message;
-                peerMap.values().forEach(worker -> {
+                peerMap.forEach((connectionKey, worker) -> {
                     if (this != worker) {
                         worker.getPieceAnnouncements().add(have);
+                        dispatcher.notifySupplierReady(connectionKey);
                     }
                 });
             }
@@ -421,4 +494,9 @@ public class TorrentWorker {
     private void onPeerDisconnected(ConnectionKey connectionKey) {
         removePeer(connectionKey);
     }
+
+    private void onPieceVerified() {
+        // let the peer workers announce the new piece
+        peerMap.keySet().forEach(dispatcher::notifySupplierReady);
+    }
 }
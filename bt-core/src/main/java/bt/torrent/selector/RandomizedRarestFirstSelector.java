@@ -16,6 +16,7 @@
 
 package bt.torrent.selector;
 
+import bt.torrent.PieceAvailabilityIndex;
 import bt.torrent.PieceStatistics;
 
 import java.util.Arrays;
@@ -68,4 +69,9 @@ public class RandomizedRarestFirstSelector extends RarestFirstSelector {
 
         return super.getNextPieces(relevantChunks, pieceStatistics);
     }
+
+    @Override
+    protected IntStream getNextPieces(BitSet relevantChunks, PieceAvailabilityIndex availabilityIndex) {
+        return availabilityIndex.getRarestPieces(relevantChunks, random == null ? ThreadLocalRandom.current() : random);
+    }
 }
@@ -16,11 +16,13 @@
 
 package bt.torrent.selector;
 
+import bt.torrent.PieceAvailabilityIndex;
 import bt.torrent.PieceStatistics;
 import com.google.common.primitives.Ints;
 
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Optional;
 import java.util.stream.IntStream;
 
 public class RarestFirstSelector implements PieceSelector {
@@ -52,10 +54,25 @@ public class RarestFirstSelector implements PieceSelector {
 
     @Override
     public IntStream getNextPieces(BitSet relevantChunks, PieceStatistics pieceStatistics) {
+        Optional<PieceAvailabilityIndex> availabilityIndex = pieceStatistics.getAvailabilityIndex();
+        if (availabilityIndex.isPresent()) {
+            return getNextPieces(relevantChunks, availabilityIndex.get());
+        }
+
         int[] orderedReturnPieces = getChunksOrderedByRarity(relevantChunks, pieceStatistics);
         return Arrays.stream(orderedReturnPieces);
     }
 
+    /**
+     * Select pieces lazily from the incrementally maintained index,
+     * instead of ordering all relevant pieces by availability.
+     *
+     * @since 1.11
+     */
+    protected IntStream getNextPieces(BitSet relevantChunks, PieceAvailabilityIndex availabilityIndex) {
+        return availabilityIndex.getRarestPieces(relevantChunks);
+    }
+
     int[] getChunksOrderedByRarity(BitSet relevantChunks, PieceStatistics pieceStatistics) {
         // get a snapshot of the peer piece counts to avoid concurrency issues with changing data
         int[] piecePeerCounts = getPiecePeerCounts(relevantChunks, pieceStatistics);
@@ -35,7 +35,19 @@ public class ShuffleUtils {
      * @param rnd the instance of random to use
      */
     public static void shuffle(int[] arr, Random rnd) {
-        for (int k = arr.length - 1; k > 0; k--) {
+        shuffle(arr, arr.length, rnd);
+    }
+
+    /**
+     * Shuffle the first {@code length} elements of the passed in int array in-place with the specified Random
+     *
+     * @param arr    the array to shuffle
+     * @param length the number of elements to shuffle
+     * @param rnd    the instance of random to use
+     * @since 1.11
+     */
+    public static void shuffle(int[] arr, int length, Random rnd) {
+        for (int k = length - 1; k > 0; k--) {
             int i = rnd.nextInt(k + 1);
             int a = arr[i];
             arr[i] = arr[k];
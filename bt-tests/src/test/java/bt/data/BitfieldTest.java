@@ -167,6 +167,70 @@ public class BitfieldTest extends BaseBitfieldTest {
         assertEquals(3, bitfield.getPiecesRemaining());
     }
 
+    @Test
+    public void testBitfield_WordLevelOperations() {
+        final int numChunks = 130;
+
+        LocalBitfield local = new TestLocalBitfield(numChunks, null);
+        PeerBitfield peer = new PeerBitfield(numChunks);
+        for (int i : new int[]{0, 63, 64, 129}) {
+            local.markLocalPieceVerified(i);
+            peer.markPeerPieceVerified(i);
+        }
+        assertFalse(peer.hasPiecesNotIn(local));
+        assertEquals(0, peer.countPiecesNotIn(local));
+
+        peer.markPeerPieceVerified(65);
+        peer.markPeerPieceVerified(128);
+        assertTrue(peer.hasPiecesNotIn(local));
+        assertEquals(2, peer.countPiecesNotIn(local));
+        assertFalse(local.hasPiecesNotIn(peer));
+
+        assertEquals(0, peer.nextVerifiedPiece(0));
+        assertEquals(63, peer.nextVerifiedPiece(1));
+        assertEquals(65, peer.nextVerifiedPiece(65));
+        assertEquals(128, peer.nextVerifiedPiece(66));
+        assertEquals(-1, peer.nextVerifiedPiece(130));
+        assertEquals(1, local.nextUnverifiedPiece(0));
+        assertEquals(65, local.nextUnverifiedPiece(63));
+        assertEquals(-1, local.nextUnverifiedPiece(129));
+
+        BitSet verified = new BitSet();
+        peer.forEachVerifiedPiece(verified::set);
+        assertEquals(peer.getBitmask(), verified);
+        assertEquals(6, peer.getPiecesComplete());
+
+        BitSet relevant = peer.getBitmask();
+        local.removeVerifiedPiecesFromBitset(relevant);
+        assertEquals(2, relevant.cardinality());
+        assertTrue(relevant.get(65));
+        assertTrue(relevant.get(128));
+    }
+
+    @Test
+    public void testBitfield_ConcurrentMarking() throws Exception {
+        final int numChunks = 1000;
+        final int numThreads = 4;
+
+        LocalBitfield bitfield = new TestLocalBitfield(numChunks, null);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < numChunks; i++) {
+                    bitfield.markLocalPieceVerified(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(numChunks, bitfield.getPiecesComplete());
+        assertEquals(numChunks, bitfield.getBitmask().cardinality());
+        assertEquals(-1, bitfield.nextUnverifiedPiece(0));
+    }
+
     /**
      * Tests to make sure that peer bitfields are correctly decoded with little endian
      */
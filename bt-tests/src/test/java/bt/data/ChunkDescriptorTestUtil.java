@@ -40,12 +40,16 @@ import static org.mockito.Mockito.when;
 public class ChunkDescriptorTestUtil {
 
     public static ChunkDescriptor buildChunk(List<StorageUnit> units, long blockSize) {
+        return buildChunk(units, blockSize, new byte[20]);
+    }
+
+    public static ChunkDescriptor buildChunk(List<StorageUnit> units, long blockSize, byte[] checksum) {
         long offsetInFirstUnit = 0;
         long limitInLastUnit = units.get(units.size() - 1).capacity();
 
         DataRange data = new ReadWriteDataRange(units, offsetInFirstUnit, limitInLastUnit);
         BlockRange<DataRange> blockData = Ranges.blockRange(data, blockSize);
-        return new DefaultChunkDescriptor(Ranges.dataRange(blockData), blockData.getBlockSet(), new byte[20]);
+        return new DefaultChunkDescriptor(Ranges.dataRange(blockData), blockData.getBlockSet(), checksum);
     }
 
     public static List<StorageUnit> mockStorageUnits(long... capacities) {
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.data.digest.SHA1Digester;
+import bt.event.EventBus;
+import bt.metainfo.Torrent;
+import bt.metainfo.TorrentId;
+import bt.service.CryptoUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static bt.data.ChunkDescriptorTestUtil.mockTorrent;
+import static bt.data.ChunkDescriptorTestUtil.mockTorrentFile;
+import static bt.data.ChunkDescriptorTestUtil.writeBytesToFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DataDescriptor_ResumeDataTest {
+
+    private static final int CHUNK_SIZE = 16;
+    private static final int FILE_SIZE = CHUNK_SIZE * 2;
+    private static final String TORRENT_NAME = "resume-test";
+
+    @Rule
+    public TestFileSystemStorage storage = new TestFileSystemStorage();
+
+    private Torrent torrent;
+    private ResumeDataStore resumeDataStore;
+    private byte[] data;
+    private File file1, file2;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[FILE_SIZE * 2];
+        new Random(42).nextBytes(data);
+
+        byte[][] hashes = new byte[4][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = CryptoUtil.getSha1Digest(Arrays.copyOfRange(data, i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE));
+        }
+        torrent = mockTorrent(TORRENT_NAME, data.length, CHUNK_SIZE, hashes,
+                mockTorrentFile(FILE_SIZE, "file1"), mockTorrentFile(FILE_SIZE, "file2"));
+        when(torrent.getTorrentId()).thenReturn(TorrentId.fromBytes(CryptoUtil.getSha1Digest(data)));
+
+        file1 = new File(new File(storage.getRoot(), TORRENT_NAME), "file1");
+        file2 = new File(new File(storage.getRoot(), TORRENT_NAME), "file2");
+        writeBytesToFile(file1, Arrays.copyOfRange(data, 0, FILE_SIZE));
+        writeBytesToFile(file2, Arrays.copyOfRange(data, FILE_SIZE, FILE_SIZE * 2));
+
+        Path resumeDataDirectory = Files.createTempDirectory("resume-data");
+        resumeDataDirectory.toFile().deleteOnExit();
+        resumeDataStore = new FileResumeDataStore(resumeDataDirectory);
+    }
+
+    @Test
+    public void testResumeData_FilesNotModified_NoVerification() throws Exception {
+        saveResumeData();
+
+        ChunkVerifier verifier = createVerifier();
+        DataDescriptor descriptor = createDescriptor(verifier);
+        assertEquals(0, descriptor.getBitfield().getPiecesRemaining());
+        assertTrue(descriptor.startedAsSeed());
+        verify(verifier, never()).verify(anyListOf(ChunkDescriptor.class), any(LocalBitfield.class));
+        verify(verifier).verify(any(TorrentId.class), anyListOf(ChunkDescriptor.class), any(LocalBitfield.class),
+                eq(new BitSet()));
+        descriptor.close();
+    }
+
+    @Test
+    public void testResumeData_FileModified_PartialVerification() throws Exception {
+        saveResumeData();
+
+        // corrupt the second file
+        byte[] corrupted = Arrays.copyOfRange(data, FILE_SIZE, FILE_SIZE * 2);
+        corrupted[0]++;
+        writeBytesToFile(file2, corrupted);
+        Files.setLastModifiedTime(file2.toPath(),
+                FileTime.fromMillis(Files.getLastModifiedTime(file2.toPath()).toMillis() + 10_000));
+
+        ChunkVerifier verifier = createVerifier();
+        DataDescriptor descriptor = createDescriptor(verifier);
+        BitSet expectedToVerify = new BitSet();
+        expectedToVerify.set(2, 4);
+        verify(verifier).verify(any(TorrentId.class), anyListOf(ChunkDescriptor.class), any(LocalBitfield.class),
+                eq(expectedToVerify));
+
+        LocalBitfield bitfield = descriptor.getBitfield();
+        assertTrue(bitfield.isVerified(0));
+        assertTrue(bitfield.isVerified(1));
+        assertFalse(bitfield.isVerified(2));
+        assertTrue(bitfield.isVerified(3));
+        assertFalse(descriptor.startedAsSeed());
+        descriptor.close();
+    }
+
+    private void saveResumeData() throws Exception {
+        DataDescriptor descriptor = createDescriptor(createVerifier());
+        assertEquals(0, descriptor.getBitfield().getPiecesRemaining());
+        resumeDataStore.save(torrent.getTorrentId(), ResumeData.capture(descriptor));
+        descriptor.close();
+    }
+
+    private ChunkVerifier createVerifier() {
+        return spy(new DefaultChunkVerifier(SHA1Digester.newDigester(1 << 14), 1));
+    }
+
+    private DataDescriptor createDescriptor(ChunkVerifier verifier) {
+        DataDescriptorFactory factory = new DataDescriptorFactory(new DataReaderFactory(new EventBus()),
+                verifier, CHUNK_SIZE, null, resumeDataStore);
+        return factory.createDescriptor(torrent, storage, null);
+    }
+}
@@ -38,6 +38,7 @@ public class MockStorageUnit implements StorageUnit {
     @Override
     public int readBlock(ByteBuffer buffer, long offset) {
         setOffset(offset);
+        file.limit((int) Math.min(capacity, offset + buffer.remaining()));
         int position = buffer.position();
         buffer.put(file);
         return buffer.position() - position;
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.event.EventBus;
+import bt.metainfo.TorrentId;
+import bt.net.buffer.DelegatingByteBufferView;
+import bt.runtime.Config;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PieceAssemblyCacheTest {
+
+    private static final int PIECE_SIZE = 32;
+    private static final int BLOCK_SIZE = 8;
+
+    private static final TorrentId TORRENT_ID = TorrentId.fromBytes(new byte[TorrentId.length()]);
+
+    private DataRange storage;
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        // two files of 48 bytes each, spanned by three pieces
+        storage = PieceUtils.buildReadWriteDataRange(Arrays.asList(new MockStorageUnit(48), new MockStorageUnit(48)));
+        data = new byte[PIECE_SIZE * 3];
+        new Random(42).nextBytes(data);
+    }
+
+    @Test
+    public void testAssembleAndFlush() {
+        PieceAssemblyCache cache = createCache(PIECE_SIZE * 2);
+        DataRange piece = wrap(cache, 1);
+
+        // spans both files, written out of order
+        writeBlock(piece, 1, 3);
+        writeBlock(piece, 1, 0);
+        writeBlock(piece, 1, 2);
+        writeBlock(piece, 1, 1);
+
+        assertArrayEquals(new byte[PIECE_SIZE], storedPiece(1));
+        assertArrayEquals(expectedPiece(1), piece.getBytes());
+
+        cache.flush(TORRENT_ID, 1);
+        assertArrayEquals(expectedPiece(1), storedPiece(1));
+        assertArrayEquals(expectedPiece(1), piece.getBytes());
+        assertEquals(1, cache.getPiecesFlushed());
+        assertEquals(0, cache.getPiecesSpilled());
+        assertEquals(PIECE_SIZE, cache.getAllocatedMemory());
+    }
+
+    @Test
+    public void testSpill_NotEnoughMemory() {
+        PieceAssemblyCache cache = createCache(PIECE_SIZE);
+        DataRange piece0 = wrap(cache, 0);
+        DataRange piece1 = wrap(cache, 1);
+
+        writeBlock(piece0, 0, 0);
+        writeBlock(piece0, 0, 1);
+        // the least recently written piece is spilled to storage to make room for the new piece
+        writeBlock(piece1, 1, 0);
+        assertEquals(1, cache.getPiecesSpilled());
+        assertArrayEquals(Arrays.copyOfRange(expectedPiece(0), 0, BLOCK_SIZE * 2),
+                Arrays.copyOfRange(storedPiece(0), 0, BLOCK_SIZE * 2));
+
+        // the rest of the spilled piece is written directly to storage
+        writeBlock(piece0, 0, 2);
+        writeBlock(piece0, 0, 3);
+        assertArrayEquals(expectedPiece(0), storedPiece(0));
+        assertArrayEquals(expectedPiece(0), piece0.getBytes());
+
+        cache.flush(TORRENT_ID, 0);
+        assertEquals(0, cache.getPiecesFlushed());
+        assertEquals(PIECE_SIZE, cache.getAllocatedMemory());
+    }
+
+    @Test
+    public void testDiscard() {
+        PieceAssemblyCache cache = createCache(PIECE_SIZE);
+        DataRange piece0 = wrap(cache, 0);
+        DataRange piece2 = wrap(cache, 2);
+
+        writeBlock(piece0, 0, 0);
+        cache.discard(TORRENT_ID, 0);
+        assertArrayEquals(new byte[PIECE_SIZE], storedPiece(0));
+
+        // memory is reused
+        writeBlock(piece2, 2, 0);
+        assertEquals(PIECE_SIZE, cache.getAllocatedMemory());
+        assertEquals(0, cache.getPiecesSpilled());
+    }
+
+    @Test
+    public void testStorageAccess_SpillsPiece() {
+        PieceAssemblyCache cache = createCache(PIECE_SIZE);
+        DataRange piece = wrap(cache, 0);
+
+        writeBlock(piece, 0, 0);
+        piece.visitUnits((unit, off, lim) -> true);
+        assertArrayEquals(Arrays.copyOfRange(expectedPiece(0), 0, BLOCK_SIZE),
+                Arrays.copyOfRange(storedPiece(0), 0, BLOCK_SIZE));
+    }
+
+    @Test
+    public void testDisabled() {
+        PieceAssemblyCache cache = createCache(0);
+        DataRange subrange = storage.getSubrange(0, PIECE_SIZE);
+        assertSame(subrange, cache.wrap(TORRENT_ID, 0, subrange, PIECE_SIZE));
+    }
+
+    private static PieceAssemblyCache createCache(long size) {
+        Config config = new Config();
+        config.setPieceAssemblyCacheSize(size);
+        return new PieceAssemblyCache(new EventBus(), config);
+    }
+
+    private DataRange wrap(PieceAssemblyCache cache, int pieceIndex) {
+        return cache.wrap(TORRENT_ID, pieceIndex, storage.getSubrange(pieceIndex * PIECE_SIZE, PIECE_SIZE), PIECE_SIZE);
+    }
+
+    private void writeBlock(DataRange piece, int pieceIndex, int blockIndex) {
+        int offset = pieceIndex * PIECE_SIZE + blockIndex * BLOCK_SIZE;
+        ByteBuffer block = ByteBuffer.wrap(data, offset, BLOCK_SIZE);
+        piece.getSubrange(blockIndex * BLOCK_SIZE).putBytes(new DelegatingByteBufferView(block));
+    }
+
+    private byte[] expectedPiece(int pieceIndex) {
+        return Arrays.copyOfRange(data, pieceIndex * PIECE_SIZE, (pieceIndex + 1) * PIECE_SIZE);
+    }
+
+    private byte[] storedPiece(int pieceIndex) {
+        return storage.getSubrange(pieceIndex * PIECE_SIZE, PIECE_SIZE).getBytes();
+    }
+}
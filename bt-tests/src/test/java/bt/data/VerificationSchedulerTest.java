@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data;
+
+import bt.CountingThreadFactory;
+import bt.data.digest.SHA1Digester;
+import bt.data.range.BlockRange;
+import bt.data.range.Ranges;
+import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
+import bt.service.CryptoUtil;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VerificationSchedulerTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private VerificationScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testVerify_CorruptedPiece() {
+        scheduler = createScheduler(2);
+        List<ChunkDescriptor> chunks = buildChunks(4, 1, new MockStorageUnit(CHUNK_SIZE * 4));
+        LocalBitfield bitfield = createBitfield(chunks.size());
+        TorrentId torrentId = torrentId(1);
+
+        assertFalse(scheduler.verify(torrentId, chunks, bitfield, allChunks(chunks.size())));
+        assertEquals(1, bitfield.getPiecesRemaining());
+        assertFalse(bitfield.isVerified(1));
+        assertFalse(scheduler.getProgress(torrentId).isPresent());
+    }
+
+    @Test
+    public void testVerify_HighPriorityTorrentIsVerifiedFirst() throws Exception {
+        scheduler = createScheduler(1);
+        List<TorrentId> readOrder = Collections.synchronizedList(new ArrayList<>());
+
+        // occupy the only hashing thread
+        CountDownLatch readStarted = new CountDownLatch(1);
+        CountDownLatch releaseRead = new CountDownLatch(1);
+        TorrentId blocking = torrentId(1);
+        Future<Boolean> blockingResult = submit(blocking, new MockStorageUnit(CHUNK_SIZE) {
+            @Override
+            public int readBlock(ByteBuffer buffer, long offset) {
+                readStarted.countDown();
+                try {
+                    releaseRead.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.readBlock(buffer, offset);
+            }
+        });
+        assertTrue(readStarted.await(10, TimeUnit.SECONDS));
+
+        TorrentId normal = torrentId(2);
+        TorrentId high = torrentId(3);
+        scheduler.setPriority(high, VerificationScheduler.Priority.HIGH);
+        Future<Boolean> normalResult = submit(normal, recordingUnit(normal, readOrder));
+        waitUntilQueued(normal);
+        Future<Boolean> highResult = submit(high, recordingUnit(high, readOrder));
+        waitUntilQueued(high);
+
+        releaseRead.countDown();
+        assertTrue(blockingResult.get(10, TimeUnit.SECONDS));
+        assertTrue(normalResult.get(10, TimeUnit.SECONDS));
+        assertTrue(highResult.get(10, TimeUnit.SECONDS));
+        assertEquals(high, readOrder.get(0));
+        assertEquals(normal, readOrder.get(readOrder.size() - 1));
+    }
+
+    private VerificationScheduler createScheduler(int numOfThreads) {
+        return new VerificationScheduler(SHA1Digester.newDigester(), numOfThreads,
+                CountingThreadFactory.daemonFactory("test.verifier"));
+    }
+
+    private Future<Boolean> submit(TorrentId torrentId, StorageUnit unit) {
+        List<ChunkDescriptor> chunks = buildChunks((int) (unit.capacity() / CHUNK_SIZE), -1, unit);
+        LocalBitfield bitfield = createBitfield(chunks.size());
+        return callers.submit(() -> scheduler.verify(torrentId, chunks, bitfield, allChunks(chunks.size())));
+    }
+
+    private void waitUntilQueued(TorrentId torrentId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!scheduler.getProgress(torrentId).isPresent()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Torrent has not been queued in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static StorageUnit recordingUnit(TorrentId torrentId, List<TorrentId> readOrder) {
+        return new MockStorageUnit(CHUNK_SIZE * 2) {
+            @Override
+            public int readBlock(ByteBuffer buffer, long offset) {
+                readOrder.add(torrentId);
+                return super.readBlock(buffer, offset);
+            }
+        };
+    }
+
+    /**
+     * Fill the unit with random data and build chunks with correct checksums,
+     * except for the chunk with index {@code corruptedChunk}
+     */
+    private static List<ChunkDescriptor> buildChunks(int count, int corruptedChunk, StorageUnit unit) {
+        byte[] data = new byte[CHUNK_SIZE * count];
+        new Random(count).nextBytes(data);
+        unit.writeBlockFully(ByteBuffer.wrap(data), 0);
+
+        List<ChunkDescriptor> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            DataRange range = new ReadWriteDataRange(Collections.singletonList(unit), 0, unit.capacity())
+                    .getSubrange((long) i * CHUNK_SIZE, CHUNK_SIZE);
+            BlockRange<DataRange> blockData = Ranges.blockRange(range, CHUNK_SIZE);
+            byte[] checksum = CryptoUtil.getSha1Digest(Arrays.copyOfRange(data, i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE));
+            if (i == corruptedChunk) {
+                checksum[0]++;
+            }
+            chunks.add(new DefaultChunkDescriptor(Ranges.dataRange(blockData), blockData.getBlockSet(), checksum));
+        }
+        return chunks;
+    }
+
+    private static LocalBitfield createBitfield(int piecesTotal) {
+        return new LocalBitfield(piecesTotal, null) {
+            @Override
+            protected void fileFinishedCallback(TorrentFile tf) {
+                // do nothing
+            }
+        };
+    }
+
+    private static BitSet allChunks(int count) {
+        BitSet chunks = new BitSet(count);
+        chunks.set(0, count);
+        return chunks;
+    }
+
+    private static TorrentId torrentId(int value) {
+        byte[] bytes = new byte[TorrentId.length()];
+        bytes[0] = (byte) value;
+        return TorrentId.fromBytes(bytes);
+    }
+}
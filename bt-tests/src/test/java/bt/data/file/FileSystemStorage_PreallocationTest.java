@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.data.StorageUnit;
+import bt.metainfo.Torrent;
+import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static bt.data.ChunkDescriptorTestUtil.mockTorrent;
+import static bt.data.ChunkDescriptorTestUtil.mockTorrentFile;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.when;
+
+public class FileSystemStorage_PreallocationTest {
+
+    private static final int FILE_SIZE = 3 * 1024 * 1024 + 100;
+    private static final int BLOCK_OFFSET = 2 * 1024 * 1024 + 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final TorrentId torrentId = TorrentId.fromBytes(new byte[TorrentId.length()]);
+    private OpenFileCache cache;
+
+    @After
+    public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testPreallocation_ZeroFill_PreservesWrittenData() throws Exception {
+        FileSystemStorage storage = createStorage(FileSystemStorage.PreallocationMode.ZERO_FILL);
+        StorageUnit unit = storage.getUnit(torrent(), file());
+
+        byte[] block = new byte[16 * 1024];
+        new Random(42).nextBytes(block);
+        unit.writeBlockFully(ByteBuffer.wrap(block), BLOCK_OFFSET);
+        waitForPreallocation(storage);
+
+        Path path = folder.getRoot().toPath().resolve("file");
+        assertEquals(FILE_SIZE, Files.size(path));
+        byte[] contents = Files.readAllBytes(path);
+        byte[] expected = new byte[FILE_SIZE];
+        System.arraycopy(block, 0, expected, BLOCK_OFFSET, block.length);
+        assertArrayEquals(expected, contents);
+    }
+
+    @Test
+    public void testPreallocation_ExtendOnly() throws Exception {
+        FileSystemStorage storage = createStorage(FileSystemStorage.PreallocationMode.EXTEND_ONLY);
+        StorageUnit unit = storage.getUnit(torrent(), file());
+
+        unit.writeBlockFully(ByteBuffer.wrap(new byte[] {1, 2, 3}), 0);
+        waitForPreallocation(storage);
+
+        Path path = folder.getRoot().toPath().resolve("file");
+        assertEquals(FILE_SIZE, Files.size(path));
+        assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(Files.readAllBytes(path), 3));
+    }
+
+    @Test
+    public void testPreallocation_Sparse() throws Exception {
+        FileSystemStorage storage = createStorage(FileSystemStorage.PreallocationMode.SPARSE);
+        StorageUnit unit = storage.getUnit(torrent(), file());
+
+        unit.writeBlockFully(ByteBuffer.wrap(new byte[] {1, 2, 3}), 0);
+        assertFalse(storage.getPreallocationProgress(torrentId).isPresent());
+        assertEquals(3, unit.size());
+    }
+
+    private FileSystemStorage createStorage(FileSystemStorage.PreallocationMode mode) {
+        cache = new OpenFileCache(10);
+        return new FileSystemStorage(folder.getRoot().toPath(), cache, mode);
+    }
+
+    private Torrent torrent() {
+        Torrent torrent = mockTorrent("torrent", FILE_SIZE, FILE_SIZE, new byte[][] {new byte[20]}, file());
+        when(torrent.getTorrentId()).thenReturn(torrentId);
+        return torrent;
+    }
+
+    private static TorrentFile file() {
+        return mockTorrentFile(FILE_SIZE, "file");
+    }
+
+    private void waitForPreallocation(FileSystemStorage storage) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            FileSystemStorage.PreallocationProgress progress = storage.getPreallocationProgress(torrentId)
+                    .orElseThrow(() -> new AssertionError("Preallocation has not been started"));
+            assertEquals(0, progress.getFilesFailed());
+            if (progress.getBytesPreallocated() == progress.getBytesTotal()) {
+                assertEquals(FILE_SIZE, progress.getBytesTotal());
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Files have not been preallocated in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
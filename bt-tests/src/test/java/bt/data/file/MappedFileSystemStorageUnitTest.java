@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.net.buffer.DelegatingByteBufferView;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileSystemStorageUnitTest {
+
+    // small windows, so that blocks span several mapped regions
+    private static final int WINDOW_SIZE = 64;
+    private static final int FILE_SIZE = 1000;
+
+    private Path file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("mapped_test", ".bin");
+        Files.delete(file);
+        data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testWriteAndRead_SpansMultipleWindows() throws Exception {
+        MappedRegionCache cache = new MappedRegionCache(WINDOW_SIZE, 4, false);
+        MappedFileSystemStorageUnit unit = new MappedFileSystemStorageUnit(cache, file, FILE_SIZE);
+
+        assertEquals(-1, unit.readBlock(ByteBuffer.allocate(10), 0));
+
+        // more windows than can be mapped at the same time
+        unit.writeBlockFully(ByteBuffer.wrap(data, 0, 500), 0);
+        unit.writeBlockFully(new DelegatingByteBufferView(ByteBuffer.wrap(data, 500, 500)), 500);
+        cache.flush();
+
+        assertEquals(FILE_SIZE, unit.size());
+        assertArrayEquals(data, Files.readAllBytes(file));
+
+        ByteBuffer buffer = ByteBuffer.allocate(300);
+        unit.readBlockFully(buffer, 650);
+        assertArrayEquals(Arrays.copyOfRange(data, 650, 950), buffer.array());
+        unit.close();
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        Files.write(file, data);
+        MappedRegionCache cache = new MappedRegionCache(WINDOW_SIZE, 2, true);
+        MappedFileSystemStorageUnit unit = new MappedFileSystemStorageUnit(cache, file, FILE_SIZE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        long offset = 10, remaining = 200;
+        while (remaining > 0) {
+            long transferred = unit.transferTo(offset, remaining, channel);
+            offset += transferred;
+            remaining -= transferred;
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 10, 210), out.toByteArray());
+        unit.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrite_PastTheEndOfFile() {
+        MappedRegionCache cache = new MappedRegionCache(WINDOW_SIZE, 4, false);
+        MappedFileSystemStorageUnit unit = new MappedFileSystemStorageUnit(cache, file, FILE_SIZE);
+        unit.writeBlock(ByteBuffer.allocate(10), FILE_SIZE - 5);
+    }
+
+    @Test
+    public void testFlush_ConcurrentWrite_RegionRemainsDirty() {
+        MappedRegionCache cache = new MappedRegionCache(WINDOW_SIZE, 4, false);
+        FileCacheKey key = new FileCacheKey(file, FILE_SIZE);
+
+        ByteBuffer region = cache.getRegion(key, 0);
+        // flush happens after the region has been obtained, but before the data has been written
+        cache.flush();
+        region.put(data, 0, WINDOW_SIZE);
+        cache.markDirty(key, 0);
+
+        assertTrue(cache.hasUnflushedChanges());
+        cache.flush();
+        assertFalse(cache.hasUnflushedChanges());
+    }
+
+    @Test
+    public void testFlush_RegionEvictedDuringWrite_FileRemainsDirty() {
+        MappedRegionCache cache = new MappedRegionCache(WINDOW_SIZE, 1, false);
+        FileCacheKey key = new FileCacheKey(file, FILE_SIZE);
+
+        ByteBuffer region = cache.getRegion(key, 0);
+        // evicts the first region, that has not been modified yet
+        cache.getRegion(key, WINDOW_SIZE);
+        assertFalse(cache.hasUnflushedChanges());
+        region.put(data, 0, WINDOW_SIZE);
+        cache.markDirty(key, 0);
+
+        assertTrue(cache.hasUnflushedChanges());
+        cache.flush();
+        assertFalse(cache.hasUnflushedChanges());
+    }
+}
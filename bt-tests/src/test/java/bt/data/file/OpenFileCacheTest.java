@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.data.file;
+
+import bt.net.buffer.ByteBufferView;
+import bt.net.buffer.DelegatingByteBufferView;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OpenFileCacheTest {
+
+    private static final int FILE_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OpenFileCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new OpenFileCache(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    @Test
+    public void testEviction_LeastRecentlyUsed() throws Exception {
+        FileCacheKey key1 = newKey("1"), key2 = newKey("2"), key3 = newKey("3");
+
+        write(key1, 0, (byte) 1);
+        write(key2, 0, (byte) 2);
+        // key1 becomes the most recently used
+        assertEquals(1, read(key1, 0));
+        write(key3, 0, (byte) 3);
+
+        assertEquals(2, cache.getOpenFiles());
+        assertEquals(3, cache.getOpens());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.getCloses());
+
+        // key1 has not been evicted
+        assertEquals(1, read(key1, 0));
+        assertEquals(3, cache.getOpens());
+        // key2 has been evicted and is re-opened
+        assertEquals(2, read(key2, 0));
+        assertEquals(4, cache.getOpens());
+        assertEquals(2, cache.getEvictions());
+
+        cache.close(key1);
+        assertEquals(1, cache.getOpenFiles());
+        assertEquals(3, cache.getCloses());
+    }
+
+    @Test
+    public void testConcurrentAccess_StaysWithinBudget() throws Exception {
+        List<FileCacheKey> keys = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            keys.add(newKey(String.valueOf(i)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        FileCacheKey key = keys.get((thread + i) % keys.size());
+                        // every thread writes to its' own offset in each file
+                        write(key, thread, (byte) i);
+                        assertEquals((byte) i, read(key, thread));
+                        assertTrue(cache.getOpenFiles() <= cache.getMaxOpenFiles());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(cache.getOpenFiles() <= 2);
+        assertEquals(cache.getOpens() - cache.getCloses(), cache.getOpenFiles());
+    }
+
+    @Test
+    public void testFlush_OnlyModifiedFiles() throws Exception {
+        FileCacheKey key1 = newKey("1"), key2 = newKey("2");
+        write(key1, 0, (byte) 1);
+        write(key2, 0, (byte) 2);
+        cache.flush();
+        assertEquals(1, cache.getFlushes());
+        assertEquals(2, cache.getFlushedFiles());
+
+        write(key1, 1, (byte) 1);
+        read(key2, 0);
+        cache.flush();
+        assertEquals(2, cache.getFlushes());
+        assertEquals(3, cache.getFlushedFiles());
+        assertTrue(cache.getMaxFlushTime().compareTo(cache.getFlushTime()) <= 0);
+    }
+
+    @Test
+    public void testFlushPolicy_OnPieceVerified() throws Exception {
+        cache.close();
+        cache = new OpenFileCache(2, FlushPolicy.onPieceVerified());
+        FileCacheKey key = newKey("1");
+
+        write(key, 0, (byte) 1);
+        assertEquals(0, cache.getFlushes());
+        cache.pieceVerified(key);
+        assertEquals(1, cache.getFlushes());
+        // nothing has been written since the last flush
+        cache.pieceVerified(key);
+        assertEquals(1, cache.getFlushes());
+    }
+
+    @Test
+    public void testFlush_ConcurrentWrite_FileRemainsDirty() throws Exception {
+        FileCacheKey key = newKey("1");
+        write(key, 0, (byte) 1);
+        cache.flush();
+
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch flushDone = new CountDownLatch(1);
+        ByteBufferView block = new DelegatingByteBufferView(ByteBuffer.wrap(new byte[] {2})) {
+            @Override
+            public int transferTo(FileChannel fc, long offset) throws IOException {
+                writeStarted.countDown();
+                try {
+                    // the data lands after the flush has completed
+                    flushDone.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.transferTo(fc, offset);
+            }
+        };
+
+        long flushedFiles;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> write = executor.submit(() -> cache.writeBlock(key, block, 0));
+            assertTrue(writeStarted.await(5, TimeUnit.SECONDS));
+            cache.flush();
+            flushedFiles = cache.getFlushedFiles();
+            flushDone.countDown();
+            assertEquals(1, (int) write.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the write is not lost by the next flush
+        cache.flush();
+        assertEquals(flushedFiles + 1, cache.getFlushedFiles());
+    }
+
+    @Test
+    public void testFlushPolicy_Periodic_GroupCommitBySize() throws Exception {
+        cache.close();
+        cache = new OpenFileCache(2, FlushPolicy.periodic(Duration.ZERO, 2));
+        FileCacheKey key1 = newKey("1"), key2 = newKey("2");
+
+        write(key1, 0, (byte) 1);
+        cache.pieceVerified(key1);
+        assertEquals(0, cache.getFlushes());
+        write(key2, 0, (byte) 2);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (cache.getFlushes() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Files have not been flushed in time");
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(1, cache.getFlushes());
+        assertEquals(2, cache.getFlushedFiles());
+    }
+
+    @Test
+    public void testFlushPolicy_Periodic_StopsWhenAllFilesAreClosed() throws Exception {
+        cache.close();
+        cache = new OpenFileCache(2, FlushPolicy.periodic(Duration.ofMillis(20), 0));
+        FileCacheKey key = newKey("1");
+        assertFalse(cache.isPeriodicFlushScheduled());
+
+        write(key, 0, (byte) 1);
+        assertTrue(cache.isPeriodicFlushScheduled());
+        waitForFlushes(1);
+
+        // e.g. torrent has been stopped, and its' storage units have been closed
+        cache.close(key);
+        assertFalse(cache.isPeriodicFlushScheduled());
+        long flushes = cache.getFlushes();
+        Thread.sleep(200);
+        assertEquals(flushes, cache.getFlushes());
+
+        // resumed on the next write
+        write(key, 1, (byte) 1);
+        assertTrue(cache.isPeriodicFlushScheduled());
+        waitForFlushes(flushes + 1);
+
+        cache.close();
+        assertFalse(cache.isPeriodicFlushScheduled());
+    }
+
+    @Test
+    public void testFlushPolicy_Periodic_SharedFlusherThread() throws Exception {
+        List<OpenFileCache> caches = new ArrayList<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                OpenFileCache cache = new OpenFileCache(1, FlushPolicy.periodic(Duration.ofMillis(20), 0));
+                caches.add(cache);
+                cache.writeBlockFully(newKey(String.valueOf(i)), ByteBuffer.wrap(new byte[] {1}), 0);
+            }
+            long flusherThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().contains("bt.data.file.flusher"))
+                    .count();
+            assertTrue("Unexpected number of flusher threads: " + flusherThreads, flusherThreads <= 1);
+        } finally {
+            for (OpenFileCache cache : caches) {
+                cache.close();
+            }
+        }
+    }
+
+    @Test
+    public void testTransferTo_ValidatesAgainstCapacity() throws Exception {
+        FileCacheKey key = newKey("1");
+        write(key, 0, (byte) 1);
+        write(key, 1, (byte) 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, cache.transferTo(key, 0, 2, Channels.newChannel(out)));
+        assertArrayEquals(new byte[] {1, 2}, out.toByteArray());
+
+        try {
+            cache.transferTo(key, FILE_SIZE - 1, 2, Channels.newChannel(out));
+            fail("Transfer past the capacity of file must fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTransferTo_FileShorterThanCapacity_FailsInsteadOfTransferringNothing() throws Exception {
+        FileCacheKey key = newKey("1");
+        write(key, 0, (byte) 1);
+
+        // within capacity, but past the end of file
+        cache.transferTo(key, 10, 10, Channels.newChannel(new ByteArrayOutputStream()));
+    }
+
+    private void waitForFlushes(long flushes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (cache.getFlushes() < flushes) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Files have not been flushed in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private FileCacheKey newKey(String name) {
+        return new FileCacheKey(folder.getRoot().toPath().resolve(name), FILE_SIZE);
+    }
+
+    private void write(FileCacheKey key, long offset, byte value) {
+        cache.writeBlockFully(key, ByteBuffer.wrap(new byte[] {value}), offset);
+    }
+
+    private byte read(FileCacheKey key, long offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        cache.readBlockFully(key, buffer, offset);
+        return buffer.get(0);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.net;
+
+import bt.net.pipeline.ChannelHandlerContext;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import bt.service.RuntimeLifecycleBinder;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BooleanSupplier;
+
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.SHUTDOWN;
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.STARTUP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class DataReceivingLoopGroupTest {
+
+    private static final long TIMEOUT_MILLIS = 5_000;
+    private static final int NUM_OF_LOOPS = 3;
+    private static final int NUM_OF_CHANNELS = 30;
+
+    private IRuntimeLifecycleBinder lifecycleBinder;
+    private Selector sharedSelector;
+    private DataReceivingLoopGroup group;
+    private final List<Pipe> pipes = new ArrayList<>();
+
+    private void setUp(int numOfLoops) throws IOException {
+        Config config = new Config();
+        config.setNumOfDataReceivingThreads(numOfLoops);
+
+        sharedSelector = Selector.open();
+        lifecycleBinder = new RuntimeLifecycleBinder();
+        group = new DataReceivingLoopGroup(sharedSelector, new ConcurrentLinkedQueue<>(), lifecycleBinder, config);
+        lifecycleBinder.visitBindings(STARTUP, binding -> binding.getRunnable().run());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (lifecycleBinder != null) {
+            lifecycleBinder.visitBindings(SHUTDOWN, binding -> binding.getRunnable().run());
+            sharedSelector.close();
+        }
+        for (Pipe pipe : pipes) {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    @Test
+    public void testSingleLoop_UsesSharedSelector() throws IOException {
+        setUp(1);
+
+        Pipe.SourceChannel channel = openChannel();
+        group.registerChannel(channel, mock(ChannelHandlerContext.class));
+
+        assertSame(sharedSelector, group.getLoop(channel).getSelector());
+        assertNotNull(channel.keyFor(sharedSelector));
+    }
+
+    @Test
+    public void testChannelsAreDistributedAmongLoops() throws IOException {
+        setUp(NUM_OF_LOOPS);
+
+        Set<DataReceivingLoop> loops = new HashSet<>();
+        Set<Selector> selectors = new HashSet<>();
+        for (int i = 0; i < NUM_OF_CHANNELS; i++) {
+            Pipe.SourceChannel channel = openChannel();
+            DataReceivingLoop loop = group.getLoop(channel);
+            // routing must not change between calls
+            assertSame(loop, group.getLoop(channel));
+            loops.add(loop);
+            selectors.add(loop.getSelector());
+        }
+
+        assertTrue("Channels are not distributed: " + loops.size() + " loop(s) used", loops.size() > 1);
+        assertEquals(loops.size(), selectors.size());
+    }
+
+    @Test
+    public void testAllOperationsOnChannelAreRoutedToTheSameLoop() throws Exception {
+        setUp(NUM_OF_LOOPS);
+
+        List<Pipe.SourceChannel> channels = new ArrayList<>();
+        for (int i = 0; i < NUM_OF_CHANNELS; i++) {
+            Pipe.SourceChannel channel = openChannel();
+            group.registerChannel(channel, mock(ChannelHandlerContext.class));
+            channels.add(channel);
+        }
+
+        List<SelectionKey> keys = new ArrayList<>();
+        for (Pipe.SourceChannel channel : channels) {
+            Selector owner = group.getLoop(channel).getSelector();
+            SelectionKey key = channel.keyFor(owner);
+            assertNotNull("Channel is not registered with the selector of its' loop", key);
+            assertEquals(SelectionKey.OP_READ, key.interestOps());
+            // channel must not be registered with any other loop
+            for (Pipe.SourceChannel other : channels) {
+                Selector otherSelector = group.getLoop(other).getSelector();
+                if (otherSelector != owner) {
+                    assertNull(channel.keyFor(otherSelector));
+                }
+            }
+            keys.add(key);
+        }
+
+        // interest ops updates are applied only by the loop, that owns the channel's key
+        channels.forEach(group::deactivateChannel);
+        waitFor(() -> keys.stream().allMatch(key -> key.interestOps() == 0));
+        channels.forEach(group::activateChannel);
+        waitFor(() -> keys.stream().allMatch(key -> key.interestOps() == SelectionKey.OP_READ));
+
+        channels.forEach(group::unregisterChannel);
+        keys.forEach(key -> assertFalse(key.isValid()));
+    }
+
+    private Pipe.SourceChannel openChannel() throws IOException {
+        Pipe pipe = Pipe.open();
+        pipes.add(pipe);
+        Pipe.SourceChannel channel = pipe.source();
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
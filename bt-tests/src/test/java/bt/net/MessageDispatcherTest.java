@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net;
+
+import bt.metainfo.TorrentId;
+import bt.protocol.Have;
+import bt.protocol.Message;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import bt.service.RuntimeLifecycleBinder;
+import bt.torrent.TorrentRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.SHUTDOWN;
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.STARTUP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MessageDispatcherTest {
+
+    private static final long TIMEOUT_MILLIS = 5_000;
+
+    private IRuntimeLifecycleBinder lifecycleBinder;
+    private ConcurrentHashMap<ConnectionKey, TestConnection> connections;
+    private MessageDispatcher dispatcher;
+    private AtomicBoolean torrentActive;
+
+    @Before
+    public void setUp() {
+        setUp(1);
+    }
+
+    private void setUp(int numOfThreads) {
+        if (lifecycleBinder != null) {
+            tearDown();
+        }
+        Config config = new Config();
+        config.setNumOfMessageDispatchingThreads(numOfThreads);
+
+        connections = new ConcurrentHashMap<>();
+        IPeerConnectionPool pool = mock(IPeerConnectionPool.class);
+        when(pool.getConnection(any(ConnectionKey.class)))
+                .thenAnswer(invocation -> connections.get((ConnectionKey) invocation.getArguments()[0]));
+        torrentActive = new AtomicBoolean(true);
+        TorrentRegistry torrentRegistry = mock(TorrentRegistry.class);
+        when(torrentRegistry.isSupportedAndActive(any(TorrentId.class))).thenAnswer(invocation -> torrentActive.get());
+
+        lifecycleBinder = new RuntimeLifecycleBinder();
+        dispatcher = new MessageDispatcher(lifecycleBinder, pool, torrentRegistry, config);
+        lifecycleBinder.visitBindings(STARTUP, binding -> binding.getRunnable().run());
+    }
+
+    @After
+    public void tearDown() {
+        lifecycleBinder.visitBindings(SHUTDOWN, binding -> binding.getRunnable().run());
+    }
+
+    @Test
+    public void testIdleConnection_NotProcessedWithoutSignals() throws Exception {
+        ConnectionKey key = connectionKey(1, 0);
+        TestConnection connection = connect(key);
+        CountingSupplier supplier = new CountingSupplier();
+        dispatcher.setConnectionMessageConsumerAndSupplier(key, message -> {}, supplier);
+
+        // new connection is processed once
+        waitFor(() -> supplier.getCalls() == 1);
+        assertTrue(connection.getMessageAvailableListener() != null);
+
+        Thread.sleep(500);
+        assertEquals(1, supplier.getCalls());
+    }
+
+    @Test
+    public void testDataReceived_ConnectionIsProcessed() throws Exception {
+        ConnectionKey key = connectionKey(1, 0);
+        TestConnection connection = connect(key);
+        List<Message> consumed = new CopyOnWriteArrayList<>();
+        CountingSupplier supplier = new CountingSupplier();
+        dispatcher.setConnectionMessageConsumerAndSupplier(key, consumed::add, supplier);
+        waitFor(() -> connection.getMessageAvailableListener() != null);
+
+        Have have = new Have(1);
+        connection.receive(have);
+        waitFor(() -> consumed.size() == 1);
+        assertEquals(have, consumed.get(0));
+    }
+
+    @Test
+    public void testTorrentNotActive_ConnectionIsProcessedWhenTorrentIsStarted() throws Exception {
+        // e.g. torrent's data is being verified
+        torrentActive.set(false);
+        ConnectionKey key = connectionKey(1, 0);
+        TestConnection connection = connect(key);
+        List<Message> consumed = new CopyOnWriteArrayList<>();
+        CountingSupplier supplier = new CountingSupplier();
+        dispatcher.setConnectionMessageConsumerAndSupplier(key, consumed::add, supplier);
+
+        // connection is listened to, even though the torrent is not active yet
+        waitFor(() -> connection.getMessageAvailableListener() != null);
+        Have have = new Have(1);
+        connection.receive(have);
+        Thread.sleep(300);
+        assertTrue(consumed.isEmpty());
+        assertEquals(0, supplier.getCalls());
+
+        // no signals are sent, when the torrent is started
+        torrentActive.set(true);
+        waitFor(() -> consumed.size() == 1);
+        assertEquals(have, consumed.get(0));
+        waitFor(() -> supplier.getCalls() > 0);
+    }
+
+    @Test
+    public void testNotifySupplierReady_ConnectionIsProcessed() throws Exception {
+        ConnectionKey key = connectionKey(1, 0);
+        TestConnection connection = connect(key);
+        CountingSupplier supplier = new CountingSupplier();
+        dispatcher.setConnectionMessageConsumerAndSupplier(key, message -> {}, supplier);
+        waitFor(() -> supplier.getCalls() == 1);
+
+        Have have = new Have(1);
+        supplier.add(have);
+        dispatcher.notifySupplierReady(key);
+        waitFor(() -> connection.getPosted().size() == 1);
+        assertEquals(have, connection.getPosted().get(0));
+    }
+
+    @Test
+    public void testNotifySupplierReady_WithDelay() throws Exception {
+        ConnectionKey key = connectionKey(1, 0);
+        connect(key);
+        CountingSupplier supplier = new CountingSupplier();
+        dispatcher.setConnectionMessageConsumerAndSupplier(key, message -> {}, supplier);
+        waitFor(() -> supplier.getCalls() == 1);
+
+        long started = System.currentTimeMillis();
+        // only the earliest notification is retained
+        dispatcher.notifySupplierReady(key, Duration.ofMillis(1000));
+        dispatcher.notifySupplierReady(key, Duration.ofMillis(300));
+        dispatcher.notifySupplierReady(key, Duration.ofMillis(600));
+        waitFor(() -> supplier.getCalls() == 2);
+        assertTrue(System.currentTimeMillis() - started >= 300);
+
+        Thread.sleep(1000);
+        assertEquals(2, supplier.getCalls());
+    }
+
+    @Test
+    public void testMessageRejected_RetainedUntilConnectionIsWritable() throws Exception {
+        ConnectionKey key = connectionKey(1, 0);
+        TestConnection connection = connect(key);
+        CountingSupplier supplier = new CountingSupplier();
+        dispatcher.setConnectionMessageConsumerAndSupplier(key, message -> {}, supplier);
+        waitFor(() -> supplier.getCalls() == 1);
+
+        connection.setWritable(false);
+        Have have1 = new Have(1), have2 = new Have(2);
+        supplier.add(have1);
+        supplier.add(have2);
+        dispatcher.notifySupplierReady(key);
+        waitFor(() -> connection.getRejected() == 1);
+        assertEquals(2, supplier.getCalls());
+
+        // rejected message is re-sent instead of asking the supplier for a new one
+        dispatcher.notifySupplierReady(key);
+        waitFor(() -> connection.getRejected() == 2);
+        assertEquals(2, supplier.getCalls());
+        assertTrue(connection.getPosted().isEmpty());
+
+        connection.setWritable(true);
+        connection.getWritableListener().run();
+        waitFor(() -> connection.getPosted().size() == 2);
+        assertEquals(have1, connection.getPosted().get(0));
+        assertEquals(have2, connection.getPosted().get(1));
+    }
+
+    @Test
+    public void testMultipleThreads_TorrentIsAlwaysProcessedInTheSameThread() throws Exception {
+        setUp(4);
+
+        int numOfTorrents = 8, numOfPeers = 3, numOfRounds = 5;
+        Map<TorrentId, Set<Thread>> threads = new ConcurrentHashMap<>();
+        List<TestConnection> testConnections = new ArrayList<>();
+        List<CountingSupplier> suppliers = new ArrayList<>();
+        List<ConnectionKey> keys = new ArrayList<>();
+        AtomicInteger consumed = new AtomicInteger();
+        for (int torrent = 0; torrent < numOfTorrents; torrent++) {
+            for (int peer = 0; peer < numOfPeers; peer++) {
+                ConnectionKey key = connectionKey(torrent, peer);
+                Set<Thread> torrentThreads = threads.computeIfAbsent(key.getTorrentId(), id -> ConcurrentHashMap.newKeySet());
+                CountingSupplier supplier = new CountingSupplier();
+                TestConnection connection = connect(key);
+                dispatcher.setConnectionMessageConsumerAndSupplier(key,
+                        message -> {
+                            torrentThreads.add(Thread.currentThread());
+                            consumed.incrementAndGet();
+                        },
+                        () -> {
+                            torrentThreads.add(Thread.currentThread());
+                            return supplier.get();
+                        });
+                keys.add(key);
+                testConnections.add(connection);
+                suppliers.add(supplier);
+            }
+        }
+        waitFor(() -> testConnections.stream().allMatch(connection -> connection.getMessageAvailableListener() != null));
+
+        for (int round = 0; round < numOfRounds; round++) {
+            for (int i = 0; i < keys.size(); i++) {
+                testConnections.get(i).receive(new Have(round));
+                suppliers.get(i).add(new Have(round));
+                dispatcher.notifySupplierReady(keys.get(i));
+            }
+        }
+        int expected = keys.size() * numOfRounds;
+        waitFor(() -> consumed.get() == expected);
+        waitFor(() -> testConnections.stream().mapToInt(connection -> connection.getPosted().size()).sum() == expected);
+
+        Set<Thread> allThreads = new HashSet<>();
+        threads.forEach((torrentId, torrentThreads) -> {
+            assertEquals("Torrent was processed in multiple threads: " + torrentThreads, 1, torrentThreads.size());
+            allThreads.addAll(torrentThreads);
+        });
+        // torrents are distributed among the dispatching threads
+        assertTrue(allThreads.size() > 1);
+    }
+
+    private TestConnection connect(ConnectionKey key) {
+        TestConnection connection = new TestConnection();
+        connections.put(key, connection);
+        return connection;
+    }
+
+    private static ConnectionKey connectionKey(int torrent, int peer) {
+        byte[] torrentId = new byte[TorrentId.length()];
+        torrentId[0] = (byte) torrent;
+        return new ConnectionKey(InetPeer.build(InetAddress.getLoopbackAddress(), 10000 + peer),
+                10000 + peer, TorrentId.fromBytes(torrentId));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition has not been met in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static class CountingSupplier implements Supplier<Message> {
+        private final Queue<Message> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger calls = new AtomicInteger();
+
+        void add(Message message) {
+            messages.add(message);
+        }
+
+        int getCalls() {
+            return calls.get();
+        }
+
+        @Override
+        public Message get() {
+            calls.incrementAndGet();
+            return messages.poll();
+        }
+    }
+
+    private static class TestConnection implements PeerConnection {
+        private final Queue<Message> incoming = new ConcurrentLinkedQueue<>();
+        private final List<Message> posted = new CopyOnWriteArrayList<>();
+        private final AtomicInteger rejected = new AtomicInteger();
+        private volatile boolean writable = true;
+        private volatile Runnable messageAvailableListener;
+        private volatile Runnable writableListener;
+
+        void receive(Message message) {
+            incoming.add(message);
+            messageAvailableListener.run();
+        }
+
+        void setWritable(boolean writable) {
+            this.writable = writable;
+        }
+
+        List<Message> getPosted() {
+            return posted;
+        }
+
+        int getRejected() {
+            return rejected.get();
+        }
+
+        Runnable getMessageAvailableListener() {
+            return messageAvailableListener;
+        }
+
+        Runnable getWritableListener() {
+            return writableListener;
+        }
+
+        @Override
+        public Message readMessageNow() {
+            return incoming.poll();
+        }
+
+        @Override
+        public Message readMessage(long timeout) {
+            return incoming.poll();
+        }
+
+        @Override
+        public void setMessageAvailableListener(Runnable listener) {
+            this.messageAvailableListener = listener;
+        }
+
+        @Override
+        public void setWritableListener(Runnable listener) {
+            this.writableListener = listener;
+        }
+
+        @Override
+        public void postMessage(Message message) {
+            posted.add(message);
+        }
+
+        @Override
+        public boolean tryPostMessage(Message message) {
+            if (!writable) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            posted.add(message);
+            return true;
+        }
+
+        @Override
+        public Peer getRemotePeer() {
+            return null;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return 0;
+        }
+
+        @Override
+        public TorrentId setTorrentId(TorrentId torrentId) {
+            return null;
+        }
+
+        @Override
+        public TorrentId getTorrentId() {
+            return null;
+        }
+
+        @Override
+        public long getLastActive() {
+            return 0;
+        }
+
+        @Override
+        public void closeQuietly() {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
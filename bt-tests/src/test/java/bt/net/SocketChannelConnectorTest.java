@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.net;
+
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import bt.service.RuntimeLifecycleBinder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.SHUTDOWN;
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.STARTUP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SocketChannelConnectorTest {
+
+    private static final long TIMEOUT_MILLIS = 5_000;
+    private static final Duration SHORT_TIMEOUT = Duration.ofMillis(300);
+
+    private IRuntimeLifecycleBinder lifecycleBinder;
+    private Selector selector;
+    private SocketChannelConnector connector;
+    private ServerSocketChannel server;
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        Config config = new Config();
+        config.setPeerConnectionTimeout(SHORT_TIMEOUT);
+        config.setPeerHandshakeTimeout(SHORT_TIMEOUT);
+
+        selector = Selector.open();
+        lifecycleBinder = new RuntimeLifecycleBinder();
+        connector = new SocketChannelConnector(selector, lifecycleBinder, config);
+        lifecycleBinder.visitBindings(STARTUP, binding -> binding.getRunnable().run());
+
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        shutdown();
+        selector.close();
+        server.close();
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+    }
+
+    private void shutdown() {
+        if (lifecycleBinder != null) {
+            lifecycleBinder.visitBindings(SHUTDOWN, binding -> binding.getRunnable().run());
+            lifecycleBinder = null;
+        }
+    }
+
+    @Test
+    public void testConnect_Succeeds() throws Exception {
+        SocketChannel channel = openChannel();
+        SocketChannel connected = connector.connect(channel, server.getLocalAddress()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        assertSame(channel, connected);
+        assertTrue(channel.isConnected());
+        assertFalse(channel.isBlocking());
+    }
+
+    @Test
+    public void testConnect_Refused() throws Exception {
+        SocketAddress address = server.getLocalAddress();
+        server.close();
+
+        SocketChannel channel = openChannel();
+        Throwable error = getError(connector.connect(channel, address));
+
+        assertTrue("Unexpected error: " + error, error instanceof IOException);
+        assertFalse(error instanceof SocketTimeoutException);
+        // the channel is closed right after the future has been failed
+        waitFor(() -> !channel.isOpen());
+    }
+
+    @Test
+    public void testConnect_TimesOut() throws Exception {
+        // remote side does not respond, when its' accept queue is full
+        fillAcceptQueue();
+
+        SocketChannel channel = openChannel();
+        long started = System.currentTimeMillis();
+        Throwable error = getError(connector.connect(channel, server.getLocalAddress()));
+
+        assertTrue("Unexpected error: " + error, error instanceof SocketTimeoutException);
+        assertTrue(System.currentTimeMillis() - started >= SHORT_TIMEOUT.toMillis());
+        waitFor(() -> !channel.isOpen());
+    }
+
+    @Test
+    public void testHandshake_Succeeds() throws Exception {
+        SocketChannel channel = connect();
+        SocketChannel remote = server.accept();
+        channels.add(remote);
+        TestHandshake handshake = new TestHandshake(channel);
+        CompletableFuture<SocketChannel> future = connector.handshake(channel, handshake);
+
+        // handshake is not completed until the remote side responds
+        waitFor(() -> handshake.getCalls() > 0);
+        assertFalse(future.isDone());
+
+        remote.write(ByteBuffer.wrap(new byte[]{1}));
+        assertSame(channel, future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void testHandshake_Fails() throws Exception {
+        SocketChannel channel = connect();
+        IOException failure = new IOException("Handshake failed");
+        NonBlockingHandshake handshake = new NonBlockingHandshake() {
+            @Override
+            public boolean process() throws IOException {
+                throw failure;
+            }
+
+            @Override
+            public boolean hasPendingData() {
+                return false;
+            }
+        };
+
+        assertSame(failure, getError(connector.handshake(channel, handshake)));
+        waitFor(() -> !channel.isOpen());
+    }
+
+    @Test
+    public void testHandshake_TimesOut() throws Exception {
+        SocketChannel channel = connect();
+        TestHandshake handshake = new TestHandshake(channel);
+
+        Throwable error = getError(connector.handshake(channel, handshake));
+
+        assertTrue("Unexpected error: " + error, error instanceof SocketTimeoutException);
+        waitFor(() -> !channel.isOpen());
+    }
+
+    @Test
+    public void testHandshake_ResumedByListener() throws Exception {
+        SocketChannel channel = connect();
+        TestHandshake handshake = new TestHandshake(channel);
+        CompletableFuture<SocketChannel> future = connector.handshake(channel, handshake);
+        waitFor(() -> handshake.getCalls() > 0);
+
+        // no data is received from the remote side, so it's only the listener, that can resume the handshake
+        handshake.setCompleted();
+        handshake.resume();
+
+        assertSame(channel, future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, handshake.getCalls());
+    }
+
+    @Test
+    public void testShutdown_PendingOperationsAreFailed() throws Exception {
+        SocketChannel channel = connect();
+        TestHandshake handshake = new TestHandshake(channel);
+        CompletableFuture<SocketChannel> future = connector.handshake(channel, handshake);
+        waitFor(() -> handshake.getCalls() > 0);
+
+        shutdown();
+
+        Throwable error = getError(future);
+        assertTrue("Unexpected error: " + error, error instanceof IOException);
+        assertFalse(error instanceof SocketTimeoutException);
+        waitFor(() -> !channel.isOpen());
+
+        // new operations are rejected
+        SocketChannel other = openChannel();
+        assertTrue(getError(connector.handshake(other, new TestHandshake(other))) instanceof IOException);
+        waitFor(() -> !other.isOpen());
+    }
+
+    private SocketChannel openChannel() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channels.add(channel);
+        return channel;
+    }
+
+    private SocketChannel connect() throws Exception {
+        return connector.connect(openChannel(), server.getLocalAddress()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void fillAcceptQueue() throws IOException {
+        try (Selector connectSelector = Selector.open()) {
+            for (;;) {
+                SocketChannel channel = openChannel();
+                channel.configureBlocking(false);
+                if (channel.connect(server.getLocalAddress())) {
+                    continue;
+                }
+                SelectionKey key = channel.register(connectSelector, SelectionKey.OP_CONNECT);
+                if (connectSelector.select(SHORT_TIMEOUT.toMillis()) == 0) {
+                    // this attempt is stuck, so is any subsequent one
+                    return;
+                }
+                connectSelector.selectedKeys().clear();
+                key.cancel();
+                channel.finishConnect();
+            }
+        }
+    }
+
+    private static Throwable getError(CompletableFuture<SocketChannel> future) throws Exception {
+        try {
+            future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        throw new AssertionError("Operation has not been failed");
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition has not been met in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Completes, when a single byte has been received from the remote side, or when it's explicitly told to.
+     */
+    private static class TestHandshake implements NonBlockingHandshake {
+        private final SocketChannel channel;
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean completed;
+        private volatile Runnable resumeListener;
+
+        TestHandshake(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        int getCalls() {
+            return calls.get();
+        }
+
+        void setCompleted() {
+            completed = true;
+        }
+
+        void resume() {
+            resumeListener.run();
+        }
+
+        @Override
+        public boolean process() throws IOException {
+            calls.incrementAndGet();
+            if (channel.read(ByteBuffer.allocate(1)) > 0) {
+                completed = true;
+            }
+            return completed;
+        }
+
+        @Override
+        public boolean hasPendingData() {
+            return false;
+        }
+
+        @Override
+        public void setResumeListener(Runnable listener) {
+            this.resumeListener = listener;
+        }
+    }
+}
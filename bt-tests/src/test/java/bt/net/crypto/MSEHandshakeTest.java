@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.event.EventBus;
+import bt.metainfo.TorrentId;
+import bt.net.InetPeer;
+import bt.net.Peer;
+import bt.net.PeerId;
+import bt.net.buffer.BorrowedBuffer;
+import bt.net.buffer.BufferManager;
+import bt.net.buffer.IBufferManager;
+import bt.protocol.EncodingContext;
+import bt.protocol.Handshake;
+import bt.protocol.Message;
+import bt.protocol.crypto.EncryptionPolicy;
+import bt.protocol.crypto.MSECipher;
+import bt.protocol.handler.MessageHandler;
+import bt.runtime.Config;
+import bt.service.RuntimeLifecycleBinder;
+import bt.test.protocol.ProtocolTest;
+import bt.torrent.TorrentRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MSEHandshakeTest {
+
+    private static final int READ_FRAGMENT_SIZE = 7;
+    private static final int WRITE_FRAGMENT_SIZE = 11;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static final byte[] PAYLOAD = "payload stream".getBytes(StandardCharsets.US_ASCII);
+
+    private final Peer peer = InetPeer.build(InetAddress.getLoopbackAddress(), 9999);
+    private final TorrentId torrentId = TorrentId.fromBytes(new byte[TorrentId.length()]);
+
+    private IBufferManager bufferManager;
+    private MSEKeyPairPool keyPool;
+    private TorrentRegistry torrentRegistry;
+    private MSETorrentIndex torrentIndex;
+    private MessageHandler<Message> protocol;
+
+    private FragmentingChannel initiatorChannel;
+    private FragmentingChannel receiverChannel;
+    private BorrowedBuffer<ByteBuffer> initiatorIn;
+    private BorrowedBuffer<ByteBuffer> receiverIn;
+
+    @Before
+    public void setUp() {
+        Config config = new Config();
+        bufferManager = new BufferManager(config);
+        keyPool = new MSEKeyPairPool(new RuntimeLifecycleBinder(), config);
+        protocol = ProtocolTest.forBittorrentProtocol().build().getProtocol();
+
+        torrentRegistry = mock(TorrentRegistry.class);
+        when(torrentRegistry.getDescriptor(any(TorrentId.class))).thenReturn(Optional.empty());
+        EventBus eventBus = new EventBus();
+        torrentIndex = new MSETorrentIndex(eventBus);
+        eventBus.fireTorrentStarted(torrentId);
+
+        Queue<Byte> initiatorToReceiver = new ArrayDeque<>();
+        Queue<Byte> receiverToInitiator = new ArrayDeque<>();
+        initiatorChannel = new FragmentingChannel(receiverToInitiator, initiatorToReceiver);
+        receiverChannel = new FragmentingChannel(initiatorToReceiver, receiverToInitiator);
+        initiatorIn = bufferManager.borrowByteBuffer();
+        receiverIn = bufferManager.borrowByteBuffer();
+    }
+
+    @Test
+    public void testHandshake_Encrypted_FragmentedReads() throws Exception {
+        // repeat several times to cover different lengths of random padding
+        for (int i = 0; i < 10; i++) {
+            setUp();
+            MSEHandshake initiator = outgoing(EncryptionPolicy.REQUIRE_ENCRYPTED);
+            MSEHandshake receiver = incoming(EncryptionPolicy.PREFER_ENCRYPTED);
+            negotiate(initiator, receiver);
+
+            MSECipher initiatorCipher = initiator.getNegotiatedCipher().get();
+            MSECipher receiverCipher = receiver.getNegotiatedCipher().get();
+
+            // payload stream is encrypted in both directions
+            assertPayloadDelivered(receiverCipher, initiatorCipher, initiatorChannel, receiverChannel, receiverIn);
+            assertPayloadDelivered(initiatorCipher, receiverCipher, receiverChannel, initiatorChannel, initiatorIn);
+        }
+    }
+
+    @Test
+    public void testHandshake_ResumedWhenSharedSecretIsCalculated() throws Exception {
+        MSEHandshake initiator = outgoing(EncryptionPolicy.REQUIRE_ENCRYPTED);
+        MSEHandshake receiver = incoming(EncryptionPolicy.REQUIRE_ENCRYPTED);
+        AtomicInteger initiatorResumed = new AtomicInteger();
+        AtomicInteger receiverResumed = new AtomicInteger();
+        initiator.setResumeListener(initiatorResumed::incrementAndGet);
+        receiver.setResumeListener(receiverResumed::incrementAndGet);
+
+        negotiate(initiator, receiver);
+
+        assertEquals(1, initiatorResumed.get());
+        assertEquals(1, receiverResumed.get());
+    }
+
+    @Test
+    public void testHandshake_CryptoSelect_PlaintextPreferredByReceiver() throws Exception {
+        MSEHandshake initiator = outgoing(EncryptionPolicy.PREFER_ENCRYPTED);
+        MSEHandshake receiver = incoming(EncryptionPolicy.PREFER_PLAINTEXT);
+        negotiate(initiator, receiver);
+
+        assertFalse(initiator.getNegotiatedCipher().isPresent());
+        assertFalse(receiver.getNegotiatedCipher().isPresent());
+        assertEquals(EncryptionPolicy.REQUIRE_PLAINTEXT, initiator.getNegotiatedEncryptionPolicy());
+        assertEquals(EncryptionPolicy.REQUIRE_PLAINTEXT, receiver.getNegotiatedEncryptionPolicy());
+
+        // payload stream is not encrypted
+        assertPayloadDelivered(null, null, receiverChannel, initiatorChannel, initiatorIn);
+    }
+
+    @Test
+    public void testHandshake_CryptoSelect_EncryptionPreferredByReceiver() throws Exception {
+        MSEHandshake initiator = outgoing(EncryptionPolicy.PREFER_PLAINTEXT);
+        MSEHandshake receiver = incoming(EncryptionPolicy.PREFER_ENCRYPTED);
+        negotiate(initiator, receiver);
+
+        assertEquals(EncryptionPolicy.REQUIRE_ENCRYPTED, initiator.getNegotiatedEncryptionPolicy());
+        assertEquals(EncryptionPolicy.REQUIRE_ENCRYPTED, receiver.getNegotiatedEncryptionPolicy());
+        assertTrue(initiator.getNegotiatedCipher().isPresent());
+        assertTrue(receiver.getNegotiatedCipher().isPresent());
+    }
+
+    @Test
+    public void testHandshake_RequirePlaintext_RequireEncrypted_Fails() throws Exception {
+        MSEHandshake initiator = outgoing(EncryptionPolicy.REQUIRE_PLAINTEXT);
+        MSEHandshake receiver = incoming(EncryptionPolicy.REQUIRE_ENCRYPTED);
+        assertNegotiationFails(initiator, receiver, "Failed to negotiate the encryption policy");
+    }
+
+    @Test
+    public void testHandshake_RequireEncrypted_RequirePlaintext_Fails() throws Exception {
+        MSEHandshake initiator = outgoing(EncryptionPolicy.REQUIRE_ENCRYPTED);
+        MSEHandshake receiver = incoming(EncryptionPolicy.REQUIRE_PLAINTEXT);
+        assertNegotiationFails(initiator, receiver, "Failed to negotiate the encryption policy");
+    }
+
+    @Test
+    public void testHandshake_UnknownTorrent_Fails() throws Exception {
+        MSEHandshake initiator = new OutgoingMSEHandshake(peer, initiatorChannel,
+                TorrentId.fromBytes(new byte[]{1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1,1}),
+                initiatorIn, bufferManager.borrowByteBuffer(), keyPool, EncryptionPolicy.REQUIRE_ENCRYPTED);
+        MSEHandshake receiver = incoming(EncryptionPolicy.REQUIRE_ENCRYPTED);
+        assertNegotiationFails(initiator, receiver, "Unsupported torrent requested");
+    }
+
+    @Test
+    public void testIncoming_PlaintextHandshake_KeptForConnection() throws Exception {
+        byte[] handshake = encodePlaintextHandshake();
+        ByteBuffer data = ByteBuffer.wrap(handshake);
+        while (data.hasRemaining()) {
+            initiatorChannel.write(data);
+        }
+
+        MSEHandshake receiver = incoming(EncryptionPolicy.PREFER_PLAINTEXT);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!receiver.process()) {
+            checkDeadline(deadline);
+        }
+
+        assertFalse(receiver.getNegotiatedCipher().isPresent());
+        assertArrayEquals(handshake, received(receiverIn, handshake.length));
+    }
+
+    @Test
+    public void testIncoming_PlaintextHandshake_RequireEncrypted_Fails() throws Exception {
+        byte[] handshake = encodePlaintextHandshake();
+        ByteBuffer data = ByteBuffer.wrap(handshake);
+        while (data.hasRemaining()) {
+            initiatorChannel.write(data);
+        }
+
+        MSEHandshake receiver = incoming(EncryptionPolicy.REQUIRE_ENCRYPTED);
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!receiver.process()) {
+                checkDeadline(deadline);
+            }
+        } catch (RuntimeException e) {
+            return;
+        }
+        fail("Plaintext handshake should have been rejected");
+    }
+
+    private MSEHandshake outgoing(EncryptionPolicy policy) {
+        return new OutgoingMSEHandshake(peer, initiatorChannel, torrentId,
+                initiatorIn, bufferManager.borrowByteBuffer(), keyPool, policy);
+    }
+
+    private MSEHandshake incoming(EncryptionPolicy policy) {
+        return new IncomingMSEHandshake(peer, receiverChannel, receiverIn, bufferManager.borrowByteBuffer(),
+                keyPool, policy, torrentRegistry, torrentIndex, protocol);
+    }
+
+    private byte[] encodePlaintextHandshake() throws Exception {
+        Handshake handshake = new Handshake(new byte[8], torrentId, PeerId.fromBytes(new byte[PeerId.length()]));
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        assertTrue(protocol.encode(new EncodingContext(peer), handshake, buffer));
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Send the payload from one side and check, that it's received by the other side
+     * after the data, that has been left in its inbound buffer by the handshake.
+     */
+    private void assertPayloadDelivered(MSECipher senderCipher,
+                                        MSECipher receiverCipher,
+                                        ByteChannel senderChannel,
+                                        FragmentingChannel receiverChannel,
+                                        BorrowedBuffer<ByteBuffer> receiverBuffer) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(PAYLOAD.clone());
+        if (senderCipher != null) {
+            senderCipher.encrypt(data);
+            data.flip();
+        }
+        if (senderCipher != null) {
+            assertFalse(Arrays.equals(PAYLOAD, data.array()));
+        }
+        while (data.hasRemaining()) {
+            senderChannel.write(data);
+        }
+
+        ByteBuffer in = receiverBuffer.lockAndGet();
+        try {
+            while (in.position() < PAYLOAD.length) {
+                receiverChannel.read(in);
+            }
+            if (receiverCipher != null) {
+                ByteBuffer payload = in.duplicate();
+                payload.flip();
+                receiverCipher.decrypt(payload);
+            }
+        } finally {
+            receiverBuffer.unlock();
+        }
+        assertArrayEquals(PAYLOAD, received(receiverBuffer, PAYLOAD.length));
+    }
+
+    private static byte[] received(BorrowedBuffer<ByteBuffer> buffer, int length) {
+        ByteBuffer in = buffer.lockAndGet();
+        try {
+            // handshake leaves nothing but the payload stream in the buffer
+            assertEquals(length, in.position());
+            byte[] bytes = new byte[length];
+            ByteBuffer data = in.duplicate();
+            data.flip();
+            data.get(bytes);
+            return bytes;
+        } finally {
+            buffer.unlock();
+        }
+    }
+
+    private void negotiate(MSEHandshake initiator, MSEHandshake receiver) throws Exception {
+        boolean initiatorDone = false, receiverDone = false;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!initiatorDone || !receiverDone) {
+            long transferred = initiatorChannel.getTransferred() + receiverChannel.getTransferred();
+            if (!initiatorDone) {
+                initiatorDone = initiator.process();
+            }
+            if (!receiverDone) {
+                receiverDone = receiver.process();
+            }
+            if (transferred == initiatorChannel.getTransferred() + receiverChannel.getTransferred()) {
+                // waiting for the shared secret
+                checkDeadline(deadline);
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(0, initiatorChannel.getAvailable());
+        assertEquals(0, receiverChannel.getAvailable());
+    }
+
+    private void assertNegotiationFails(MSEHandshake initiator,
+                                        MSEHandshake receiver,
+                                        String expectedMessage) throws Exception {
+        try {
+            negotiate(initiator, receiver);
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(expectedMessage));
+            return;
+        }
+        fail("Negotiation should have failed");
+    }
+
+    private static void checkDeadline(long deadline) {
+        if (System.currentTimeMillis() > deadline) {
+            fail("Negotiation has not been completed in time");
+        }
+    }
+
+    /**
+     * Non-blocking in-memory channel, that reads and writes data in small portions
+     * and reports that no data is available on every other read.
+     */
+    private static class FragmentingChannel implements ByteChannel {
+        private final Queue<Byte> incoming;
+        private final Queue<Byte> outgoing;
+        private boolean wouldBlock;
+        private long transferred;
+
+        FragmentingChannel(Queue<Byte> incoming, Queue<Byte> outgoing) {
+            this.incoming = incoming;
+            this.outgoing = outgoing;
+        }
+
+        long getTransferred() {
+            return transferred;
+        }
+
+        int getAvailable() {
+            return incoming.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            wouldBlock = !wouldBlock;
+            if (!wouldBlock) {
+                return 0;
+            }
+            int read = 0;
+            while (read < READ_FRAGMENT_SIZE && dst.hasRemaining() && !incoming.isEmpty()) {
+                dst.put(incoming.poll());
+                read++;
+            }
+            transferred += read;
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int written = 0;
+            while (written < WRITE_FRAGMENT_SIZE && src.hasRemaining()) {
+                outgoing.add(src.get());
+                written++;
+            }
+            transferred += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.runtime.Config;
+import bt.service.RuntimeLifecycleBinder;
+import org.junit.Test;
+
+import java.security.KeyPair;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+
+public class MSEKeyPairPoolTest {
+
+    @Test
+    public void testPool_MissThenHit() throws Exception {
+        Config config = new Config();
+        config.setMseKeyPairPoolSize(2);
+        MSEKeyPairPool pool = new MSEKeyPairPool(new RuntimeLifecycleBinder(), config);
+
+        // pool is filled only on startup or after the first request
+        KeyPair first = pool.getKeyPair();
+        assertNotNull(first);
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+
+        waitForKeyPairs(pool, 2);
+
+        KeyPair second = pool.getKeyPair();
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testPool_Disabled() {
+        Config config = new Config();
+        config.setMseKeyPairPoolSize(0);
+        MSEKeyPairPool pool = new MSEKeyPairPool(new RuntimeLifecycleBinder(), config);
+
+        assertNotNull(pool.getKeyPair());
+        assertEquals(0, pool.getAvailableKeyPairs());
+        assertEquals(0, pool.getHits());
+        assertEquals(0, pool.getMisses());
+    }
+
+    private static void waitForKeyPairs(MSEKeyPairPool pool, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.getAvailableKeyPairs() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Pool has not been refilled in time");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.crypto;
+
+import bt.data.IDataDescriptorFactory;
+import bt.event.EventBus;
+import bt.metainfo.TorrentId;
+import bt.torrent.AdhocTorrentRegistry;
+import bt.torrent.TorrentRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+
+public class MSETorrentIndexTest {
+
+    private EventBus eventBus;
+    private MSETorrentIndex index;
+
+    @Before
+    public void setUp() {
+        eventBus = new EventBus();
+        index = new MSETorrentIndex(eventBus);
+    }
+
+    @Test
+    public void testIndex_TorrentStarted() throws Exception {
+        TorrentId torrentId = torrentId(1);
+        eventBus.fireTorrentStarted(torrentId);
+        assertEquals(Optional.of(torrentId), index.getTorrentId(req2hash(torrentId)));
+    }
+
+    @Test
+    public void testIndex_TorrentStopped() throws Exception {
+        TorrentId torrentId = torrentId(1);
+        eventBus.fireTorrentStarted(torrentId);
+        eventBus.fireTorrentStopped(torrentId);
+        assertFalse(index.getTorrentId(req2hash(torrentId)).isPresent());
+    }
+
+    @Test
+    public void testIndex_RegisteredButNotStarted() throws Exception {
+        // e.g. magnet link, which metadata is being fetched
+        TorrentId torrentId = torrentId(1);
+        eventBus.fireTorrentRegistered(torrentId);
+        assertEquals(Optional.of(torrentId), index.getTorrentId(req2hash(torrentId)));
+    }
+
+    @Test
+    public void testIndex_RegisteredAndStarted() throws Exception {
+        TorrentId torrentId = torrentId(1);
+        eventBus.fireTorrentRegistered(torrentId);
+        eventBus.fireTorrentStarted(torrentId);
+        assertEquals(Optional.of(torrentId), index.getTorrentId(req2hash(torrentId)));
+
+        eventBus.fireTorrentStopped(torrentId);
+        assertFalse(index.getTorrentId(req2hash(torrentId)).isPresent());
+    }
+
+    @Test
+    public void testIndex_RegisteredWithRegistry() throws Exception {
+        TorrentRegistry torrentRegistry = new AdhocTorrentRegistry(mock(IDataDescriptorFactory.class), eventBus, eventBus);
+        TorrentId torrentId = torrentId(1);
+        torrentRegistry.register(torrentId);
+        assertEquals(Optional.of(torrentId), index.getTorrentId(req2hash(torrentId)));
+
+        // registry is updated on the same event
+        eventBus.fireTorrentStopped(torrentId);
+        assertFalse(index.getTorrentId(req2hash(torrentId)).isPresent());
+        assertFalse(torrentRegistry.getTorrentIds().contains(torrentId));
+    }
+
+    @Test
+    public void testIndex_UnknownTorrent() throws Exception {
+        eventBus.fireTorrentStarted(torrentId(1));
+        eventBus.fireTorrentRegistered(torrentId(2));
+        assertFalse(index.getTorrentId(req2hash(torrentId(3))).isPresent());
+    }
+
+    private static TorrentId torrentId(int seed) {
+        byte[] bytes = new byte[TorrentId.length()];
+        bytes[0] = (byte) seed;
+        return TorrentId.fromBytes(bytes);
+    }
+
+    private static byte[] req2hash(TorrentId torrentId) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update("req2".getBytes(StandardCharsets.US_ASCII));
+        digest.update(torrentId.getBytes());
+        return digest.digest();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.pipeline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Socket channel, that accepts only a limited amount of outgoing data
+ * and collects everything, that has been written to it.
+ */
+class MockSocketChannel extends SocketChannel {
+
+    private final ByteArrayOutputStream written;
+    private int writeLimit;
+    private int writeCalls;
+
+    /**
+     * @param writeLimit Number of bytes, that the channel will accept, until the limit is changed
+     */
+    MockSocketChannel(int writeLimit) {
+        super(SelectorProvider.provider());
+        this.written = new ByteArrayOutputStream();
+        this.writeLimit = writeLimit;
+    }
+
+    /**
+     * @param writeLimit Number of bytes, that the channel will accept, until the limit is changed
+     */
+    synchronized void setWriteLimit(int writeLimit) {
+        this.writeLimit = writeLimit;
+    }
+
+    synchronized byte[] getWritten() {
+        return written.toByteArray();
+    }
+
+    synchronized int getWriteCalls() {
+        return writeCalls;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) {
+        writeCalls++;
+        int length = Math.min(src.remaining(), writeLimit);
+        for (int i = 0; i < length; i++) {
+            written.write(src.get());
+        }
+        writeLimit -= length;
+        return length;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int written = write(srcs[i]);
+            total += written;
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        return 0;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) {
+        return 0;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) {
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() {
+        return this;
+    }
+
+    @Override
+    public Socket socket() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect() {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() {
+        // nothing to release
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) {
+        // always non-blocking
+    }
+}
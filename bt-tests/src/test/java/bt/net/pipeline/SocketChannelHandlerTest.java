@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.net.pipeline;
+
+import bt.net.DataReceiver;
+import bt.net.InetPeer;
+import bt.net.buffer.BorrowedBuffer;
+import bt.net.buffer.BufferManager;
+import bt.net.buffer.IBufferManager;
+import bt.protocol.Have;
+import bt.protocol.Message;
+import bt.protocol.Piece;
+import bt.protocol.handler.MessageHandler;
+import bt.runtime.Config;
+import bt.test.protocol.ProtocolTest;
+import bt.torrent.data.TransferableBlockReader;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class SocketChannelHandlerTest {
+
+    // fits 11 Have messages (9 bytes each)
+    private static final int OUTBOUND_BUFFER_SIZE = 100;
+    private static final int HAVE_LENGTH = 9;
+    private static final int PIECE_HEADER_LENGTH = 13;
+
+    private MockSocketChannel channel;
+    private DataReceiver dataReceiver;
+    private SocketChannelHandler handler;
+    private AtomicInteger writableNotifications;
+
+    @Before
+    public void setUp() {
+        Config config = new Config();
+        config.setNetworkBufferSize(OUTBOUND_BUFFER_SIZE);
+        IBufferManager bufferManager = new BufferManager(config);
+
+        InetPeer peer = InetPeer.build(InetAddress.getLoopbackAddress(), 9999);
+        MessageHandler<Message> protocol = ProtocolTest.forBittorrentProtocol().build().getProtocol();
+        BorrowedBuffer<ByteBuffer> inboundBuffer = bufferManager.borrowByteBuffer();
+        BorrowedBuffer<ByteBuffer> outboundBuffer = bufferManager.borrowByteBuffer();
+        channel = new MockSocketChannel(0);
+        ChannelPipeline pipeline = new ChannelPipelineFactory(bufferManager, new BufferedPieceRegistry())
+                .buildPipeline(peer)
+                .channel(channel)
+                .protocol(protocol)
+                .inboundBuffer(inboundBuffer)
+                .outboundBuffer(outboundBuffer)
+                .build();
+
+        dataReceiver = mock(DataReceiver.class);
+        handler = new SocketChannelHandler(channel, inboundBuffer, outboundBuffer, pipeline::bindHandler, dataReceiver);
+
+        writableNotifications = new AtomicInteger();
+        handler.setWritableListener(writableNotifications::incrementAndGet);
+    }
+
+    @Test
+    public void testTrySend_PartialWrite_ThenResume() throws Exception {
+        // channel accepts two messages and a part of the third one
+        channel.setWriteLimit(2 * HAVE_LENGTH + 2);
+
+        int accepted = 0;
+        while (handler.trySend(new Have(accepted))) {
+            accepted++;
+        }
+        assertTrue(accepted > 3);
+        assertEquals(2 * HAVE_LENGTH + 2, channel.getWritten().length);
+        verify(dataReceiver, times(1)).requestChannelWrite(channel);
+
+        // the channel is still not writable, so the message is rejected again
+        assertFalse(handler.trySend(new Have(accepted)));
+        assertEquals(0, writableNotifications.get());
+
+        // network thread writes the rest of pending data, when the channel becomes writable
+        channel.setWriteLimit(Integer.MAX_VALUE);
+        assertTrue(handler.write());
+        assertEquals(1, writableNotifications.get());
+        assertEquals(accepted * HAVE_LENGTH, channel.getWritten().length);
+
+        // previously rejected message can be sent now
+        assertTrue(handler.trySend(new Have(accepted)));
+        accepted++;
+        assertTrue(handler.trySend(new Have(accepted)));
+        accepted++;
+
+        assertHaves(channel.getWritten(), accepted);
+
+        // nothing has been rejected since the last notification
+        assertTrue(handler.write());
+        assertEquals(1, writableNotifications.get());
+    }
+
+    @Test
+    public void testTrySend_ChannelNotWritable_RejectsWithoutBlocking() {
+        int accepted = 0;
+        while (handler.trySend(new Have(accepted))) {
+            accepted++;
+        }
+        assertEquals(OUTBOUND_BUFFER_SIZE / HAVE_LENGTH, accepted);
+        assertEquals(0, channel.getWritten().length);
+        verify(dataReceiver, times(1)).requestChannelWrite(channel);
+    }
+
+    @Test
+    public void testTrySend_PartialWrites_AllDataDeliveredInOrder() throws Exception {
+        int total = 100;
+        int sent = 0;
+        while (sent < total) {
+            // channel accepts a few bytes each time it becomes writable
+            channel.setWriteLimit(HAVE_LENGTH * 3 + 1);
+            while (sent < total && handler.trySend(new Have(sent))) {
+                sent++;
+            }
+            handler.write();
+        }
+        channel.setWriteLimit(Integer.MAX_VALUE);
+        assertTrue(handler.write());
+
+        assertHaves(channel.getWritten(), total);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSend_ChannelNotWritable_FailsWithoutBlocking() {
+        for (int i = 0; i <= OUTBOUND_BUFFER_SIZE / HAVE_LENGTH; i++) {
+            handler.send(new Have(i));
+        }
+    }
+
+    @Test
+    public void testPendingTransfer_ControlMessagesQueuedBehindBlock() throws Exception {
+        channel.setWriteLimit(Integer.MAX_VALUE);
+        StubTransferableReader reader = new StubTransferableReader((byte) 7, 16);
+
+        assertTrue(handler.trySend(new Piece(0, 0, 16, reader)));
+        // only the header is written by the sender, the block is left to the network thread
+        assertEquals(PIECE_HEADER_LENGTH, channel.getWritten().length);
+        assertEquals(0, reader.getTransferCalls());
+        verify(dataReceiver, times(1)).requestChannelWrite(channel);
+
+        // control messages are queued behind the block, other blocks are rejected
+        assertTrue(handler.trySend(new Have(1)));
+        assertTrue(handler.trySend(new Have(2)));
+        assertFalse(handler.trySend(new Piece(1, 0, 16, new StubTransferableReader((byte) 8, 16))));
+        assertEquals(PIECE_HEADER_LENGTH, channel.getWritten().length);
+
+        assertTrue(handler.write());
+        assertEquals(1, reader.getTransferCalls());
+        assertEquals(1, writableNotifications.get());
+
+        ByteBuffer written = ByteBuffer.wrap(channel.getWritten());
+        assertEquals(PIECE_HEADER_LENGTH + 16 + 2 * HAVE_LENGTH, written.remaining());
+        assertEquals(9 + 16, written.getInt());
+        assertEquals(7, written.get());
+        written.position(PIECE_HEADER_LENGTH);
+        for (int i = 0; i < 16; i++) {
+            assertEquals(7, written.get());
+        }
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(5, written.getInt());
+            assertEquals(4, written.get());
+            assertEquals(i, written.getInt());
+        }
+    }
+
+    @Test
+    public void testPendingTransfer_ChannelNotWritable_BlockIsTransferredInParts() throws Exception {
+        channel.setWriteLimit(PIECE_HEADER_LENGTH + 4);
+        StubTransferableReader reader = new StubTransferableReader((byte) 7, 16);
+        assertTrue(handler.trySend(new Piece(0, 0, 16, reader)));
+        assertTrue(handler.trySend(new Have(1)));
+
+        assertFalse(handler.write());
+        assertEquals(PIECE_HEADER_LENGTH + 4, channel.getWritten().length);
+
+        channel.setWriteLimit(Integer.MAX_VALUE);
+        assertTrue(handler.write());
+        assertEquals(PIECE_HEADER_LENGTH + 16 + HAVE_LENGTH, channel.getWritten().length);
+        // nothing has been rejected
+        assertEquals(0, writableNotifications.get());
+    }
+
+    private static void assertHaves(byte[] data, int count) {
+        assertEquals(count * HAVE_LENGTH, data.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int i = 0; i < count; i++) {
+            assertEquals(5, buffer.getInt());
+            assertEquals(4, buffer.get());
+            assertEquals(i, buffer.getInt());
+        }
+    }
+
+    private static class StubTransferableReader implements TransferableBlockReader {
+
+        private final byte value;
+        private int remaining;
+        private int transferCalls;
+
+        StubTransferableReader(byte value, int length) {
+            this.value = value;
+            this.remaining = length;
+        }
+
+        int getTransferCalls() {
+            return transferCalls;
+        }
+
+        @Override
+        public boolean transferTo(WritableByteChannel channel) throws IOException {
+            transferCalls++;
+            byte[] bytes = new byte[remaining];
+            Arrays.fill(bytes, value);
+            remaining -= channel.write(ByteBuffer.wrap(bytes));
+            return remaining == 0;
+        }
+
+        @Override
+        public boolean readTo(ByteBuffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
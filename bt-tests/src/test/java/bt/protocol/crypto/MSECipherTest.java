@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.protocol.crypto;
+
+import bt.metainfo.TorrentId;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@SuppressWarnings("deprecation")
+public class MSECipherTest {
+
+    private static final byte[] S = new byte[96];
+    private static final TorrentId TORRENT_ID = TorrentId.fromBytes(new byte[TorrentId.length()]);
+
+    static {
+        new Random(42).nextBytes(S);
+    }
+
+    @Test
+    public void testEncrypt_HeapBuffer_SameAsJCE() throws Exception {
+        assertSameAsJCE(length -> ByteBuffer.allocate(length));
+    }
+
+    @Test
+    public void testEncrypt_DirectBuffer_SameAsJCE() throws Exception {
+        assertSameAsJCE(length -> ByteBuffer.allocateDirect(length));
+    }
+
+    @Test
+    public void testEncrypt_DirectBuffer_LittleEndian_SameAsJCE() throws Exception {
+        assertSameAsJCE(length -> ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Test
+    public void testEncrypt_SlicedHeapBuffer_SameAsJCE() throws Exception {
+        assertSameAsJCE(length -> {
+            ByteBuffer buffer = ByteBuffer.allocate(length + 3);
+            buffer.position(3);
+            return buffer.slice();
+        });
+    }
+
+    @Test
+    public void testEncryptDecrypt() {
+        MSECipher initiator = MSECipher.forInitiator(S, TORRENT_ID);
+        MSECipher receiver = MSECipher.forReceiver(S, TORRENT_ID);
+
+        byte[] data = randomBytes(10_000);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
+
+        initiator.encrypt(buffer);
+        assertEquals(buffer.limit(), buffer.position());
+        buffer.flip();
+        receiver.decrypt(buffer);
+        buffer.flip();
+
+        byte[] decrypted = new byte[data.length];
+        buffer.get(decrypted);
+        assertArrayEquals(data, decrypted);
+    }
+
+    private void assertSameAsJCE(BufferFactory bufferFactory) throws Exception {
+        MSECipher cipher = MSECipher.forInitiator(S, TORRENT_ID);
+        MSECipher jceCipher = MSECipher.forInitiator(S, TORRENT_ID);
+
+        // odd lengths to check the partial words
+        for (int length : new int[] {1, 7, 8, 9, 1000, 16 * 1024 + 5}) {
+            byte[] data = randomBytes(length);
+            byte[] expected = jceCipher.getEncryptionCipher().update(data);
+
+            ByteBuffer buffer = bufferFactory.create(length);
+            buffer.put(data);
+            buffer.flip();
+            cipher.encrypt(buffer);
+            assertEquals(length, buffer.position());
+
+            buffer.flip();
+            byte[] actual = new byte[length];
+            buffer.get(actual);
+            assertArrayEquals("Length: " + length, expected, actual);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private interface BufferFactory {
+        ByteBuffer create(int length);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent;
+
+import bt.data.LocalBitfield;
+import bt.data.PeerBitfield;
+import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
+import bt.net.ConnectionKey;
+import bt.net.Peer;
+import bt.protocol.BitOrder;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class BitfieldBasedStatisticsTest {
+
+    private static final int PIECES_TOTAL = 100;
+
+    @Test
+    public void testInterestingPieces_UpdatedIncrementally() {
+        LocalBitfield localBitfield = createLocalBitfield();
+        localBitfield.markLocalPieceVerified(0);
+
+        BitfieldBasedStatistics statistics = new BitfieldBasedStatistics(localBitfield);
+        ConnectionKey peer1 = createConnectionKey(1), peer2 = createConnectionKey(2);
+
+        // peer1 has pieces 0..7
+        statistics.addBitfield(peer1, new PeerBitfield(new byte[]{(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0},
+                BitOrder.BIG_ENDIAN, PIECES_TOTAL));
+        assertEquals(7, statistics.getInterestingPieces(peer1));
+        assertEquals(0, statistics.getInterestingPieces(peer2));
+
+        statistics.addPiece(peer1, 50);
+        statistics.addPiece(peer1, 50);
+        statistics.addPiece(peer2, 0);
+        statistics.addPiece(peer2, 1);
+        assertEquals(8, statistics.getInterestingPieces(peer1));
+        assertEquals(1, statistics.getInterestingPieces(peer2));
+
+        localBitfield.markLocalPieceVerified(1);
+        localBitfield.markLocalPieceVerified(50);
+        localBitfield.markLocalPieceVerified(50);
+        localBitfield.markLocalPieceVerified(99);
+        assertEquals(6, statistics.getInterestingPieces(peer1));
+        assertEquals(0, statistics.getInterestingPieces(peer2));
+
+        statistics.removeBitfield(peer1);
+        assertEquals(0, statistics.getInterestingPieces(peer1));
+        assertEquals(0, statistics.getCount(2));
+        assertEquals(1, statistics.getCount(1));
+    }
+
+    @Test
+    public void testInterestingPieces_ConcurrentUpdates() throws Exception {
+        LocalBitfield localBitfield = createLocalBitfield();
+        BitfieldBasedStatistics statistics = new BitfieldBasedStatistics(localBitfield);
+        ConnectionKey peer = createConnectionKey(1);
+
+        Thread remote = new Thread(() -> {
+            for (int i = 0; i < PIECES_TOTAL; i++) {
+                statistics.addPiece(peer, i);
+            }
+        });
+        Thread local = new Thread(() -> {
+            for (int i = 0; i < PIECES_TOTAL; i += 2) {
+                localBitfield.markLocalPieceVerified(i);
+            }
+        });
+        remote.start();
+        local.start();
+        remote.join();
+        local.join();
+
+        assertEquals(PIECES_TOTAL / 2, statistics.getInterestingPieces(peer));
+    }
+
+    private static LocalBitfield createLocalBitfield() {
+        return new LocalBitfield(PIECES_TOTAL, null) {
+            @Override
+            protected void fileFinishedCallback(TorrentFile tf) {
+                // do nothing
+            }
+        };
+    }
+
+    static ConnectionKey createConnectionKey(int port) {
+        Peer peer = mock(Peer.class);
+        doReturn(InetAddress.getLoopbackAddress()).when(peer).getInetAddress();
+        return new ConnectionKey(peer, port, TorrentId.fromBytes(new byte[20]));
+    }
+}
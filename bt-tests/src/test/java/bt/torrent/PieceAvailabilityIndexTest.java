@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent;
+
+import bt.data.PeerBitfield;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PieceAvailabilityIndexTest {
+
+    private static final int PIECES_TOTAL = 8;
+
+    @Test
+    public void testRarestPieces() {
+        PieceAvailabilityIndex index = createIndex(0, 3, 0, 2, 1, 0, 0, 0);
+        assertArrayEquals(new int[]{4, 3, 1}, index.getRarestPieces(allPieces()).toArray());
+
+        index.increment(0);
+        int[] pieces = index.getRarestPieces(allPieces()).toArray();
+        assertEquals(4, pieces.length);
+        assertEquals(1, index.getCount(pieces[0]));
+        assertEquals(1, index.getCount(pieces[1]));
+        assertArrayEquals(new int[]{3, 1}, Arrays.copyOfRange(pieces, 2, 4));
+
+        index.decrement(1);
+        index.decrement(1);
+        index.decrement(1);
+        index.decrement(1);
+        assertEquals(0, index.getCount(1));
+        BitSet relevant = allPieces();
+        relevant.clear(4);
+        assertArrayEquals(new int[]{0, 3}, index.getRarestPieces(relevant).toArray());
+    }
+
+    @Test
+    public void testRarestPieces_Randomized() {
+        PieceAvailabilityIndex index = createIndex(2, 2, 2, 1, 2, 2, 2, 1);
+
+        int[] pieces = index.getRarestPieces(allPieces(), new Random(0)).toArray();
+        assertEquals(PIECES_TOTAL, pieces.length);
+        int[] rarest = Arrays.copyOfRange(pieces, 0, 2);
+        Arrays.sort(rarest);
+        assertArrayEquals(new int[]{3, 7}, rarest);
+        int[] remaining = Arrays.copyOfRange(pieces, 2, PIECES_TOTAL);
+        Arrays.sort(remaining);
+        assertArrayEquals(new int[]{0, 1, 2, 4, 5, 6}, remaining);
+    }
+
+    @Test
+    public void testRarestPieces_ModifiedDuringIteration() {
+        PieceAvailabilityIndex index = createIndex(1, 1, 1, 1, 2, 2, 2, 2);
+
+        PrimitiveIterator.OfInt iterator = index.getRarestPieces(allPieces()).iterator();
+        BitSet returned = new BitSet();
+        returned.set(iterator.nextInt());
+        returned.set(iterator.nextInt());
+        // move all pieces around
+        for (int i = 0; i < PIECES_TOTAL; i++) {
+            index.increment(i);
+        }
+        while (iterator.hasNext()) {
+            int piece = iterator.nextInt();
+            assertFalse("Piece returned twice: " + piece, returned.get(piece));
+            returned.set(piece);
+        }
+        assertTrue(returned.cardinality() >= 2);
+    }
+
+    @Test
+    public void testStatistics_UpdateIndex() {
+        BitfieldBasedStatistics statistics = new BitfieldBasedStatistics(new PeerBitfield(PIECES_TOTAL));
+        PieceAvailabilityIndex index = statistics.getAvailabilityIndex().get();
+
+        statistics.addPiece(BitfieldBasedStatisticsTest.createConnectionKey(1), 5);
+        statistics.addPiece(BitfieldBasedStatisticsTest.createConnectionKey(2), 5);
+        statistics.addPiece(BitfieldBasedStatisticsTest.createConnectionKey(2), 6);
+        assertArrayEquals(new int[]{6, 5}, index.getRarestPieces(allPieces()).toArray());
+
+        statistics.removeBitfield(BitfieldBasedStatisticsTest.createConnectionKey(2));
+        assertArrayEquals(new int[]{5}, index.getRarestPieces(allPieces()).toArray());
+        assertEquals(statistics.getCount(6), index.getCount(6));
+    }
+
+    private static PieceAvailabilityIndex createIndex(int... counts) {
+        PieceAvailabilityIndex index = new PieceAvailabilityIndex(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            for (int j = 0; j < counts[i]; j++) {
+                index.increment(i);
+            }
+        }
+        return index;
+    }
+
+    private static BitSet allPieces() {
+        BitSet pieces = new BitSet(PIECES_TOTAL);
+        pieces.set(0, PIECES_TOTAL);
+        return pieces;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.torrent.data;
+
+import bt.data.ChunkDescriptor;
+import bt.data.ChunkDescriptorTestUtil;
+import bt.data.ChunkVerifier;
+import bt.data.DataDescriptor;
+import bt.data.DataRange;
+import bt.data.LocalBitfield;
+import bt.data.PieceAssemblyCache;
+import bt.event.EventSource;
+import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
+import bt.net.Peer;
+import bt.net.buffer.BufferedData;
+import bt.net.buffer.ByteBufferView;
+import bt.net.buffer.DelegatingByteBufferView;
+import bt.runtime.Config;
+import bt.service.IRuntimeLifecycleBinder;
+import bt.service.RuntimeLifecycleBinder;
+import bt.torrent.TorrentDescriptor;
+import bt.torrent.TorrentRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static bt.service.IRuntimeLifecycleBinder.LifecycleEvent.SHUTDOWN;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DefaultDataWorkerTest {
+
+    private static final long TIMEOUT_MILLIS = 5_000;
+
+    private static final int NUM_OF_WORKERS = 4;
+    private static final int NUM_OF_FILES = 8;
+    private static final int PIECES_PER_FILE = 4;
+    private static final int BLOCKS_PER_PIECE = 8;
+    private static final int BLOCK_SIZE = 16;
+
+    private static final TorrentId TORRENT_ID = torrentId(1);
+
+    private IRuntimeLifecycleBinder lifecycleBinder;
+    private TorrentRegistry torrentRegistry;
+    private DefaultDataWorker dataWorker;
+
+    // threads, that the blocks of each piece have been written by
+    private Map<TorrentId, Map<Integer, Set<Thread>>> threads;
+    // first file of each piece
+    private Map<TorrentId, Map<Integer, TorrentFile>> firstFiles;
+
+    @Before
+    public void setUp() {
+        lifecycleBinder = new RuntimeLifecycleBinder();
+        torrentRegistry = mock(TorrentRegistry.class);
+
+        threads = new ConcurrentHashMap<>();
+        firstFiles = new HashMap<>();
+    }
+
+    private void createDataWorker(boolean incrementalHashingEnabled) {
+        Config config = new Config();
+        config.setNumOfDataWorkerThreads(NUM_OF_WORKERS);
+        config.setIncrementalHashingEnabled(incrementalHashingEnabled);
+
+        dataWorker = new DefaultDataWorker(lifecycleBinder, torrentRegistry, mock(ChunkVerifier.class),
+                mock(BlockCache.class), mock(PieceAssemblyCache.class), mock(EventSource.class), config);
+    }
+
+    @After
+    public void tearDown() {
+        lifecycleBinder.visitBindings(SHUTDOWN, binding -> binding.getRunnable().run());
+    }
+
+    @Test
+    public void testBlocksOfThePieceAreWrittenByTheSameWorker() throws Exception {
+        createDataWorker(false);
+        TorrentId torrent1 = torrentId(1), torrent2 = torrentId(2);
+        addTorrent(torrent1);
+        addTorrent(torrent2);
+
+        // interleave the blocks of different pieces and torrents
+        List<CompletableFuture<BlockWrite>> writes = new ArrayList<>();
+        for (int block = 0; block < BLOCKS_PER_PIECE; block++) {
+            for (int piece = 0; piece < NUM_OF_FILES * PIECES_PER_FILE; piece++) {
+                for (TorrentId torrentId : Arrays.asList(torrent1, torrent2)) {
+                    writes.add(dataWorker.addBlock(torrentId, mock(Peer.class), piece, block * BLOCK_SIZE, block()));
+                }
+            }
+        }
+        for (CompletableFuture<BlockWrite> write : writes) {
+            BlockWrite result = write.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertFalse(result.isRejected());
+            assertFalse(result.getError().isPresent());
+        }
+
+        Set<Thread> allThreads = new HashSet<>();
+        threads.forEach((torrentId, pieces) -> {
+            Map<TorrentFile, Thread> fileThreads = new HashMap<>();
+            pieces.forEach((pieceIndex, pieceThreads) -> {
+                assertEquals("Piece " + pieceIndex + " was written by multiple workers: " + pieceThreads,
+                        1, pieceThreads.size());
+                Thread thread = pieceThreads.iterator().next();
+                // all pieces, that start in the same file, are written by the same worker
+                Thread fileThread = fileThreads.putIfAbsent(firstFiles.get(torrentId).get(pieceIndex), thread);
+                if (fileThread != null) {
+                    assertEquals(fileThread, thread);
+                }
+                allThreads.add(thread);
+            });
+            assertEquals(NUM_OF_FILES * PIECES_PER_FILE, pieces.size());
+        });
+        // files are distributed among the workers
+        assertTrue(allThreads.size() > 1);
+    }
+
+    @Test
+    public void testConflictingDuplicateBlock_Rejected() throws Exception {
+        createDataWorker(true);
+        byte[] pieceData = pieceData();
+        ChunkDescriptor chunk = addSinglePieceTorrent(TORRENT_ID, pieceData);
+
+        assertFalse(writeBlock(chunk, 0, pieceData).isRejected());
+        // e.g. the same block has been received from another (malicious) peer in the endgame
+        assertTrue(writeBlock(chunk, 0, corrupt(pieceData)).isRejected());
+
+        BlockWrite lastWrite = null;
+        for (int block = 1; block < BLOCKS_PER_PIECE; block++) {
+            lastWrite = writeBlock(chunk, block, pieceData);
+        }
+        assertTrue(lastWrite.getVerificationFuture().get().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        // stored data is the same as the data, that has been verified
+        assertArrayEquals(pieceData, chunk.getData().getBytes());
+    }
+
+    @Test
+    public void testConflictingDuplicateBlock_FirstCopyCorrupt_VerificationFails() throws Exception {
+        createDataWorker(true);
+        byte[] pieceData = pieceData();
+        ChunkDescriptor chunk = addSinglePieceTorrent(TORRENT_ID, pieceData);
+
+        assertFalse(writeBlock(chunk, 0, corrupt(pieceData)).isRejected());
+        // correct copy doesn't replace the data, that has already been hashed
+        assertTrue(writeBlock(chunk, 0, pieceData).isRejected());
+
+        BlockWrite lastWrite = null;
+        for (int block = 1; block < BLOCKS_PER_PIECE; block++) {
+            lastWrite = writeBlock(chunk, block, pieceData);
+        }
+        assertFalse(lastWrite.getVerificationFuture().get().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        // piece is reset and can be downloaded again
+        assertFalse(chunk.isPresent(0));
+        assertFalse(writeBlock(chunk, 0, pieceData).isRejected());
+    }
+
+    private BlockWrite writeBlock(ChunkDescriptor chunk, int blockIndex, byte[] pieceData) throws Exception {
+        ByteBuffer block = ByteBuffer.wrap(pieceData, blockIndex * BLOCK_SIZE, BLOCK_SIZE).slice();
+        BlockWrite write = dataWorker.addBlock(TORRENT_ID, mock(Peer.class), 0, blockIndex * BLOCK_SIZE,
+                new BufferedData(new DelegatingByteBufferView(block))).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertFalse(write.getError().isPresent());
+        return write;
+    }
+
+    private static byte[] pieceData() {
+        byte[] pieceData = new byte[BLOCKS_PER_PIECE * BLOCK_SIZE];
+        new Random(0).nextBytes(pieceData);
+        return pieceData;
+    }
+
+    private static byte[] corrupt(byte[] pieceData) {
+        byte[] corrupted = pieceData.clone();
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            corrupted[i] ^= 0xFF;
+        }
+        return corrupted;
+    }
+
+    private ChunkDescriptor addSinglePieceTorrent(TorrentId torrentId, byte[] pieceData) throws Exception {
+        byte[] checksum = MessageDigest.getInstance("SHA-1").digest(pieceData);
+        ChunkDescriptor chunk = ChunkDescriptorTestUtil.buildChunk(
+                ChunkDescriptorTestUtil.mockStorageUnits(pieceData.length), BLOCK_SIZE, checksum);
+
+        DataDescriptor data = mock(DataDescriptor.class);
+        when(data.getChunkDescriptors()).thenReturn(Collections.singletonList(chunk));
+        when(data.getFilesForPiece(0)).thenReturn(Collections.emptyList());
+        when(data.getBitfield()).thenReturn(mock(LocalBitfield.class));
+
+        TorrentDescriptor descriptor = mock(TorrentDescriptor.class);
+        when(descriptor.getDataDescriptor()).thenReturn(data);
+        when(torrentRegistry.getDescriptor(torrentId)).thenReturn(Optional.of(descriptor));
+        return chunk;
+    }
+
+    private void addTorrent(TorrentId torrentId) {
+        List<TorrentFile> files = new ArrayList<>();
+        for (int i = 0; i < NUM_OF_FILES; i++) {
+            files.add(mock(TorrentFile.class));
+        }
+
+        DataDescriptor data = mock(DataDescriptor.class);
+        List<ChunkDescriptor> chunks = new ArrayList<>();
+        Map<Integer, TorrentFile> pieceFiles = new HashMap<>();
+        for (int piece = 0; piece < NUM_OF_FILES * PIECES_PER_FILE; piece++) {
+            int file = piece / PIECES_PER_FILE;
+            List<TorrentFile> filesForPiece;
+            if (piece % PIECES_PER_FILE == PIECES_PER_FILE - 1 && file < NUM_OF_FILES - 1) {
+                // last piece of the file spans the next file
+                filesForPiece = Arrays.asList(files.get(file), files.get(file + 1));
+            } else {
+                filesForPiece = Collections.singletonList(files.get(file));
+            }
+            when(data.getFilesForPiece(piece)).thenReturn(filesForPiece);
+            pieceFiles.put(piece, files.get(file));
+            chunks.add(mockChunk(torrentId, piece));
+        }
+        when(data.getChunkDescriptors()).thenReturn(chunks);
+        firstFiles.put(torrentId, pieceFiles);
+
+        TorrentDescriptor descriptor = mock(TorrentDescriptor.class);
+        when(descriptor.getDataDescriptor()).thenReturn(data);
+        when(torrentRegistry.getDescriptor(torrentId)).thenReturn(Optional.of(descriptor));
+    }
+
+    private ChunkDescriptor mockChunk(TorrentId torrentId, int pieceIndex) {
+        Set<Thread> pieceThreads = threads.computeIfAbsent(torrentId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(pieceIndex, index -> ConcurrentHashMap.newKeySet());
+
+        DataRange block = mock(DataRange.class);
+        doAnswer(invocation -> {
+            pieceThreads.add(Thread.currentThread());
+            return null;
+        }).when(block).putBytes(any(ByteBufferView.class));
+
+        DataRange range = mock(DataRange.class);
+        when(range.getSubrange(anyInt())).thenReturn(block);
+
+        ChunkDescriptor chunk = mock(ChunkDescriptor.class);
+        when(chunk.getData()).thenReturn(range);
+        when(chunk.blockSize()).thenReturn((long) BLOCK_SIZE);
+        return chunk;
+    }
+
+    private static BufferedData block() {
+        return new BufferedData(new DelegatingByteBufferView(ByteBuffer.allocate(BLOCK_SIZE)));
+    }
+
+    private static TorrentId torrentId(int id) {
+        byte[] bytes = new byte[TorrentId.length()];
+        bytes[0] = (byte) id;
+        return TorrentId.fromBytes(bytes);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.data;
+
+import bt.data.DataRange;
+import bt.data.DataRangeVisitor;
+import bt.data.StorageUnit;
+import bt.data.file.FileSystemStorageUnit;
+import bt.data.file.OpenFileCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class FileRegionBlockReaderTest {
+
+    private OpenFileCache cache;
+    private Path file1, file2;
+    private byte[] data1, data2;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        data1 = new byte[1000];
+        data2 = new byte[500];
+        random.nextBytes(data1);
+        random.nextBytes(data2);
+
+        file1 = Files.createTempFile("region_test", ".bin");
+        file2 = Files.createTempFile("region_test", ".bin");
+        Files.write(file1, data1);
+        Files.write(file2, data2);
+
+        cache = new OpenFileCache(10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        Files.deleteIfExists(file1);
+        Files.deleteIfExists(file2);
+    }
+
+    @Test
+    public void testTransfer_SpansMultipleFiles_ChannelAcceptsPartialWrites() throws Exception {
+        // block starts in the middle of the first file and ends in the middle of the second file
+        DataRange block = mockRange(
+                new FileSystemStorageUnit(cache, file1), 900, 1000,
+                new FileSystemStorageUnit(cache, file2), 0, 100);
+
+        FileRegionBlockReader reader = FileRegionBlockReader.create(block, () -> {
+            throw new AssertionError("Block must not be read via cache");
+        });
+        assertNotNull(reader);
+
+        ThrottledChannel channel = new ThrottledChannel(30);
+        int attempts = 0;
+        while (!reader.transferTo(channel)) {
+            if (++attempts > 100) {
+                fail("Transfer has not completed");
+            }
+            channel.unblock();
+        }
+
+        byte[] expected = new byte[200];
+        System.arraycopy(data1, 900, expected, 0, 100);
+        System.arraycopy(data2, 0, expected, 100, 100);
+        assertArrayEquals(expected, channel.getBytes());
+    }
+
+    @Test
+    public void testReadTo_DelegatesToCache() {
+        DataRange block = mockRange(new FileSystemStorageUnit(cache, file1), 0, 10);
+
+        boolean[] delegated = new boolean[1];
+        FileRegionBlockReader reader = FileRegionBlockReader.create(block, () -> buffer -> delegated[0] = true);
+        assertNotNull(reader);
+        assertTrue(reader.readTo(ByteBuffer.allocate(10)));
+        assertTrue(delegated[0]);
+    }
+
+    /**
+     * @param unitsAndBounds Sequence of (unit, offset, limit) triples
+     */
+    private static DataRange mockRange(Object... unitsAndBounds) {
+        DataRange range = mock(DataRange.class);
+        doAnswer(invocation -> {
+            DataRangeVisitor visitor = (DataRangeVisitor) invocation.getArguments()[0];
+            for (int i = 0; i < unitsAndBounds.length; i += 3) {
+                StorageUnit unit = (StorageUnit) unitsAndBounds[i];
+                long off = ((Number) unitsAndBounds[i + 1]).longValue();
+                long lim = ((Number) unitsAndBounds[i + 2]).longValue();
+                if (!visitor.visitUnit(unit, off, lim)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(range).visitUnits(any(DataRangeVisitor.class));
+        return range;
+    }
+
+    /**
+     * Accepts a limited number of bytes, and then no more bytes, until unblocked
+     */
+    private static class ThrottledChannel implements WritableByteChannel {
+
+        private final int maxBytesPerWrite;
+        private final ByteArrayOutputStream out;
+        private boolean blocked;
+
+        ThrottledChannel(int maxBytesPerWrite) {
+            this.maxBytesPerWrite = maxBytesPerWrite;
+            this.out = new ByteArrayOutputStream();
+        }
+
+        void unblock() {
+            blocked = false;
+        }
+
+        byte[] getBytes() {
+            return out.toByteArray();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            if (blocked) {
+                return 0;
+            }
+            blocked = true;
+            int length = Math.min(maxBytesPerWrite, src.remaining());
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            out.write(bytes, 0, length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
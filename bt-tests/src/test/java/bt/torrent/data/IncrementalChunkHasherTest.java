@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.data;
+
+import bt.data.ChunkDescriptor;
+import bt.data.DataRange;
+import bt.metainfo.TorrentId;
+import bt.net.buffer.DelegatingByteBufferView;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class IncrementalChunkHasherTest {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int BLOCKS = 8;
+    private static final TorrentId TORRENT_ID = TorrentId.fromBytes(new byte[TorrentId.length()]);
+
+    private byte[] pieceData;
+    private AtomicLong bytesReadFromStorage;
+    private ChunkDescriptor chunk;
+
+    @Before
+    public void setUp() throws Exception {
+        pieceData = new byte[BLOCK_SIZE * BLOCKS];
+        new Random(42).nextBytes(pieceData);
+        bytesReadFromStorage = new AtomicLong();
+        chunk = mockChunk(MessageDigest.getInstance("SHA-1").digest(pieceData));
+    }
+
+    @Test
+    public void testVerify_InOrder_NoReadsFromStorage() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        for (int i = 0; i < BLOCKS; i++) {
+            writeBlock(hasher, i);
+        }
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+        assertEquals(0, bytesReadFromStorage.get());
+    }
+
+    @Test
+    public void testVerify_OutOfOrder_NoReadsFromStorage() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        for (int i : new int[] {3, 1, 2, 7, 0, 6, 5, 4}) {
+            writeBlock(hasher, i);
+        }
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+        assertEquals(0, bytesReadFromStorage.get());
+    }
+
+    @Test
+    public void testVerify_OutOfOrder_InsufficientBudget_ReadsFromStorage() {
+        // only one block may be held in memory
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(BLOCK_SIZE);
+        for (int i : new int[] {7, 6, 5, 4, 3, 2, 1, 0}) {
+            writeBlock(hasher, i);
+        }
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+        // blocks 1-6 have not been held
+        assertEquals(BLOCK_SIZE * 6, bytesReadFromStorage.get());
+    }
+
+    @Test
+    public void testVerify_CorruptedBlock() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        pieceData[BLOCK_SIZE * 2]++;
+        for (int i = 0; i < BLOCKS; i++) {
+            writeBlock(hasher, i);
+        }
+        assertFalse(hasher.verify(TORRENT_ID, 0, chunk));
+    }
+
+    @Test
+    public void testVerify_NoBlocksWritten_ReadsWholePieceFromStorage() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+        assertEquals(pieceData.length, bytesReadFromStorage.get());
+    }
+
+    @Test
+    public void testVerify_LastBlockCompletesChunk_NoReadsFromStorage() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        for (int i = 0; i < BLOCKS - 1; i++) {
+            writeBlock(hasher, i);
+        }
+        // the last block is written to storage before it's fed to the hasher
+        when(chunk.isComplete()).thenReturn(true);
+        writeBlock(hasher, BLOCKS - 1);
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+        assertEquals(0, bytesReadFromStorage.get());
+    }
+
+    @Test
+    public void testLateBlockAfterVerify_Ignored() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        for (int i = 0; i < BLOCKS; i++) {
+            writeBlock(hasher, i);
+        }
+        when(chunk.isComplete()).thenReturn(true);
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+
+        // e.g. duplicate block, that has been requested from several peers in the endgame
+        writeBlock(hasher, 3);
+        assertFalse(hasher.isHashing(TORRENT_ID, 0));
+        assertEquals(0, hasher.getHeldBytes());
+    }
+
+    @Test
+    public void testDuplicateBlockDuringVerify_Ignored() {
+        IncrementalChunkHasher hasher = new IncrementalChunkHasher(Long.MAX_VALUE);
+        // block 3 will be held, and the rest will be read from storage
+        writeBlock(hasher, 3);
+        assertEquals(BLOCK_SIZE, hasher.getHeldBytes());
+        when(chunk.isComplete()).thenReturn(true);
+
+        // duplicate of a block, that is ahead of the hashed data, arrives while the piece is being verified
+        chunk = mockChunk(chunk.getChecksum(), () -> writeBlock(hasher, 5));
+        when(chunk.isComplete()).thenReturn(true);
+        assertTrue(hasher.verify(TORRENT_ID, 0, chunk));
+
+        assertFalse(hasher.isHashing(TORRENT_ID, 0));
+        assertEquals(0, hasher.getHeldBytes());
+    }
+
+    private void writeBlock(IncrementalChunkHasher hasher, int blockIndex) {
+        ByteBuffer block = ByteBuffer.wrap(pieceData, blockIndex * BLOCK_SIZE, BLOCK_SIZE).slice();
+        hasher.blockWritten(TORRENT_ID, 0, chunk, blockIndex * BLOCK_SIZE, new DelegatingByteBufferView(block));
+    }
+
+    private ChunkDescriptor mockChunk(byte[] checksum) {
+        return mockChunk(checksum, () -> {});
+    }
+
+    /**
+     * @param onRead Invoked each time the data is read from storage
+     */
+    private ChunkDescriptor mockChunk(byte[] checksum, Runnable onRead) {
+        DataRange data = mock(DataRange.class);
+        when(data.getSubrange(anyLong(), anyLong())).thenAnswer(invocation -> {
+            int offset = ((Long) invocation.getArguments()[0]).intValue();
+            int length = ((Long) invocation.getArguments()[1]).intValue();
+            DataRange subrange = mock(DataRange.class);
+            when(subrange.getBytes(any(ByteBuffer.class))).thenAnswer(getBytes -> {
+                ByteBuffer buffer = (ByteBuffer) getBytes.getArguments()[0];
+                buffer.put(pieceData, offset, length);
+                bytesReadFromStorage.addAndGet(length);
+                onRead.run();
+                return true;
+            });
+            return subrange;
+        });
+
+        ChunkDescriptor chunk = mock(ChunkDescriptor.class);
+        when(chunk.getChecksum()).thenReturn(checksum);
+        when(chunk.getData()).thenReturn(data);
+        when(chunk.length()).thenReturn((long) pieceData.length);
+        return chunk;
+    }
+}
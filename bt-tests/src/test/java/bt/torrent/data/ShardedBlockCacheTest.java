@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package bt.torrent.data;
+
+import bt.data.ChunkDescriptor;
+import bt.data.DataDescriptor;
+import bt.data.DataRange;
+import bt.data.MockStorageUnit;
+import bt.data.PieceUtils;
+import bt.event.EventBus;
+import bt.metainfo.TorrentId;
+import bt.torrent.TorrentDescriptor;
+import bt.torrent.TorrentRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ShardedBlockCacheTest {
+
+    private static final int PIECE_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int PIECES_COUNT = 8;
+
+    private static final TorrentId TORRENT_ID = TorrentId.fromBytes(new byte[TorrentId.length()]);
+
+    private TorrentRegistry torrentRegistry;
+    private EventBus eventBus;
+    private byte[] data;
+
+    @Before
+    public void setUp() {
+        data = new byte[PIECE_SIZE * PIECES_COUNT];
+        new Random(42).nextBytes(data);
+
+        MockStorageUnit unit = new MockStorageUnit(data.length);
+        unit.writeBlock(ByteBuffer.wrap(data), 0);
+        DataRange range = PieceUtils.buildReadWriteDataRange(Collections.singletonList(unit));
+
+        List<ChunkDescriptor> chunks = new ArrayList<>();
+        for (int i = 0; i < PIECES_COUNT; i++) {
+            ChunkDescriptor chunk = mock(ChunkDescriptor.class);
+            when(chunk.getData()).thenReturn(range.getSubrange((long) i * PIECE_SIZE, PIECE_SIZE));
+            chunks.add(chunk);
+        }
+        DataDescriptor dataDescriptor = mock(DataDescriptor.class);
+        when(dataDescriptor.getChunkDescriptors()).thenReturn(chunks);
+        TorrentDescriptor descriptor = mock(TorrentDescriptor.class);
+        when(descriptor.getDataDescriptor()).thenReturn(dataDescriptor);
+
+        torrentRegistry = mock(TorrentRegistry.class);
+        when(torrentRegistry.getDescriptor(TORRENT_ID)).thenReturn(Optional.of(descriptor));
+        eventBus = new EventBus();
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        ShardedBlockCache cache = new ShardedBlockCache(torrentRegistry, eventBus, PIECE_SIZE * 2);
+
+        assertReadsBlock(cache, 0, 0);
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+        assertEquals(PIECE_SIZE, cache.getUsedSize());
+
+        assertReadsBlock(cache, 0, 1);
+        assertReadsBlock(cache, 0, 3);
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testEviction_GlobalBudget() {
+        ShardedBlockCache cache = new ShardedBlockCache(torrentRegistry, eventBus, PIECE_SIZE * 2);
+
+        for (int i = 0; i < PIECES_COUNT; i++) {
+            assertReadsBlock(cache, i, 0);
+            assertTrue(cache.getUsedSize() <= PIECE_SIZE * 2);
+        }
+        assertEquals(PIECES_COUNT, cache.getMisses());
+        assertEquals(PIECES_COUNT - 2, cache.getEvictions());
+    }
+
+    @Test
+    public void testEviction_ScanResistant() {
+        ShardedBlockCache cache = new ShardedBlockCache(torrentRegistry, eventBus, PIECE_SIZE * 2);
+
+        // piece 0 is requested by several peers
+        assertReadsBlock(cache, 0, 0);
+        assertReadsBlock(cache, 0, 0);
+        assertReadsBlock(cache, 0, 0);
+
+        // all other pieces are read just once, block by block
+        for (int i = 1; i < PIECES_COUNT; i++) {
+            for (int j = 0; j < PIECE_SIZE / BLOCK_SIZE; j++) {
+                assertReadsBlock(cache, i, j);
+            }
+        }
+
+        long misses = cache.getMisses();
+        assertReadsBlock(cache, 0, 1);
+        assertEquals(misses, cache.getMisses());
+    }
+
+    @Test
+    public void testPieceLargerThanCache_ReadsFromStorage() {
+        ShardedBlockCache cache = new ShardedBlockCache(torrentRegistry, eventBus, PIECE_SIZE / 2);
+
+        assertReadsBlock(cache, 0, 2);
+        assertEquals(0, cache.getUsedSize());
+    }
+
+    private void assertReadsBlock(ShardedBlockCache cache, int pieceIndex, int blockIndex) {
+        int offset = blockIndex * BLOCK_SIZE;
+        BlockReader reader = cache.get(TORRENT_ID, pieceIndex, offset, BLOCK_SIZE);
+
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        assertTrue(reader.readTo(buffer));
+        int start = pieceIndex * PIECE_SIZE + offset;
+        assertArrayEquals(Arrays.copyOfRange(data, start, start + BLOCK_SIZE), buffer.array());
+    }
+}
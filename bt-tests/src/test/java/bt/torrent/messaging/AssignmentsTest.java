@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.messaging;
+
+import bt.data.LocalBitfield;
+import bt.data.PeerBitfield;
+import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
+import bt.net.ConnectionKey;
+import bt.net.InetPeer;
+import bt.runtime.Config;
+import bt.torrent.BitfieldBasedStatistics;
+import bt.torrent.selector.RarestFirstSelector;
+import bt.torrent.selector.ValidatingSelector;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AssignmentsTest {
+
+    @Test
+    public void testEndgame_DuplicateClaimsAreLimited() throws Exception {
+        LocalBitfield bitfield = new LocalBitfield(4, null) {
+            @Override
+            protected void fileFinishedCallback(TorrentFile tf) {
+                // do nothing
+            }
+        };
+        Config config = new Config();
+        config.setMaxEndgameDuplicates(2);
+        Assignments assignments = new Assignments(bitfield,
+                new ValidatingSelector(bitfield, new BitSet(), RarestFirstSelector.rarest()),
+                new BitfieldBasedStatistics(bitfield), config);
+
+        assertTrue(assignments.claim(0));
+        assertFalse(assignments.claim(0));
+        assertFalse(assignments.isEndgame());
+        assertEquals(Duration.ZERO, assignments.getEndgameDuration());
+
+        bitfield.markLocalPieceVerified(1);
+        bitfield.markLocalPieceVerified(2);
+        bitfield.markLocalPieceVerified(3);
+
+        // the only remaining piece is assigned
+        assertTrue(assignments.isEndgame());
+        assertTrue(assignments.claim(0));
+        assertFalse(assignments.claim(0));
+
+        assignments.finish(0);
+        assertTrue(assignments.claim(0));
+        assertFalse(assignments.claim(0));
+
+        Thread.sleep(10);
+        bitfield.markLocalPieceVerified(0);
+        assertFalse(assignments.claim(0));
+        assertFalse(assignments.isEndgame());
+
+        Duration endgameDuration = assignments.getEndgameDuration();
+        assertTrue(endgameDuration.toMillis() >= 10);
+        Thread.sleep(10);
+        assertEquals(endgameDuration, assignments.getEndgameDuration());
+    }
+
+    @Test
+    public void testEndgame_IsEndgameDoesNotStartEndgame() throws Exception {
+        LocalBitfield bitfield = createBitfield(2);
+        Assignments assignments = createAssignments(bitfield, new BitfieldBasedStatistics(bitfield), 2);
+
+        assertTrue(assignments.claim(0));
+        bitfield.markLocalPieceVerified(1);
+
+        // checking the mode is free of side effects
+        assertTrue(assignments.isEndgame());
+        Thread.sleep(10);
+        assertEquals(Duration.ZERO, assignments.getEndgameDuration());
+
+        // the endgame starts, when a piece is claimed in the endgame mode
+        assertTrue(assignments.claim(0));
+        assertTrue(assignments.getEndgameDuration().toMillis() < 10);
+    }
+
+    @Test
+    public void testEndgame_ClaimingLastPieceStartsEndgame() throws Exception {
+        LocalBitfield bitfield = createBitfield(2);
+        Assignments assignments = createAssignments(bitfield, new BitfieldBasedStatistics(bitfield), 2);
+        bitfield.markLocalPieceVerified(1);
+
+        assertFalse(assignments.isEndgame());
+        assertTrue(assignments.claim(0));
+        assertTrue(assignments.isEndgame());
+        Thread.sleep(10);
+        assertTrue(assignments.getEndgameDuration().toMillis() >= 10);
+    }
+
+    @Test
+    public void testEndgame_DuplicateClaimsAreLimitedPerPiece() throws Exception {
+        LocalBitfield bitfield = createBitfield(3);
+        Assignments assignments = createAssignments(bitfield, new BitfieldBasedStatistics(bitfield), 3);
+
+        assertTrue(assignments.claim(0));
+        assertTrue(assignments.claim(1));
+        assertTrue(assignments.claim(2));
+        assertTrue(assignments.isEndgame());
+
+        // each piece may be claimed by up to 3 peers, independent of the other pieces
+        assertTrue(assignments.claim(0));
+        assertTrue(assignments.claim(0));
+        assertFalse(assignments.claim(0));
+        assertTrue(assignments.claim(1));
+        assertTrue(assignments.claim(1));
+        assertFalse(assignments.claim(1));
+
+        // releasing a duplicate claim makes room for another one
+        assignments.finish(0);
+        assertTrue(assignments.claim(0));
+        assertFalse(assignments.claim(0));
+    }
+
+    @Test
+    public void testEndgame_PieceIsAssignedToSeveralPeers() throws Exception {
+        LocalBitfield bitfield = createBitfield(2);
+        BitfieldBasedStatistics statistics = new BitfieldBasedStatistics(bitfield);
+        Config config = new Config();
+        config.setMaxEndgameDuplicates(2);
+        config.setMaxSimultaneouslyAssignedPieces(1);
+        Assignments assignments = new Assignments(bitfield,
+                new ValidatingSelector(bitfield, new BitSet(), RarestFirstSelector.rarest()), statistics, config);
+
+        bitfield.markLocalPieceVerified(1);
+        ConnectionKey peer1 = connectionKey(1), peer2 = connectionKey(2), peer3 = connectionKey(3);
+        for (ConnectionKey peer : Arrays.asList(peer1, peer2, peer3)) {
+            PeerBitfield peerBitfield = new PeerBitfield(2);
+            peerBitfield.markPeerPieceVerified(0);
+            peerBitfield.markPeerPieceVerified(1);
+            statistics.addBitfield(peer, peerBitfield);
+        }
+
+        Assignment assignment1 = assignments.assign(peer1).get();
+        Assignment assignment2 = assignments.assign(peer2).get();
+        Assignment assignment3 = assignments.assign(peer3).get();
+        assertTrue(assignment1.isAssigned(0));
+        assertTrue(assignment2.isAssigned(0));
+        // over the limit of duplicates
+        assertTrue(assignment3.getPieces().isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList(peer1, peer2)), assignments.getAssignees(0));
+        assertTrue(assignments.getAssignees(1).isEmpty());
+
+        assignments.remove(assignment1);
+        assertEquals(new HashSet<>(Arrays.asList(peer2)), assignments.getAssignees(0));
+    }
+
+    private static LocalBitfield createBitfield(int piecesTotal) {
+        return new LocalBitfield(piecesTotal, null) {
+            @Override
+            protected void fileFinishedCallback(TorrentFile tf) {
+                // do nothing
+            }
+        };
+    }
+
+    private static Assignments createAssignments(LocalBitfield bitfield,
+                                                 BitfieldBasedStatistics statistics,
+                                                 int maxEndgameDuplicates) {
+        Config config = new Config();
+        config.setMaxEndgameDuplicates(maxEndgameDuplicates);
+        return new Assignments(bitfield,
+                new ValidatingSelector(bitfield, new BitSet(), RarestFirstSelector.rarest()), statistics, config);
+    }
+
+    private static ConnectionKey connectionKey(int port) {
+        return new ConnectionKey(InetPeer.build(InetAddress.getLoopbackAddress(), port), port,
+                TorrentId.fromBytes(new byte[TorrentId.length()]));
+    }
+}
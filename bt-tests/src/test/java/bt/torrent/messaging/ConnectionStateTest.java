@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.messaging;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionStateTest {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    @Test
+    public void testDownloadRateAndRequestLatency() {
+        ConnectionState connectionState = new ConnectionState();
+        assertEquals(0, connectionState.getDownloadRate());
+        assertEquals(Duration.ZERO, connectionState.getRequestLatency());
+
+        long start = TimeUnit.SECONDS.toNanos(100);
+        Object key1 = Mapper.mapper().buildKey(0, 0, BLOCK_SIZE),
+                key2 = Mapper.mapper().buildKey(0, BLOCK_SIZE, BLOCK_SIZE),
+                key3 = Mapper.mapper().buildKey(0, 2 * BLOCK_SIZE, BLOCK_SIZE);
+        connectionState.onRequestSent(key1, start);
+        connectionState.onRequestSent(key2, start);
+        connectionState.onRequestSent(key3, start);
+
+        connectionState.onBlockReceived(key1, BLOCK_SIZE, start + TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(Duration.ofMillis(50), connectionState.getRequestLatency());
+        // rate is not known until the first sample interval has elapsed
+        assertEquals(0, connectionState.getDownloadRate());
+
+        connectionState.onRequestCancelled(key2);
+        connectionState.onBlockReceived(key2, BLOCK_SIZE, start + TimeUnit.MILLISECONDS.toNanos(10));
+        // latency is not measured for cancelled requests
+        assertEquals(Duration.ofMillis(50), connectionState.getRequestLatency());
+
+        connectionState.onBlockReceived(key3, BLOCK_SIZE, start + TimeUnit.MILLISECONDS.toNanos(1050));
+        // 3 blocks in 1 second
+        assertEquals(3 * BLOCK_SIZE, connectionState.getDownloadRate());
+        assertEquals(Duration.ofMillis(50), connectionState.getRequestLatency());
+    }
+}
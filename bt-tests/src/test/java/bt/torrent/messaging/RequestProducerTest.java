@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016—2021 Andrei Tomashpolskiy and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bt.torrent.messaging;
+
+import bt.data.ChunkDescriptor;
+import bt.data.DataDescriptor;
+import bt.data.DataRange;
+import bt.data.LocalBitfield;
+import bt.data.PeerBitfield;
+import bt.metainfo.TorrentFile;
+import bt.metainfo.TorrentId;
+import bt.net.ConnectionKey;
+import bt.net.InetPeer;
+import bt.protocol.Cancel;
+import bt.protocol.Message;
+import bt.protocol.Request;
+import bt.runtime.Config;
+import bt.torrent.BitfieldBasedStatistics;
+import bt.torrent.selector.RarestFirstSelector;
+import bt.torrent.selector.ValidatingSelector;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RequestProducerTest {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int BLOCKS_PER_PIECE = 64;
+    private static final int MIN_OUTSTANDING_REQUESTS = 2;
+    private static final int MAX_OUTSTANDING_REQUESTS = 32;
+
+    private LocalBitfield bitfield;
+    private BitSet presentBlocks;
+    private DataDescriptor dataDescriptor;
+    private Assignments assignments;
+    private BitfieldBasedStatistics statistics;
+    // simulated time of receiving blocks
+    private long clock;
+
+    @Before
+    public void setUp() {
+        bitfield = new LocalBitfield(2, null) {
+            @Override
+            protected void fileFinishedCallback(TorrentFile tf) {
+                // do nothing
+            }
+        };
+        presentBlocks = new BitSet();
+
+        DataRange data = mock(DataRange.class);
+        when(data.length()).thenReturn((long) BLOCK_SIZE * BLOCKS_PER_PIECE);
+        ChunkDescriptor chunk = mock(ChunkDescriptor.class);
+        when(chunk.getData()).thenReturn(data);
+        when(chunk.blockCount()).thenReturn(BLOCKS_PER_PIECE);
+        when(chunk.blockSize()).thenReturn((long) BLOCK_SIZE);
+        when(chunk.isPresent(anyInt())).thenAnswer(invocation -> presentBlocks.get((Integer) invocation.getArguments()[0]));
+
+        dataDescriptor = mock(DataDescriptor.class);
+        when(dataDescriptor.getBitfield()).thenReturn(bitfield);
+        when(dataDescriptor.getChunkDescriptors()).thenReturn(Collections.nCopies(2, chunk));
+
+        statistics = new BitfieldBasedStatistics(bitfield);
+        Config config = new Config();
+        config.setMaxEndgameDuplicates(2);
+        assignments = new Assignments(bitfield,
+                new ValidatingSelector(bitfield, new BitSet(), RarestFirstSelector.rarest()), statistics, config);
+    }
+
+    @Test
+    public void testEndgame_RequestsForReceivedBlocksAreCancelled() throws Exception {
+        // the only remaining piece is assigned, i.e. the endgame
+        bitfield.markLocalPieceVerified(1);
+        ConnectionState connectionState = startAssignment(connectionKey(1));
+        assertTrue(assignments.isEndgame());
+
+        RequestProducer producer = new RequestProducer(dataDescriptor, 100, 100);
+        List<Message> messages = produce(producer, connectionKey(1), connectionState);
+        assertEquals(BLOCKS_PER_PIECE, filter(messages, Request.class).size());
+        assertEquals(BLOCKS_PER_PIECE, connectionState.getPendingRequests().size());
+
+        // block has been received from another peer
+        presentBlocks.set(1);
+        messages = produce(producer, connectionKey(1), connectionState);
+        List<Cancel> cancels = filter(messages, Cancel.class);
+        assertEquals(1, cancels.size());
+        assertEquals(0, cancels.get(0).getPieceIndex());
+        assertEquals(BLOCK_SIZE, cancels.get(0).getOffset());
+        assertEquals(BLOCK_SIZE, cancels.get(0).getLength());
+        assertEquals(BLOCKS_PER_PIECE - 1, connectionState.getPendingRequests().size());
+
+        // cancel is sent only once
+        messages = produce(producer, connectionKey(1), connectionState);
+        assertTrue(filter(messages, Cancel.class).isEmpty());
+    }
+
+    @Test
+    public void testAssignmentRemoved_AllPendingRequestsAreCancelled() throws Exception {
+        ConnectionKey peer = connectionKey(1);
+        ConnectionState connectionState = startAssignment(peer);
+
+        RequestProducer producer = new RequestProducer(dataDescriptor, 100, 100);
+        int requested = filter(produce(producer, peer, connectionState), Request.class).size();
+        assertTrue(requested > 0);
+
+        assignments.remove(assignments.get(peer));
+        List<Cancel> cancels = filter(produce(producer, peer, connectionState), Cancel.class);
+        assertEquals(requested, cancels.size());
+        assertTrue(connectionState.getPendingRequests().isEmpty());
+    }
+
+    @Test
+    public void testOutstandingRequests_NotMeasured_StartsWithMaxLimit() throws Exception {
+        ConnectionKey peer = connectionKey(1);
+        ConnectionState connectionState = startAssignment(peer);
+        RequestProducer producer = new RequestProducer(dataDescriptor, MIN_OUTSTANDING_REQUESTS, MAX_OUTSTANDING_REQUESTS);
+
+        produce(producer, peer, connectionState);
+        assertOutstandingRequests(MAX_OUTSTANDING_REQUESTS, connectionState);
+    }
+
+    @Test
+    public void testOutstandingRequests_LimitFollowsRateAndLatency() throws Exception {
+        ConnectionKey peer = connectionKey(1);
+        ConnectionState connectionState = startAssignment(peer);
+        RequestProducer producer = new RequestProducer(dataDescriptor, MIN_OUTSTANDING_REQUESTS, MAX_OUTSTANDING_REQUESTS);
+
+        // slow peer: 1 block per second, i.e. 2 blocks during the latency (1s) and the queue time (1s)
+        simulateTransfer(connectionState, BLOCK_SIZE, Duration.ofSeconds(1), 10);
+        assertEquals(BLOCK_SIZE, connectionState.getDownloadRate());
+        produce(producer, peer, connectionState);
+        assertOutstandingRequests(MIN_OUTSTANDING_REQUESTS, connectionState);
+
+        // rate increases: 5 blocks per second
+        receiveAll(connectionState);
+        simulateTransfer(connectionState, BLOCK_SIZE * 5, Duration.ofSeconds(1), 10);
+        produce(producer, peer, connectionState);
+        assertOutstandingRequests(10, connectionState);
+
+        // latency decreases: 5 blocks per second, but only 1.5s of data is needed
+        receiveAll(connectionState);
+        simulateTransfer(connectionState, BLOCK_SIZE * 5, Duration.ofMillis(500), 10);
+        produce(producer, peer, connectionState);
+        assertOutstandingRequests(8, connectionState);
+
+        // rate increases beyond the limit
+        receiveAll(connectionState);
+        simulateTransfer(connectionState, BLOCK_SIZE * 100, Duration.ofMillis(500), 10);
+        produce(producer, peer, connectionState);
+        assertOutstandingRequests(MAX_OUTSTANDING_REQUESTS, connectionState);
+
+        // rate drops again
+        receiveAll(connectionState);
+        simulateTransfer(connectionState, BLOCK_SIZE, Duration.ofMillis(500), 20);
+        produce(producer, peer, connectionState);
+        assertOutstandingRequests(MIN_OUTSTANDING_REQUESTS, connectionState);
+    }
+
+    /**
+     * Record the given number of one-second rate samples with the given rate and request latency.
+     */
+    private void simulateTransfer(ConnectionState connectionState, int bytesPerSecond, Duration latency, int samples) {
+        if (clock == 0) {
+            // mark the start of the measurement
+            clock = System.nanoTime();
+            connectionState.onBlockReceived(new Object(), 0, clock);
+        }
+        for (int i = 0; i < samples; i++) {
+            clock += Duration.ofSeconds(1).toNanos();
+            Object key = new Object();
+            connectionState.onRequestSent(key, clock - latency.toNanos());
+            connectionState.onBlockReceived(key, bytesPerSecond, clock);
+        }
+    }
+
+    /**
+     * Pretend that all outstanding requests have been answered.
+     */
+    private static void receiveAll(ConnectionState connectionState) {
+        connectionState.getPendingRequests().clear();
+    }
+
+    private static void assertOutstandingRequests(int limit, ConnectionState connectionState) {
+        // the limit is checked before sending each request, hence one more request may be sent
+        int outstanding = connectionState.getPendingRequests().size();
+        assertTrue("Expected " + limit + " outstanding requests, actual: " + outstanding,
+                outstanding >= limit && outstanding <= limit + 1);
+    }
+
+    private ConnectionState startAssignment(ConnectionKey connectionKey) {
+        PeerBitfield peerBitfield = new PeerBitfield(bitfield.getPiecesTotal());
+        for (int i = 0; i < bitfield.getPiecesTotal(); i++) {
+            peerBitfield.markPeerPieceVerified(i);
+        }
+        statistics.addBitfield(connectionKey, peerBitfield);
+
+        ConnectionState connectionState = new ConnectionState();
+        assignments.assign(connectionKey).get().start(connectionState);
+        return connectionState;
+    }
+
+    private static List<Message> produce(RequestProducer producer,
+                                         ConnectionKey connectionKey,
+                                         ConnectionState connectionState) {
+        List<Message> messages = new ArrayList<>();
+        producer.produce(messages::add, new MessageContext(connectionKey, connectionState));
+        return messages;
+    }
+
+    private static <T extends Message> List<T> filter(List<Message> messages, Class<T> type) {
+        return messages.stream().filter(type::isInstance).map(type::cast).collect(Collectors.toList());
+    }
+
+    private static ConnectionKey connectionKey(int port) {
+        return new ConnectionKey(InetPeer.build(InetAddress.getLoopbackAddress(), port), port,
+                TorrentId.fromBytes(new byte[TorrentId.length()]));
+    }
+}